@@ -0,0 +1,316 @@
+package com.viaplay.jcurl;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JCurlApi implements interfaces whose methods describe requests with annotations, so the code that calls a REST API
+ * reads like calls to a Java API instead of building urls and requests by hand.
+ *
+ * <pre>
+ * &#064;JCurlApi.Headers(&quot;Accept: application/json&quot;)
+ * interface Users {
+ * 	&#064;JCurlApi.Request(&quot;/users/${id}/lists?page=${page}&quot;)
+ * 	String lists(&#064;JCurlApi.Param(&quot;id&quot;) String id, &#064;JCurlApi.Param(&quot;page&quot;) int page);
+ *
+ * 	&#064;JCurlApi.Request(method = JCurlRequest.POST, value = &quot;/users&quot;)
+ * 	JCurlResponse create(&#064;JCurlApi.Body String json, &#064;JCurlApi.Header(&quot;X-Trace&quot;) String trace);
+ * }
+ *
+ * Users users = JCurlApi.create(Users.class, &quot;https://api.viaplay.se&quot;);
+ * String lists = users.lists(&quot;42&quot;, 2);
+ * </pre>
+ *
+ * All reflection is done when the implementation is created. Each method gets a plan: a JCurlRequestTemplate with the
+ * url split around its placeholders and the constant headers in a shared map, and the positions of the arguments that
+ * fill the placeholders, the body and the other headers. A call then only converts its arguments to strings and lets
+ * the template create the request. Interfaces with methods that cannot be planned are rejected by create().
+ * <p>
+ * A method may return a JCurlResponse, the response as a String, the response code as an int, nothing, or a
+ * JCurlRequest which is then created but not sent.
+ */
+public final class JCurlApi {
+
+	/**
+	 * The method and the path, relative to the base url, with <code>${name}</code> placeholders, of a request.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.METHOD)
+	public @interface Request {
+		String method() default JCurlRequest.GET;
+
+		String value();
+	}
+
+	/**
+	 * Constant headers on the form "Name: value", of all methods of an interface or of one method.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ ElementType.TYPE, ElementType.METHOD })
+	public @interface Headers {
+		String[] value();
+	}
+
+	/**
+	 * The argument is the value of a placeholder in the path.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.PARAMETER)
+	public @interface Param {
+		String value();
+	}
+
+	/**
+	 * The argument is the value of a header, which is left out if the argument is null.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.PARAMETER)
+	public @interface Header {
+		String value();
+	}
+
+	/**
+	 * The argument is the payload of the request.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.PARAMETER)
+	public @interface Body {
+	}
+
+	private JCurlApi() {
+	}
+
+	/**
+	 * This method implements an interface with the default JCurlClient.
+	 *
+	 * @param baseUrl
+	 *            The url that the paths of the methods are relative to.
+	 * @throws IllegalArgumentException
+	 *             If a method of the interface is not annotated correctly.
+	 */
+	public static <T> T create(Class<T> type, String baseUrl) {
+		return create(type, baseUrl, JCurlClient.getDefault());
+	}
+
+	/**
+	 * This method implements an interface whose requests are sent by the given client with its defaults.
+	 *
+	 * @param baseUrl
+	 *            The url that the paths of the methods are relative to.
+	 * @throws IllegalArgumentException
+	 *             If a method of the interface is not annotated correctly.
+	 */
+	public static <T> T create(Class<T> type, String baseUrl, JCurlClient client) {
+		if (!type.isInterface()) {
+			throw new IllegalArgumentException(type.getName() + " is not an interface.");
+		}
+		Map<Method, Plan> plans = new HashMap<Method, Plan>();
+		for (Method method : type.getMethods()) {
+			if (!method.isDefault() && !Modifier.isStatic(method.getModifiers())) {
+				plans.put(method, new Plan(type, method, baseUrl, client));
+			}
+		}
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new Handler(type,
+				baseUrl, plans)));
+	}
+
+	/* Helper classes below this line */
+
+	/**
+	 * The precomputed request of one method.
+	 */
+	private static final class Plan {
+		private static final int RESPONSE = 0;
+		private static final int STRING = 1;
+		private static final int CODE = 2;
+		private static final int VOID = 3;
+		private static final int REQUEST = 4;
+
+		private final JCurlClient client;
+		private final JCurlRequestTemplate template;
+		/* The argument of each placeholder of the template, in the order of the placeholders */
+		private final int[] variableArguments;
+		private final int bodyArgument;
+		private final int[] headerArguments;
+		private final String[] headerNames;
+		private final int returns;
+
+		private Plan(Class<?> type, Method method, String baseUrl, JCurlClient client) {
+			this.client = client;
+			String name = type.getSimpleName() + "." + method.getName();
+			Request request = method.getAnnotation(Request.class);
+			if (request == null) {
+				throw new IllegalArgumentException(name + " has no @Request annotation.");
+			}
+			String path = request.value();
+			String url = baseUrl.endsWith("/") && path.startsWith("/") ? baseUrl + path.substring(1) : baseUrl + path;
+			JCurlRequestTemplate.Builder builder = client.newTemplate(url).method(request.method());
+			addHeaders(builder, type.getAnnotation(Headers.class), name);
+			addHeaders(builder, method.getAnnotation(Headers.class), name);
+			this.template = builder.build();
+
+			Map<String, Integer> params = new HashMap<String, Integer>();
+			List<Integer> headerArguments = new ArrayList<Integer>();
+			List<String> headerNames = new ArrayList<String>();
+			int bodyArgument = -1;
+			Annotation[][] annotations = method.getParameterAnnotations();
+			for (int i = 0; i < annotations.length; i++) {
+				Annotation annotation = annotations[i].length == 1 ? annotations[i][0] : null;
+				if (annotation instanceof Param) {
+					params.put(((Param) annotation).value(), i);
+				} else if (annotation instanceof Header) {
+					headerArguments.add(i);
+					headerNames.add(((Header) annotation).value());
+				} else if (annotation instanceof Body && bodyArgument < 0) {
+					bodyArgument = i;
+				} else {
+					throw new IllegalArgumentException("Argument " + i + " of " + name
+							+ " needs one of @Param, @Header or @Body.");
+				}
+			}
+			String[] variables = template.getVariables();
+			this.variableArguments = new int[variables.length];
+			for (int i = 0; i < variables.length; i++) {
+				Integer argument = params.remove(variables[i]);
+				if (argument == null && (argument = findArgument(variableArguments, i, variables)) == null) {
+					throw new IllegalArgumentException("The placeholder ${" + variables[i] + "} of " + name
+							+ " has no @Param.");
+				}
+				variableArguments[i] = argument;
+			}
+			if (!params.isEmpty()) {
+				throw new IllegalArgumentException(name + " has no placeholder for " + params.keySet() + ".");
+			}
+			this.bodyArgument = bodyArgument;
+			this.headerArguments = new int[headerArguments.size()];
+			for (int i = 0; i < this.headerArguments.length; i++) {
+				this.headerArguments[i] = headerArguments.get(i);
+			}
+			this.headerNames = headerNames.toArray(new String[headerNames.size()]);
+
+			Class<?> returnType = method.getReturnType();
+			if (returnType == JCurlResponse.class) {
+				returns = RESPONSE;
+			} else if (returnType == String.class) {
+				returns = STRING;
+			} else if (returnType == int.class) {
+				returns = CODE;
+			} else if (returnType == void.class) {
+				returns = VOID;
+			} else if (returnType == JCurlRequest.class) {
+				returns = REQUEST;
+			} else {
+				throw new IllegalArgumentException(name + " returns " + returnType.getName()
+						+ ", which is not supported.");
+			}
+		}
+
+		private Object invoke(Object[] arguments) {
+			String[] values = new String[variableArguments.length];
+			for (int i = 0; i < values.length; i++) {
+				Object argument = arguments[variableArguments[i]];
+				values[i] = argument == null ? null : argument.toString();
+			}
+			String[] headerValues = null;
+			if (headerArguments.length > 0) {
+				headerValues = new String[headerArguments.length];
+				for (int i = 0; i < headerValues.length; i++) {
+					Object argument = arguments[headerArguments[i]];
+					headerValues[i] = argument == null ? null : argument.toString();
+				}
+			}
+			JCurlRequest request = template.render(values, headerValues == null ? null : headerNames, headerValues);
+			if (bodyArgument >= 0 && arguments[bodyArgument] != null) {
+				request.setPayload(arguments[bodyArgument].toString());
+			}
+			if (returns == REQUEST) {
+				return request;
+			}
+			JCurlResponse response = client.execute(request);
+			switch (returns) {
+			case STRING:
+				return response.toString();
+			case CODE:
+				return response.getResponseCode();
+			case VOID:
+				return null;
+			default:
+				return response;
+			}
+		}
+
+		/**
+		 * @return The argument of a placeholder that appeared earlier in the url, or null.
+		 */
+		private static Integer findArgument(int[] variableArguments, int index, String[] variables) {
+			for (int i = 0; i < index; i++) {
+				if (variables[i].equals(variables[index])) {
+					return variableArguments[i];
+				}
+			}
+			return null;
+		}
+
+		private static void addHeaders(JCurlRequestTemplate.Builder builder, Headers headers, String name) {
+			if (headers == null) {
+				return;
+			}
+			for (String header : headers.value()) {
+				int colon = header.indexOf(':');
+				if (colon <= 0) {
+					throw new IllegalArgumentException("The header '" + header + "' of " + name
+							+ " is not on the form 'Name: value'.");
+				}
+				builder.header(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+			}
+		}
+	}
+
+	/**
+	 * The invocation handler of the implementations, which looks up the plan of the called method.
+	 */
+	private static final class Handler implements InvocationHandler {
+		private final Class<?> type;
+		private final String baseUrl;
+		private final Map<Method, Plan> plans;
+
+		private Handler(Class<?> type, String baseUrl, Map<Method, Plan> plans) {
+			this.type = type;
+			this.baseUrl = baseUrl;
+			this.plans = plans;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+			Plan plan = plans.get(method);
+			if (plan != null) {
+				return plan.invoke(arguments == null ? new Object[0] : arguments);
+			}
+			if (method.isDefault()) {
+				return InvocationHandler.invokeDefault(proxy, method, arguments);
+			}
+			switch (method.getName()) {
+			case "equals":
+				return proxy == arguments[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return type.getSimpleName() + "@" + baseUrl;
+			default:
+				throw new UnsupportedOperationException(method.toString());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,449 @@
+package com.viaplay.jcurl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class holds the body of a response as bytes with random access, for bodies that are too large for the response
+ * string. A body up to a threshold is kept in an array on the heap. A larger one is spilled to a temporary file while
+ * it is received and the file is then memory mapped, in segments of 1 GB since a mapping cannot be larger than 2 GB, so
+ * a body of many gigabytes costs neither heap nor a copy when it is read. Both kinds are read through the same methods.
+ * <p>
+ * A body is received by setting the handler of spillAbove() on the request and read from JCurlResponse.getBody():
+ *
+ * <pre>
+ * request.setBodyHandler(JCurlBody.spillAbove(64 * 1024 * 1024));
+ * try (JCurlBody body = JCurl.get(request).getBody()) {
+ * 	body.read(position, buffer, 0, buffer.length);
+ * }
+ * </pre>
+ *
+ * Closing the body unmaps and deletes the file at once instead of when the garbage collector gets to it. A body that is
+ * never closed has its file deleted when it is collected, and its memory unmapped once its slices are collected too. A
+ * body may be read by many threads, but must not be used while or after it is closed.
+ */
+public final class JCurlBody implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(JCurlBody.class);
+	private static final Cleaner CLEANER = Cleaner.create();
+	private static final int SEGMENT_SHIFT = 30;
+	private static final int READ_SIZE = 64 * 1024;
+	/* The largest array the JVM can allocate */
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			log.debug("Mapped bodies are unmapped by the garbage collector since {}", e.toString());
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private final long size;
+	private final int segmentShift;
+	private final ByteBuffer[] segments;
+	private final File file;
+	private final Spill spill;
+	private final Cleaner.Cleanable cleanable;
+	private volatile boolean closed = false;
+
+	/**
+	 * The mapped file of a spilled body, which is what the Cleaner needs to clean up without the body itself.
+	 */
+	private static final class Spill implements Runnable {
+		private final Path path;
+		private ByteBuffer[] segments = null;
+
+		private Spill(Path path) {
+			this.path = path;
+		}
+
+		/**
+		 * This method unmaps the segments if the JVM allows it, otherwise the garbage collector will. It is only called
+		 * when the body is closed, since slices of a body that has been dropped may still share the segments.
+		 */
+		private synchronized void unmap() {
+			if (segments != null && INVOKE_CLEANER != null) {
+				for (ByteBuffer segment : segments) {
+					if (segment == null) {
+						continue;
+					}
+					try {
+						INVOKE_CLEANER.invoke(UNSAFE, segment);
+					} catch (Exception e) {
+						log.debug("The segment could not be unmapped: {}", e.toString());
+					}
+				}
+			}
+			segments = null;
+		}
+
+		/**
+		 * This method deletes the file and leaves the segments to the garbage collector. Systems that allow it remove a
+		 * file that is still mapped once it is unmapped.
+		 */
+		public synchronized void run() {
+			segments = null;
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				log.warn("The spilled body {} could not be deleted: {}", path, e.getMessage());
+			}
+		}
+	}
+
+	private JCurlBody(byte[] bytes, int length) {
+		this.size = length;
+		this.segmentShift = SEGMENT_SHIFT;
+		this.segments = new ByteBuffer[] { ByteBuffer.wrap(bytes, 0, length).slice() };
+		this.file = null;
+		this.spill = null;
+		this.cleanable = null;
+	}
+
+	private JCurlBody(Spill spill, long size, int segmentShift) throws IOException {
+		this.size = size;
+		this.segmentShift = segmentShift;
+		this.file = spill.path.toFile();
+		this.spill = spill;
+		this.cleanable = CLEANER.register(this, spill);
+		int count = (int) ((size + (1L << segmentShift) - 1) >>> segmentShift);
+		ByteBuffer[] mapped = new ByteBuffer[count];
+		try (FileChannel channel = FileChannel.open(spill.path, StandardOpenOption.READ)) {
+			for (int s = 0; s < count; s++) {
+				long position = (long) s << segmentShift;
+				mapped[s] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(1L << segmentShift, size
+						- position));
+			}
+		} catch (IOException e) {
+			synchronized (spill) {
+				spill.segments = mapped;
+			}
+			spill.unmap();
+			cleanable.clean();
+			throw e;
+		}
+		synchronized (spill) {
+			spill.segments = mapped;
+		}
+		this.segments = mapped;
+	}
+
+	/**
+	 * This method returns a body handler that reads the body of a response into a JCurlBody, which is then returned by
+	 * JCurlResponse.getBody(). Bodies larger than the threshold are spilled to the temporary directory.
+	 *
+	 * @param threshold
+	 *            The largest body in bytes that is kept on the heap.
+	 */
+	public static JCurlBodyHandler spillAbove(long threshold) {
+		return spillAbove(threshold, null);
+	}
+
+	/**
+	 * @param directory
+	 *            The directory to spill large bodies to, or null for the temporary directory.
+	 * @see #spillAbove(long)
+	 */
+	public static JCurlBodyHandler spillAbove(final long threshold, final File directory) {
+		return (inputStream, response) -> response.setBody(read(inputStream, threshold, directory,
+				contentLength(response)));
+	}
+
+	/**
+	 * This method reads a stream to its end into a body, see spillAbove(). The stream is not closed.
+	 *
+	 * @param expectedLength
+	 *            The length of the stream if it is known, e.g. from the Content-Length, otherwise -1. A stream that is
+	 *            known to exceed the threshold is spilled from the start.
+	 */
+	public static JCurlBody read(InputStream inputStream, long threshold, File directory, long expectedLength)
+			throws IOException {
+		return read(inputStream, threshold, directory, expectedLength, SEGMENT_SHIFT);
+	}
+
+	/**
+	 * @param segmentShift
+	 *            The log2 of the size of the mapped segments, which the tests make small.
+	 */
+	static JCurlBody read(InputStream inputStream, long threshold, File directory, long expectedLength,
+			int segmentShift) throws IOException {
+		threshold = Math.min(threshold, MAX_ARRAY);
+		JCurlBufferPool pool = JCurlBufferPool.getInstance();
+		byte[] buffer = pool.acquireBytes(READ_SIZE);
+		try {
+			byte[] heap = new byte[0];
+			int heapLength = 0;
+			if (expectedLength < 0 || expectedLength <= threshold) {
+				heap = new byte[(int) Math.max(Math.min(expectedLength < 0 ? READ_SIZE : expectedLength, threshold), 0)];
+				int read;
+				while ((read = inputStream.read(buffer, 0, buffer.length)) >= 0) {
+					if (heapLength + (long) read > threshold) {
+						return spill(inputStream, directory, heap, heapLength, buffer, read, segmentShift);
+					}
+					if (heapLength + read > heap.length) {
+						heap = Arrays.copyOf(heap,
+								(int) Math.min(Math.max(heap.length * 2L, heapLength + read), threshold));
+					}
+					System.arraycopy(buffer, 0, heap, heapLength, read);
+					heapLength += read;
+				}
+				return new JCurlBody(heap, heapLength);
+			}
+			return spill(inputStream, directory, heap, 0, buffer, 0, segmentShift);
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * This method writes what has been read so far to a temporary file, followed by the rest of the stream.
+	 */
+	private static JCurlBody spill(InputStream inputStream, File directory, byte[] heap, int heapLength, byte[] buffer,
+			int bufferLength, int segmentShift) throws IOException {
+		Path path = directory == null ? Files.createTempFile("jcurl-", ".body") : Files.createTempFile(
+				directory.toPath(), "jcurl-", ".body");
+		Spill spill = new Spill(path);
+		long size = 0;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			size += writeFully(channel, ByteBuffer.wrap(heap, 0, heapLength));
+			size += writeFully(channel, ByteBuffer.wrap(buffer, 0, bufferLength));
+			int read;
+			while ((read = inputStream.read(buffer, 0, buffer.length)) >= 0) {
+				size += writeFully(channel, ByteBuffer.wrap(buffer, 0, read));
+			}
+		} catch (IOException | RuntimeException e) {
+			spill.run();
+			throw e;
+		}
+		log.debug("A body of {} bytes was spilled to {}", size, path);
+		return new JCurlBody(spill, size, segmentShift);
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+		int length = bytes.remaining();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		return length;
+	}
+
+	private static long contentLength(JCurlResponse response) {
+		String contentLength = response.getHeaderField("Content-Length");
+		try {
+			return contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The length of the body in bytes.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the body is kept in a file rather than on the heap.
+	 */
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * @return The file the body was spilled to or null if it is on the heap. The file is deleted when the body is
+	 *         closed.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The byte at a position.
+	 */
+	public byte get(long position) {
+		checkRange(position, 1);
+		return segments[(int) (position >>> segmentShift)].get((int) (position & ((1L << segmentShift) - 1)));
+	}
+
+	/**
+	 * This method copies bytes from a position of the body into an array.
+	 *
+	 * @return The number of bytes copied, which is less than length at the end of the body, or -1 if the position is
+	 *         at the end.
+	 */
+	public int read(long position, byte[] buffer, int offset, int length) {
+		checkOpen();
+		if (position < 0 || position > size) {
+			throw new IndexOutOfBoundsException("The position " + position + " is outside the body of " + size
+					+ " bytes.");
+		}
+		if (position == size && length > 0) {
+			return -1;
+		}
+		int total = (int) Math.min(length, size - position);
+		int copied = 0;
+		while (copied < total) {
+			ByteBuffer segment = segments[(int) (position >>> segmentShift)];
+			int index = (int) (position & ((1L << segmentShift) - 1));
+			int count = Math.min(total - copied, segment.limit() - index);
+			segment.get(index, buffer, offset + copied, count);
+			copied += count;
+			position += count;
+		}
+		return total;
+	}
+
+	/**
+	 * This method returns a read only view of a part of the body. The view shares the memory of the body when the part
+	 * is within one segment and is a copy when it crosses one. It may outlive a body that is dropped, but must not be used
+	 * after the body is closed.
+	 */
+	public ByteBuffer slice(long position, int length) {
+		checkRange(position, length);
+		if (length == 0) {
+			return ByteBuffer.allocate(0).asReadOnlyBuffer();
+		}
+		ByteBuffer segment = segments[(int) (position >>> segmentShift)];
+		int index = (int) (position & ((1L << segmentShift) - 1));
+		if (index + length <= segment.limit()) {
+			return segment.slice(index, length).asReadOnlyBuffer();
+		}
+		byte[] copy = new byte[length];
+		read(position, copy, 0, length);
+		return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return A stream of the whole body. Closing it does not close the body.
+	 */
+	public InputStream openStream() {
+		checkOpen();
+		return new InputStream() {
+			private long position = 0;
+			private long mark = 0;
+
+			@Override
+			public int read() {
+				return position < size ? get(position++) & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) {
+				if (length == 0) {
+					return 0;
+				}
+				int read = JCurlBody.this.read(position, buffer, offset, length);
+				if (read > 0) {
+					position += read;
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long n) {
+				long skipped = Math.max(0, Math.min(n, size - position));
+				position += skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, size - position);
+			}
+
+			@Override
+			public boolean markSupported() {
+				return true;
+			}
+
+			@Override
+			public synchronized void mark(int readLimit) {
+				mark = position;
+			}
+
+			@Override
+			public synchronized void reset() {
+				position = mark;
+			}
+		};
+	}
+
+	/**
+	 * @return The whole body as an array.
+	 * @throws IllegalStateException
+	 *             If the body is too large for an array.
+	 */
+	public byte[] toByteArray() {
+		if (size > MAX_ARRAY) {
+			throw new IllegalStateException("A body of " + size + " bytes does not fit in an array.");
+		}
+		byte[] bytes = new byte[(int) size];
+		read(0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * @return The whole body decoded with a charset.
+	 */
+	public String toString(Charset charset) {
+		return new String(toByteArray(), charset);
+	}
+
+	/**
+	 * This method unmaps and deletes the file of a spilled body. It may be called more than once.
+	 */
+	public void close() {
+		closed = true;
+		if (cleanable != null) {
+			spill.unmap();
+			cleanable.clean();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[size=%s, file=%s%s]", getClass().getSimpleName(), size, file, closed ? ", closed"
+				: "");
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The body is closed.");
+		}
+	}
+
+	private void checkRange(long position, long length) {
+		checkOpen();
+		if (position < 0 || length < 0 || position + length > size) {
+			throw new IndexOutOfBoundsException("The range " + position + "+" + length + " is outside the body of "
+					+ size + " bytes.");
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.viaplay.jcurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A body handler reads the body of a successful response straight from the connection instead of JCurl reading it
+ * into the response string. It is set with JCurlRequest.setBodyHandler() and is meant for bodies that are large or
+ * that are only partly of interest. The response string is empty when a handler has read the body, the body of an
+ * error response is still read into it.
+ */
+public interface JCurlBodyHandler {
+
+	/**
+	 * This method is called with the body of the response once the status and the header fields are known. The
+	 * handler may stop reading before the end of the stream, JCurl closes it afterwards.
+	 *
+	 * @param inputStream
+	 *            The body as it is received from the host.
+	 * @param response
+	 *            The response with the status and the header fields filled in.
+	 * @throws IOException
+	 *             If the stream fails or the body cannot be handled, in which case JCurl treats it like any other
+	 *             failure to read the response.
+	 */
+	void handleBody(InputStream inputStream, JCurlResponse response) throws IOException;
+
+}
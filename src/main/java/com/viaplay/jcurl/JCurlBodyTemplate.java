@@ -0,0 +1,451 @@
+package com.viaplay.jcurl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A body template is a JSON document with typed slots that is compiled once and rendered for every request, e.g. the
+ * documents of a bulk load. The text between the slots is encoded to UTF-8 bytes when the template is compiled, and a
+ * rendered body writes those bytes and the encoded values straight into a pooled buffer, so no String of the document
+ * is ever built and the exact Content-Length is known before the body is written.
+ *
+ * <pre>
+ * JCurlBodyTemplate template = JCurlBodyTemplate
+ * 		.compile(&quot;{\&quot;time\&quot;:\&quot;${time}\&quot;, \&quot;no\&quot;:${no:long}}&quot;);
+ * for (int i = 0; i &lt; 100; i++) {
+ * 	JCurlRequest request = new JCurlRequest(databaseUrl + &quot;/&quot; + i);
+ * 	request.setBody(template.newBody().set(&quot;time&quot;, dateFormat.format(new Date())).set(&quot;no&quot;, i));
+ * 	JCurl.put(request);
+ * }
+ * </pre>
+ *
+ * A slot is written <code>${name}</code> or <code>${name:type}</code> where the type is <b>string</b>, the default,
+ * <b>long</b> or <b>boolean</b>. A string is escaped for use inside a JSON string, the quotes around it belong to the
+ * template. A template is immutable and may be shared by any number of threads, the bodies it creates may not.
+ */
+public final class JCurlBodyTemplate {
+	private static final int STRING = 0;
+	private static final int LONG = 1;
+	private static final int BOOLEAN = 2;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+	/* The largest buffer a body is rendered into, larger bodies are written in several parts */
+	private static final int MAX_BUFFER = 64 * 1024;
+
+	private final String template;
+	private final String contentType;
+	/* The constant bytes before each slot and after the last one */
+	private final byte[][] segments;
+	private final int constantLength;
+	/* The value index of each slot, a name that appears several times has one value */
+	private final int[] slots;
+	private final String[] names;
+	private final int[] types;
+
+	private JCurlBodyTemplate(String template, String contentType) {
+		this.template = template;
+		this.contentType = contentType;
+		List<byte[]> segments = new ArrayList<byte[]>();
+		List<Integer> slots = new ArrayList<Integer>();
+		Map<String, Integer> values = new LinkedHashMap<String, Integer>();
+		List<Integer> types = new ArrayList<Integer>();
+		int position = 0;
+		int start;
+		while ((start = template.indexOf("${", position)) >= 0) {
+			int end = template.indexOf('}', start + 2);
+			if (end < 0) {
+				throw new IllegalArgumentException("The slot at " + start + " of the template is not closed.");
+			}
+			String slot = template.substring(start + 2, end);
+			int colon = slot.indexOf(':');
+			String name = colon < 0 ? slot : slot.substring(0, colon);
+			int type = type(colon < 0 ? "string" : slot.substring(colon + 1));
+			Integer value = values.get(name);
+			if (value == null) {
+				value = values.size();
+				values.put(name, value);
+				types.add(type);
+			} else if (types.get(value) != type) {
+				throw new IllegalArgumentException("The slot ${" + name + "} is used with different types.");
+			}
+			segments.add(template.substring(position, start).getBytes(StandardCharsets.UTF_8));
+			slots.add(value);
+			position = end + 1;
+		}
+		segments.add(template.substring(position).getBytes(StandardCharsets.UTF_8));
+		this.segments = segments.toArray(new byte[segments.size()][]);
+		int constantLength = 0;
+		for (byte[] segment : this.segments) {
+			constantLength += segment.length;
+		}
+		this.constantLength = constantLength;
+		this.slots = new int[slots.size()];
+		for (int i = 0; i < this.slots.length; i++) {
+			this.slots[i] = slots.get(i);
+		}
+		this.names = values.keySet().toArray(new String[values.size()]);
+		this.types = new int[types.size()];
+		for (int i = 0; i < this.types.length; i++) {
+			this.types[i] = types.get(i);
+		}
+	}
+
+	/**
+	 * This method compiles a JSON template, whose bodies have the Content-Type application/json; charset=utf-8.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If a slot is not closed or has an unknown type.
+	 */
+	public static JCurlBodyTemplate compile(String template) {
+		return compile(template, "application/json; charset=utf-8");
+	}
+
+	/**
+	 * This method compiles a template whose bodies have the given Content-Type. The strings are still escaped like in
+	 * JSON, the text is encoded in UTF-8.
+	 *
+	 * @param contentType
+	 *            The Content-Type of the bodies or null to keep the Content-Type of the request.
+	 */
+	public static JCurlBodyTemplate compile(String template, String contentType) {
+		return new JCurlBodyTemplate(template, contentType);
+	}
+
+	/**
+	 * @return A body of this template without any values set.
+	 */
+	public Body newBody() {
+		return new Body();
+	}
+
+	/**
+	 * @return The index of the value of a slot, for Body methods that take an index instead of a name.
+	 * @throws IllegalArgumentException
+	 *             If the template has no slot with the name.
+	 */
+	public int indexOf(String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("The template has no slot ${" + name + "}.");
+	}
+
+	@Override
+	public String toString() {
+		return template;
+	}
+
+	/* Helper methods below this line */
+
+	private static int type(String type) {
+		if ("string".equals(type)) {
+			return STRING;
+		} else if ("long".equals(type)) {
+			return LONG;
+		} else if ("boolean".equals(type)) {
+			return BOOLEAN;
+		}
+		throw new IllegalArgumentException("The slot type '" + type + "' is not one of string, long and boolean.");
+	}
+
+	/**
+	 * @return The number of bytes a string takes escaped and encoded in UTF-8.
+	 */
+	static long escapedLength(String value) {
+		long length = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\' || c == '\b' || c == '\f' || c == '\n' || c == '\r' || c == '\t') {
+				length += 2;
+			} else if (c < 0x20) {
+				length += 6;
+			} else if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				/* A lone surrogate is replaced by '?' like the encoders of JCurl do */
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	static int longLength(long value) {
+		if (value == Long.MIN_VALUE) {
+			return MIN_LONG.length;
+		}
+		int length = value < 0 ? 2 : 1;
+		for (long rest = Math.abs(value); rest >= 10; rest /= 10) {
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * A body of the template with its values, which can be sent any number of times and changed between the sends. It
+	 * must not be used by several threads at once.
+	 */
+	public final class Body implements JCurlRequestBody {
+		private final String[] strings = new String[names.length];
+		private final long[] numbers = new long[names.length];
+		private final boolean[] set = new boolean[names.length];
+
+		private Body() {
+		}
+
+		public Body set(String name, String value) {
+			return set(indexOf(name), value);
+		}
+
+		public Body set(String name, long value) {
+			return set(indexOf(name), value);
+		}
+
+		public Body set(String name, boolean value) {
+			return set(indexOf(name), value);
+		}
+
+		/**
+		 * This method sets a string slot, a null value is written as an empty string.
+		 *
+		 * @param index
+		 *            The index from JCurlBodyTemplate.indexOf().
+		 */
+		public Body set(int index, String value) {
+			check(index, STRING);
+			strings[index] = value == null ? "" : value;
+			set[index] = true;
+			return this;
+		}
+
+		/**
+		 * This method sets a long slot, or a string slot with the digits of the value.
+		 */
+		public Body set(int index, long value) {
+			if (types[index] == STRING) {
+				return set(index, Long.toString(value));
+			}
+			check(index, LONG);
+			numbers[index] = value;
+			set[index] = true;
+			return this;
+		}
+
+		public Body set(int index, boolean value) {
+			check(index, BOOLEAN);
+			numbers[index] = value ? 1 : 0;
+			set[index] = true;
+			return this;
+		}
+
+		/**
+		 * @throws IllegalStateException
+		 *             If a slot has no value.
+		 */
+		@Override
+		public long getContentLength() {
+			long length = constantLength;
+			for (int slot : slots) {
+				if (!set[slot]) {
+					throw new IllegalStateException("The slot ${" + names[slot] + "} has no value.");
+				}
+				switch (types[slot]) {
+				case STRING:
+					length += escapedLength(strings[slot]);
+					break;
+				case LONG:
+					length += longLength(numbers[slot]);
+					break;
+				default:
+					length += numbers[slot] != 0 ? TRUE.length : FALSE.length;
+				}
+			}
+			return length;
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * This method renders the body into a pooled buffer of at most 64 KB that is written to the stream whenever it
+		 * is full.
+		 */
+		@Override
+		public void writeTo(OutputStream outputStream, JCurlBufferPool bufferPool) throws IOException {
+			byte[] buffer = bufferPool.acquireBytes((int) Math.min(getContentLength(), MAX_BUFFER));
+			try {
+				Writer writer = new Writer(outputStream, buffer);
+				for (int i = 0; i < slots.length; i++) {
+					writer.write(segments[i]);
+					int slot = slots[i];
+					switch (types[slot]) {
+					case STRING:
+						writer.writeEscaped(strings[slot]);
+						break;
+					case LONG:
+						writer.writeLong(numbers[slot]);
+						break;
+					default:
+						writer.write(numbers[slot] != 0 ? TRUE : FALSE);
+					}
+				}
+				writer.write(segments[slots.length]);
+				writer.flush();
+			} finally {
+				bufferPool.release(buffer);
+			}
+		}
+
+		/**
+		 * @return The rendered body as a String, for logging and tests.
+		 */
+		@Override
+		public String toString() {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			try {
+				writeTo(outputStream, JCurlBufferPool.getInstance());
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		private void check(int index, int type) {
+			if (types[index] != type) {
+				throw new IllegalArgumentException("The slot ${" + names[index] + "} does not take a "
+						+ (type == LONG ? "long" : type == BOOLEAN ? "boolean" : "string") + ".");
+			}
+		}
+	}
+
+	/**
+	 * The buffered writing of a body, which flushes the buffer to the stream when it is full.
+	 */
+	private static final class Writer {
+		private final OutputStream outputStream;
+		private final byte[] buffer;
+		private int position = 0;
+
+		private Writer(OutputStream outputStream, byte[] buffer) {
+			this.outputStream = outputStream;
+			this.buffer = buffer;
+		}
+
+		private void write(byte[] bytes) throws IOException {
+			int offset = 0;
+			while (offset < bytes.length) {
+				if (position == buffer.length) {
+					flush();
+				}
+				int length = Math.min(bytes.length - offset, buffer.length - position);
+				System.arraycopy(bytes, offset, buffer, position, length);
+				position += length;
+				offset += length;
+			}
+		}
+
+		private void write(int b) throws IOException {
+			if (position == buffer.length) {
+				flush();
+			}
+			buffer[position++] = (byte) b;
+		}
+
+		private void writeEscaped(String value) throws IOException {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+					write(c);
+				} else if (c < 0x80) {
+					write('\\');
+					switch (c) {
+					case '"':
+					case '\\':
+						write(c);
+						break;
+					case '\b':
+						write('b');
+						break;
+					case '\f':
+						write('f');
+						break;
+					case '\n':
+						write('n');
+						break;
+					case '\r':
+						write('r');
+						break;
+					case '\t':
+						write('t');
+						break;
+					default:
+						write('u');
+						write('0');
+						write('0');
+						write(HEX[c >> 4]);
+						write(HEX[c & 0xF]);
+					}
+				} else if (c < 0x800) {
+					write(0xC0 | c >> 6);
+					write(0x80 | c & 0x3F);
+				} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, value.charAt(++i));
+					write(0xF0 | codePoint >> 18);
+					write(0x80 | codePoint >> 12 & 0x3F);
+					write(0x80 | codePoint >> 6 & 0x3F);
+					write(0x80 | codePoint & 0x3F);
+				} else if (Character.isSurrogate(c)) {
+					write('?');
+				} else {
+					write(0xE0 | c >> 12);
+					write(0x80 | c >> 6 & 0x3F);
+					write(0x80 | c & 0x3F);
+				}
+			}
+		}
+
+		private void writeLong(long value) throws IOException {
+			if (value == Long.MIN_VALUE) {
+				write(MIN_LONG);
+				return;
+			}
+			if (value < 0) {
+				write('-');
+				value = -value;
+			}
+			long divisor = 1;
+			while (divisor <= value / 10) {
+				divisor *= 10;
+			}
+			for (; divisor > 0; divisor /= 10) {
+				write((int) ('0' + value / divisor % 10));
+			}
+		}
+
+		private void flush() throws IOException {
+			outputStream.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+}
@@ -0,0 +1,254 @@
+package com.viaplay.jcurl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class pools the byte arrays, char arrays and direct byte buffers that JCurl reads and writes bodies with, so a
+ * busy client does not allocate new buffers for every request. Buffers come in size classes, the powers of two from 1
+ * KB to 1 MB, and a request for a size is served with the smallest class that fits it. Larger requests are allocated
+ * and left to the garbage collector.
+ * <p>
+ * The pool is split in stripes that threads are spread over by their id, and each stripe keeps a few buffers of each
+ * class in slots that are taken and returned with a compare and set, so threads rarely meet and never block. Stripes
+ * are used rather than thread locals since a thread local pool would keep buffers for every virtual thread.
+ * <p>
+ * A buffer must be released exactly once and not be used afterwards. With leak detection on, which the tests turn on
+ * with the system property <code>jcurl.buffers.leakDetection</code>, the pool remembers where each buffer that is out
+ * was acquired and fails on a buffer that is released twice, so getLeaks() tells which code did not release its
+ * buffers.
+ */
+public final class JCurlBufferPool {
+	private static final Logger log = LoggerFactory.getLogger(JCurlBufferPool.class);
+
+	static final int MIN_SIZE = 1024;
+	static final int MAX_SIZE = 1024 * 1024;
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+	/* The small classes keep more buffers per stripe than the large ones */
+	private static final int SLOTS_SMALL = 8;
+	private static final int SLOTS_LARGE = 2;
+	private static final int LARGE = 64 * 1024;
+	private static final JCurlBufferPool INSTANCE = new JCurlBufferPool(Runtime.getRuntime().availableProcessors());
+
+	private final Stripe[] stripes;
+	private final AtomicLong allocatedCount = new AtomicLong();
+	private final AtomicLong reusedCount = new AtomicLong();
+	private volatile boolean leakDetection = Boolean.getBoolean("jcurl.buffers.leakDetection");
+	private final Map<Object, Throwable> outstanding = new IdentityHashMap<Object, Throwable>();
+
+	/**
+	 * The pooled buffers of one stripe, one array of slots per kind and size class.
+	 */
+	private static final class Stripe {
+		private final AtomicReferenceArray<byte[]>[] bytes = slots();
+		private final AtomicReferenceArray<char[]>[] chars = slots();
+		private final AtomicReferenceArray<ByteBuffer>[] direct = slots();
+
+		@SuppressWarnings("unchecked")
+		private static <T> AtomicReferenceArray<T>[] slots() {
+			AtomicReferenceArray<T>[] slots = (AtomicReferenceArray<T>[]) new AtomicReferenceArray<?>[CLASSES];
+			for (int c = 0; c < CLASSES; c++) {
+				slots[c] = new AtomicReferenceArray<T>(MIN_SIZE << c < LARGE ? SLOTS_SMALL : SLOTS_LARGE);
+			}
+			return slots;
+		}
+	}
+
+	/**
+	 * This constructor creates a pool with at least the given number of stripes. Most code should use the shared pool
+	 * of getInstance().
+	 */
+	public JCurlBufferPool(int stripes) {
+		this.stripes = new Stripe[Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1)];
+		for (int s = 0; s < this.stripes.length; s++) {
+			this.stripes[s] = new Stripe();
+		}
+	}
+
+	/**
+	 * @return The pool that JCurl uses.
+	 */
+	public static JCurlBufferPool getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * This method returns a byte array that is at least minimumSize long. Its content is undefined.
+	 */
+	public byte[] acquireBytes(int minimumSize) {
+		int sizeClass = sizeClass(minimumSize);
+		byte[] buffer = sizeClass < 0 ? null : take(stripe().bytes[sizeClass]);
+		if (buffer == null) {
+			allocatedCount.incrementAndGet();
+			buffer = new byte[sizeClass < 0 ? minimumSize : MIN_SIZE << sizeClass];
+		}
+		return acquired(buffer);
+	}
+
+	public void release(byte[] buffer) {
+		if (released(buffer) && isPooledSize(buffer.length)) {
+			put(stripe().bytes[sizeClass(buffer.length)], buffer);
+		}
+	}
+
+	/**
+	 * This method returns a char array that is at least minimumSize long. Its content is undefined.
+	 */
+	public char[] acquireChars(int minimumSize) {
+		int sizeClass = sizeClass(minimumSize);
+		char[] buffer = sizeClass < 0 ? null : take(stripe().chars[sizeClass]);
+		if (buffer == null) {
+			allocatedCount.incrementAndGet();
+			buffer = new char[sizeClass < 0 ? minimumSize : MIN_SIZE << sizeClass];
+		}
+		return acquired(buffer);
+	}
+
+	public void release(char[] buffer) {
+		if (released(buffer) && isPooledSize(buffer.length)) {
+			put(stripe().chars[sizeClass(buffer.length)], buffer);
+		}
+	}
+
+	/**
+	 * This method returns a direct byte buffer with a capacity of at least minimumSize, cleared. Direct buffers are
+	 * costly to allocate and are freed late, which makes pooling them the most worthwhile.
+	 */
+	public ByteBuffer acquireDirect(int minimumSize) {
+		int sizeClass = sizeClass(minimumSize);
+		ByteBuffer buffer = sizeClass < 0 ? null : take(stripe().direct[sizeClass]);
+		if (buffer == null) {
+			allocatedCount.incrementAndGet();
+			buffer = ByteBuffer.allocateDirect(sizeClass < 0 ? minimumSize : MIN_SIZE << sizeClass);
+		}
+		buffer.clear();
+		return acquired(buffer);
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (released(buffer) && buffer.isDirect() && isPooledSize(buffer.capacity())) {
+			put(stripe().direct[sizeClass(buffer.capacity())], buffer);
+		}
+	}
+
+	/**
+	 * @return The number of buffers that have been allocated because the pool had none of the size.
+	 */
+	public long getAllocatedCount() {
+		return allocatedCount.get();
+	}
+
+	/**
+	 * @return The number of buffers that have been taken from the pool.
+	 */
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	public boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	/**
+	 * This method turns leak detection on or off. It costs a stack trace per acquired buffer and is meant for tests.
+	 */
+	public void setLeakDetection(boolean leakDetection) {
+		synchronized (outstanding) {
+			this.leakDetection = leakDetection;
+			outstanding.clear();
+		}
+	}
+
+	/**
+	 * @return A Throwable for each buffer that has been acquired but not released while leak detection was on, whose
+	 *         stack trace tells where it was acquired.
+	 */
+	public List<Throwable> getLeaks() {
+		synchronized (outstanding) {
+			return new ArrayList<Throwable>(outstanding.values());
+		}
+	}
+
+	/* Helper methods below this line */
+
+	/**
+	 * @return The size class of a size or -1 if it is larger than the largest class.
+	 */
+	static int sizeClass(int size) {
+		if (size > MAX_SIZE) {
+			return -1;
+		}
+		return size <= MIN_SIZE ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - 10;
+	}
+
+	private static boolean isPooledSize(int size) {
+		return size >= MIN_SIZE && size <= MAX_SIZE && Integer.bitCount(size) == 1;
+	}
+
+	private Stripe stripe() {
+		long id = Thread.currentThread().threadId();
+		return stripes[(int) (id ^ id >>> 16) & (stripes.length - 1)];
+	}
+
+	private <T> T take(AtomicReferenceArray<T> slots) {
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) != null) {
+				T buffer = slots.getAndSet(i, null);
+				if (buffer != null) {
+					reusedCount.incrementAndGet();
+					return buffer;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static <T> void put(AtomicReferenceArray<T> slots, T buffer) {
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) == null && slots.compareAndSet(i, null, buffer)) {
+				return;
+			}
+		}
+		/* The stripe is full, the buffer is left to the garbage collector */
+	}
+
+	private <T> T acquired(T buffer) {
+		if (leakDetection) {
+			synchronized (outstanding) {
+				outstanding.put(buffer, new Throwable("A buffer of " + getClass().getSimpleName()
+						+ " was acquired here and has not been released."));
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return false if the buffer must not be pooled, since leak detection found it was not acquired or already
+	 *         released.
+	 */
+	private boolean released(Object buffer) {
+		if (buffer == null) {
+			return false;
+		}
+		if (leakDetection) {
+			synchronized (outstanding) {
+				if (outstanding.remove(buffer) == null) {
+					IllegalStateException e = new IllegalStateException(
+							"A buffer was released twice or was not acquired from " + getClass().getSimpleName() + ".");
+					log.error(e.getMessage(), e);
+					throw e;
+				}
+			}
+		}
+		return true;
+	}
+
+}
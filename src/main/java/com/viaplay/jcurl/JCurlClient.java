@@ -0,0 +1,725 @@
+package com.viaplay.jcurl;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.viaplay.jcurl.exception.JCurlFileNotFoundException;
+import com.viaplay.jcurl.exception.JCurlIOException;
+import com.viaplay.jcurl.exception.JCurlMalformedURLException;
+import com.viaplay.jcurl.exception.JCurlRejectedException;
+import com.viaplay.jcurl.exception.JCurlSocketTimeoutException;
+
+/**
+ * A JCurlClient sends requests the way JCurl does, with settings and resources of its own: the defaults of the
+ * requests it creates, headers that every request gets, the proxy, the buffer pool and its metrics. Different backends
+ * can then be served by differently tuned clients that do not affect each other.
+ *
+ * <pre>
+ * JCurlClient client = JCurlClient.builder().timeOutMillis(2000).header(&quot;Accept&quot;, &quot;application/json&quot;)
+ * 		.build();
+ * JCurlResponse response = client.get(&quot;http://some.url/&quot;);
+ * ...
+ * client.close();
+ * </pre>
+ *
+ * A client is thread safe and is meant to be built once and shared. The static methods of JCurl use the default client,
+ * which behaves like JCurl always has and cannot be closed. A closed client refuses new requests.
+ */
+public final class JCurlClient implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(JCurlClient.class);
+	private static final int BUFFER_SIZE = 8192;
+	/* The response string is sized after the Content-Length up to this many chars */
+	private static final int MAX_PRESIZE = 16 * 1024 * 1024;
+	private static final JCurlClient DEFAULT = new JCurlClient(new Builder(), true);
+
+	private final int timeOutMillis;
+	private final String charsetName;
+	private final boolean exceptionsToBeThrown;
+	private final JCurlCookieManager cookieManager;
+	private final Map<String, String> headers;
+	private final Proxy proxy;
+	private final JCurlBufferPool bufferPool;
+	private final JCurlConcurrencyLimiter concurrencyLimiter;
+	private final Map<String, JCurlLoadBalancer> loadBalancers;
+	private final boolean shared;
+	private volatile boolean closed = false;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAdder requestCount = new LongAdder();
+	private final LongAdder errorCount = new LongAdder();
+	private final LongAdder timeoutCount = new LongAdder();
+
+	private JCurlClient(Builder builder, boolean shared) {
+		this.timeOutMillis = builder.timeOutMillis;
+		this.charsetName = builder.charsetName;
+		this.exceptionsToBeThrown = builder.exceptionsToBeThrown;
+		this.cookieManager = builder.cookieManager;
+		this.headers = Collections.unmodifiableMap(new LinkedHashMap<String, String>(builder.headers));
+		this.proxy = builder.proxy;
+		this.bufferPool = builder.bufferPool;
+		this.concurrencyLimiter = builder.concurrencyLimiter;
+		this.loadBalancers = Collections.unmodifiableMap(new HashMap<String, JCurlLoadBalancer>(
+				builder.loadBalancers));
+		this.shared = shared;
+	}
+
+	/**
+	 * @return The client that the static methods of JCurl use.
+	 */
+	public static JCurlClient getDefault() {
+		return DEFAULT;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * This method creates a request with the defaults of this client, which the methods that take a url use. A request
+	 * created otherwise keeps its own time out, char-set and exception setting.
+	 *
+	 * @param urlAsString
+	 *            The url in String form to the wanted resource.
+	 */
+	public JCurlRequest newRequest(String urlAsString) {
+		JCurlRequest request = new JCurlRequest(urlAsString, cookieManager);
+		request.setTimeOutMillis(timeOutMillis);
+		request.setCharsetName(charsetName);
+		request.setExceptionsToBeThrown(exceptionsToBeThrown);
+		return request;
+	}
+
+	/**
+	 * This method starts building a request template with the defaults of this client.
+	 *
+	 * @param url
+	 *            The absolute url, with <code>${name}</code> placeholders in the path and query if needed.
+	 */
+	public JCurlRequestTemplate.Builder newTemplate(String url) {
+		return JCurlRequestTemplate.builder(url).timeOutMillis(timeOutMillis).charsetName(charsetName)
+				.exceptionsToBeThrown(exceptionsToBeThrown).cookieManager(cookieManager);
+	}
+
+	public JCurlResponse head(String urlAsString) {
+		return head(newRequest(urlAsString));
+	}
+
+	public JCurlResponse head(JCurlRequest request) {
+		request.setMethod(JCurlRequest.HEAD);
+		return execute(request);
+	}
+
+	public JCurlResponse get(String urlAsString) {
+		return get(newRequest(urlAsString));
+	}
+
+	public JCurlResponse get(JCurlRequest request) {
+		request.setMethod(JCurlRequest.GET);
+		return execute(request);
+	}
+
+	public JCurlResponse put(String urlAsString, String payload) {
+		JCurlRequest request = newRequest(urlAsString);
+		request.setPayload(payload);
+		return put(request);
+	}
+
+	public JCurlResponse put(JCurlRequest request) {
+		request.setMethod(JCurlRequest.PUT);
+		return execute(request);
+	}
+
+	public JCurlResponse post(String urlAsString, String payload) {
+		JCurlRequest request = newRequest(urlAsString);
+		request.setPayload(payload);
+		return post(request);
+	}
+
+	public JCurlResponse post(JCurlRequest request) {
+		request.setMethod(JCurlRequest.POST);
+		return execute(request);
+	}
+
+	public JCurlResponse delete(String urlAsString) {
+		return delete(newRequest(urlAsString));
+	}
+
+	public JCurlResponse delete(JCurlRequest request) {
+		request.setMethod(JCurlRequest.DELETE);
+		return execute(request);
+	}
+
+	/**
+	 * This method sends a request with the method that is set on it. The response updates the cookie manager of the
+	 * request, if it has one. A request that the concurrency limiter rejects is answered with 503 without being sent.
+	 * A request to the name of a service of a load balancer is sent to one of the endpoints of the service.
+	 *
+	 * @throws IllegalStateException
+	 *             If the client is closed.
+	 */
+	public JCurlResponse execute(JCurlRequest request) {
+		if (closed) {
+			throw new IllegalStateException("The " + getClass().getSimpleName() + " is closed.");
+		}
+		JCurlResponse response = new JCurlResponse(request.getCookieManager());
+		URL url = null;
+		JCurlLoadBalancer loadBalancer = null;
+		JCurlLoadBalancer.Endpoint endpoint = null;
+		JCurlConcurrencyLimiter.Permit permit = null;
+		if (concurrencyLimiter != null || !loadBalancers.isEmpty()) {
+			try {
+				url = request.getURL();
+			} catch (MalformedURLException e) {
+				/* Left to doHttpCall to report */
+				url = null;
+			}
+			loadBalancer = url == null ? null : loadBalancers.get(url.getHost().toLowerCase());
+			if (loadBalancer != null) {
+				endpoint = loadBalancer.choose();
+				try {
+					url = endpoint.resolve(url);
+				} catch (MalformedURLException e) {
+					/* The request must not be sent to the name of the service */
+					return malformed(request, response, e);
+				}
+			}
+			if (url != null && concurrencyLimiter != null) {
+				permit = concurrencyLimiter.acquire(url);
+				if (permit == null) {
+					return rejected(request, response);
+				}
+			}
+		}
+		inFlight.incrementAndGet();
+		requestCount.increment();
+		long start = System.nanoTime();
+		if (endpoint != null) {
+			loadBalancer.started(endpoint);
+		}
+		try {
+			doHttpCall(request, url, response);
+		} finally {
+			inFlight.decrementAndGet();
+			if (response.getResponseCode() >= 400 || response.getResponseCode() < 0) {
+				errorCount.increment();
+			}
+			if (endpoint != null) {
+				loadBalancer.completed(endpoint, System.nanoTime() - start, response.getResponseCode());
+			}
+			if (permit != null) {
+				permit.release(response.getResponseCode());
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * This method closes the client. Requests that are in progress are completed, new ones are refused.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             If this is the default client, which is shared by all users of JCurl.
+	 */
+	@Override
+	public void close() {
+		if (shared) {
+			throw new UnsupportedOperationException("The default " + getClass().getSimpleName()
+					+ " cannot be closed.");
+		}
+		closed = true;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return The number of requests that have been sent and not completed yet.
+	 */
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+
+	/**
+	 * @return The number of requests that failed or got a response code of 400 or above.
+	 */
+	public long getErrorCount() {
+		return errorCount.sum();
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount.sum();
+	}
+
+	public JCurlBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * @return The concurrency limiter of this client, or null if it has none.
+	 */
+	public JCurlConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	/**
+	 * @return The load balancer of a service, or null if this client has none.
+	 */
+	public JCurlLoadBalancer getLoadBalancer(String serviceName) {
+		return loadBalancers.get(serviceName.toLowerCase());
+	}
+
+	/**
+	 * This method answers a request that the concurrency limiter rejected.
+	 */
+	private JCurlResponse malformed(JCurlRequest request, JCurlResponse response, MalformedURLException e) {
+		requestCount.increment();
+		errorCount.increment();
+		response.setRequestObject(request);
+		response.setResponseCodeAndMessage(400, "The url is malformed.");
+		log.error("The url '{}' could not be resolved to an endpoint: {}", request.getUrlAsString(), e.getMessage());
+		if (request.isExceptionsToBeThrown()) {
+			throw new JCurlMalformedURLException(e);
+		}
+		return response;
+	}
+
+	private JCurlResponse rejected(JCurlRequest request, JCurlResponse response) {
+		requestCount.increment();
+		errorCount.increment();
+		response.setRequestObject(request);
+		response.setResponseCodeAndMessage(503, "Rejected by the concurrency limiter.");
+		log.warn("The request to '{}' was rejected by the concurrency limiter.", request.getUrlAsString());
+		if (request.isExceptionsToBeThrown()) {
+			throw new JCurlRejectedException("The request to '" + request.getUrlAsString()
+					+ "' was rejected by the concurrency limiter.");
+		}
+		return response;
+	}
+
+	/**
+	 * This method does the actual communication to simplify the methods above.
+	 *
+	 * @param request
+	 *            A populated JCurlRequest object to the wanted resource.
+	 * @param url
+	 *            The url to send the request to, e.g. at an endpoint of a load balancer, or null for the url of the
+	 *            request.
+	 * @param response
+	 *            An instantiated JCurlResponse object.
+	 */
+	private void doHttpCall(JCurlRequest request, URL url, JCurlResponse response) {
+		StringBuffer result = new StringBuffer();
+		URLConnection urlConnection = null;
+		response.setRequestObject(request);
+
+		request.updateCookies();
+
+		try {
+			if (url == null) {
+				url = request.getURL();
+			}
+			urlConnection = proxy == null ? url.openConnection() : url.openConnection(proxy);
+			urlConnection.setDoInput(true);
+			if (urlConnection instanceof HttpURLConnection) {
+				if (hasContent(request) && request.getMethod().equals(JCurlRequest.DELETE)) {
+					((HttpURLConnection) urlConnection).setRequestMethod(JCurlRequest.POST);
+				} else {
+					((HttpURLConnection) urlConnection).setRequestMethod(request.getMethod());
+				}
+			}
+			urlConnection.setConnectTimeout(request.getTimeOutMillis());
+			urlConnection.setReadTimeout(request.getTimeOutMillis());
+
+			Map<String, String> properties = request.readProperties();
+			String[] callHeaderNames = request.getCallHeaderNames();
+			String[] callHeaderValues = request.getCallHeaderValues();
+			URL userInfoUrl = request.getURL();
+			if (userInfoUrl.getUserInfo() != null && !properties.containsKey("Authorization")
+					&& !hasCallHeader(callHeaderNames, callHeaderValues, "Authorization")) {
+				String basicAuth = "Basic " + new String(new Base64().encode(userInfoUrl.getUserInfo().getBytes()));
+				urlConnection.setRequestProperty("Authorization", basicAuth);
+			}
+			urlConnection.setRequestProperty("Content-Length", "0");
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				urlConnection.setRequestProperty(header.getKey(), header.getValue());
+			}
+			for (Map.Entry<String, String> property : properties.entrySet()) {
+				urlConnection.setRequestProperty(property.getKey(), property.getValue());
+			}
+			for (int i = 0; callHeaderNames != null && i < callHeaderNames.length; i++) {
+				if (callHeaderValues[i] != null) {
+					urlConnection.setRequestProperty(callHeaderNames[i], callHeaderValues[i]);
+				}
+			}
+			if (request.getCookieHeader() != null) {
+				urlConnection.setRequestProperty("Cookie", request.getCookieHeader());
+			}
+
+			if (hasContent(request)) {
+				if (request.getMethod().equals(JCurlRequest.DELETE)) {
+					urlConnection.setRequestProperty("X-HTTP-Method-Override", "DELETE");
+				}
+				urlConnection.setDoOutput(true);
+				if (request.getBody() != null) {
+					writeBody(urlConnection, request.getBody(), bufferPool);
+				} else {
+					writePayload(urlConnection, request.getPayload(), request.getCharsetName(), bufferPool);
+				}
+			}
+
+			response.updateFromUrlConnection(urlConnection);
+			long contentLength = urlConnection.getContentLengthLong();
+			if (contentLength > 0 && contentLength <= MAX_PRESIZE && request.getBodyHandler() == null) {
+				result.ensureCapacity((int) contentLength);
+			}
+
+			if (request.getBodyHandler() != null) {
+				InputStream inputStream = urlConnection.getInputStream();
+				try {
+					request.getBodyHandler().handleBody(inputStream, response);
+				} finally {
+					inputStream.close();
+				}
+			} else {
+				readInputStream(result, urlConnection.getInputStream(), request.getCharsetName(), bufferPool);
+			}
+
+		} catch (SocketTimeoutException e) {
+			timeoutCount.increment();
+			response.setResponseCodeAndMessage(408, "The socket connection timed out.");
+			log.error("The socket timed out after {} milliseconds.", request.getTimeOutMillis());
+			if (request.isExceptionsToBeThrown())
+				throw new JCurlSocketTimeoutException(e);
+		} catch (RuntimeException e) {
+			response.setResponseCodeAndMessage(500, "Internal server error.");
+			log.error(e.getMessage());
+			if (request.isExceptionsToBeThrown())
+				throw e;
+		} catch (MalformedURLException e) {
+			response.setResponseCodeAndMessage(400, "The url is malformed.");
+			log.error("The url '{}' is malformed.", request.getUrlAsString());
+			if (request.isExceptionsToBeThrown())
+				throw new JCurlMalformedURLException(e);
+		} catch (IOException e) {
+			if (urlConnection instanceof HttpURLConnection) {
+				try {
+					readInputStream(result, ((HttpURLConnection) urlConnection).getErrorStream(),
+							request.getCharsetName(), bufferPool);
+				} catch (IOException e1) {
+					if (response.getResponseCode() < 0) {
+						response.setResponseCodeAndMessage(500, "Internal server error.");
+					}
+					if (request.isExceptionsToBeThrown()) {
+						if (e instanceof FileNotFoundException) {
+							throw new JCurlFileNotFoundException(e);
+						} else {
+							throw new JCurlIOException(e);
+						}
+					}
+				}
+			} else {
+				response.setResponseCodeAndMessage(404, "Not Found.");
+				if (request.isExceptionsToBeThrown())
+					throw new JCurlFileNotFoundException(e);
+			}
+		} finally {
+			if (urlConnection != null && urlConnection instanceof HttpURLConnection) {
+				((HttpURLConnection) urlConnection).disconnect();
+			}
+		}
+		response.setResponseString(result);
+	}
+
+	/**
+	 * Local helper method that reads data from an input stream. Like the BufferedReader.readLine() loop it replaces,
+	 * it turns "\r\n" and "\r" into "\n" and terminates the last line as well, but it decodes the bytes in buffers from
+	 * the JCurlBufferPool instead of allocating readers and a String per line.
+	 *
+	 * @param result
+	 *            The read text.
+	 * @param inputStream
+	 *            The stream to read.
+	 * @param charsetName
+	 *            The name of the char-set to be used to convert the read pay-load.
+	 * @param pool
+	 *            The pool to take the buffers from.
+	 * @throws UnsupportedEncodingException
+	 * @throws IOException
+	 */
+	static void readInputStream(StringBuffer result, InputStream inputStream, String charsetName, JCurlBufferPool pool)
+			throws UnsupportedEncodingException, IOException {
+		if (inputStream == null)
+			throw new IOException("No working inputStream.");
+		byte[] bytes = pool.acquireBytes(BUFFER_SIZE);
+		char[] chars = pool.acquireChars(BUFFER_SIZE);
+		try {
+			CharsetDecoder decoder = charset(charsetName).newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			ByteBuffer in = ByteBuffer.wrap(bytes);
+			in.limit(0);
+			CharBuffer out = CharBuffer.wrap(chars);
+			boolean endOfInput = false;
+			boolean afterCarriageReturn = false;
+			boolean lineOpen = false;
+			for (;;) {
+				if (!endOfInput) {
+					in.compact();
+					int read = inputStream.read(bytes, in.position(), in.remaining());
+					if (read < 0) {
+						endOfInput = true;
+					} else {
+						in.position(in.position() + read);
+					}
+					in.flip();
+				}
+				CoderResult coderResult = decoder.decode(in, out, endOfInput);
+				if (endOfInput && coderResult.isUnderflow()) {
+					coderResult = decoder.flush(out);
+				}
+				int start = 0;
+				int end = out.position();
+				for (int i = 0; i < end; i++) {
+					char c = chars[i];
+					if (c == '\n' || c == '\r') {
+						result.append(chars, start, i - start);
+						if (c == '\r' || !afterCarriageReturn) {
+							result.append('\n');
+						}
+						afterCarriageReturn = c == '\r';
+						lineOpen = false;
+						start = i + 1;
+					} else {
+						afterCarriageReturn = false;
+						lineOpen = true;
+					}
+				}
+				result.append(chars, start, end - start);
+				out.clear();
+				if (endOfInput && coderResult.isUnderflow()) {
+					break;
+				}
+			}
+			if (lineOpen) {
+				result.append('\n');
+			}
+		} finally {
+			pool.release(bytes);
+			pool.release(chars);
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Local helper method that encodes the payload into a pooled buffer, so that it is encoded once for both the
+	 * Content-Length and the body. Payloads too large for the pool are encoded the ordinary way.
+	 */
+	static void writePayload(URLConnection urlConnection, String payload, String charsetName, JCurlBufferPool pool)
+			throws IOException {
+		CharsetEncoder encoder = charset(charsetName).newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		long maximumLength = (long) Math.ceil(payload.length() * (double) encoder.maxBytesPerChar());
+		if (maximumLength > JCurlBufferPool.MAX_SIZE) {
+			byte[] bytes = payload.getBytes(encoder.charset());
+			writePayload(urlConnection, bytes, bytes.length);
+			return;
+		}
+		byte[] buffer = pool.acquireBytes((int) maximumLength);
+		try {
+			ByteBuffer out = ByteBuffer.wrap(buffer);
+			encoder.encode(CharBuffer.wrap(payload), out, true);
+			encoder.flush(out);
+			writePayload(urlConnection, buffer, out.position());
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Local helper method that streams a body. A body of known length is streamed with that Content-Length instead of
+	 * being buffered by the HttpURLConnection to count it, any other is sent chunked.
+	 */
+	static void writeBody(URLConnection urlConnection, JCurlRequestBody body, JCurlBufferPool pool)
+			throws IOException {
+		if (body.getContentType() != null) {
+			urlConnection.setRequestProperty("Content-Type", body.getContentType());
+		}
+		long contentLength = body.getContentLength();
+		if (urlConnection instanceof HttpURLConnection) {
+			if (contentLength >= 0) {
+				((HttpURLConnection) urlConnection).setFixedLengthStreamingMode(contentLength);
+			} else {
+				((HttpURLConnection) urlConnection).setChunkedStreamingMode(BUFFER_SIZE);
+			}
+		} else if (contentLength >= 0) {
+			urlConnection.setRequestProperty("Content-Length", Long.toString(contentLength));
+		}
+		OutputStream outputStream = urlConnection.getOutputStream();
+		try {
+			body.writeTo(outputStream, pool);
+			outputStream.flush();
+		} finally {
+			outputStream.close();
+		}
+	}
+
+	private static boolean hasCallHeader(String[] names, String[] values, String name) {
+		for (int i = 0; names != null && i < names.length; i++) {
+			if (values[i] != null && names[i].equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasContent(JCurlRequest request) {
+		return request.getBody() != null || request.hasPayload();
+	}
+
+	private static void writePayload(URLConnection urlConnection, byte[] bytes, int length) throws IOException {
+		urlConnection.setRequestProperty("Content-Length", Integer.toString(length));
+		OutputStream outputStream = urlConnection.getOutputStream();
+		try {
+			outputStream.write(bytes, 0, length);
+			outputStream.flush();
+		} finally {
+			outputStream.close();
+		}
+	}
+
+	private static Charset charset(String charsetName) throws UnsupportedEncodingException {
+		try {
+			return Charset.forName(charsetName);
+		} catch (IllegalArgumentException e) {
+			throw new UnsupportedEncodingException(charsetName);
+		}
+	}
+
+	/**
+	 * The builder of a JCurlClient. The defaults are those of JCurl.
+	 */
+	public static final class Builder {
+		private int timeOutMillis = 30000;
+		private String charsetName = "UTF8";
+		private boolean exceptionsToBeThrown = false;
+		private JCurlCookieManager cookieManager = null;
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+		private Proxy proxy = null;
+		private JCurlBufferPool bufferPool = JCurlBufferPool.getInstance();
+		private JCurlConcurrencyLimiter concurrencyLimiter = null;
+		private final Map<String, JCurlLoadBalancer> loadBalancers = new HashMap<String, JCurlLoadBalancer>();
+
+		private Builder() {
+		}
+
+		/**
+		 * @param timeOutMillis
+		 *            The connect and read time out of the requests the client creates.
+		 */
+		public Builder timeOutMillis(int timeOutMillis) {
+			this.timeOutMillis = timeOutMillis;
+			return this;
+		}
+
+		public Builder charsetName(String charsetName) {
+			this.charsetName = charsetName;
+			return this;
+		}
+
+		public Builder exceptionsToBeThrown(boolean exceptionsToBeThrown) {
+			this.exceptionsToBeThrown = exceptionsToBeThrown;
+			return this;
+		}
+
+		/**
+		 * @param cookieManager
+		 *            The cookie manager of the requests the client creates.
+		 */
+		public Builder cookieManager(JCurlCookieManager cookieManager) {
+			this.cookieManager = cookieManager;
+			return this;
+		}
+
+		/**
+		 * This method adds a header that every request gets unless the request has a property of the same name.
+		 */
+		public Builder header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		public Builder proxy(Proxy proxy) {
+			this.proxy = proxy;
+			return this;
+		}
+
+		/**
+		 * @param bufferPool
+		 *            The pool to read and write bodies with, e.g. a pool of its own to keep the buffers of a busy
+		 *            backend apart.
+		 */
+		public Builder bufferPool(JCurlBufferPool bufferPool) {
+			if (bufferPool == null) {
+				throw new IllegalArgumentException("The buffer pool may not be null.");
+			}
+			this.bufferPool = bufferPool;
+			return this;
+		}
+
+		/**
+		 * @param concurrencyLimiter
+		 *            The limiter of the requests in flight to each origin, or null to send every request at once.
+		 */
+		public Builder concurrencyLimiter(JCurlConcurrencyLimiter concurrencyLimiter) {
+			this.concurrencyLimiter = concurrencyLimiter;
+			return this;
+		}
+
+		/**
+		 * This method adds a load balancer, the requests to the name of its service are sent to its endpoints.
+		 */
+		public Builder loadBalancer(JCurlLoadBalancer loadBalancer) {
+			if (loadBalancers.containsKey(loadBalancer.getServiceName())) {
+				throw new IllegalArgumentException("The service " + loadBalancer.getServiceName()
+						+ " already has a load balancer.");
+			}
+			loadBalancers.put(loadBalancer.getServiceName(), loadBalancer);
+			return this;
+		}
+
+		public JCurlClient build() {
+			return new JCurlClient(this, false);
+		}
+	}
+
+}
@@ -0,0 +1,329 @@
+package com.viaplay.jcurl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This cookie store keeps the cookies of one session in a few packed arrays instead of one object per cookie, for
+ * simulations and proxies that hold a cookie manager per user for hundreds of thousands of users. The domains, paths,
+ * names and SameSite values repeat across sessions, so they are interned in a dictionary that all compact stores share
+ * and each cookie refers to them by number. The values, which differ per session, are kept as bytes in one array.
+ * <p>
+ * A session only holds a handful of cookies, so matching a request is a scan of the packed arrays rather than an index.
+ * The arrays are replaced, not changed, when a cookie is added or removed, so the Cookie header is rendered without
+ * locking. Expired cookies are dropped the next time the store is changed. The store cannot be bounded.
+ */
+public final class JCurlCompactCookieStore implements JCurlCookieStore {
+	private static final Dictionary DICTIONARY = new Dictionary();
+
+	/* The ints of each cookie in State.fields */
+	private static final int DOMAIN = 0;
+	private static final int PATH = 1;
+	private static final int NAME = 2;
+	private static final int FLAGS = 3;
+	private static final int VALUE_OFFSET = 4;
+	private static final int VALUE_LENGTH = 5;
+	private static final int FIELDS = 6;
+
+	/* The low bits of the FLAGS int, the high bits hold the dictionary id of SameSite plus one */
+	private static final int SECURE = 1;
+	private static final int HTTP_ONLY = 2;
+	private static final int DOMAIN_ATTRIBUTE = 4;
+	private static final int PATH_ATTRIBUTE = 8;
+	private static final int NULL_VALUE = 16;
+	private static final int SAME_SITE_SHIFT = 8;
+
+	private static final int NONE = -1;
+	private static final long NO_EXPIRY = Long.MAX_VALUE;
+	private static final State EMPTY = new State(0, new int[0], new long[0], new byte[0]);
+
+	private volatile State state = EMPTY;
+
+	/**
+	 * The cookies of the store. Instances are never changed once published.
+	 */
+	private static final class State {
+		private final int count;
+		private final int[] fields;
+		private final long[] expires;
+		private final byte[] values;
+
+		private State(int count, int[] fields, long[] expires, byte[] values) {
+			this.count = count;
+			this.fields = fields;
+			this.expires = expires;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * The strings that are shared by all compact stores, numbered in the order they were first seen. Strings are never
+	 * removed, so cookie names that are unique per session should not be stored this way.
+	 */
+	static final class Dictionary {
+		private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+		private volatile String[] strings = new String[256];
+		private int size = 0;
+
+		int intern(String string) {
+			Integer id = ids.get(string);
+			if (id != null) {
+				return id;
+			}
+			synchronized (this) {
+				id = ids.get(string);
+				if (id == null) {
+					String[] current = strings;
+					if (size == current.length) {
+						current = Arrays.copyOf(current, size * 2);
+					}
+					current[size] = string;
+					strings = current;
+					id = size++;
+					ids.put(string, id);
+				}
+				return id;
+			}
+		}
+
+		/**
+		 * @return The id of a string or NONE if it has not been interned.
+		 */
+		int find(String string) {
+			Integer id = ids.get(string);
+			return id == null ? NONE : id;
+		}
+
+		String get(int id) {
+			return strings[id];
+		}
+
+		synchronized int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * @return The number of domains, paths, names and SameSite values in the dictionary shared by all compact stores.
+	 */
+	public static int getDictionarySize() {
+		return DICTIONARY.size();
+	}
+
+	public Map<String, JCurlCookie> getCookieMap() {
+		State current = state;
+		Map<String, JCurlCookie> cookies = new LinkedHashMap<String, JCurlCookie>();
+		for (int i = 0; i < current.count; i++) {
+			JCurlCookie cookie = cookie(current, i);
+			cookies.put(JCurlCookieIndex.keyOf(cookie), cookie);
+		}
+		return Collections.unmodifiableMap(cookies);
+	}
+
+	public int size() {
+		return state.count;
+	}
+
+	public synchronized JCurlCookie put(JCurlCookie cookie) {
+		int domain = cookie.getDomain() == null ? NONE : DICTIONARY.intern(cookie.getDomain());
+		int path = cookie.getPath() == null ? NONE : DICTIONARY.intern(cookie.getPath());
+		int name = DICTIONARY.intern(cookie.getName());
+		State current = state;
+		int replaced = indexOf(current, domain, path, name);
+		JCurlCookie replacedCookie = replaced == NONE ? null : cookie(current, replaced);
+		state = rebuild(current, replaced, cookie, domain, path, name, System.currentTimeMillis());
+		return replacedCookie;
+	}
+
+	public JCurlCookie get(JCurlCookie cookie) {
+		State current = state;
+		int index = indexOf(current, cookie);
+		return index == NONE ? null : cookie(current, index);
+	}
+
+	public synchronized JCurlCookie remove(JCurlCookie cookie) {
+		State current = state;
+		int removed = indexOf(current, cookie);
+		if (removed == NONE) {
+			return null;
+		}
+		JCurlCookie removedCookie = cookie(current, removed);
+		state = rebuild(current, removed, null, NONE, NONE, NONE, System.currentTimeMillis());
+		return removedCookie;
+	}
+
+	public synchronized void clear() {
+		state = EMPTY;
+	}
+
+	public String header(String host, String path, long now) {
+		State current = state;
+		int[] fields = current.fields;
+		int[] matches = null;
+		int matchCount = 0;
+		String lowerCaseHost = host.toLowerCase();
+		for (int i = 0; i < current.count; i++) {
+			int base = i * FIELDS;
+			if (current.expires[i] <= now) {
+				continue;
+			}
+			if (fields[base + DOMAIN] != NONE && !domainMatches(lowerCaseHost, DICTIONARY.get(fields[base + DOMAIN]))) {
+				continue;
+			}
+			if (fields[base + PATH] != NONE && !path.startsWith(DICTIONARY.get(fields[base + PATH]))) {
+				continue;
+			}
+			if (matches == null) {
+				matches = new int[current.count - i];
+			}
+			/* Insertion sort on the path length, longest first and otherwise in the order they were added */
+			int length = pathLength(fields, i);
+			int position = matchCount++;
+			while (position > 0 && pathLength(fields, matches[position - 1]) < length) {
+				matches[position] = matches[position - 1];
+				position--;
+			}
+			matches[position] = i;
+		}
+		if (matchCount == 0) {
+			return "";
+		}
+		StringBuilder builder = new StringBuilder(matchCount * 32);
+		for (int m = 0; m < matchCount; m++) {
+			int base = matches[m] * FIELDS;
+			if (m > 0) {
+				builder.append("; ");
+			}
+			builder.append(DICTIONARY.get(fields[base + NAME])).append('=');
+			appendValue(builder, current.values, fields[base + VALUE_OFFSET], fields[base + VALUE_LENGTH]);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * This method returns a copy of the state without the cookie at index skip, without expired cookies and with the
+	 * cookie passed in, if any, added at the end.
+	 */
+	private static State rebuild(State current, int skip, JCurlCookie added, int domain, int path, int name, long now) {
+		byte[] addedValue = added == null || added.getValue() == null ? null : added.getValue().getBytes(
+				StandardCharsets.UTF_8);
+		int count = 0;
+		int valueLength = addedValue == null ? 0 : addedValue.length;
+		for (int i = 0; i < current.count; i++) {
+			if (i != skip && current.expires[i] > now) {
+				count++;
+				valueLength += current.fields[i * FIELDS + VALUE_LENGTH];
+			}
+		}
+		int total = count + (added == null ? 0 : 1);
+		int[] fields = new int[total * FIELDS];
+		long[] expires = new long[total];
+		byte[] values = new byte[valueLength];
+		int to = 0;
+		int valueOffset = 0;
+		for (int i = 0; i < current.count; i++) {
+			if (i != skip && current.expires[i] > now) {
+				System.arraycopy(current.fields, i * FIELDS, fields, to * FIELDS, FIELDS);
+				int length = current.fields[i * FIELDS + VALUE_LENGTH];
+				System.arraycopy(current.values, current.fields[i * FIELDS + VALUE_OFFSET], values, valueOffset, length);
+				fields[to * FIELDS + VALUE_OFFSET] = valueOffset;
+				valueOffset += length;
+				expires[to++] = current.expires[i];
+			}
+		}
+		if (added != null) {
+			int base = to * FIELDS;
+			fields[base + DOMAIN] = domain;
+			fields[base + PATH] = path;
+			fields[base + NAME] = name;
+			fields[base + FLAGS] = (added.getSecure() ? SECURE : 0) | (added.getHttp() ? HTTP_ONLY : 0)
+					| (added.isDomainAttributeSpecified() ? DOMAIN_ATTRIBUTE : 0)
+					| (added.isPathAttributeSpecified() ? PATH_ATTRIBUTE : 0) | (addedValue == null ? NULL_VALUE : 0)
+					| (added.getSameSite() == null ? 0 : (DICTIONARY.intern(added.getSameSite()) + 1) << SAME_SITE_SHIFT);
+			fields[base + VALUE_OFFSET] = valueOffset;
+			fields[base + VALUE_LENGTH] = addedValue == null ? 0 : addedValue.length;
+			if (addedValue != null) {
+				System.arraycopy(addedValue, 0, values, valueOffset, addedValue.length);
+			}
+			expires[to] = added.getExpiryDate() == null ? NO_EXPIRY : added.getExpiryDate().getTime();
+		}
+		return total == 0 ? EMPTY : new State(total, fields, expires, values);
+	}
+
+	/**
+	 * This method finds a cookie without adding its strings to the dictionary, since a string that is not there
+	 * belongs to no cookie.
+	 */
+	private static int indexOf(State current, JCurlCookie cookie) {
+		int domain = cookie.getDomain() == null ? NONE : DICTIONARY.find(cookie.getDomain());
+		int path = cookie.getPath() == null ? NONE : DICTIONARY.find(cookie.getPath());
+		int name = DICTIONARY.find(cookie.getName());
+		if (name == NONE || (domain == NONE && cookie.getDomain() != null)
+				|| (path == NONE && cookie.getPath() != null)) {
+			return NONE;
+		}
+		return indexOf(current, domain, path, name);
+	}
+
+	private static int indexOf(State current, int domain, int path, int name) {
+		for (int i = 0; i < current.count; i++) {
+			int base = i * FIELDS;
+			if (current.fields[base + NAME] == name && current.fields[base + DOMAIN] == domain
+					&& current.fields[base + PATH] == path) {
+				return i;
+			}
+		}
+		return NONE;
+	}
+
+	private static JCurlCookie cookie(State current, int index) {
+		int base = index * FIELDS;
+		int[] fields = current.fields;
+		int flags = fields[base + FLAGS];
+		String value = (flags & NULL_VALUE) != 0 ? null : new String(current.values, fields[base + VALUE_OFFSET],
+				fields[base + VALUE_LENGTH], StandardCharsets.UTF_8);
+		JCurlCookie cookie = new JCurlCookie(fields[base + DOMAIN] == NONE ? null : DICTIONARY.get(fields[base
+				+ DOMAIN]), DICTIONARY.get(fields[base + NAME]), value, fields[base + PATH] == NONE ? null
+				: DICTIONARY.get(fields[base + PATH]), current.expires[index] == NO_EXPIRY ? null : new Date(
+				current.expires[index]), (flags & HTTP_ONLY) != 0, (flags & SECURE) != 0);
+		cookie.setDomainAttributeSpecified((flags & DOMAIN_ATTRIBUTE) != 0);
+		cookie.setPathAttributeSpecified((flags & PATH_ATTRIBUTE) != 0);
+		if ((flags >>> SAME_SITE_SHIFT) != 0) {
+			cookie.setSameSite(DICTIONARY.get((flags >>> SAME_SITE_SHIFT) - 1));
+		}
+		return cookie;
+	}
+
+	/**
+	 * The host matches a domain if it is the domain or ends with a dot and the domain, like in the JCurlCookieIndex.
+	 */
+	private static boolean domainMatches(String host, String domain) {
+		return host.endsWith(domain)
+				&& (host.length() == domain.length() || host.charAt(host.length() - domain.length() - 1) == '.');
+	}
+
+	private static int pathLength(int[] fields, int index) {
+		int path = fields[index * FIELDS + PATH];
+		return path == NONE ? 0 : DICTIONARY.get(path).length();
+	}
+
+	/**
+	 * This method appends a value without creating a String for it when it is ASCII, which cookie values nearly always
+	 * are.
+	 */
+	private static void appendValue(StringBuilder builder, byte[] values, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (values[i] < 0) {
+				builder.append(new String(values, i, offset + length - i, StandardCharsets.UTF_8));
+				return;
+			}
+			builder.append((char) values[i]);
+		}
+	}
+
+}
@@ -0,0 +1,419 @@
+package com.viaplay.jcurl;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A concurrency limiter lets a JCurlClient have only as many requests in flight to an origin as the origin handles
+ * well, instead of a fixed number that either under-uses a healthy backend or overloads a degraded one. Each origin,
+ * i.e. protocol, host and port, has a limit of its own that is adjusted after every response from its round trip time
+ * and whether the origin dropped the request.
+ *
+ * <pre>
+ * JCurlClient client = JCurlClient.builder()
+ * 		.concurrencyLimiter(JCurlConcurrencyLimiter.builder().maxLimit(100).queueSize(50).maxWaitMillis(200).build())
+ * 		.build();
+ * </pre>
+ *
+ * The <b>GRADIENT</b> algorithm, the default, compares the round trip time of each response with the shortest recent
+ * one, which is what the origin answers in when nothing is queued, like TCP Vegas does. When responses get slower than
+ * that by more than the tolerance the limit shrinks in proportion, otherwise it grows with the square root of itself,
+ * a share of the way per response, so the limit settles where requests start to queue at the origin. The <b>AIMD</b>
+ * algorithm only reacts to drops. It grows the limit by one per limit responses and cuts it by the backoff ratio on
+ * every drop. A drop is a time out or a 429, 503 or 504.
+ * <p>
+ * A request above the limit waits in the queue of its origin for at most maxWaitMillis. When the queue is full, or
+ * the wait is over, the request is rejected at once and JCurlClient answers it with 503 without sending it.
+ * </p>
+ */
+public final class JCurlConcurrencyLimiter {
+	private static final Logger log = LoggerFactory.getLogger(JCurlConcurrencyLimiter.class);
+
+	/**
+	 * The algorithm that adjusts the limits.
+	 */
+	public enum Algorithm {
+		AIMD, GRADIENT
+	}
+
+	private final Algorithm algorithm;
+	private final int initialLimit;
+	private final int minLimit;
+	private final int maxLimit;
+	private final int queueSize;
+	private final long maxWaitMillis;
+	private final double backoffRatio;
+	private final double tolerance;
+	private final double smoothing;
+	private final int rttWindow;
+
+	private final ConcurrentMap<String, Origin> origins = new ConcurrentHashMap<String, Origin>();
+	private final LongAdder rejectedCount = new LongAdder();
+	private final LongAdder dropCount = new LongAdder();
+
+	private JCurlConcurrencyLimiter(Builder builder) {
+		this.algorithm = builder.algorithm;
+		this.initialLimit = builder.initialLimit;
+		this.minLimit = builder.minLimit;
+		this.maxLimit = builder.maxLimit;
+		this.queueSize = builder.queueSize;
+		this.maxWaitMillis = builder.maxWaitMillis;
+		this.backoffRatio = builder.backoffRatio;
+		this.tolerance = builder.tolerance;
+		this.smoothing = builder.smoothing;
+		this.rttWindow = builder.rttWindow;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * A permit is held while a request is in flight and gives the limiter the outcome of the request when it is
+	 * released.
+	 */
+	static final class Permit {
+		private final Origin origin;
+		private final long startNanos;
+		private final int inFlight;
+
+		private Permit(Origin origin, int inFlight) {
+			this.origin = origin;
+			this.inFlight = inFlight;
+			this.startNanos = System.nanoTime();
+		}
+
+		/**
+		 * @param responseCode
+		 *            The response code of the request, which tells if it was dropped.
+		 */
+		void release(int responseCode) {
+			boolean dropped = responseCode == 408 || responseCode == 429 || responseCode == 503
+					|| responseCode == 504;
+			origin.release(System.nanoTime() - startNanos, inFlight, dropped);
+		}
+	}
+
+	/**
+	 * The limit and the requests in flight of one origin. It is guarded by a lock rather than by synchronized, since a
+	 * virtual thread that waits in Object.wait() holds on to its carrier thread.
+	 */
+	private final class Origin {
+		private final String name;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition released = lock.newCondition();
+		private double limit = initialLimit;
+		private int inFlight = 0;
+		private int waiting = 0;
+		/* The shortest round trip time of the previous window of responses and of the current one */
+		private long previousMinRttNanos = Long.MAX_VALUE;
+		private long minRttNanos = Long.MAX_VALUE;
+		private int samples = 0;
+		/* A short moving average of the round trip times, so a single slow response does not cut the limit */
+		private double rttNanos = 0;
+
+		private Origin(String name) {
+			this.name = name;
+		}
+
+		private Permit acquire() throws InterruptedException {
+			lock.lock();
+			try {
+				if (inFlight >= (int) limit) {
+					if (waiting >= queueSize || maxWaitMillis <= 0) {
+						return null;
+					}
+					long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+					waiting++;
+					try {
+						while (inFlight >= (int) limit) {
+							if (remaining <= 0) {
+								return null;
+							}
+							remaining = released.awaitNanos(remaining);
+						}
+					} finally {
+						waiting--;
+					}
+				}
+				inFlight++;
+				return new Permit(this, inFlight);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void release(long rttNanos, int inFlightAtStart, boolean dropped) {
+			lock.lock();
+			try {
+				update(rttNanos, inFlightAtStart, dropped);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void update(long rttNanos, int inFlightAtStart, boolean dropped) {
+			inFlight--;
+			double previous = limit;
+			if (dropped) {
+				dropCount.increment();
+			}
+			if (algorithm == Algorithm.AIMD) {
+				if (dropped) {
+					limit = limit * backoffRatio;
+				} else if (inFlightAtStart * 2 >= limit) {
+					/* One more per round of limit responses, unless the origin is not used enough to tell */
+					limit = limit + 1.0 / limit;
+				}
+			} else {
+				gradient(rttNanos, inFlightAtStart, dropped);
+			}
+			limit = Math.max(minLimit, Math.min(maxLimit, limit));
+			if ((int) limit != (int) previous) {
+				log.debug("The concurrency limit of {} is {}.", name, (int) limit);
+			}
+			released.signalAll();
+		}
+
+		private void gradient(long rttNanos, int inFlightAtStart, boolean dropped) {
+			/* The shortest time is taken over the last one to two windows, so it follows an origin that changes */
+			minRttNanos = Math.min(minRttNanos, rttNanos);
+			this.rttNanos = this.rttNanos == 0 ? rttNanos : this.rttNanos + (rttNanos - this.rttNanos) * 0.1;
+			if (++samples >= rttWindow) {
+				previousMinRttNanos = minRttNanos;
+				minRttNanos = Long.MAX_VALUE;
+				samples = 0;
+			}
+			if (dropped) {
+				limit = limit * (1.0 - smoothing) + limit * backoffRatio * smoothing;
+				return;
+			}
+			if (inFlightAtStart * 2 < limit) {
+				/* The origin is not used enough to tell if it could take more */
+				return;
+			}
+			long noLoadRttNanos = Math.min(previousMinRttNanos, minRttNanos);
+			double gradient = Math.max(0.5, Math.min(1.0, tolerance * noLoadRttNanos / Math.max(1, this.rttNanos)));
+			double newLimit = limit * gradient + Math.sqrt(limit);
+			/* Each response moves the limit a share of the way, so a round of limit responses moves it smoothing */
+			limit = limit + (newLimit - limit) * smoothing / limit;
+		}
+	}
+
+	/**
+	 * This method waits for room under the limit of the origin of a url.
+	 *
+	 * @return The permit to release when the request is done, or null if the request is rejected.
+	 */
+	Permit acquire(URL url) {
+		int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		String name = url.getProtocol() + "://" + url.getHost() + ":" + port;
+		Origin origin = origins.get(name);
+		if (origin == null) {
+			origin = origins.computeIfAbsent(name, key -> new Origin(key));
+		}
+		Permit permit;
+		try {
+			permit = origin.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			permit = null;
+		}
+		if (permit == null) {
+			rejectedCount.increment();
+		}
+		return permit;
+	}
+
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @param origin
+	 *            The origin as protocol://host:port, e.g. http://127.0.0.1:8080.
+	 * @return The current limit of the origin, or the initial limit if no request has been sent to it.
+	 */
+	public int getLimit(String origin) {
+		Origin state = origins.get(origin);
+		if (state == null) {
+			return initialLimit;
+		}
+		state.lock.lock();
+		try {
+			return (int) state.limit;
+		} finally {
+			state.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of requests in flight to an origin.
+	 */
+	public int getInFlight(String origin) {
+		Origin state = origins.get(origin);
+		if (state == null) {
+			return 0;
+		}
+		state.lock.lock();
+		try {
+			return state.inFlight;
+		} finally {
+			state.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The current limit of every origin that requests have been sent to.
+	 */
+	public Map<String, Integer> getLimits() {
+		Map<String, Integer> limits = new TreeMap<String, Integer>();
+		for (String origin : origins.keySet()) {
+			limits.put(origin, getLimit(origin));
+		}
+		return Collections.unmodifiableMap(limits);
+	}
+
+	/**
+	 * @return The number of requests that were rejected because their origin was at its limit.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	/**
+	 * @return The number of responses that counted as drops.
+	 */
+	public long getDropCount() {
+		return dropCount.sum();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " " + algorithm + " " + getLimits();
+	}
+
+	/**
+	 * A builder of a concurrency limiter, the defaults suit a backend that serves a few hundred requests at once.
+	 */
+	public static final class Builder {
+		private Algorithm algorithm = Algorithm.GRADIENT;
+		private int initialLimit = 20;
+		private int minLimit = 1;
+		private int maxLimit = 200;
+		private int queueSize = 0;
+		private long maxWaitMillis = 0;
+		private double backoffRatio = 0.9;
+		private double tolerance = 1.5;
+		private double smoothing = 0.2;
+		private int rttWindow = 500;
+
+		private Builder() {
+		}
+
+		public Builder algorithm(Algorithm algorithm) {
+			this.algorithm = algorithm;
+			return this;
+		}
+
+		/**
+		 * @param initialLimit
+		 *            The limit of an origin before anything is known about it.
+		 */
+		public Builder initialLimit(int initialLimit) {
+			this.initialLimit = initialLimit;
+			return this;
+		}
+
+		public Builder minLimit(int minLimit) {
+			this.minLimit = minLimit;
+			return this;
+		}
+
+		public Builder maxLimit(int maxLimit) {
+			this.maxLimit = maxLimit;
+			return this;
+		}
+
+		/**
+		 * @param queueSize
+		 *            The number of requests that may wait for an origin that is at its limit, 0 rejects them at once.
+		 */
+		public Builder queueSize(int queueSize) {
+			this.queueSize = queueSize;
+			return this;
+		}
+
+		/**
+		 * @param maxWaitMillis
+		 *            The longest time a request waits in the queue before it is rejected.
+		 */
+		public Builder maxWaitMillis(long maxWaitMillis) {
+			this.maxWaitMillis = maxWaitMillis;
+			return this;
+		}
+
+		/**
+		 * @param backoffRatio
+		 *            The factor the limit is multiplied with when a request is dropped.
+		 */
+		public Builder backoffRatio(double backoffRatio) {
+			this.backoffRatio = backoffRatio;
+			return this;
+		}
+
+		/**
+		 * @param tolerance
+		 *            How much slower than the shortest round trip time a response may be before the gradient algorithm
+		 *            shrinks the limit, 1.5 is 50 percent slower.
+		 */
+		public Builder tolerance(double tolerance) {
+			this.tolerance = tolerance;
+			return this;
+		}
+
+		/**
+		 * @param smoothing
+		 *            How far the gradient algorithm moves the limit towards its new value per round of limit responses,
+		 *            between 0 and 1.
+		 */
+		public Builder smoothing(double smoothing) {
+			this.smoothing = smoothing;
+			return this;
+		}
+
+		/**
+		 * @param rttWindow
+		 *            The number of responses the gradient algorithm takes the shortest round trip time over.
+		 */
+		public Builder rttWindow(int rttWindow) {
+			this.rttWindow = Math.max(1, rttWindow);
+			return this;
+		}
+
+		public JCurlConcurrencyLimiter build() {
+			if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+				throw new IllegalArgumentException("The limits must satisfy 1 <= min <= initial <= max.");
+			}
+			if (backoffRatio <= 0.0 || backoffRatio >= 1.0) {
+				throw new IllegalArgumentException("The backoff ratio must be between 0 and 1.");
+			}
+			if (smoothing <= 0.0 || smoothing > 1.0) {
+				throw new IllegalArgumentException("The smoothing must be above 0 and at most 1.");
+			}
+			return new JCurlConcurrencyLimiter(this);
+		}
+	}
+
+}
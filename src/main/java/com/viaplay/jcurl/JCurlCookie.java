@@ -4,10 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
 
 /**
  * Simple cookie object created to reduce external dependencies.
@@ -17,8 +14,6 @@ import java.util.TimeZone;
  */
 public class JCurlCookie {
     private static final Logger log = LoggerFactory.getLogger(JCurlCookie.class);
-    private static final String EXTERNAL_FORMAT = "%s=%s";
-    private static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
 
     private String name;
 
@@ -36,12 +31,17 @@ public class JCurlCookie {
 
     private boolean isHttp;
 
+    private String sameSite;
+
     private boolean hasPathAttribute = false;
 
     private boolean hasDomainAttribute = false;
 
     private int version = 0;
 
+    /** When the cookie was last added or sent, kept by the JCurlCookieIndex to find the least recently used cookie. */
+    volatile long lastAccess = 0;
+
 
 
 
@@ -116,15 +116,23 @@ public class JCurlCookie {
         this.expiryDate = expiryDate;
     }
 
+    /**
+     * Formats a date the way cookie expiry dates are sent, e.g. Sun, 06 Nov 1994 08:49:37 GMT. This method is thread safe.
+     */
     static public String formatDate(Date date) {
         if (date == null) return null;
-        DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return DATE_FORMAT.format(date);
-
+        return JCurlCookieParser.formatDate(date);
     }
 
+    /**
+     * Parses a cookie expiry date in any of the formats RFC 6265 accepts. This method is thread safe.
+     */
     static public Date parseDate(String dateAsGMTString) throws ParseException {
-        return DATE_FORMAT.parse(dateAsGMTString);
+        long time = JCurlCookieParser.parseDate(dateAsGMTString);
+        if (time == Long.MIN_VALUE) {
+            throw new ParseException("Unparseable date: \"" + dateAsGMTString + "\"", 0);
+        }
+        return new Date(time);
     }
 
     public boolean isPersistent() {
@@ -170,6 +178,17 @@ public class JCurlCookie {
         isSecure = secure;
     }
 
+    /**
+     * @return The value of the SameSite attribute, e.g. Strict, Lax or None, or null if it was not set.
+     */
+    public String getSameSite() {
+        return sameSite;
+    }
+
+    public void setSameSite(String sameSite) {
+        this.sameSite = sameSite;
+    }
+
     public int getVersion() {
         return version;
     }
@@ -184,8 +203,12 @@ public class JCurlCookie {
     }
 
     public boolean isExpired(Date now) {
+        return isExpired(now.getTime());
+    }
+
+    public boolean isExpired(long nowMillis) {
         return (expiryDate != null
-                && expiryDate.getTime() <= now.getTime());
+                && expiryDate.getTime() <= nowMillis);
     }
 
 
@@ -227,7 +250,7 @@ public class JCurlCookie {
     }
 
     public String toExternalForm() {
-        return String.format(EXTERNAL_FORMAT, name, value);
+        return name + '=' + value;
     }
 
     public int compare(Object o1, Object o2) {
@@ -0,0 +1,175 @@
+package com.viaplay.jcurl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This hashed timing wheel keeps track of when the cookies of a JCurlCookieIndex expire, so that expired cookies can be
+ * removed without scanning the jar. Time is divided into ticks and each tick hashes to one of a fixed number of slots.
+ * A cookie is put in the slot of the tick it expires in, and when the wheel is advanced past a tick only the cookies in
+ * that slot are looked at. Cookies that expire in a later round of the wheel stay in the slot until then.
+ * <p>
+ * The wheel has no thread of its own, it is advanced by the requests that use the jar. Scheduling and cancelling is
+ * thread safe, and a thread that finds another thread advancing the wheel does not wait for it. Each slot is only
+ * allocated while it holds cookies, so a jar without persistent cookies does not pay for the wheel.
+ */
+class JCurlCookieExpiryWheel {
+	private static final List<JCurlCookie> NONE = Collections.emptyList();
+
+	private final long tickMillis;
+	private final int slotCount;
+	private List<Set<JCurlCookie>> slots = null;
+	private final ReentrantLock lock = new ReentrantLock();
+	private long nextTick;
+	private volatile long nextTickEndsAt;
+	private int size = 0;
+
+	/**
+	 * @param slotCount
+	 *            The number of slots, one round of the wheel is slotCount * tickMillis.
+	 * @param tickMillis
+	 *            The resolution of the wheel in milliseconds.
+	 * @param now
+	 *            The current time in milliseconds.
+	 */
+	JCurlCookieExpiryWheel(int slotCount, long tickMillis, long now) {
+		this.tickMillis = tickMillis;
+		this.slotCount = slotCount;
+		this.nextTick = now / tickMillis;
+		this.nextTickEndsAt = (nextTick + 1) * tickMillis;
+	}
+
+	/**
+	 * This method schedules a cookie that has an expiry date. A cookie that has already expired is put in the next slot
+	 * that is swept.
+	 */
+	void schedule(JCurlCookie cookie) {
+		long tick = cookie.getExpiryDate().getTime() / tickMillis;
+		lock.lock();
+		try {
+			if (slot(Math.max(tick, nextTick), true).add(cookie)) {
+				size++;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This method schedules many cookies that have an expiry date while the wheel is locked once.
+	 */
+	void scheduleAll(List<JCurlCookie> cookies) {
+		lock.lock();
+		try {
+			for (JCurlCookie cookie : cookies) {
+				if (slot(Math.max(cookie.getExpiryDate().getTime() / tickMillis, nextTick), true).add(cookie)) {
+					size++;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This method removes a cookie that has been replaced or removed from the jar before it expired.
+	 */
+	void cancel(JCurlCookie cookie) {
+		long tick = cookie.getExpiryDate().getTime() / tickMillis;
+		lock.lock();
+		try {
+			/* A cookie that expired before it was scheduled is in another slot, it is dropped when that is swept */
+			Set<JCurlCookie> slot = slot(tick, false);
+			if (slot != null && slot.remove(cookie)) {
+				size--;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This method sweeps the slots of the ticks that have passed since the last call.
+	 *
+	 * @param now
+	 *            The current time in milliseconds.
+	 * @return The cookies that have expired, they are no longer in the wheel.
+	 */
+	List<JCurlCookie> advance(long now) {
+		if (now < nextTickEndsAt || !lock.tryLock()) {
+			return NONE;
+		}
+		try {
+			long lastTick = now / tickMillis - 1;
+			List<JCurlCookie> expired = NONE;
+			/* After a pause longer than a round every slot is swept once */
+			long sweepTo = Math.min(lastTick, nextTick + slotCount - 1);
+			for (long tick = nextTick; slots != null && tick <= sweepTo; tick++) {
+				Set<JCurlCookie> slot = slot(tick, false);
+				if (slot == null) {
+					continue;
+				}
+				Iterator<JCurlCookie> iterator = slot.iterator();
+				while (iterator.hasNext()) {
+					JCurlCookie cookie = iterator.next();
+					if (cookie.isExpired(now)) {
+						iterator.remove();
+						size--;
+						if (expired == NONE) {
+							expired = new ArrayList<JCurlCookie>();
+						}
+						expired.add(cookie);
+					}
+				}
+				if (slot.isEmpty()) {
+					slots.set(Math.floorMod(tick, slotCount), null);
+				}
+			}
+			if (lastTick >= nextTick) {
+				nextTick = lastTick + 1;
+				nextTickEndsAt = (nextTick + 1) * tickMillis;
+			}
+			return expired;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of cookies in the wheel.
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The slot of a tick, or null if it is empty and create is false.
+	 */
+	private Set<JCurlCookie> slot(long tick, boolean create) {
+		if (slots == null) {
+			if (!create) {
+				return null;
+			}
+			slots = new ArrayList<Set<JCurlCookie>>(Collections.<Set<JCurlCookie>> nCopies(slotCount, null));
+		}
+		/* A cookie that expired before 1970 has a negative tick */
+		int index = Math.floorMod(tick, slotCount);
+		Set<JCurlCookie> slot = slots.get(index);
+		if (slot == null && create) {
+			slot = Collections.newSetFromMap(new IdentityHashMap<JCurlCookie, Boolean>(4));
+			slots.set(index, slot);
+		}
+		return slot;
+	}
+
+}
@@ -0,0 +1,594 @@
+package com.viaplay.jcurl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This index holds the cookies of a JCurlCookieManager and finds the ones that match a host and a path without looking
+ * at the other cookies of the jar. Cookies with a domain are kept in a tree keyed by the reversed domain labels, so
+ * www.viaplay.se is found by walking se, viaplay and www and collecting the cookies on the way. In each node the
+ * cookies are grouped by their path so that a path that does not prefix the requested path rules out all its cookies
+ * at once.
+ * <p>
+ * The index is thread safe. Readers never lock: each node publishes its cookies as an immutable array that is copied
+ * and replaced when the cookies of that domain change. Writers lock the node of the cookie's domain only, so writes to
+ * different domains do not contend.
+ * <p>
+ * The rendered Cookie header is cached per host and path until the jar is changed or one of its cookies expires.
+ * <p>
+ * The jar may be bounded by a total number of cookies and a number of cookies per domain. When a limit is exceeded the
+ * least recently used cookie is evicted, i.e. the one that was added or sent the longest time ago. Expired cookies are
+ * removed by a hashed timing wheel that is advanced by the calls to the index.
+ */
+class JCurlCookieIndex implements JCurlCookieStore {
+	private static final int MAX_CACHED_HEADERS = 1024;
+	private static final String NO_COOKIES = "";
+	private static final PathGroup[] NO_PATHS = new PathGroup[0];
+	private static final JCurlCookie[] NO_MATCHES = new JCurlCookie[0];
+	private static final int EXPIRY_SLOTS = 1024;
+	private static final long EXPIRY_TICK_MILLIS = 200;
+
+	private final Map<String, JCurlCookie> cookies = new ConcurrentHashMap<String, JCurlCookie>();
+	private final Node root = new Node();
+	private final Map<String, CachedHeader> headerCache = new ConcurrentHashMap<String, CachedHeader>();
+	private final AtomicLong generation = new AtomicLong();
+	/* The cookies in the order they were added, guarded by itself and only changed while the cookie's node is locked */
+	private final LinkedHashMap<String, Added> addedOrder = new LinkedHashMap<String, Added>();
+	private final JCurlCookieExpiryWheel expiryWheel = new JCurlCookieExpiryWheel(EXPIRY_SLOTS, EXPIRY_TICK_MILLIS,
+			System.currentTimeMillis());
+	private final AtomicLong evictedCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+	private volatile int maxCookies;
+	private volatile int maxCookiesPerDomain;
+
+	JCurlCookieIndex() {
+		this(Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	JCurlCookieIndex(int maxCookies, int maxCookiesPerDomain) {
+		this.maxCookies = maxCookies;
+		this.maxCookiesPerDomain = maxCookiesPerDomain;
+	}
+
+	/**
+	 * One domain label in the tree. The cookies of the domain that ends at this node are grouped by path.
+	 */
+	private static class Node {
+		private volatile Map<String, Node> children = null;
+		private volatile PathGroup[] paths = NO_PATHS;
+
+		private Node child(String label, boolean create) {
+			Map<String, Node> map = children;
+			if (map == null) {
+				if (!create) {
+					return null;
+				}
+				synchronized (this) {
+					if (children == null) {
+						children = new ConcurrentHashMap<String, Node>(4);
+					}
+					map = children;
+				}
+			}
+			Node child = map.get(label);
+			if (child == null && create) {
+				child = map.computeIfAbsent(label, key -> new Node());
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * The cookies of one domain that share a path. Instances are never changed once published.
+	 */
+	private static class PathGroup {
+		private final String path;
+		private final JCurlCookie[] cookies;
+
+		private PathGroup(String path, JCurlCookie[] cookies) {
+			this.path = path;
+			this.cookies = cookies;
+		}
+	}
+
+	/**
+	 * A rendered header together with the cookies in it, the time it is valid until and the version of the jar it was
+	 * rendered from.
+	 */
+	private static class CachedHeader {
+		private final String header;
+		private final JCurlCookie[] cookies;
+		private final long validUntil;
+		private final long generation;
+
+		private CachedHeader(String header, JCurlCookie[] cookies, long validUntil, long generation) {
+			this.header = header;
+			this.cookies = cookies;
+			this.validUntil = validUntil;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * A cookie in the added order and the lastAccess it had when it was put there. A cookie that has been sent since
+	 * gets a second chance at the end of the order instead of being evicted.
+	 */
+	private static class Added {
+		private final JCurlCookie cookie;
+		private long lastAccess;
+
+		private Added(JCurlCookie cookie, long lastAccess) {
+			this.cookie = cookie;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	/**
+	 * @return A read only view of the cookies keyed by their domain, path and name.
+	 */
+	public Map<String, JCurlCookie> getCookieMap() {
+		return Collections.unmodifiableMap(cookies);
+	}
+
+	public int size() {
+		return cookies.size();
+	}
+
+	public int getMaxCookies() {
+		return maxCookies;
+	}
+
+	public int getMaxCookiesPerDomain() {
+		return maxCookiesPerDomain;
+	}
+
+	/**
+	 * @return The number of cookies that have been evicted because a limit was exceeded.
+	 */
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	/**
+	 * @return The number of cookies that have been removed by the expiry sweep.
+	 */
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	/**
+	 * This method changes the limits and evicts the cookies that exceed the new ones.
+	 */
+	public void setLimits(int maxCookies, int maxCookiesPerDomain) {
+		this.maxCookies = maxCookies;
+		this.maxCookiesPerDomain = maxCookiesPerDomain;
+		List<Added> added;
+		synchronized (addedOrder) {
+			added = new ArrayList<Added>(addedOrder.values());
+		}
+		for (Added entry : added) {
+			Node node = node(entry.cookie.getDomain(), false);
+			if (node != null) {
+				synchronized (node) {
+					while (count(node.paths) > maxCookiesPerDomain && evictFromDomain(node, null)) {
+					}
+				}
+			}
+		}
+		evictToLimit();
+	}
+
+	/**
+	 * This method adds a cookie to the index and replaces the one with the same domain, path and name. If that makes
+	 * the domain or the jar exceed its limit the least recently used cookie is evicted.
+	 *
+	 * @return The replaced cookie or null.
+	 */
+	public JCurlCookie put(JCurlCookie cookie) {
+		sweepExpired(System.currentTimeMillis());
+		String key = keyOf(cookie);
+		Node node = node(cookie.getDomain(), true);
+		JCurlCookie replaced;
+		synchronized (node) {
+			replaced = cookies.put(key, cookie);
+			PathGroup[] paths = node.paths;
+			if (replaced != null) {
+				paths = without(paths, replaced);
+				unschedule(replaced);
+			}
+			paths = with(paths, cookie);
+			node.paths = paths;
+			cookie.lastAccess = 2 * generation.incrementAndGet();
+			synchronized (addedOrder) {
+				addedOrder.remove(key);
+				addedOrder.put(key, new Added(cookie, cookie.lastAccess));
+			}
+			if (cookie.getExpiryDate() != null) {
+				expiryWheel.schedule(cookie);
+			}
+			if (count(paths) > maxCookiesPerDomain) {
+				evictFromDomain(node, cookie);
+			}
+		}
+		evictToLimit();
+		return replaced;
+	}
+
+	/**
+	 * This method adds many cookies at once, e.g. when a jar is restored. The path groups of each domain are rebuilt
+	 * once instead of being copied for every cookie.
+	 */
+	public void putAll(Collection<JCurlCookie> added) {
+		sweepExpired(System.currentTimeMillis());
+		Map<Node, List<JCurlCookie>> cookiesByNode = new IdentityHashMap<Node, List<JCurlCookie>>();
+		for (JCurlCookie cookie : added) {
+			cookiesByNode.computeIfAbsent(node(cookie.getDomain(), true), node -> new ArrayList<JCurlCookie>()).add(
+					cookie);
+		}
+		for (Map.Entry<Node, List<JCurlCookie>> entry : cookiesByNode.entrySet()) {
+			Node node = entry.getKey();
+			synchronized (node) {
+				Map<String, List<JCurlCookie>> groups = new LinkedHashMap<String, List<JCurlCookie>>();
+				for (PathGroup group : node.paths) {
+					groups.put(group.path, new ArrayList<JCurlCookie>(Arrays.asList(group.cookies)));
+				}
+				List<JCurlCookie> expiring = new ArrayList<JCurlCookie>();
+				long lastAccess = 2 * generation.incrementAndGet();
+				synchronized (addedOrder) {
+					for (JCurlCookie cookie : entry.getValue()) {
+						String key = keyOf(cookie);
+						final JCurlCookie replaced = cookies.put(key, cookie);
+						if (replaced != null) {
+							groups.get(pathOf(replaced)).removeIf(groupCookie -> groupCookie == replaced);
+							unschedule(replaced);
+						}
+						groups.computeIfAbsent(pathOf(cookie), path -> new ArrayList<JCurlCookie>()).add(cookie);
+						cookie.lastAccess = lastAccess;
+						addedOrder.remove(key);
+						addedOrder.put(key, new Added(cookie, lastAccess));
+						if (cookie.getExpiryDate() != null) {
+							expiring.add(cookie);
+						}
+					}
+				}
+				expiryWheel.scheduleAll(expiring);
+				List<PathGroup> paths = new ArrayList<PathGroup>(groups.size());
+				for (Map.Entry<String, List<JCurlCookie>> group : groups.entrySet()) {
+					if (!group.getValue().isEmpty()) {
+						paths.add(new PathGroup(group.getKey(), group.getValue().toArray(NO_MATCHES)));
+					}
+				}
+				node.paths = paths.toArray(NO_PATHS);
+				/* Published after the paths, so that no header rendered before them is cached as current */
+				generation.incrementAndGet();
+				while (count(node.paths) > maxCookiesPerDomain && evictFromDomain(node, null)) {
+				}
+			}
+		}
+		evictToLimit();
+	}
+
+	/**
+	 * This method removes the cookie with the same domain, path and name as the one passed in.
+	 *
+	 * @return The removed cookie or null.
+	 */
+	public JCurlCookie remove(JCurlCookie cookie) {
+		String key = keyOf(cookie);
+		if (!cookies.containsKey(key)) {
+			return null;
+		}
+		Node node = node(cookie.getDomain(), false);
+		if (node == null) {
+			return null;
+		}
+		synchronized (node) {
+			JCurlCookie removed = cookies.get(key);
+			return removed != null && removeLocked(node, key, removed) ? removed : null;
+		}
+	}
+
+	/**
+	 * This method removes all cookies and resets the counters. Cookies that other threads add at the same time may
+	 * remain.
+	 */
+	public void clear() {
+		for (JCurlCookie cookie : cookies.values()) {
+			removeIfSame(cookie);
+		}
+		headerCache.clear();
+		evictedCount.set(0);
+		expiredCount.set(0);
+	}
+
+	/**
+	 * This method removes exactly the cookie passed in, not one that has replaced it.
+	 *
+	 * @return true if the cookie was in the index.
+	 */
+	private boolean removeIfSame(JCurlCookie cookie) {
+		Node node = node(cookie.getDomain(), false);
+		if (node == null) {
+			return false;
+		}
+		synchronized (node) {
+			return removeLocked(node, keyOf(cookie), cookie);
+		}
+	}
+
+	/**
+	 * This method removes a cookie while the lock of its node is held.
+	 */
+	private boolean removeLocked(Node node, String key, JCurlCookie cookie) {
+		if (!cookies.remove(key, cookie)) {
+			return false;
+		}
+		node.paths = without(node.paths, cookie);
+		generation.incrementAndGet();
+		synchronized (addedOrder) {
+			addedOrder.remove(key);
+		}
+		unschedule(cookie);
+		return true;
+	}
+
+	/**
+	 * This method evicts the least recently used cookie of a domain other than the one that was just added.
+	 */
+	private boolean evictFromDomain(Node node, JCurlCookie added) {
+		JCurlCookie victim = null;
+		for (PathGroup group : node.paths) {
+			for (JCurlCookie cookie : group.cookies) {
+				if (cookie != added && (victim == null || cookie.lastAccess < victim.lastAccess)) {
+					victim = cookie;
+				}
+			}
+		}
+		if (victim != null && removeLocked(node, keyOf(victim), victim)) {
+			evictedCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * This method evicts cookies until the jar is within its limit. The oldest cookie in the added order is evicted
+	 * unless it has been sent since it was put there, then it is moved to the end of the order. This second chance
+	 * makes the order approximate the least recently used one without any bookkeeping when a header is sent.
+	 */
+	private void evictToLimit() {
+		while (cookies.size() > maxCookies) {
+			JCurlCookie victim = null;
+			synchronized (addedOrder) {
+				int chances = addedOrder.size();
+				while (victim == null && !addedOrder.isEmpty()) {
+					Iterator<Map.Entry<String, Added>> iterator = addedOrder.entrySet().iterator();
+					Map.Entry<String, Added> eldest = iterator.next();
+					Added added = eldest.getValue();
+					long lastAccess = added.cookie.lastAccess;
+					if (lastAccess > added.lastAccess && chances-- > 0) {
+						iterator.remove();
+						added.lastAccess = lastAccess;
+						addedOrder.put(eldest.getKey(), added);
+					} else {
+						victim = added.cookie;
+					}
+				}
+			}
+			if (victim == null) {
+				return;
+			}
+			if (removeIfSame(victim)) {
+				evictedCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * This method removes the cookies that the timing wheel reports as expired. It is cheap unless a tick of the wheel
+	 * has passed since the last call.
+	 */
+	private void sweepExpired(long now) {
+		for (JCurlCookie cookie : expiryWheel.advance(now)) {
+			if (removeIfSame(cookie)) {
+				expiredCount.incrementAndGet();
+			}
+		}
+	}
+
+	private void unschedule(JCurlCookie cookie) {
+		if (cookie.getExpiryDate() != null) {
+			expiryWheel.cancel(cookie);
+		}
+	}
+
+	private static int count(PathGroup[] paths) {
+		int count = 0;
+		for (PathGroup group : paths) {
+			count += group.cookies.length;
+		}
+		return count;
+	}
+
+	/**
+	 * This method returns the value of the Cookie header for a request.
+	 *
+	 * @param host
+	 *            The host of the request.
+	 * @param path
+	 *            The path of the request.
+	 * @param now
+	 *            The current time in milliseconds, expired cookies are left out.
+	 * @return The header value or an empty string if no cookie matches.
+	 */
+	public String header(String host, String path, long now) {
+		/* Read the generation first so that a header rendered while the jar changes is never reused */
+		sweepExpired(now);
+		long currentGeneration = generation.get();
+		/* Marks the cookies as sent after everything added so far, see evictToLimit */
+		long access = 2 * currentGeneration + 1;
+		String key = host + ' ' + path;
+		CachedHeader cached = headerCache.get(key);
+		if (cached != null && cached.generation == currentGeneration && now < cached.validUntil) {
+			markAccess(cached.cookies, access);
+			return cached.header;
+		}
+		List<JCurlCookie> matches = match(host, path, now);
+		JCurlCookie[] matched = matches.isEmpty() ? NO_MATCHES : matches.toArray(NO_MATCHES);
+		markAccess(matched, access);
+		long validUntil = Long.MAX_VALUE;
+		String header = NO_COOKIES;
+		if (!matches.isEmpty()) {
+			StringBuilder builder = new StringBuilder(matches.size() * 32);
+			for (JCurlCookie cookie : matches) {
+				if (builder.length() > 0) {
+					builder.append("; ");
+				}
+				builder.append(cookie.getName()).append('=').append(cookie.getValue());
+				if (cookie.getExpiryDate() != null) {
+					validUntil = Math.min(validUntil, cookie.getExpiryDate().getTime());
+				}
+			}
+			header = builder.toString();
+		}
+		if (headerCache.size() >= MAX_CACHED_HEADERS) {
+			headerCache.clear();
+		}
+		headerCache.put(key, new CachedHeader(header, matched, validUntil, currentGeneration));
+		return header;
+	}
+
+	private static void markAccess(JCurlCookie[] cookies, long access) {
+		for (JCurlCookie cookie : cookies) {
+			/* Only write when needed so that threads sending the same cookies do not keep invalidating each other */
+			if (cookie.lastAccess < access) {
+				cookie.lastAccess = access;
+			}
+		}
+	}
+
+	/**
+	 * This method collects the cookies that are not expired and match the host and path, the ones with the longest
+	 * path first.
+	 */
+	List<JCurlCookie> match(String host, String path, long now) {
+		List<JCurlCookie> matches = new ArrayList<JCurlCookie>();
+		collect(root, path, now, matches);
+		Node node = root;
+		String lowerCaseHost = host.toLowerCase();
+		int end = lowerCaseHost.length();
+		while (node != null && end > 0) {
+			int dot = lowerCaseHost.lastIndexOf('.', end - 1);
+			node = node.child(lowerCaseHost.substring(dot + 1, end), false);
+			if (node != null) {
+				collect(node, path, now, matches);
+			}
+			end = dot;
+		}
+		if (matches.size() > 1) {
+			matches.sort((a, b) -> pathOf(b).length() - pathOf(a).length());
+		}
+		return matches;
+	}
+
+	private static void collect(Node node, String path, long now, List<JCurlCookie> matches) {
+		for (PathGroup group : node.paths) {
+			if (path.startsWith(group.path)) {
+				for (JCurlCookie cookie : group.cookies) {
+					if (!cookie.isExpired(now)) {
+						matches.add(cookie);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method walks the tree along the reversed labels of the domain. Cookies without a domain are kept in the
+	 * root and match every host.
+	 */
+	private Node node(String domain, boolean create) {
+		Node node = root;
+		if (domain == null) {
+			return node;
+		}
+		int end = domain.length();
+		while (node != null && end > 0) {
+			int dot = domain.lastIndexOf('.', end - 1);
+			if (dot + 1 < end) {
+				node = node.child(domain.substring(dot + 1, end), create);
+			}
+			end = dot;
+		}
+		return node;
+	}
+
+	/**
+	 * @return A copy of the path groups with the cookie added.
+	 */
+	private static PathGroup[] with(PathGroup[] paths, JCurlCookie cookie) {
+		String path = pathOf(cookie);
+		for (int i = 0; i < paths.length; i++) {
+			if (paths[i].path.equals(path)) {
+				JCurlCookie[] groupCookies = Arrays.copyOf(paths[i].cookies, paths[i].cookies.length + 1);
+				groupCookies[groupCookies.length - 1] = cookie;
+				PathGroup[] copy = paths.clone();
+				copy[i] = new PathGroup(path, groupCookies);
+				return copy;
+			}
+		}
+		PathGroup[] copy = Arrays.copyOf(paths, paths.length + 1);
+		copy[paths.length] = new PathGroup(path, new JCurlCookie[] { cookie });
+		return copy;
+	}
+
+	/**
+	 * @return A copy of the path groups without the cookie, or the same array if the cookie is not there.
+	 */
+	private static PathGroup[] without(PathGroup[] paths, JCurlCookie cookie) {
+		String path = pathOf(cookie);
+		for (int i = 0; i < paths.length; i++) {
+			if (paths[i].path.equals(path)) {
+				JCurlCookie[] groupCookies = paths[i].cookies;
+				for (int j = 0; j < groupCookies.length; j++) {
+					if (groupCookies[j] == cookie) {
+						if (groupCookies.length == 1) {
+							PathGroup[] copy = new PathGroup[paths.length - 1];
+							System.arraycopy(paths, 0, copy, 0, i);
+							System.arraycopy(paths, i + 1, copy, i, paths.length - i - 1);
+							return copy;
+						}
+						JCurlCookie[] remaining = new JCurlCookie[groupCookies.length - 1];
+						System.arraycopy(groupCookies, 0, remaining, 0, j);
+						System.arraycopy(groupCookies, j + 1, remaining, j, groupCookies.length - j - 1);
+						PathGroup[] copy = paths.clone();
+						copy[i] = new PathGroup(path, remaining);
+						return copy;
+					}
+				}
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * This helper method returns the key of a cookie, i.e. its domain, path and name.
+	 */
+	static String keyOf(JCurlCookie cookie) {
+		return cookie.getDomain() + ';' + cookie.getPath() + ';' + cookie.getName();
+	}
+
+	private static String pathOf(JCurlCookie cookie) {
+		return cookie.getPath() == null ? "" : cookie.getPath();
+	}
+
+}
@@ -0,0 +1,258 @@
+package com.viaplay.jcurl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.viaplay.jcurl.exception.JCurlIOException;
+
+/**
+ * This journal keeps the cookies of a JCurlCookieManager on disk. It consists of a binary JCurlCookieSnapshot and an
+ * append only journal file next to it, e.g. cookies.bin and cookies.bin.journal. Every cookie that is added to or
+ * removed from the manager is appended to the journal, and when the journal has grown to twice the size of the jar it
+ * is compacted into a new snapshot.
+ * <p>
+ * When the journal is opened the snapshot is loaded and the journal replayed into the manager, so a restarted worker
+ * continues with the sessions it had. A record that was only partly written when the process died is discarded.
+ * <p>
+ * The records are written to the file system as they happen but not forced to the disk, call sync() for that. Cookies
+ * that are evicted or expire are not journaled, they are evicted or skipped again when the journal is replayed.
+ */
+public class JCurlCookieJournal implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(JCurlCookieJournal.class);
+
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	private static final byte RESET = 3;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int MIN_RECORDS_BEFORE_COMPACTION = 10000;
+
+	private final JCurlCookieManager cookieManager;
+	private final File snapshotFile;
+	private final File journalFile;
+	private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(256);
+	private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+	private final CRC32 crc = new CRC32();
+	private FileChannel channel;
+	private long recordCount = 0;
+
+	private JCurlCookieJournal(JCurlCookieManager cookieManager, File snapshotFile) {
+		this.cookieManager = cookieManager;
+		this.snapshotFile = snapshotFile;
+		this.journalFile = new File(snapshotFile.getPath() + ".journal");
+	}
+
+	/**
+	 * This method restores the cookies of the snapshot and its journal into the manager and then journals the changes
+	 * of the manager until the journal is closed.
+	 *
+	 * @param cookieManager
+	 *            The manager to restore and journal. It may only have one journal at a time.
+	 * @param snapshotFile
+	 *            The snapshot file, the journal is kept in a file with the same name and the suffix .journal.
+	 * @return The open journal.
+	 */
+	public static JCurlCookieJournal open(JCurlCookieManager cookieManager, File snapshotFile) {
+		JCurlCookieJournal journal = new JCurlCookieJournal(cookieManager, snapshotFile);
+		synchronized (cookieManager) {
+			if (cookieManager.getListener() != null) {
+				throw new IllegalStateException("The cookie manager already has a journal.");
+			}
+			try {
+				journal.restore();
+				journal.channel = FileChannel.open(journal.journalFile.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				throw new JCurlIOException(e);
+			}
+			cookieManager.setListener(journal.new Recorder());
+		}
+		return journal;
+	}
+
+	/**
+	 * This method writes a new snapshot of the manager and empties the journal.
+	 */
+	public synchronized void compact() {
+		JCurlCookieSnapshot.save(cookieManager, snapshotFile, JCurlCookieSnapshot.Format.BINARY);
+		try {
+			channel.truncate(0);
+		} catch (IOException e) {
+			throw new JCurlIOException(e);
+		}
+		recordCount = 0;
+	}
+
+	/**
+	 * This method forces the journal to the disk.
+	 */
+	public synchronized void sync() {
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			throw new JCurlIOException(e);
+		}
+	}
+
+	/**
+	 * @return The number of records in the journal since it was last compacted.
+	 */
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * This method stops journaling the manager. The journal is kept so that it can be opened again.
+	 */
+	public void close() throws IOException {
+		synchronized (cookieManager) {
+			cookieManager.setListener(null);
+		}
+		synchronized (this) {
+			if (channel != null) {
+				channel.force(false);
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * The listener that appends the changes of the manager to the journal.
+	 */
+	private class Recorder implements JCurlCookieManager.Listener {
+		public void cookieAdded(JCurlCookie cookie) {
+			append(cookie);
+		}
+
+		public void cookieRemoved(JCurlCookie cookie) {
+			append(cookie);
+		}
+
+		public void cookiesReset() {
+			append(null);
+		}
+	}
+
+	/**
+	 * This method appends the current state of a cookie, or a reset if the cookie is null. Writing what the manager
+	 * holds now, rather than the change that was reported, keeps the journal right when two threads change the same
+	 * cookie and report it in the opposite order.
+	 */
+	private synchronized void append(JCurlCookie changed) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			recordBuffer.reset();
+			if (changed == null) {
+				recordOut.writeByte(RESET);
+			} else {
+				JCurlCookie current = cookieManager.getCookie(changed);
+				recordOut.writeByte(current == null ? REMOVE : ADD);
+				JCurlCookieSnapshot.writeCookie(recordOut, current == null ? changed : current);
+			}
+			byte[] payload = recordBuffer.toByteArray();
+			crc.reset();
+			crc.update(payload);
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+			record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+			while (record.hasRemaining()) {
+				channel.write(record);
+			}
+			recordCount++;
+			if (recordCount > Math.max(MIN_RECORDS_BEFORE_COMPACTION, 2L * cookieManager.getCookieCount())) {
+				compact();
+			}
+		} catch (IOException e) {
+			log.error("Could not journal the cookie {}: {}", changed, e.getMessage());
+		} catch (JCurlIOException e) {
+			log.error("Could not compact the cookie journal {}: {}", journalFile, e.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * This method loads the snapshot, replays the journal over it and adds the result to the manager in one go. A torn
+	 * record at the end of the journal is cut off so that new records are appended after the last complete one.
+	 */
+	private void restore() throws IOException {
+		long now = System.currentTimeMillis();
+		Map<String, JCurlCookie> cookies = new LinkedHashMap<String, JCurlCookie>();
+		if (snapshotFile.exists()) {
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(snapshotFile.toPath()), 64 * 1024)) {
+				for (JCurlCookie cookie : JCurlCookieSnapshot.read(in, now)) {
+					cookies.put(JCurlCookieIndex.keyOf(cookie), cookie);
+				}
+			}
+		}
+		if (journalFile.exists()) {
+			long validLength = 0;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile
+					.toPath()), 64 * 1024))) {
+				while (true) {
+					byte[] payload;
+					try {
+						int length = in.readInt();
+						int checksum = in.readInt();
+						if (length < 1 || length > journalFile.length()) {
+							break;
+						}
+						payload = new byte[length];
+						in.readFully(payload);
+						crc.reset();
+						crc.update(payload);
+						if ((int) crc.getValue() != checksum) {
+							break;
+						}
+					} catch (EOFException e) {
+						break;
+					}
+					DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+					byte type = record.readByte();
+					if (type == RESET) {
+						cookies.clear();
+					} else {
+						JCurlCookie cookie = JCurlCookieSnapshot.readCookie(record);
+						if (type == ADD && !cookie.isExpired(now)) {
+							cookies.put(JCurlCookieIndex.keyOf(cookie), cookie);
+						} else {
+							cookies.remove(JCurlCookieIndex.keyOf(cookie));
+						}
+					}
+					validLength += RECORD_HEADER_SIZE + payload.length;
+					recordCount++;
+				}
+			}
+			if (validLength < journalFile.length()) {
+				log.warn("Discarding {} bytes of a partly written record at the end of {}", journalFile.length()
+						- validLength, journalFile);
+				try (FileChannel truncate = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+					truncate.truncate(validLength);
+				}
+			}
+		}
+		List<JCurlCookie> restored = new ArrayList<JCurlCookie>(cookies.values());
+		cookieManager.addCookies(restored);
+		log.info("Restored {} cookies from {} and {} journal records", restored.size(), snapshotFile, recordCount);
+	}
+
+}
@@ -2,9 +2,9 @@ package com.viaplay.jcurl;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +13,9 @@ import org.slf4j.LoggerFactory;
  * The JCurlCookieManager is a singleton object that manages all cookies during a session. By passing this object to the
  * response object as well as the JCurl request methods you ensure that cookies sent from a web server is reused in
  * consecutive requests thus keeping any sessions set up on the server.
+ * <p>
+ * The manager is thread safe. One instance may be shared by threads that send requests and receive responses at the
+ * same time.
  * 
  * @author mikael.p.larsson@afconsult.com
  * 
@@ -22,13 +25,41 @@ public class JCurlCookieManager {
 
 	private static final String SET_COOKIE = "Set-Cookie";
 
-	private static final String cookieExpire = "Expires";
-	private static final String cookieDomain = "Domain";
-	private static final String cookiePath = "Path";
-	private static final String cookieSecure = "Secure";
+	private static final ConcurrentMap<String, JCurlCookieManager> jCurlCookieManagerInstanceMap =
+			new ConcurrentHashMap<String, JCurlCookieManager>();
+	private final JCurlCookieStore cookieStore;
+	private volatile Listener listener = null;
 
-	private static Map<String, JCurlCookieManager> jCurlCookieManagerInstanceMap = null;
-	private Map<String, JCurlCookie> cookieMap = null;
+	/**
+	 * A listener is told about the cookies that are added to and removed from the manager, e.g. to journal them.
+	 * Cookies that are evicted or expire are not reported.
+	 */
+	interface Listener {
+		void cookieAdded(JCurlCookie cookie);
+
+		void cookieRemoved(JCurlCookie cookie);
+
+		void cookiesReset();
+	}
+
+	/**
+	 * This constructor creates a manager with the default store, which indexes the cookies by domain and path and may
+	 * be bounded.
+	 */
+	public JCurlCookieManager() {
+		this(new JCurlCookieIndex());
+	}
+
+	/**
+	 * This constructor creates a manager that keeps its cookies in the store passed in, e.g. a JCurlCompactCookieStore
+	 * when there is one manager per simulated user.
+	 * 
+	 * @param cookieStore
+	 *            The store of the cookies.
+	 */
+	public JCurlCookieManager(JCurlCookieStore cookieStore) {
+		this.cookieStore = cookieStore;
+	}
 
 	/**
 	 * This instance getter returns the default cookie manager.
@@ -40,139 +71,193 @@ public class JCurlCookieManager {
 	}
 
 	/**
-	 * This method assures that the same instance of this manager is created and then reused.
+	 * This method assures that the same instance of this manager is created and then reused, also when several threads
+	 * ask for the same instanceId at once.
 	 * 
 	 * @return The JCurlCookieManager object that match the instanceId.
 	 */
 	public static JCurlCookieManager getInstance(String instanceId) {
-		if (jCurlCookieManagerInstanceMap == null) {
-			jCurlCookieManagerInstanceMap = Collections.synchronizedMap(new HashMap<String, JCurlCookieManager>());
-		}
 		JCurlCookieManager jCurlCookieManagerInstance = jCurlCookieManagerInstanceMap.get(instanceId);
 		if (jCurlCookieManagerInstance == null) {
-			jCurlCookieManagerInstance = new JCurlCookieManager();
-			jCurlCookieManagerInstanceMap.put(instanceId, jCurlCookieManagerInstance);
+			jCurlCookieManagerInstance = jCurlCookieManagerInstanceMap.computeIfAbsent(instanceId,
+					id -> new JCurlCookieManager());
 		}
 		return jCurlCookieManagerInstance;
 	}
 
 	/**
-	 * Lazy constructor of the Map that holds the cookies.
+	 * This method returns a read only view of the cookies in this manager. The cookies are keyed by their domain, path
+	 * and name. Use addCookie() and removeCookie() to change the contents. The view may be iterated while other threads
+	 * change the cookies.
 	 * 
-	 * @return The instantiated Map object.
+	 * @return The Map of the cookies.
 	 */
 	public Map<String, JCurlCookie> getCookieMap() {
-		if (cookieMap == null) {
-			cookieMap = new HashMap<String, JCurlCookie>();
+		return cookieStore.getCookieMap();
+	}
+
+	/**
+	 * @return The cookie with the same domain, path and name as the one passed in, or null.
+	 */
+	JCurlCookie getCookie(JCurlCookie cookie) {
+		return cookieStore.get(cookie);
+	}
+
+	/**
+	 * This method adds a cookie to this manager. A cookie with the same domain, path and name is replaced.
+	 * 
+	 * @param cookie
+	 *            The cookie to add.
+	 */
+	public void addCookie(JCurlCookie cookie) {
+		cookieStore.put(cookie);
+		Listener currentListener = listener;
+		if (currentListener != null) {
+			currentListener.cookieAdded(cookie);
 		}
-		return cookieMap;
 	}
 
 	/**
-	 * Updates the JCurlCookieManager with cookies found in the header of the response.
+	 * This method adds many cookies at once, which is a lot faster than adding them one by one when they share a
+	 * domain, e.g. when a saved jar is loaded.
 	 * 
-	 * @param jCurlResponse
-	 *            The response object with header data.
+	 * @param cookies
+	 *            The cookies to add.
 	 */
-	public void updateCookies(JCurlResponse jCurlResponse) {
-		Set<String> keys = jCurlResponse.getHeaderFields().keySet();
-		for (String key : keys) {
-			if (SET_COOKIE.equals(key)) {
-				List<String> stringList = jCurlResponse.getHeaderFields().get(key);
-				for (String string : stringList) {
-					JCurlCookie cookie = createCookie(string);
-					getCookieMap().put(cookie.getName(), cookie);
-				}
+	public void addCookies(Collection<JCurlCookie> cookies) {
+		cookieStore.putAll(cookies);
+		Listener currentListener = listener;
+		if (currentListener != null) {
+			for (JCurlCookie cookie : cookies) {
+				currentListener.cookieAdded(cookie);
 			}
 		}
 	}
 
 	/**
-	 * This helper method takes the header string of the Set-Cookie header property.
+	 * This method removes the cookie with the same domain, path and name as the one passed in.
+	 * 
+	 * @param cookie
+	 *            The cookie to remove.
+	 * @return true if the cookie was found.
+	 */
+	public boolean removeCookie(JCurlCookie cookie) {
+		JCurlCookie removed = cookieStore.remove(cookie);
+		Listener currentListener = listener;
+		if (removed != null && currentListener != null) {
+			currentListener.cookieRemoved(removed);
+		}
+		return removed != null;
+	}
+
+	void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	Listener getListener() {
+		return listener;
+	}
+
+	/**
+	 * This method limits the number of cookies this manager keeps. When a cookie is added to a full jar the least
+	 * recently used cookie, i.e. the one that was added or sent the longest time ago, is evicted. The default is no
+	 * limit.
+	 * 
+	 * @param maxCookies
+	 *            The maximum number of cookies.
+	 * @throws UnsupportedOperationException
+	 *             If the store of this manager cannot be bounded.
+	 */
+	public void setMaxCookies(int maxCookies) {
+		cookieStore.setLimits(maxCookies, cookieStore.getMaxCookiesPerDomain());
+	}
+
+	/**
+	 * This method limits the number of cookies this manager keeps for each domain. When a domain is full its least
+	 * recently used cookie is evicted. The default is no limit.
+	 * 
+	 * @param maxCookiesPerDomain
+	 *            The maximum number of cookies with the same domain.
+	 * @throws UnsupportedOperationException
+	 *             If the store of this manager cannot be bounded.
+	 */
+	public void setMaxCookiesPerDomain(int maxCookiesPerDomain) {
+		cookieStore.setLimits(cookieStore.getMaxCookies(), maxCookiesPerDomain);
+	}
+
+	/**
+	 * @return The number of cookies in this manager, expired cookies that have not been swept yet included.
+	 */
+	public int getCookieCount() {
+		return cookieStore.size();
+	}
+
+	/**
+	 * @return The number of cookies that have been evicted since the manager was created or reset.
+	 */
+	public long getEvictedCount() {
+		return cookieStore.getEvictedCount();
+	}
+
+	/**
+	 * @return The number of expired cookies that have been removed since the manager was created or reset.
+	 */
+	public long getExpiredCount() {
+		return cookieStore.getExpiredCount();
+	}
+
+	/**
+	 * Updates the JCurlCookieManager with cookies found in the header of the response.
 	 * 
-	 * @param cookieString
-	 *            The value of the Set-Cookie header property.
-	 * @return a cookie.
-	 */
-	private JCurlCookie createCookie(String cookieString) {
-		JCurlCookie cookie = null;
-		String[] cookieValueArray = cookieString.split(";");
-		String name = null;
-		String value = null;
-		String domain = null;
-		String cookieName = "";
-		String cookieValue = "";
-		Date expires = null;
-		String path = null;
-        boolean http = false;
-		boolean secure = false;
-		for (int i = 0; i < cookieValueArray.length; i++) {
-			String nameValueString = cookieValueArray[i];
-			String[] nameValue = nameValueString.split("=");
-			name = nameValue[0].trim();
-			value = nameValue.length > 1 ? nameValue[1].trim() : null;
-			if (i == 0) {
-				cookieName = name;
-				cookieValue = value;
+	 * @param jCurlResponse
+	 *            The response object with header data.
+	 */
+	public void updateCookies(JCurlResponse jCurlResponse) {
+		List<String> stringList = jCurlResponse.getHeaderFieldValues(SET_COOKIE);
+		long now = System.currentTimeMillis();
+		for (String string : stringList) {
+			JCurlCookie cookie = JCurlCookieParser.parse(string, now);
+			if (cookie == null) {
+				log.warn("The cookie [{}] has no name and is ignored.", string);
+			} else if (cookie.isExpired(now)) {
+				/* An expired cookie is how a server deletes a cookie */
+				removeCookie(cookie);
 			} else {
-				if (cookieDomain.equalsIgnoreCase(name)) {
-					domain = "".equals(value) ? null : value;
-				}
-				if (cookiePath.equalsIgnoreCase(name)) {
-					path = "".equals(value) ? null : value;
-				}
-				if (cookieExpire.equalsIgnoreCase(name)) {
-                    try {
-                        expires = JCurlCookie.parseDate(value);
-                    } catch (ParseException e) {
-						log.warn("The cookie expires value [{}] was not parsable.", value);
-                    }
-				}
-				if (cookieSecure.equalsIgnoreCase(name)) {
-					secure = true;
-				}
+				addCookie(cookie);
 			}
 		}
-		cookie = new JCurlCookie(domain, cookieName, cookieValue, path, expires, http, secure);
-		return cookie;
 	}
 
 	/**
-	 * Updates the Cookie property in the JCurlRequest object that is passed as a parameter.
+	 * Updates the Cookie property in the JCurlRequest object that is passed as a parameter. Only the cookies that match
+	 * the host and path of the request are looked at, and the rendered header is reused until the cookies change.
 	 * 
 	 * @param jCurlRequest
 	 *            The object that needs an update.
 	 */
 	public void updateCookies(JCurlRequest jCurlRequest) {
-		String cookies = "";
-		for (String key : getCookieMap().keySet()) {
-			JCurlCookie cookie = getCookieMap().get(key);
-			if (!cookie.isExpired()) {
-				if (cookie.getDomain() != null) {
-					try {
-						URL url = jCurlRequest.getURL();
-						String host = url.getHost();
-						String path = url.getPath();
-						if (!host.endsWith(cookie.getDomain()) || !path.startsWith(cookie.getPath())) {
-							continue;
-						}
-					} catch (MalformedURLException e) {
-						continue;
-					}
-				}
-				cookies += cookies.length() == 0 ? cookie.toExternalForm() : "; " + cookie.toExternalForm();
-			}
-		}
-		if (!"".equals(cookies)) {
-			jCurlRequest.getProperties().put("Cookie", cookies);
+		String host = "";
+		String path = "/";
+		try {
+			URL url = jCurlRequest.getURL();
+			host = url.getHost();
+			path = url.getPath().isEmpty() ? "/" : url.getPath();
+		} catch (MalformedURLException e) {
+			/* Only the cookies without a domain match an url that cannot be parsed */
 		}
+		String cookies = cookieStore.header(host, path, System.currentTimeMillis());
+		jCurlRequest.setCookieHeader(cookies.isEmpty() ? null : cookies);
 	}
 
 	/**
-	 * Reset the contents of this cookie manager.
+	 * Reset the contents and counters of this cookie manager, the limits are kept.
 	 */
 	public void reset() {
-		cookieMap = null;
+		cookieStore.clear();
+		Listener currentListener = listener;
+		if (currentListener != null) {
+			currentListener.cookiesReset();
+		}
 	}
 
 }
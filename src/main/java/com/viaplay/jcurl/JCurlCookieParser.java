@@ -0,0 +1,321 @@
+package com.viaplay.jcurl;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * This parser turns the value of a Set-Cookie header into a JCurlCookie in a single pass over the string, without
+ * regular expressions or intermediate arrays. It follows RFC 6265: the value is everything after the first '=' so it
+ * may contain '=' itself, Max-Age takes precedence over Expires, and the Domain, Path, Secure, HttpOnly and SameSite
+ * attributes are recognized.
+ * <p>
+ * All methods are static and thread safe.
+ */
+final class JCurlCookieParser {
+
+	/** The preferred date format of RFC 6265 (IMF-fixdate), e.g. Sun, 06 Nov 1994 08:49:37 GMT. */
+	static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
+	private static final String[] MONTHS = { "jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct",
+			"nov", "dec" };
+
+	private JCurlCookieParser() {
+	}
+
+	/**
+	 * This method parses the value of a Set-Cookie header.
+	 *
+	 * @param setCookie
+	 *            The value of the Set-Cookie header.
+	 * @param nowMillis
+	 *            The current time, used to compute the expiry date from Max-Age.
+	 * @return The cookie or null if the header has no name, which RFC 6265 says is to be ignored.
+	 */
+	static JCurlCookie parse(String setCookie, long nowMillis) {
+		int length = setCookie.length();
+		int end = indexOf(setCookie, ';', 0, length);
+		int eq = indexOf(setCookie, '=', 0, end);
+		if (eq == end) {
+			return null;
+		}
+		String name = trim(setCookie, 0, eq);
+		if (name.isEmpty()) {
+			return null;
+		}
+		String value = trim(setCookie, eq + 1, end);
+
+		String domain = null;
+		String path = null;
+		String sameSite = null;
+		Date expires = null;
+		long maxAge = Long.MIN_VALUE;
+		boolean secure = false;
+		boolean httpOnly = false;
+
+		int position = end + 1;
+		while (position < length) {
+			end = indexOf(setCookie, ';', position, length);
+			eq = indexOf(setCookie, '=', position, end);
+			int nameStart = skipWhitespace(setCookie, position, eq);
+			int nameEnd = trimEnd(setCookie, nameStart, eq);
+			int nameLength = nameEnd - nameStart;
+
+			if (matches(setCookie, nameStart, nameLength, "Domain")) {
+				String domainValue = trim(setCookie, Math.min(eq + 1, end), end);
+				if (domainValue.startsWith(".")) {
+					domainValue = domainValue.substring(1);
+				}
+				domain = domainValue.isEmpty() ? null : domainValue;
+			} else if (matches(setCookie, nameStart, nameLength, "Path")) {
+				String pathValue = trim(setCookie, Math.min(eq + 1, end), end);
+				path = pathValue.startsWith("/") ? pathValue : null;
+			} else if (matches(setCookie, nameStart, nameLength, "Expires")) {
+				long time = parseDate(setCookie, Math.min(eq + 1, end), end);
+				if (time != Long.MIN_VALUE) {
+					expires = new Date(time);
+				}
+			} else if (matches(setCookie, nameStart, nameLength, "Max-Age")) {
+				maxAge = parseMaxAge(setCookie, Math.min(eq + 1, end), end, maxAge);
+			} else if (matches(setCookie, nameStart, nameLength, "Secure")) {
+				secure = true;
+			} else if (matches(setCookie, nameStart, nameLength, "HttpOnly")) {
+				httpOnly = true;
+			} else if (matches(setCookie, nameStart, nameLength, "SameSite")) {
+				String sameSiteValue = trim(setCookie, Math.min(eq + 1, end), end);
+				sameSite = sameSiteValue.isEmpty() ? null : sameSiteValue;
+			}
+			position = end + 1;
+		}
+
+		if (maxAge != Long.MIN_VALUE) {
+			/* A Max-Age of zero or less means that the cookie has already expired */
+			expires = new Date(maxAge <= 0 ? 0L : nowMillis + Math.min(maxAge, Long.MAX_VALUE / 2000L) * 1000L);
+		}
+		JCurlCookie cookie = new JCurlCookie(domain, name, value, path, expires, httpOnly, secure);
+		cookie.setSameSite(sameSite);
+		cookie.setDomainAttributeSpecified(domain != null);
+		cookie.setPathAttributeSpecified(path != null);
+		return cookie;
+	}
+
+	/**
+	 * This method parses a cookie date. The IMF-fixdate format that nearly all servers use is read at fixed offsets,
+	 * every other variant that RFC 6265 accepts, like RFC 850 and asctime dates, by the algorithm of
+	 * section 5.1.1.
+	 *
+	 * @return The time in milliseconds or Long.MIN_VALUE if the date is not valid.
+	 */
+	static long parseDate(String date) {
+		return parseDate(date, 0, date.length());
+	}
+
+	static String formatDate(Date date) {
+		return DATE_FORMAT.format(date.toInstant());
+	}
+
+	private static long parseDate(String string, int start, int end) {
+		start = skipWhitespace(string, start, end);
+		end = trimEnd(string, start, end);
+		if (end - start == 29) {
+			long time = parseFixDate(string, start);
+			if (time != Long.MIN_VALUE) {
+				return time;
+			}
+		}
+		return parseCookieDate(string.substring(start, end));
+	}
+
+	/**
+	 * This method reads the fields of an IMF-fixdate, Sun, 06 Nov 1994 08:49:37 GMT, at their fixed offsets. The day of
+	 * week is not checked, just like in the algorithm of RFC 6265.
+	 *
+	 * @return The time in milliseconds or Long.MIN_VALUE if the date is not an IMF-fixdate.
+	 */
+	private static long parseFixDate(String date, int start) {
+		if (date.charAt(start + 3) != ',' || date.charAt(start + 19) != ':' || date.charAt(start + 22) != ':'
+				|| !date.startsWith(" GMT", start + 25) || countDigits(date, start + 5, start + 7) != 2
+				|| countDigits(date, start + 12, start + 16) != 4 || countDigits(date, start + 17, start + 19) != 2
+				|| countDigits(date, start + 20, start + 22) != 2 || countDigits(date, start + 23, start + 25) != 2) {
+			return Long.MIN_VALUE;
+		}
+		int month = parseMonth(date, start + 8);
+		if (month < 0) {
+			return Long.MIN_VALUE;
+		}
+		try {
+			return LocalDateTime.of(parseInt(date, start + 12, start + 16), month + 1,
+					parseInt(date, start + 5, start + 7), parseInt(date, start + 17, start + 19),
+					parseInt(date, start + 20, start + 22), parseInt(date, start + 23, start + 25))
+					.toEpochSecond(ZoneOffset.UTC) * 1000L;
+		} catch (DateTimeException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * This is the cookie date algorithm of RFC 6265 section 5.1.1. The date is split into tokens at the delimiters and
+	 * the first token that looks like a time, a day of month, a month and a year is used for each.
+	 */
+	private static long parseCookieDate(String date) {
+		int hour = -1, minute = -1, second = -1, dayOfMonth = -1, month = -1, year = -1;
+		int length = date.length();
+		int position = 0;
+		while (position < length) {
+			while (position < length && isDelimiter(date.charAt(position))) {
+				position++;
+			}
+			int tokenStart = position;
+			while (position < length && !isDelimiter(date.charAt(position))) {
+				position++;
+			}
+			if (tokenStart == position) {
+				break;
+			}
+			if (hour < 0) {
+				int[] time = parseTime(date, tokenStart, position);
+				if (time != null) {
+					hour = time[0];
+					minute = time[1];
+					second = time[2];
+					continue;
+				}
+			}
+			int digits = countDigits(date, tokenStart, position);
+			if (dayOfMonth < 0 && (digits == 1 || digits == 2)) {
+				dayOfMonth = parseInt(date, tokenStart, tokenStart + digits);
+				continue;
+			}
+			if (month < 0 && position - tokenStart >= 3) {
+				month = parseMonth(date, tokenStart);
+				if (month >= 0) {
+					continue;
+				}
+			}
+			if (year < 0 && digits >= 2 && digits <= 4) {
+				year = parseInt(date, tokenStart, tokenStart + digits);
+			}
+		}
+		if (hour < 0 || dayOfMonth < 0 || month < 0 || year < 0) {
+			return Long.MIN_VALUE;
+		}
+		if (year >= 70 && year <= 99) {
+			year += 1900;
+		} else if (year >= 0 && year <= 69) {
+			year += 2000;
+		}
+		if (year < 1601 || hour > 23 || minute > 59 || second > 59) {
+			return Long.MIN_VALUE;
+		}
+		try {
+			return LocalDateTime.of(year, month + 1, dayOfMonth, hour, minute, second).toEpochSecond(ZoneOffset.UTC)
+					* 1000L;
+		} catch (DateTimeException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * @return hour, minute and second of a token like 8:49:37 followed by anything but digits, or null.
+	 */
+	private static int[] parseTime(String date, int start, int end) {
+		int[] time = new int[3];
+		int position = start;
+		for (int field = 0; field < 3; field++) {
+			int digits = countDigits(date, position, end);
+			if (digits < 1 || digits > 2) {
+				return null;
+			}
+			time[field] = parseInt(date, position, position + digits);
+			position += digits;
+			if (field < 2) {
+				if (position >= end || date.charAt(position) != ':') {
+					return null;
+				}
+				position++;
+			}
+		}
+		return time;
+	}
+
+	private static int parseMonth(String date, int start) {
+		for (int i = 0; i < MONTHS.length; i++) {
+			if (date.regionMatches(true, start, MONTHS[i], 0, 3)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static long parseMaxAge(String string, int start, int end, long previous) {
+		String value = trim(string, start, end);
+		int first = value.startsWith("-") ? 1 : 0;
+		if (value.length() == first || countDigits(value, first, value.length()) != value.length() - first) {
+			/* An invalid Max-Age is ignored */
+			return previous;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return first == 1 ? 0L : Long.MAX_VALUE;
+		}
+	}
+
+	private static boolean isDelimiter(char c) {
+		return c == 0x09 || (c >= 0x20 && c <= 0x2F) || (c >= 0x3B && c <= 0x40) || (c >= 0x5B && c <= 0x60)
+				|| (c >= 0x7B && c <= 0x7E);
+	}
+
+	private static int countDigits(String string, int start, int end) {
+		int position = start;
+		while (position < end && string.charAt(position) >= '0' && string.charAt(position) <= '9') {
+			position++;
+		}
+		return position - start;
+	}
+
+	private static int parseInt(String string, int start, int end) {
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			value = value * 10 + (string.charAt(i) - '0');
+		}
+		return value;
+	}
+
+	private static boolean matches(String string, int start, int length, String attribute) {
+		return length == attribute.length() && string.regionMatches(true, start, attribute, 0, length);
+	}
+
+	private static int indexOf(String string, char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (string.charAt(i) == c) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private static int skipWhitespace(String string, int start, int end) {
+		while (start < end && string.charAt(start) <= ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	private static int trimEnd(String string, int start, int end) {
+		while (end > start && string.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return end;
+	}
+
+	private static String trim(String string, int start, int end) {
+		start = skipWhitespace(string, start, end);
+		return string.substring(start, trimEnd(string, start, end));
+	}
+
+}
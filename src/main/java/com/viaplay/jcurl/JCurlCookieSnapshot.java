@@ -0,0 +1,272 @@
+package com.viaplay.jcurl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.viaplay.jcurl.exception.JCurlIOException;
+
+/**
+ * This class saves the cookies of a JCurlCookieManager to a file and loads them back, so that the sessions of a worker
+ * survive a restart. Two formats are supported: a compact binary format that is fast to load also for jars with
+ * hundreds of thousands of cookies, and the Netscape cookie file format that curl and wget read and write.
+ * <p>
+ * A snapshot is written to a temporary file that replaces the old one when it is complete, so a crash never leaves a
+ * half written snapshot behind. Use a JCurlCookieJournal to also keep the changes made after the last snapshot.
+ */
+public final class JCurlCookieSnapshot {
+	private static final Logger log = LoggerFactory.getLogger(JCurlCookieSnapshot.class);
+
+	static final int MAGIC = 0x4A434B53;
+	static final int VERSION = 1;
+	private static final String NETSCAPE_HEADER = "# Netscape HTTP Cookie File";
+	private static final String HTTP_ONLY_PREFIX = "#HttpOnly_";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int SECURE = 1;
+	private static final int HTTP_ONLY = 2;
+	private static final int HAS_DOMAIN = 4;
+	private static final int HAS_PATH = 8;
+	private static final int HAS_EXPIRES = 16;
+	private static final int HAS_VALUE = 32;
+	private static final int HAS_SAME_SITE = 64;
+	private static final int DOMAIN_ATTRIBUTE = 128;
+	private static final int PATH_ATTRIBUTE = 256;
+
+	public enum Format {
+		BINARY, NETSCAPE
+	}
+
+	private JCurlCookieSnapshot() {
+	}
+
+	/**
+	 * This method saves the cookies of a manager that have not expired.
+	 *
+	 * @param cookieManager
+	 *            The manager to save.
+	 * @param file
+	 *            The file to write, it is replaced when the snapshot is complete.
+	 * @param format
+	 *            The format of the file.
+	 * @return The number of cookies that were saved.
+	 */
+	public static int save(JCurlCookieManager cookieManager, File file, Format format) {
+		long now = System.currentTimeMillis();
+		List<JCurlCookie> cookies = new ArrayList<JCurlCookie>(cookieManager.getCookieCount());
+		for (JCurlCookie cookie : cookieManager.getCookieMap().values()) {
+			if (!cookie.isExpired(now)) {
+				cookies.add(cookie);
+			}
+		}
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		try {
+			if (format == Format.BINARY) {
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						Files.newOutputStream(temporaryFile.toPath()), BUFFER_SIZE))) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeInt(cookies.size());
+					for (JCurlCookie cookie : cookies) {
+						writeCookie(out, cookie);
+					}
+				}
+			} else {
+				try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(temporaryFile
+						.toPath()), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+					writeNetscape(out, cookies);
+				}
+			}
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			temporaryFile.delete();
+			throw new JCurlIOException(e);
+		}
+		log.debug("Saved {} cookies to {}", cookies.size(), file);
+		return cookies.size();
+	}
+
+	/**
+	 * This method loads a snapshot into a manager. The format is detected from the contents of the file and cookies
+	 * that have expired since the snapshot was saved are skipped.
+	 *
+	 * @param cookieManager
+	 *            The manager to add the cookies to.
+	 * @param file
+	 *            The file to read.
+	 * @return The number of cookies that were added.
+	 */
+	public static int load(JCurlCookieManager cookieManager, File file) {
+		List<JCurlCookie> cookies;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE)) {
+			cookies = read(in, System.currentTimeMillis());
+		} catch (IOException e) {
+			throw new JCurlIOException(e);
+		}
+		cookieManager.addCookies(cookies);
+		log.debug("Loaded {} cookies from {}", cookies.size(), file);
+		return cookies.size();
+	}
+
+	/**
+	 * This method reads the cookies of a snapshot that have not expired.
+	 */
+	static List<JCurlCookie> read(InputStream in, long now) throws IOException {
+		in.mark(4);
+		DataInputStream dataIn = new DataInputStream(in);
+		int magic;
+		try {
+			magic = dataIn.readInt();
+		} catch (EOFException e) {
+			magic = 0;
+		}
+		in.reset();
+		if (magic != MAGIC) {
+			return readNetscape(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), now);
+		}
+		dataIn.readInt();
+		int version = dataIn.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported cookie snapshot version " + version);
+		}
+		int count = dataIn.readInt();
+		List<JCurlCookie> cookies = new ArrayList<JCurlCookie>(count);
+		for (int i = 0; i < count; i++) {
+			JCurlCookie cookie = readCookie(dataIn);
+			if (!cookie.isExpired(now)) {
+				cookies.add(cookie);
+			}
+		}
+		return cookies;
+	}
+
+	/**
+	 * This method writes a cookie in the binary format, a set of flags followed by the fields that are present.
+	 */
+	static void writeCookie(DataOutput out, JCurlCookie cookie) throws IOException {
+		int flags = (cookie.getSecure() ? SECURE : 0) | (cookie.getHttp() ? HTTP_ONLY : 0)
+				| (cookie.getDomain() != null ? HAS_DOMAIN : 0) | (cookie.getPath() != null ? HAS_PATH : 0)
+				| (cookie.getExpiryDate() != null ? HAS_EXPIRES : 0) | (cookie.getValue() != null ? HAS_VALUE : 0)
+				| (cookie.getSameSite() != null ? HAS_SAME_SITE : 0)
+				| (cookie.isDomainAttributeSpecified() ? DOMAIN_ATTRIBUTE : 0)
+				| (cookie.isPathAttributeSpecified() ? PATH_ATTRIBUTE : 0);
+		out.writeShort(flags);
+		out.writeUTF(cookie.getName());
+		if (cookie.getValue() != null) {
+			out.writeUTF(cookie.getValue());
+		}
+		if (cookie.getDomain() != null) {
+			out.writeUTF(cookie.getDomain());
+		}
+		if (cookie.getPath() != null) {
+			out.writeUTF(cookie.getPath());
+		}
+		if (cookie.getExpiryDate() != null) {
+			out.writeLong(cookie.getExpiryDate().getTime());
+		}
+		if (cookie.getSameSite() != null) {
+			out.writeUTF(cookie.getSameSite());
+		}
+	}
+
+	static JCurlCookie readCookie(DataInput in) throws IOException {
+		int flags = in.readUnsignedShort();
+		String name = in.readUTF();
+		String value = (flags & HAS_VALUE) != 0 ? in.readUTF() : null;
+		String domain = (flags & HAS_DOMAIN) != 0 ? in.readUTF() : null;
+		String path = (flags & HAS_PATH) != 0 ? in.readUTF() : null;
+		Date expires = (flags & HAS_EXPIRES) != 0 ? new Date(in.readLong()) : null;
+		JCurlCookie cookie = new JCurlCookie(domain, name, value, path, expires, (flags & HTTP_ONLY) != 0,
+				(flags & SECURE) != 0);
+		if ((flags & HAS_SAME_SITE) != 0) {
+			cookie.setSameSite(in.readUTF());
+		}
+		cookie.setDomainAttributeSpecified((flags & DOMAIN_ATTRIBUTE) != 0);
+		cookie.setPathAttributeSpecified((flags & PATH_ATTRIBUTE) != 0);
+		return cookie;
+	}
+
+	/**
+	 * This method writes the Netscape format: one line per cookie with domain, include subdomains, path, secure, expiry
+	 * in seconds (0 for a session cookie), name and value separated by tabs. HttpOnly cookies are prefixed the way curl
+	 * does it.
+	 */
+	private static void writeNetscape(Writer out, List<JCurlCookie> cookies) throws IOException {
+		out.write(NETSCAPE_HEADER);
+		out.write('\n');
+		for (JCurlCookie cookie : cookies) {
+			if (cookie.getHttp()) {
+				out.write(HTTP_ONLY_PREFIX);
+			}
+			String domain = cookie.getDomain() == null ? "" : cookie.getDomain();
+			out.write(cookie.isDomainAttributeSpecified() ? "." + domain : domain);
+			out.write(cookie.isDomainAttributeSpecified() ? "\tTRUE\t" : "\tFALSE\t");
+			out.write(cookie.getPath() == null ? "/" : cookie.getPath());
+			out.write(cookie.getSecure() ? "\tTRUE\t" : "\tFALSE\t");
+			out.write(Long.toString(cookie.getExpiryDate() == null ? 0 : cookie.getExpiryDate().getTime() / 1000));
+			out.write('\t');
+			out.write(cookie.getName());
+			out.write('\t');
+			out.write(cookie.getValue() == null ? "" : cookie.getValue());
+			out.write('\n');
+		}
+	}
+
+	private static List<JCurlCookie> readNetscape(BufferedReader in, long now) throws IOException {
+		List<JCurlCookie> cookies = new ArrayList<JCurlCookie>();
+		String line;
+		while ((line = in.readLine()) != null) {
+			boolean httpOnly = line.startsWith(HTTP_ONLY_PREFIX);
+			if (httpOnly) {
+				line = line.substring(HTTP_ONLY_PREFIX.length());
+			} else if (line.startsWith("#") || line.trim().isEmpty()) {
+				continue;
+			}
+			String[] fields = line.split("\t", 7);
+			if (fields.length < 6) {
+				log.warn("Skipping the invalid cookie line [{}]", line);
+				continue;
+			}
+			String domain = fields[0].startsWith(".") ? fields[0].substring(1) : fields[0];
+			long expires;
+			try {
+				expires = Long.parseLong(fields[4].trim());
+			} catch (NumberFormatException e) {
+				log.warn("Skipping the invalid cookie line [{}]", line);
+				continue;
+			}
+			JCurlCookie cookie = new JCurlCookie(domain.isEmpty() ? null : domain, fields[5], fields.length > 6
+					? fields[6] : "", fields[2], expires == 0 ? null : new Date(expires * 1000), httpOnly,
+					"TRUE".equalsIgnoreCase(fields[3]));
+			cookie.setDomainAttributeSpecified("TRUE".equalsIgnoreCase(fields[1]));
+			cookie.setPathAttributeSpecified(true);
+			if (!cookie.isExpired(now)) {
+				cookies.add(cookie);
+			}
+		}
+		return cookies;
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.viaplay.jcurl;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A cookie store holds the cookies of a JCurlCookieManager and renders the Cookie header of a request. The default
+ * store indexes the cookies by domain and path and is meant for one large, shared jar. Other stores trade features for
+ * memory or for sharing the jar outside the JVM, and are passed to the JCurlCookieManager constructor.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface JCurlCookieStore {
+
+	/**
+	 * @return A read only view or copy of the cookies keyed by their domain, path and name.
+	 */
+	Map<String, JCurlCookie> getCookieMap();
+
+	/**
+	 * This method looks up the cookie with the same domain, path and name as the one passed in. Stores whose
+	 * getCookieMap() builds a copy override it.
+	 *
+	 * @return The cookie in the store or null.
+	 */
+	default JCurlCookie get(JCurlCookie cookie) {
+		return getCookieMap().get(JCurlCookieIndex.keyOf(cookie));
+	}
+
+	/**
+	 * @return The number of cookies in the store, expired cookies that have not been removed yet included.
+	 */
+	int size();
+
+	/**
+	 * This method adds a cookie and replaces the one with the same domain, path and name.
+	 *
+	 * @return The replaced cookie or null.
+	 */
+	JCurlCookie put(JCurlCookie cookie);
+
+	/**
+	 * This method adds many cookies at once. Stores override it when that can be done faster than one by one.
+	 */
+	default void putAll(Collection<JCurlCookie> cookies) {
+		for (JCurlCookie cookie : cookies) {
+			put(cookie);
+		}
+	}
+
+	/**
+	 * This method removes the cookie with the same domain, path and name as the one passed in.
+	 *
+	 * @return The removed cookie or null.
+	 */
+	JCurlCookie remove(JCurlCookie cookie);
+
+	/**
+	 * This method returns the value of the Cookie header for a request, i.e. the cookies that match the host and path
+	 * and have not expired, the ones with the longest path first.
+	 *
+	 * @return The header value or an empty string if no cookie matches.
+	 */
+	String header(String host, String path, long now);
+
+	/**
+	 * This method removes all cookies and resets the counters.
+	 */
+	void clear();
+
+	/**
+	 * This method bounds the store, see JCurlCookieManager.setMaxCookies().
+	 *
+	 * @throws UnsupportedOperationException
+	 *             If the store cannot be bounded.
+	 */
+	default void setLimits(int maxCookies, int maxCookiesPerDomain) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be bounded.");
+	}
+
+	default int getMaxCookies() {
+		return Integer.MAX_VALUE;
+	}
+
+	default int getMaxCookiesPerDomain() {
+		return Integer.MAX_VALUE;
+	}
+
+	default long getEvictedCount() {
+		return 0;
+	}
+
+	default long getExpiredCount() {
+		return 0;
+	}
+
+}
@@ -0,0 +1,575 @@
+package com.viaplay.jcurl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.viaplay.jcurl.exception.JCurlIOException;
+
+/**
+ * A JCurlDownload fetches a large resource to a file over several connections at once, since the throughput of one
+ * connection from an origin is often limited. A HEAD request tells the length of the resource and whether the host
+ * serves byte ranges. If it does, the file is allocated at its full length and the resource is split in segments that
+ * are fetched concurrently with Range requests, each written at its own offset with positional FileChannel writes.
+ * Otherwise it is fetched with one ordinary request.
+ *
+ * <pre>
+ * JCurlDownload download = new JCurlDownload(&quot;http://cdn.viaplay.se/asset.mp4&quot;, new File(&quot;asset.mp4&quot;))
+ * 		.setSegments(8).run();
+ * log.info(&quot;{} bytes in {} segments&quot;, download.getBytesReceived(), download.getSegmentCount());
+ * </pre>
+ *
+ * A segment that fails is retried from where it stopped, up to the number of retries. Every segment must come with the
+ * ETag of the HEAD response, and is requested with If-Range, so a resource that changes during the download fails it
+ * instead of producing a file of mixed versions. A failed download deletes its file.
+ * <p>
+ * A resumable download keeps its file when it fails and records its progress, the bytes of each segment that are
+ * written to disk and the ETag or Last-Modified validator, in a progress file next to it. The next run of the same
+ * download only fetches the missing bytes, with Range and If-Range, unless the validator of the resource changed in
+ * which case it starts over. The progress file is deleted when the download is complete.
+ * </p>
+ */
+public final class JCurlDownload {
+	private static final Logger log = LoggerFactory.getLogger(JCurlDownload.class);
+	private static final int BUFFER_SIZE = 64 * 1024;
+	public static final String PROGRESS_SUFFIX = ".jcurl";
+
+	private final String url;
+	private final File file;
+	private JCurlClient client = JCurlClient.getDefault();
+	private int segments = 4;
+	private long minSegmentSize = 1024 * 1024;
+	private int retries = 3;
+	private boolean resumable = false;
+	private long checkpointBytes = 8 * 1024 * 1024;
+
+	private long contentLength = -1;
+	private String etag = null;
+	private String lastModified = null;
+	private long resumedBytes = 0;
+	private List<Segment> segmentList = null;
+	private volatile long checkpointed = 0;
+	private int segmentCount = 0;
+	private final AtomicInteger retryCount = new AtomicInteger();
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	/**
+	 * One byte range of the resource and how much of it has been written.
+	 */
+	private static final class Segment {
+		private final int index;
+		private final long start;
+		/* The last byte of the range or -1 if the length of the resource is unknown */
+		private final long end;
+		private final boolean ranged;
+		private volatile long received = 0;
+
+		private Segment(int index, long start, long end, boolean ranged) {
+			this.index = index;
+			this.start = start;
+			this.end = end;
+			this.ranged = ranged;
+		}
+
+		private long length() {
+			return end < 0 ? -1 : end - start + 1;
+		}
+	}
+
+	/**
+	 * The resource changed or the host stopped serving ranges, which retrying does not help against.
+	 */
+	private static final class ChangedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private ChangedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * @param url
+	 *            The url of the resource.
+	 * @param file
+	 *            The file to write the resource to, which is replaced.
+	 */
+	public JCurlDownload(String url, File file) {
+		this.url = url;
+		this.file = file;
+	}
+
+	/**
+	 * @param client
+	 *            The client to send the requests with, its time out applies to each request.
+	 */
+	public JCurlDownload setClient(JCurlClient client) {
+		this.client = client;
+		return this;
+	}
+
+	/**
+	 * @param segments
+	 *            The largest number of segments, and connections, to fetch at once.
+	 */
+	public JCurlDownload setSegments(int segments) {
+		if (segments < 1) {
+			throw new IllegalArgumentException("A download needs at least one segment.");
+		}
+		this.segments = segments;
+		return this;
+	}
+
+	/**
+	 * @param minSegmentSize
+	 *            The smallest segment worth a connection of its own, a small resource gets fewer segments.
+	 */
+	public JCurlDownload setMinSegmentSize(long minSegmentSize) {
+		this.minSegmentSize = Math.max(1, minSegmentSize);
+		return this;
+	}
+
+	/**
+	 * @param retries
+	 *            The number of times each segment is retried before the download fails.
+	 */
+	public JCurlDownload setRetries(int retries) {
+		this.retries = retries;
+		return this;
+	}
+
+	/**
+	 * @param resumable
+	 *            true to keep the file of a failed download with a progress file, so that the next run only fetches
+	 *            the missing bytes.
+	 */
+	public JCurlDownload setResumable(boolean resumable) {
+		this.resumable = resumable;
+		return this;
+	}
+
+	/**
+	 * @param checkpointBytes
+	 *            The number of bytes between two updates of the progress file of a resumable download, which is what a
+	 *            crashed process may have to fetch again.
+	 */
+	public JCurlDownload setCheckpointBytes(long checkpointBytes) {
+		this.checkpointBytes = Math.max(BUFFER_SIZE, checkpointBytes);
+		return this;
+	}
+
+	/**
+	 * This method downloads the resource and returns when the file is complete.
+	 *
+	 * @throws JCurlIOException
+	 *             If the resource cannot be fetched, a segment failed more times than it may be retried or the
+	 *             resource changed during the download. The file is deleted, unless the download is resumable and the
+	 *             resource did not change.
+	 */
+	public JCurlDownload run() {
+		try {
+			probe();
+			segmentCount = segmentList.size();
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+				if (resumedBytes == 0) {
+					randomAccessFile.setLength(0);
+					if (contentLength > 0) {
+						randomAccessFile.setLength(contentLength);
+					}
+				}
+				/* Segments that an earlier run completed have no range left to request */
+				List<Segment> pending = new ArrayList<Segment>();
+				for (Segment segment : segmentList) {
+					if (!segment.ranged || segment.received < segment.length()) {
+						pending.add(segment);
+					}
+				}
+				if (!pending.isEmpty()) {
+					fetchAll(pending, randomAccessFile.getChannel());
+				}
+			}
+			if (contentLength >= 0 && bytesReceived.get() != contentLength) {
+				throw new IOException("Received " + bytesReceived.get() + " of " + contentLength + " bytes.");
+			}
+			getProgressFile().delete();
+			log.debug("Downloaded {} bytes of '{}' in {} segments with {} retries.", bytesReceived.get() - resumedBytes,
+					url, segmentCount, retryCount.get());
+			return this;
+		} catch (ChangedException e) {
+			failed(true);
+			throw new JCurlIOException(e);
+		} catch (IOException e) {
+			failed(false);
+			throw new JCurlIOException(e);
+		} catch (RuntimeException e) {
+			failed(false);
+			throw e;
+		}
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The length of the resource according to the HEAD request, or -1 if it is not known.
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * @return The number of segments the resource was fetched in, 1 if the host does not serve ranges.
+	 */
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	public int getRetryCount() {
+		return retryCount.get();
+	}
+
+	/**
+	 * @return The number of bytes in the file, which is the length of the resource after a download.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return The number of bytes that a resumed download found in the file from an earlier run.
+	 */
+	public long getResumedBytes() {
+		return resumedBytes;
+	}
+
+	/**
+	 * @return The file where a resumable download records its progress.
+	 */
+	public File getProgressFile() {
+		return new File(file.getPath() + PROGRESS_SUFFIX);
+	}
+
+	/* Helper methods below this line */
+
+	/**
+	 * This method sends the HEAD request and splits the resource in segments, or continues the segments of an earlier
+	 * run of a resumable download.
+	 */
+	private void probe() throws IOException {
+		JCurlResponse head = client.head(client.newRequest(url));
+		if (head.getResponseCode() != 200) {
+			throw new IOException("The HEAD request of '" + url + "' was answered with " + head.getResponseCode()
+					+ ".");
+		}
+		String length = head.getHeaderField("Content-Length");
+		contentLength = length != null ? Long.parseLong(length.trim()) : -1;
+		etag = head.getHeaderField("ETag");
+		lastModified = head.getHeaderField("Last-Modified");
+		boolean ranged = contentLength > 0 && "bytes".equalsIgnoreCase(head.getHeaderField("Accept-Ranges"));
+
+		segmentList = new ArrayList<Segment>();
+		if (!ranged) {
+			segmentList.add(new Segment(0, 0, contentLength - 1, false));
+			return;
+		}
+		if (resumable && resume()) {
+			return;
+		}
+		int count = (int) Math.max(1, Math.min(segments, (contentLength + minSegmentSize - 1) / minSegmentSize));
+		for (int i = 0; i < count; i++) {
+			segmentList.add(new Segment(i, contentLength * i / count, contentLength * (i + 1) / count - 1, true));
+		}
+	}
+
+	/**
+	 * This method reads the segments of an earlier run from the progress file if the resource has the same length and
+	 * validator as then.
+	 *
+	 * @return true if the download continues where the earlier run stopped.
+	 */
+	private boolean resume() {
+		File progressFile = getProgressFile();
+		if (!progressFile.exists()) {
+			return false;
+		}
+		Properties progress = new Properties();
+		try (InputStream inputStream = new FileInputStream(progressFile)) {
+			progress.load(inputStream);
+			String validator = validator();
+			if (validator == null || !validator.equals(progress.getProperty("validator"))
+					|| !url.equals(progress.getProperty("url"))
+					|| contentLength != Long.parseLong(progress.getProperty("length", "-1"))
+					|| file.length() != contentLength) {
+				log.info("The resource '{}' changed since the progress in {} was recorded and is fetched again.", url,
+						progressFile);
+				return false;
+			}
+			int count = Integer.parseInt(progress.getProperty("segments"));
+			for (int i = 0; i < count; i++) {
+				String[] values = progress.getProperty("segment." + i).split(",");
+				Segment segment = new Segment(i, Long.parseLong(values[0]), Long.parseLong(values[1]), true);
+				segment.received = Long.parseLong(values[2]);
+				segmentList.add(segment);
+				resumedBytes += segment.received;
+			}
+		} catch (IOException | RuntimeException e) {
+			log.warn("The progress file {} could not be read and the download starts over: {}", progressFile,
+					e.toString());
+			segmentList.clear();
+			resumedBytes = 0;
+			return false;
+		}
+		bytesReceived.set(resumedBytes);
+		checkpointed = resumedBytes;
+		log.debug("Resumes '{}' with {} of {} bytes.", url, resumedBytes, contentLength);
+		return true;
+	}
+
+	/**
+	 * This method fetches the segments, each on a virtual thread of its own, and cancels the others when one fails.
+	 */
+	private void fetchAll(List<Segment> list, final FileChannel channel) throws IOException {
+		if (list.size() == 1) {
+			fetch(list.get(0), channel);
+			return;
+		}
+		ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+				.name("JCurlDownload-", 0).factory());
+		try {
+			CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+			for (final Segment segment : list) {
+				completionService.submit(() -> {
+					fetch(segment, channel);
+					return null;
+				});
+			}
+			/* Takes the segments as they complete so that the first failure cancels the others */
+			for (int i = 0; i < list.size(); i++) {
+				completionService.take().get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("The download was interrupted.", e);
+		} finally {
+			executor.shutdownNow();
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * This method fetches a segment and retries it from where it stopped until it is complete.
+	 */
+	private void fetch(Segment segment, FileChannel channel) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			try {
+				transfer(segment, channel);
+				return;
+			} catch (ChangedException e) {
+				throw e;
+			} catch (IOException e) {
+				if (attempt >= retries || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				retryCount.incrementAndGet();
+				log.warn("Segment {} of '{}' failed after {} bytes and is retried: {}", segment.index, url,
+						segment.received, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * This method sends one request for the rest of a segment and writes the body at the offsets of the segment.
+	 */
+	private void transfer(final Segment segment, final FileChannel channel) throws IOException {
+		JCurlRequest request = client.newRequest(url);
+		request.setExceptionsToBeThrown(true);
+		if (segment.ranged) {
+			request.getProperties().put("Range", "bytes=" + (segment.start + segment.received) + "-" + segment.end);
+			if (etag != null && !etag.startsWith("W/")) {
+				request.getProperties().put("If-Range", etag);
+			} else if (etag == null && lastModified != null) {
+				request.getProperties().put("If-Range", lastModified);
+			}
+		} else if (segment.received > 0) {
+			/* Without ranges a retry starts over */
+			bytesReceived.addAndGet(-segment.received);
+			segment.received = 0;
+		}
+		request.setBodyHandler((inputStream, response) -> {
+			verify(segment, response);
+			copy(inputStream, channel, segment);
+		});
+		JCurlResponse response;
+		try {
+			response = client.get(request);
+		} catch (RuntimeException e) {
+			if (e.getCause() instanceof ChangedException) {
+				throw (ChangedException) e.getCause();
+			}
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e);
+		}
+		int code = response.getResponseCode();
+		if (code != 200 && code != 206) {
+			throw new IOException("The request was answered with " + code + ".");
+		}
+		if (segment.length() >= 0 && segment.received < segment.length()) {
+			throw new IOException("The body ended after " + segment.received + " of " + segment.length() + " bytes.");
+		}
+	}
+
+	/**
+	 * This method checks that a response is the expected part of the same version of the resource.
+	 */
+	private void verify(Segment segment, JCurlResponse response) throws ChangedException {
+		String responseETag = response.getHeaderField("ETag");
+		if (etag != null && !etag.equals(responseETag)) {
+			throw new ChangedException("The ETag of '" + url + "' changed from " + etag + " to " + responseETag + ".");
+		}
+		String responseLastModified = response.getHeaderField("Last-Modified");
+		if (etag == null && lastModified != null && !lastModified.equals(responseLastModified)) {
+			throw new ChangedException("The resource '" + url + "' was modified " + responseLastModified + ".");
+		}
+		if (segment.ranged) {
+			long position = segment.start + segment.received;
+			String contentRange = response.getHeaderField("Content-Range");
+			if (response.getResponseCode() != 206 || contentRange == null
+					|| !contentRange.startsWith("bytes " + position + "-")) {
+				throw new ChangedException("The range from " + position + " of '" + url + "' was answered with "
+						+ response.getResponseCode() + " and Content-Range " + contentRange + ".");
+			}
+		}
+	}
+
+	/**
+	 * This method writes a body at the offsets of its segment through a pooled direct buffer, so the channel does not
+	 * need a temporary direct buffer of its own for every thread.
+	 */
+	private void copy(InputStream inputStream, FileChannel channel, Segment segment) throws IOException {
+		JCurlBufferPool pool = client.getBufferPool();
+		byte[] bytes = pool.acquireBytes(BUFFER_SIZE);
+		ByteBuffer buffer = pool.acquireDirect(BUFFER_SIZE);
+		try {
+			int read;
+			while ((read = inputStream.read(bytes, 0, BUFFER_SIZE)) >= 0) {
+				if (segment.length() >= 0 && segment.received + read > segment.length()) {
+					throw new ChangedException("The body of segment " + segment.index + " is longer than its range.");
+				}
+				buffer.clear();
+				buffer.put(bytes, 0, read).flip();
+				long position = segment.start + segment.received;
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+				segment.received += read;
+				if (bytesReceived.addAndGet(read) - checkpointed >= checkpointBytes && resumable && segment.ranged) {
+					checkpoint(channel);
+				}
+			}
+		} finally {
+			pool.release(bytes);
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * This method records the bytes of each segment that are on disk. The counts are read before the file is forced,
+	 * so the progress file never claims bytes that a crash could lose, and the progress file is replaced atomically.
+	 */
+	private synchronized void checkpoint(FileChannel channel) throws IOException {
+		Properties progress = new Properties();
+		progress.setProperty("url", url);
+		progress.setProperty("length", Long.toString(contentLength));
+		progress.setProperty("validator", validator());
+		progress.setProperty("segments", Integer.toString(segmentList.size()));
+		long total = 0;
+		for (Segment segment : segmentList) {
+			long received = segment.received;
+			progress.setProperty("segment." + segment.index, segment.start + "," + segment.end + "," + received);
+			total += received;
+		}
+		channel.force(false);
+		File progressFile = getProgressFile();
+		File temporaryFile = new File(progressFile.getPath() + ".tmp");
+		try (OutputStream outputStream = new FileOutputStream(temporaryFile)) {
+			progress.store(outputStream, "JCurlDownload progress");
+		}
+		Files.move(temporaryFile.toPath(), progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		checkpointed = total;
+	}
+
+	/**
+	 * @return The validator that tells if the resource is the same as when the progress was recorded, or null.
+	 */
+	private String validator() {
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+		return etag == null && lastModified != null ? lastModified : null;
+	}
+
+	private void failed(boolean changed) {
+		if (resumable && !changed && segmentList == null) {
+			/* Nothing was fetched, the file and the progress of an earlier run are kept as they are */
+			return;
+		}
+		if (resumable && !changed && validator() != null && segmentList.get(0).ranged) {
+			/* The channel of the download may be closed by the interrupted segments, so the file is opened again */
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				checkpoint(channel);
+				log.info("The download of '{}' stopped after {} of {} bytes and can be resumed.", url,
+						bytesReceived.get(), contentLength);
+				return;
+			} catch (IOException e) {
+				log.warn("The progress of the download of '{}' could not be recorded: {}", url, e.toString());
+			}
+		}
+		getProgressFile().delete();
+		if (file.exists() && !file.delete()) {
+			log.warn("The file {} of the failed download could not be deleted.", file);
+		}
+	}
+
+}
@@ -0,0 +1,429 @@
+package com.viaplay.jcurl;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.viaplay.jcurl.exception.JCurlIOException;
+
+/**
+ * A JCurlEventStream follows an endpoint that never ends its response, e.g. a CouchDB _changes?feed=continuous, an
+ * NDJSON stream or Server-Sent Events, and delivers each line or event to a handler as it arrives. A response with the
+ * Content-Type text/event-stream is read as Server-Sent Events, any other response as one event per line.
+ *
+ * <pre>
+ * JCurlEventStream stream = new JCurlEventStream(databaseUrl + &quot;/_changes?feed=continuous&amp;heartbeat=10000&quot;)
+ * 		.setIdleTimeoutMillis(30000).setResumeParameter(&quot;since&quot;, line -&gt; seqOf(line));
+ * stream.run(event -&gt; index(event.getData()));
+ * </pre>
+ *
+ * The events are read by a thread of their own into a bounded queue that the handler takes them from. When the handler
+ * falls behind the queue fills up, the reading stops and TCP flow control makes the host wait, so a slow handler never
+ * makes the events pile up in memory.
+ * <p>
+ * Empty lines and Server-Sent Events comments are heartbeats. They are not delivered but show that the connection is
+ * alive, a connection that is silent for longer than the idle time out is closed and opened again. The stream also
+ * reconnects when the host ends the response or the connection fails, with the Last-Event-ID header of the last event
+ * or, for line streams, with a query parameter like the since of CouchDB. run() returns when the stream is closed.
+ * </p>
+ */
+public final class JCurlEventStream implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(JCurlEventStream.class);
+
+	private final String url;
+	private JCurlClient client = JCurlClient.getDefault();
+	private int idleTimeoutMillis = 60000;
+	private long reconnectMillis = 1000;
+	private int maxReconnects = -1;
+	private int queueSize = 256;
+	private String resumeParameter = null;
+	private Function<String, String> lineId = null;
+
+	private volatile boolean closed = false;
+	private volatile String lastEventId = null;
+	private volatile Thread reader = null;
+	private volatile RuntimeException failure = null;
+	private final AtomicLong eventCount = new AtomicLong();
+	private final AtomicLong heartbeatCount = new AtomicLong();
+	private final AtomicLong connectCount = new AtomicLong();
+
+	/**
+	 * An event is one line of a line stream or one event of a Server-Sent Events stream.
+	 */
+	public static final class Event {
+		private final String id;
+		private final String type;
+		private final String data;
+
+		private Event(String id, String type, String data) {
+			this.id = id;
+			this.type = type;
+			this.data = data;
+		}
+
+		/**
+		 * @return The id of the event, or null if it has none.
+		 */
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return The event type of a Server-Sent Event, which is message by default, or null for a line.
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * @return The line, or the data lines of a Server-Sent Event joined by newlines.
+		 */
+		public String getData() {
+			return data;
+		}
+
+		@Override
+		public String toString() {
+			return (type != null ? type + " " : "") + (id != null ? id + " " : "") + data;
+		}
+	}
+
+	/**
+	 * A handler is called with the events in the order they arrive, on the thread that calls run().
+	 */
+	@FunctionalInterface
+	public interface Handler {
+		void onEvent(Event event);
+	}
+
+	/**
+	 * @param url
+	 *            The url of the stream.
+	 */
+	public JCurlEventStream(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * @param client
+	 *            The client to connect with.
+	 */
+	public JCurlEventStream setClient(JCurlClient client) {
+		this.client = client;
+		return this;
+	}
+
+	/**
+	 * @param idleTimeoutMillis
+	 *            The longest time the connection may be silent, which should be a few heartbeat intervals.
+	 */
+	public JCurlEventStream setIdleTimeoutMillis(int idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		return this;
+	}
+
+	/**
+	 * @param reconnectMillis
+	 *            The time to wait before a reconnect. A Server-Sent Events stream may change it with a retry field.
+	 */
+	public JCurlEventStream setReconnectMillis(long reconnectMillis) {
+		this.reconnectMillis = reconnectMillis;
+		return this;
+	}
+
+	/**
+	 * @param maxReconnects
+	 *            The number of reconnects in a row without any event before the stream fails, or -1 to reconnect
+	 *            for ever.
+	 */
+	public JCurlEventStream setMaxReconnects(int maxReconnects) {
+		this.maxReconnects = maxReconnects;
+		return this;
+	}
+
+	/**
+	 * @param queueSize
+	 *            The number of events that may wait for the handler before the reading stops.
+	 */
+	public JCurlEventStream setQueueSize(int queueSize) {
+		if (queueSize < 1) {
+			throw new IllegalArgumentException("The queue must hold at least one event.");
+		}
+		this.queueSize = queueSize;
+		return this;
+	}
+
+	/**
+	 * This method makes a line stream resume from its last event with a query parameter when it reconnects.
+	 *
+	 * @param resumeParameter
+	 *            The name of the query parameter, e.g. since.
+	 * @param lineId
+	 *            The function that finds the id of a line, or returns null if the line has none.
+	 */
+	public JCurlEventStream setResumeParameter(String resumeParameter, Function<String, String> lineId) {
+		this.resumeParameter = resumeParameter;
+		this.lineId = lineId;
+		return this;
+	}
+
+	/**
+	 * @param lastEventId
+	 *            The id to resume from when the stream is first opened.
+	 */
+	public JCurlEventStream setLastEventId(String lastEventId) {
+		this.lastEventId = lastEventId;
+		return this;
+	}
+
+	/**
+	 * This method opens the stream and calls the handler with every event until the stream is closed.
+	 *
+	 * @throws JCurlIOException
+	 *             If the stream could not be opened after the maximum number of reconnects.
+	 * @throws RuntimeException
+	 *             What the handler throws, which also closes the stream.
+	 */
+	public void run(Handler handler) {
+		if (reader != null) {
+			throw new IllegalStateException("The stream is already running.");
+		}
+		final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(queueSize);
+		reader = Thread.ofVirtual().name("JCurlEventStream").start(() -> read(queue));
+		try {
+			while (!closed || !queue.isEmpty()) {
+				Event event = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (event != null) {
+					handler.onEvent(event);
+				} else if (!reader.isAlive() && queue.isEmpty()) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			close();
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * This method stops the stream. It may be called from the handler or from any other thread.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		Thread thread = reader;
+		if (thread != null) {
+			/* Interrupting a virtual thread closes the connection it reads from */
+			thread.interrupt();
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return The id of the last event, which the stream resumes from when it reconnects.
+	 */
+	public String getLastEventId() {
+		return lastEventId;
+	}
+
+	public long getEventCount() {
+		return eventCount.get();
+	}
+
+	public long getHeartbeatCount() {
+		return heartbeatCount.get();
+	}
+
+	/**
+	 * @return The number of times the stream has been opened, which is one more than the number of reconnects.
+	 */
+	public long getConnectCount() {
+		return connectCount.get();
+	}
+
+	/* Helper methods below this line */
+
+	/**
+	 * This method connects and reconnects until the stream is closed, and puts the events in the queue.
+	 */
+	private void read(final BlockingQueue<Event> queue) {
+		int failures = 0;
+		while (!closed) {
+			long events = eventCount.get();
+			JCurlRequest request = client.newRequest(resumeUrl());
+			request.setTimeOutMillis(idleTimeoutMillis);
+			request.setExceptionsToBeThrown(true);
+			request.getProperties().remove("Content-Type");
+			request.getProperties().put("Accept", "text/event-stream, application/x-ndjson, */*");
+			if (lastEventId != null && resumeParameter == null) {
+				request.getProperties().put("Last-Event-ID", lastEventId);
+			}
+			request.setBodyHandler((inputStream, response) -> {
+				String contentType = response.getHeaderField("Content-Type");
+				if (contentType != null && contentType.toLowerCase().startsWith("text/event-stream")) {
+					readEvents(inputStream, queue);
+				} else {
+					readLines(inputStream, queue);
+				}
+			});
+			String problem;
+			try {
+				connectCount.incrementAndGet();
+				JCurlResponse response = client.get(request);
+				problem = "ended with " + response.getResponseCode();
+			} catch (RuntimeException e) {
+				problem = "failed: " + (e.getCause() != null ? e.getCause() : e);
+			}
+			if (closed) {
+				return;
+			}
+			failures = eventCount.get() > events ? 0 : failures + 1;
+			if (maxReconnects >= 0 && failures > maxReconnects) {
+				failure = new JCurlIOException(new IOException("The stream '" + url + "' " + problem + " and was "
+						+ "given up after " + maxReconnects + " reconnects."));
+				closed = true;
+				return;
+			}
+			log.info("The stream '{}' {} and reconnects in {} ms.", url, problem, reconnectMillis);
+			try {
+				Thread.sleep(reconnectMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * This method reads one event per line, empty lines are heartbeats.
+	 */
+	private void readLines(InputStream inputStream, BlockingQueue<Event> queue) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().isEmpty()) {
+				heartbeatCount.incrementAndGet();
+				continue;
+			}
+			String id = lineId != null ? lineId.apply(line) : null;
+			deliver(queue, new Event(id, null, line));
+			if (id != null) {
+				lastEventId = id;
+			}
+		}
+	}
+
+	/**
+	 * This method reads Server-Sent Events, see https://html.spec.whatwg.org/multipage/server-sent-events.html
+	 */
+	private void readEvents(InputStream inputStream, BlockingQueue<Event> queue) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+		StringBuilder data = new StringBuilder();
+		boolean hasData = false;
+		String type = null;
+		/* The last event ID buffer of the spec, which only becomes the last id when its event is dispatched */
+		String id = lastEventId;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty()) {
+				lastEventId = id;
+				if (hasData) {
+					deliver(queue, new Event(id, type != null ? type : "message", data.toString()));
+				}
+				data.setLength(0);
+				hasData = false;
+				type = null;
+				continue;
+			}
+			if (line.charAt(0) == ':') {
+				heartbeatCount.incrementAndGet();
+				continue;
+			}
+			int colon = line.indexOf(':');
+			String field = colon < 0 ? line : line.substring(0, colon);
+			String value = colon < 0 ? "" : line.substring(line.startsWith(": ", colon) ? colon + 2 : colon + 1);
+			if ("data".equals(field)) {
+				data.append(hasData ? "\n" : "").append(value);
+				hasData = true;
+			} else if ("event".equals(field)) {
+				type = value;
+			} else if ("id".equals(field) && value.indexOf('\0') < 0) {
+				id = value.isEmpty() ? null : value;
+			} else if ("retry".equals(field) && !value.isEmpty() && value.chars().allMatch(Character::isDigit)) {
+				reconnectMillis = Long.parseLong(value);
+			}
+		}
+	}
+
+	/**
+	 * This method waits for room in the queue, which is what stops the reading when the handler falls behind.
+	 */
+	private void deliver(BlockingQueue<Event> queue, Event event) throws IOException {
+		try {
+			queue.put(event);
+			eventCount.incrementAndGet();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("The stream was closed.", e);
+		}
+	}
+
+	/**
+	 * This method returns the url with the resume parameter of a line stream set to the last id, in place of the
+	 * parameter the url may already have, e.g. since=now.
+	 */
+	private String resumeUrl() {
+		if (resumeParameter == null || lastEventId == null) {
+			return url;
+		}
+		int query = url.indexOf('?');
+		StringBuilder resumed = new StringBuilder(query < 0 ? url : url.substring(0, query));
+		char separator = '?';
+		if (query >= 0) {
+			for (String parameter : url.substring(query + 1).split("&")) {
+				if (!parameter.isEmpty() && !parameter.equals(resumeParameter)
+						&& !parameter.startsWith(resumeParameter + "=")) {
+					resumed.append(separator).append(parameter);
+					separator = '&';
+				}
+			}
+		}
+		try {
+			return resumed.append(separator).append(resumeParameter).append('=')
+					.append(URLEncoder.encode(lastEventId, "UTF-8")).toString();
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "JCurlEventStream " + url + " (" + eventCount.get() + " events, " + connectCount.get()
+				+ " connections)";
+	}
+
+}
@@ -0,0 +1,339 @@
+package com.viaplay.jcurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.viaplay.jcurl.exception.JCurlIOException;
+
+/**
+ * JCurlFlow connects JCurl to reactive pipelines through java.util.concurrent.Flow. A response body is published as
+ * ByteBuffers that are read from the connection only when the subscriber has asked for them, and a publisher of
+ * ByteBuffers is sent as a request body one buffer at a time.
+ *
+ * <pre>
+ * JCurlFlow.ResponsePublisher publisher = JCurlFlow.publisher(client, new JCurlRequest(url));
+ * publisher.subscribe(subscriber);
+ * int responseCode = publisher.getResponse().get().getResponseCode();
+ * </pre>
+ *
+ * The request is sent on a virtual thread of its own when the publisher is subscribed to. Cancelling the subscription
+ * interrupts that thread, which closes the connection.
+ */
+public final class JCurlFlow {
+	private static final int CHUNK_SIZE = 16 * 1024;
+	private static final Object COMPLETE = new Object();
+
+	private JCurlFlow() {
+	}
+
+	/**
+	 * This method returns a publisher of the body of a response.
+	 *
+	 * @param client
+	 *            The client to send the request with.
+	 * @param request
+	 *            The request, with its method set. Its body handler is replaced.
+	 */
+	public static ResponsePublisher publisher(JCurlClient client, JCurlRequest request) {
+		return new ResponsePublisher(client, request, CHUNK_SIZE);
+	}
+
+	/**
+	 * This method returns a request body that is written from a publisher.
+	 *
+	 * @param publisher
+	 *            The publisher of the body, which is subscribed to once per request the body is sent with.
+	 * @param contentLength
+	 *            The exact number of bytes the publisher publishes, or -1 to send the body chunked.
+	 * @param contentType
+	 *            The Content-Type of the body, or null to keep the Content-Type of the request.
+	 */
+	public static JCurlRequestBody body(Flow.Publisher<ByteBuffer> publisher, long contentLength, String contentType) {
+		return new PublisherBody(publisher, contentLength, contentType);
+	}
+
+	/**
+	 * A publisher of a response body that accepts one subscriber. Each ByteBuffer is a new buffer that the subscriber
+	 * owns. A response with an error code is signalled with onError, the response itself is found in getResponse().
+	 */
+	public static final class ResponsePublisher implements Flow.Publisher<ByteBuffer> {
+		private final JCurlClient client;
+		private final JCurlRequest request;
+		private final int chunkSize;
+		private final AtomicBoolean subscribed = new AtomicBoolean();
+		private final CompletableFuture<JCurlResponse> response = new CompletableFuture<JCurlResponse>();
+
+		private ResponsePublisher(JCurlClient client, JCurlRequest request, int chunkSize) {
+			this.client = client;
+			this.request = request;
+			this.chunkSize = chunkSize;
+		}
+
+		/**
+		 * @return The response, which completes when its headers have arrived or the request failed.
+		 */
+		public CompletableFuture<JCurlResponse> getResponse() {
+			return response;
+		}
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+			if (!subscribed.compareAndSet(false, true)) {
+				subscriber.onSubscribe(new Flow.Subscription() {
+					@Override
+					public void request(long n) {
+					}
+
+					@Override
+					public void cancel() {
+					}
+				});
+				subscriber.onError(new IllegalStateException("A response body can only be subscribed to once."));
+				return;
+			}
+			ResponseSubscription subscription = new ResponseSubscription(subscriber);
+			subscription.thread = Thread.ofVirtual().name("JCurlFlow").unstarted(() -> subscription.run());
+			subscriber.onSubscribe(subscription);
+			subscription.thread.start();
+		}
+
+		/**
+		 * The subscription that sends the request and reads the body as it is asked for. The reading thread is virtual,
+		 * so it waits for demand on a Condition, which lets go of the carrier, as the limiter does.
+		 */
+		private final class ResponseSubscription implements Flow.Subscription {
+			private final Flow.Subscriber<? super ByteBuffer> subscriber;
+			private final ReentrantLock lock = new ReentrantLock();
+			private final Condition changed = lock.newCondition();
+			private volatile Thread thread = null;
+			private long demand = 0;
+			private boolean cancelled = false;
+			private volatile Throwable illegalRequest = null;
+
+			private ResponseSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+				this.subscriber = subscriber;
+			}
+
+			@Override
+			public void request(long n) {
+				lock.lock();
+				try {
+					if (n <= 0) {
+						illegalRequest = new IllegalArgumentException("A subscriber must request a positive number "
+								+ "of items, not " + n + ".");
+						cancelled = true;
+					} else {
+						demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+					}
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			@Override
+			public void cancel() {
+				lock.lock();
+				try {
+					if (cancelled) {
+						return;
+					}
+					cancelled = true;
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				/* Interrupting a virtual thread closes the connection it reads from */
+				Thread current = thread;
+				if (current != null && current != Thread.currentThread()) {
+					current.interrupt();
+				}
+			}
+
+			private void run() {
+				request.setExceptionsToBeThrown(true);
+				request.setBodyHandler((inputStream, jCurlResponse) -> {
+					response.complete(jCurlResponse);
+					publish(inputStream);
+				});
+				try {
+					JCurlResponse result = client.execute(request);
+					response.complete(result);
+					if (illegalRequest != null) {
+						subscriber.onError(illegalRequest);
+					} else if (isCancelled()) {
+						return;
+					} else if (result.getResponseCode() >= 400) {
+						subscriber.onError(new JCurlIOException(new IOException("The request was answered with "
+								+ result.getResponseCodeAndMessage())));
+					} else {
+						subscriber.onComplete();
+					}
+				} catch (RuntimeException e) {
+					response.completeExceptionally(e);
+					if (illegalRequest != null) {
+						subscriber.onError(illegalRequest);
+					} else if (!isCancelled()) {
+						subscriber.onError(e);
+					}
+				}
+			}
+
+			/**
+			 * This method reads a chunk of the body for each item the subscriber has asked for, and nothing before.
+			 */
+			private void publish(InputStream inputStream) throws IOException {
+				while (true) {
+					lock.lock();
+					try {
+						while (demand == 0 && !cancelled) {
+							try {
+								changed.await();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								throw new InterruptedIOException("The subscription was cancelled.");
+							}
+						}
+						if (cancelled) {
+							return;
+						}
+						demand--;
+					} finally {
+						lock.unlock();
+					}
+					byte[] bytes = new byte[chunkSize];
+					int read = inputStream.read(bytes);
+					if (read < 0) {
+						return;
+					}
+					subscriber.onNext(ByteBuffer.wrap(bytes, 0, read));
+				}
+			}
+
+			private boolean isCancelled() {
+				lock.lock();
+				try {
+					return cancelled;
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A request body that subscribes to a publisher when it is written and asks for one buffer at a time, so the
+	 * publisher is never further ahead than the connection.
+	 */
+	private static final class PublisherBody implements JCurlRequestBody {
+		private final Flow.Publisher<ByteBuffer> publisher;
+		private final long contentLength;
+		private final String contentType;
+
+		private PublisherBody(Flow.Publisher<ByteBuffer> publisher, long contentLength, String contentType) {
+			this.publisher = publisher;
+			this.contentLength = contentLength;
+			this.contentType = contentType;
+		}
+
+		@Override
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		@Override
+		public void writeTo(OutputStream outputStream, JCurlBufferPool bufferPool) throws IOException {
+			final BlockingQueue<Object> signals = new LinkedBlockingQueue<Object>();
+			final CompletableFuture<Flow.Subscription> subscription = new CompletableFuture<Flow.Subscription>();
+			publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+				@Override
+				public void onSubscribe(Flow.Subscription s) {
+					if (!subscription.complete(s)) {
+						s.cancel();
+					}
+				}
+
+				@Override
+				public void onNext(ByteBuffer item) {
+					signals.add(item);
+				}
+
+				@Override
+				public void onError(Throwable throwable) {
+					signals.add(throwable);
+				}
+
+				@Override
+				public void onComplete() {
+					signals.add(COMPLETE);
+				}
+			});
+			byte[] bytes = null;
+			Flow.Subscription s = null;
+			boolean done = false;
+			try {
+				s = subscription.get();
+				while (true) {
+					s.request(1);
+					Object signal = signals.take();
+					if (signal == COMPLETE) {
+						done = true;
+						return;
+					} else if (signal instanceof Throwable) {
+						done = true;
+						throw new IOException("The publisher of the body failed.", (Throwable) signal);
+					}
+					ByteBuffer buffer = (ByteBuffer) signal;
+					if (buffer.hasArray()) {
+						outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+								buffer.remaining());
+					} else {
+						if (bytes == null) {
+							bytes = bufferPool.acquireBytes(CHUNK_SIZE);
+						}
+						while (buffer.hasRemaining()) {
+							int length = Math.min(bytes.length, buffer.remaining());
+							buffer.get(bytes, 0, length);
+							outputStream.write(bytes, 0, length);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("The body was interrupted.");
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			} finally {
+				if (!done && s != null) {
+					/* The connection failed, the publisher does not have to produce the rest */
+					s.cancel();
+				}
+				if (bytes != null) {
+					bufferPool.release(bytes);
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "JCurlFlow body of " + publisher;
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+package com.viaplay.jcurl;
+
+import java.net.URLConnection;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class holds the header fields of a response as one flat array of names and values, in the order they were
+ * received. The names and values that nearly every response repeats are replaced by shared instances, so a retained
+ * response only keeps the strings that are particular to it. A name is looked up without regard to case through a
+ * small hash table over the names, and the Map that HttpURLConnection returns is only built when somebody asks for it.
+ * <p>
+ * Like in HttpURLConnection the status line is kept as a field without a name. Instances are never changed once built.
+ */
+final class JCurlHeaders {
+	static final JCurlHeaders EMPTY = new JCurlHeaders(new String[0], 0);
+
+	private static final Map<String, String> COMMON_NAMES = new HashMap<String, String>();
+	private static final Map<String, String> COMMON_VALUES = new HashMap<String, String>();
+	private static final int NONE = -1;
+
+	static {
+		for (String name : new String[] { "Accept-Ranges", "Access-Control-Allow-Credentials",
+				"Access-Control-Allow-Headers", "Access-Control-Allow-Methods", "Access-Control-Allow-Origin",
+				"Access-Control-Expose-Headers", "Access-Control-Max-Age", "Age", "Allow", "Cache-Control", "Connection",
+				"Content-Disposition", "Content-Encoding", "Content-Language", "Content-Length", "Content-Location",
+				"Content-Range", "Content-Security-Policy", "Content-Type", "Date", "ETag", "Expires", "Keep-Alive",
+				"Last-Event-ID", "Last-Modified", "Link", "Location", "Pragma", "Retry-After", "Server", "Set-Cookie",
+				"Strict-Transport-Security", "Trailer", "Transfer-Encoding", "Vary", "Via", "WWW-Authenticate",
+				"X-Content-Type-Options", "X-Frame-Options", "X-Powered-By", "X-Request-Id", "X-XSS-Protection" }) {
+			COMMON_NAMES.put(name, name);
+			/* HTTP/2 and many proxies send the names in lower case */
+			COMMON_NAMES.put(name.toLowerCase(), name.toLowerCase());
+		}
+		for (String value : new String[] { "0", "1; mode=block", "Accept-Encoding", "Origin", "SAMEORIGIN", "DENY",
+				"bytes", "chunked", "close", "deflate", "gzip", "keep-alive", "max-age=0", "no-cache", "no-store",
+				"no-cache, no-store, must-revalidate", "none", "nosniff", "private", "public", "*", "true",
+				"application/json", "application/json; charset=utf-8", "application/json;charset=UTF-8",
+				"application/octet-stream", "application/x-ndjson", "application/xml", "text/event-stream",
+				"text/html", "text/html; charset=utf-8", "text/html; charset=UTF-8", "text/html;charset=UTF-8",
+				"text/plain", "text/plain; charset=utf-8", "text/plain; charset=UTF-8", "text/xml" }) {
+			COMMON_VALUES.put(value, value);
+		}
+	}
+
+	/* The name and the value of each field after each other, the name of the status line is null */
+	private final String[] fields;
+	private final int count;
+	/* The index of the first field with a name in each slot of the hash table and of the next field with that name */
+	private final int[] table;
+	private final int[] next;
+	private Map<String, List<String>> map = null;
+
+	/**
+	 * This constructor takes over the array of names and values, count fields long.
+	 */
+	JCurlHeaders(String[] fields, int count) {
+		this.fields = fields;
+		this.count = count;
+		this.table = new int[Integer.highestOneBit(Math.max(count, 1) * 2 + 1)];
+		this.next = new int[count];
+		Arrays.fill(table, NONE);
+		/* Backwards, so each chain lists the fields in the order they were received */
+		for (int i = count - 1; i >= 0; i--) {
+			String name = fields[i * 2];
+			if (name == null) {
+				next[i] = NONE;
+				continue;
+			}
+			int slot = hash(name) & (table.length - 1);
+			int first = table[slot];
+			while (first != NONE && !sameName(fields[first * 2], name)) {
+				slot = (slot + 1) & (table.length - 1);
+				first = table[slot];
+			}
+			next[i] = first;
+			table[slot] = i;
+		}
+	}
+
+	/**
+	 * This method copies the header fields of a connection one by one instead of through getHeaderFields(), which
+	 * would build a Map and a List per name only to be thrown away.
+	 */
+	static JCurlHeaders from(URLConnection urlConnection) {
+		String[] fields = new String[32];
+		int count = 0;
+		for (int i = 0;; i++) {
+			String name = urlConnection.getHeaderFieldKey(i);
+			String value = urlConnection.getHeaderField(i);
+			if (name == null && value == null) {
+				break;
+			}
+			if (count * 2 == fields.length) {
+				fields = Arrays.copyOf(fields, fields.length * 2);
+			}
+			fields[count * 2] = name == null ? null : intern(COMMON_NAMES, name);
+			fields[count * 2 + 1] = value == null ? null : intern(COMMON_VALUES, value);
+			count++;
+		}
+		return count == 0 ? EMPTY : new JCurlHeaders(Arrays.copyOf(fields, count * 2), count);
+	}
+
+	/**
+	 * @return The number of fields, the status line included.
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return The first value of the field with the name, in any case, or null.
+	 */
+	String get(String name) {
+		int index = first(name);
+		return index == NONE ? null : fields[index * 2 + 1];
+	}
+
+	/**
+	 * @return All values of the fields with the name, in any case, in the order they were received, or an empty list.
+	 */
+	List<String> getAll(String name) {
+		int index = first(name);
+		if (index == NONE) {
+			return Collections.emptyList();
+		}
+		if (next[index] == NONE) {
+			return Collections.singletonList(fields[index * 2 + 1]);
+		}
+		List<String> values = new ArrayList<String>(4);
+		for (; index != NONE; index = next[index]) {
+			values.add(fields[index * 2 + 1]);
+		}
+		return Collections.unmodifiableList(values);
+	}
+
+	/**
+	 * This method returns the fields in the form of HttpURLConnection.getHeaderFields(), i.e. the status line under the
+	 * null key and the values of each name in a list. Unlike that map this one is looked up without regard to case. It
+	 * is built the first time it is asked for.
+	 */
+	Map<String, List<String>> asMap() {
+		if (map == null) {
+			map = new HeaderMap();
+		}
+		return map;
+	}
+
+	private int first(String name) {
+		if (name == null) {
+			for (int i = 0; i < count; i++) {
+				if (fields[i * 2] == null) {
+					return i;
+				}
+			}
+			return NONE;
+		}
+		int slot = hash(name) & (table.length - 1);
+		int index = table[slot];
+		while (index != NONE && !sameName(fields[index * 2], name)) {
+			slot = (slot + 1) & (table.length - 1);
+			index = table[slot];
+		}
+		return index;
+	}
+
+	private static String intern(Map<String, String> common, String string) {
+		String interned = common.get(string);
+		return interned == null ? string : interned;
+	}
+
+	private static boolean sameName(String name, String other) {
+		return name == other || name.equalsIgnoreCase(other);
+	}
+
+	/**
+	 * This hash ignores the case of ASCII letters, which is all that header names may contain.
+	 */
+	private static int hash(String name) {
+		int hash = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			hash = 31 * hash + (c >= 'A' && c <= 'Z' ? c + 32 : c);
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * The read only Map view. Lookups go to the hash table, the entries are only collected when they are iterated.
+	 */
+	private final class HeaderMap extends AbstractMap<String, List<String>> {
+		private Set<Map.Entry<String, List<String>>> entrySet = null;
+
+		@Override
+		public List<String> get(Object key) {
+			if (key != null && !(key instanceof String)) {
+				return null;
+			}
+			int index = first((String) key);
+			return index == NONE ? null : getAll((String) key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return (key == null || key instanceof String) && first((String) key) != NONE;
+		}
+
+		@Override
+		public int size() {
+			return entrySet().size();
+		}
+
+		@Override
+		public Set<Map.Entry<String, List<String>>> entrySet() {
+			if (entrySet == null) {
+				Map<String, List<String>> entries = new LinkedHashMap<String, List<String>>();
+				for (int i = 0; i < count; i++) {
+					String name = fields[i * 2];
+					if (name == null ? !entries.containsKey(null) : first(name) == i) {
+						entries.put(name, name == null ? Collections.singletonList(fields[i * 2 + 1]) : getAll(name));
+					}
+				}
+				entrySet = Collections.unmodifiableMap(entries).entrySet();
+			}
+			return entrySet;
+		}
+	}
+
+}
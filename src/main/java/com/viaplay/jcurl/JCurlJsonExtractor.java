@@ -0,0 +1,640 @@
+package com.viaplay.jcurl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.viaplay.jcurl.exception.JCurlIOException;
+
+/**
+ * This class reads the values at a few JSON paths out of a document without parsing the rest of it. It tokenizes the
+ * UTF-8 bytes of the document as they arrive, compares member names as bytes and skips everything that no path leads
+ * into without decoding it, so only the matched values become Strings. Reading stops as soon as every path has either
+ * been found or can no longer match, e.g. when the array of <code>$.rows[*].id</code> has ended, so the rest of a large
+ * document is never received.
+ * <p>
+ * A matched string is returned without its quotes and escapes, a number or literal as it is written, null as null and
+ * an object or array as its JSON text. The extractor is a JCurlBodyHandler, so it can read the body of a request
+ * straight from the connection:
+ *
+ * <pre>
+ * JCurlJsonExtractor extractor = new JCurlJsonExtractor(&quot;$.total&quot;, &quot;$.rows[*].id&quot;);
+ * request.setBodyHandler(extractor);
+ * JCurl.get(request);
+ * long total = extractor.getLong(&quot;$.total&quot;, 0);
+ * </pre>
+ *
+ * An extractor holds the values of the last document it read and is not thread safe, the compiled paths are.
+ */
+public final class JCurlJsonExtractor implements JCurlBodyHandler {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final JCurlJsonPath[] paths;
+	private final Map<String, Integer> pathIndexes = new HashMap<String, Integer>();
+	private final List<List<String>> results = new ArrayList<List<String>>();
+	private final long allPaths;
+	private long donePaths = 0;
+
+	/* The document being read, either a stream and a buffer of it or an array without a stream */
+	private InputStream inputStream = null;
+	private byte[] streamBuffer = null;
+	private byte[] buffer = null;
+	private int position = 0;
+	private int limit = 0;
+	private long consumedBefore = 0;
+
+	/* Member names and values are unescaped into the scratch buffer */
+	private byte[] scratch = new byte[256];
+	private int scratchLength = 0;
+
+	/* While an object or array is materialized the bytes that the buffer loses on a refill are kept here */
+	private ByteArrayOutputStream capture = null;
+	private int captureStart = -1;
+
+	/**
+	 * This constructor compiles the paths to extract.
+	 *
+	 * @param paths
+	 *            The paths, see JCurlJsonPath, at most 64 of them.
+	 */
+	public JCurlJsonExtractor(String... paths) {
+		this(compileAll(paths));
+	}
+
+	/**
+	 * This constructor takes paths that have been compiled beforehand, which saves compiling them for every document.
+	 *
+	 * @param paths
+	 *            The paths, at most 64 of them.
+	 */
+	public JCurlJsonExtractor(JCurlJsonPath... paths) {
+		if (paths.length == 0 || paths.length > 64) {
+			throw new IllegalArgumentException("An extractor takes between 1 and 64 paths, not " + paths.length + ".");
+		}
+		this.paths = paths.clone();
+		for (int p = 0; p < paths.length; p++) {
+			pathIndexes.put(paths[p].toString(), p);
+			results.add(new ArrayList<String>());
+		}
+		this.allPaths = paths.length == 64 ? -1L : (1L << paths.length) - 1;
+	}
+
+	/**
+	 * This method reads the body of a response, see JCurlBodyHandler.
+	 */
+	public void handleBody(InputStream inputStream, JCurlResponse response) throws IOException {
+		extract(inputStream);
+	}
+
+	/**
+	 * This method reads a document from a stream until every path has been found or can no longer match. The stream is
+	 * not closed.
+	 *
+	 * @return This extractor, to read the values from.
+	 * @throws IOException
+	 *             If the stream fails or the document is not JSON.
+	 */
+	public JCurlJsonExtractor extract(InputStream inputStream) throws IOException {
+		if (streamBuffer == null) {
+			streamBuffer = new byte[BUFFER_SIZE];
+		}
+		this.inputStream = inputStream;
+		buffer = streamBuffer;
+		position = 0;
+		limit = 0;
+		try {
+			run();
+		} finally {
+			this.inputStream = null;
+		}
+		return this;
+	}
+
+	/**
+	 * This method reads a document that is already in memory. The array is read in place.
+	 *
+	 * @return This extractor, to read the values from.
+	 * @throws JCurlIOException
+	 *             If the document is not JSON.
+	 */
+	public JCurlJsonExtractor extract(byte[] bytes, int offset, int length) {
+		inputStream = null;
+		buffer = bytes;
+		position = offset;
+		limit = offset + length;
+		try {
+			run();
+		} catch (IOException e) {
+			throw new JCurlIOException(e);
+		}
+		return this;
+	}
+
+	public JCurlJsonExtractor extract(byte[] bytes) {
+		return extract(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @return All values found at the path in the order of the document, or an empty list.
+	 */
+	public List<String> getStrings(String path) {
+		return Collections.unmodifiableList(results.get(indexOf(path)));
+	}
+
+	/**
+	 * @return The first value found at the path or null if there was none.
+	 */
+	public String getString(String path) {
+		List<String> values = results.get(indexOf(path));
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	/**
+	 * @return The first value found at the path as a long or defaultValue if there was none or it was null.
+	 * @throws NumberFormatException
+	 *             If the value is not an integer.
+	 */
+	public long getLong(String path, long defaultValue) {
+		String value = getString(path);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	/**
+	 * @return All values found at the path as longs.
+	 * @throws NumberFormatException
+	 *             If a value is not an integer.
+	 */
+	public long[] getLongs(String path) {
+		List<String> values = results.get(indexOf(path));
+		long[] longs = new long[values.size()];
+		for (int i = 0; i < longs.length; i++) {
+			longs[i] = Long.parseLong(values.get(i));
+		}
+		return longs;
+	}
+
+	/**
+	 * @return The number of bytes of the last document that were read, which is less than its length if reading
+	 *         stopped early. Bytes that were buffered but not looked at are not counted.
+	 */
+	public long getBytesRead() {
+		return consumedBefore + position;
+	}
+
+	private int indexOf(String path) {
+		Integer index = pathIndexes.get(path);
+		if (index == null) {
+			throw new IllegalArgumentException("The path '" + path + "' was not given to this extractor.");
+		}
+		return index;
+	}
+
+	private static JCurlJsonPath[] compileAll(String[] expressions) {
+		JCurlJsonPath[] paths = new JCurlJsonPath[expressions.length];
+		for (int p = 0; p < paths.length; p++) {
+			paths[p] = JCurlJsonPath.compile(expressions[p]);
+		}
+		return paths;
+	}
+
+	private void run() throws IOException {
+		for (List<String> values : results) {
+			values.clear();
+		}
+		donePaths = 0;
+		consumedBefore = -position;
+		int c = peek();
+		/* A byte order mark is not JSON but some servers send one */
+		if (c == 0xEF) {
+			for (int i = 0; i < 3; i++) {
+				next();
+			}
+		}
+		value(0, allPaths);
+	}
+
+	/* Matching below this line */
+
+	/**
+	 * This method reads the value at depth, where live has a bit set for each path that has matched the steps leading
+	 * to it.
+	 *
+	 * @return true when all paths are done and reading should stop.
+	 */
+	private boolean value(int depth, long live) throws IOException {
+		if (live == 0) {
+			skipValue();
+			return false;
+		}
+		long full = 0;
+		for (int p = 0; p < paths.length; p++) {
+			if ((live & (1L << p)) != 0 && paths[p].length() == depth) {
+				full |= 1L << p;
+			}
+		}
+		int c = peek();
+		if (full != 0) {
+			return matched(depth, live & ~full, full, c);
+		}
+		if (c == '{') {
+			position++;
+			if (peek() == '}') {
+				position++;
+			} else {
+				do {
+					if (peek() != '"') {
+						throw malformed("a member name");
+					}
+					position++;
+					int length = readString();
+					long child = 0;
+					for (int p = 0; p < paths.length; p++) {
+						if ((live & (1L << p)) != 0 && paths[p].matchesName(depth, scratch, 0, length)) {
+							child |= 1L << p;
+						}
+					}
+					if (peek() != ':') {
+						throw malformed("':'");
+					}
+					position++;
+					if (value(depth + 1, child)) {
+						return true;
+					}
+				} while (endOfElement('}'));
+			}
+		} else if (c == '[') {
+			position++;
+			if (peek() == ']') {
+				position++;
+			} else {
+				int index = 0;
+				do {
+					long child = 0;
+					for (int p = 0; p < paths.length; p++) {
+						if ((live & (1L << p)) != 0 && paths[p].matchesIndex(depth, index)) {
+							child |= 1L << p;
+						}
+					}
+					if (value(depth + 1, child)) {
+						return true;
+					}
+					index++;
+				} while (endOfElement(']'));
+			}
+		} else {
+			skipValue();
+		}
+		/* Nothing after this value can match a path whose steps to it have no wildcard */
+		for (int p = 0; p < paths.length; p++) {
+			if ((live & (1L << p)) != 0 && depth <= paths[p].getDefinitePrefix()) {
+				donePaths |= 1L << p;
+			}
+		}
+		return donePaths == allPaths;
+	}
+
+	/**
+	 * This method materializes a value that the paths in full end at. The paths in deeper go on into it, which is only
+	 * possible for an object or array, and are matched against its JSON text afterwards.
+	 */
+	private boolean matched(int depth, long deeper, long full, int c) throws IOException {
+		String value;
+		byte[] json = null;
+		if (c == '{' || c == '[') {
+			json = captureValue();
+			value = new String(json, StandardCharsets.UTF_8);
+		} else if (c == '"') {
+			position++;
+			value = new String(scratch, 0, readString(), StandardCharsets.UTF_8);
+		} else {
+			value = readLiteral();
+		}
+		for (int p = 0; p < paths.length; p++) {
+			if ((full & (1L << p)) != 0) {
+				results.get(p).add(value);
+				if (depth <= paths[p].getDefinitePrefix()) {
+					donePaths |= 1L << p;
+				}
+			}
+		}
+		if (deeper != 0) {
+			if (json == null) {
+				/* A scalar, the deeper paths cannot match it */
+				for (int p = 0; p < paths.length; p++) {
+					if ((deeper & (1L << p)) != 0 && depth <= paths[p].getDefinitePrefix()) {
+						donePaths |= 1L << p;
+					}
+				}
+			} else {
+				InputStream outerStream = inputStream;
+				byte[] outerBuffer = buffer;
+				int outerPosition = position;
+				int outerLimit = limit;
+				long outerConsumed = consumedBefore;
+				inputStream = null;
+				buffer = json;
+				position = 0;
+				limit = json.length;
+				try {
+					value(depth, deeper);
+				} finally {
+					inputStream = outerStream;
+					buffer = outerBuffer;
+					position = outerPosition;
+					limit = outerLimit;
+					consumedBefore = outerConsumed;
+				}
+			}
+		}
+		return donePaths == allPaths;
+	}
+
+	/**
+	 * This method reads past the ',' between two elements or the end of the object or array.
+	 *
+	 * @return true if another element follows.
+	 */
+	private boolean endOfElement(char end) throws IOException {
+		int c = peek();
+		position++;
+		if (c == ',') {
+			return true;
+		}
+		if (c == end) {
+			return false;
+		}
+		position--;
+		throw malformed("',' or '" + end + "'");
+	}
+
+	/* Tokenizing below this line */
+
+	/**
+	 * @return The next byte that is not white space without consuming it, or -1 at the end of the document.
+	 */
+	private int peek() throws IOException {
+		for (;;) {
+			while (position < limit) {
+				byte b = buffer[position];
+				if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+					return b & 0xFF;
+				}
+				position++;
+			}
+			if (!fill()) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * This method refills the buffer from the stream, keeping the bytes of a value that is being captured.
+	 *
+	 * @return false at the end of the document.
+	 */
+	private boolean fill() throws IOException {
+		if (inputStream == null) {
+			return false;
+		}
+		if (captureStart >= 0) {
+			capture.write(buffer, captureStart, limit - captureStart);
+			captureStart = 0;
+		}
+		consumedBefore += limit;
+		position = 0;
+		limit = 0;
+		int read;
+		while ((read = inputStream.read(buffer, 0, buffer.length)) == 0) {
+			/* Read again, the stream must block or return -1 */
+		}
+		if (read < 0) {
+			return false;
+		}
+		limit = read;
+		return true;
+	}
+
+	private int next() throws IOException {
+		if (position == limit && !fill()) {
+			throw malformed("more of the document");
+		}
+		return buffer[position++] & 0xFF;
+	}
+
+	private void skipValue() throws IOException {
+		int c = peek();
+		if (c == '"') {
+			position++;
+			skipString();
+		} else if (c == '{' || c == '[') {
+			position++;
+			int depth = 1;
+			while (depth > 0) {
+				if (position == limit && !fill()) {
+					throw malformed("the end of " + (char) c);
+				}
+				byte b = buffer[position++];
+				if (b == '"') {
+					skipString();
+				} else if (b == '{' || b == '[') {
+					depth++;
+				} else if (b == '}' || b == ']') {
+					depth--;
+				}
+			}
+		} else if (c < 0) {
+			throw malformed("a value");
+		} else {
+			readLiteral();
+		}
+	}
+
+	/**
+	 * This method skips the rest of a string whose opening quote has been read, without decoding it.
+	 */
+	private void skipString() throws IOException {
+		for (;;) {
+			while (position < limit) {
+				byte b = buffer[position++];
+				if (b == '"') {
+					return;
+				}
+				if (b == '\\') {
+					next();
+				}
+			}
+			if (!fill()) {
+				throw malformed("the end of a string");
+			}
+		}
+	}
+
+	/**
+	 * This method reads the rest of a string whose opening quote has been read into the scratch buffer as UTF-8, with
+	 * the escapes replaced.
+	 *
+	 * @return The number of bytes in the scratch buffer.
+	 */
+	private int readString() throws IOException {
+		scratchLength = 0;
+		for (;;) {
+			int start = position;
+			while (position < limit) {
+				byte b = buffer[position];
+				if (b == '"' || b == '\\') {
+					break;
+				}
+				position++;
+			}
+			append(buffer, start, position - start);
+			if (position == limit) {
+				if (!fill()) {
+					throw malformed("the end of a string");
+				}
+				continue;
+			}
+			if (buffer[position++] == '"') {
+				return scratchLength;
+			}
+			int c = next();
+			switch (c) {
+			case 'b':
+				appendCodePoint('\b');
+				break;
+			case 'f':
+				appendCodePoint('\f');
+				break;
+			case 'n':
+				appendCodePoint('\n');
+				break;
+			case 'r':
+				appendCodePoint('\r');
+				break;
+			case 't':
+				appendCodePoint('\t');
+				break;
+			case 'u':
+				int codePoint = readHex();
+				if (Character.isHighSurrogate((char) codePoint) && peekByte() == '\\') {
+					position++;
+					if (next() != 'u') {
+						throw malformed("a low surrogate");
+					}
+					int low = readHex();
+					codePoint = Character.isLowSurrogate((char) low) ? Character.toCodePoint((char) codePoint,
+							(char) low) : '?';
+				}
+				appendCodePoint(Character.isSurrogate((char) codePoint) ? '?' : codePoint);
+				break;
+			default:
+				/* '"', '\\' and '/' stand for themselves */
+				appendCodePoint(c);
+			}
+		}
+	}
+
+	/**
+	 * @return A number or literal as it is written, or null for null.
+	 */
+	private String readLiteral() throws IOException {
+		scratchLength = 0;
+		for (;;) {
+			int start = position;
+			while (position < limit) {
+				byte b = buffer[position];
+				if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+					break;
+				}
+				position++;
+			}
+			append(buffer, start, position - start);
+			if (position < limit || !fill()) {
+				break;
+			}
+		}
+		if (scratchLength == 0) {
+			throw malformed("a value");
+		}
+		if (scratchLength == 4 && scratch[0] == 'n' && scratch[1] == 'u' && scratch[2] == 'l' && scratch[3] == 'l') {
+			return null;
+		}
+		return new String(scratch, 0, scratchLength, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return The JSON text of the object or array that starts at the current position.
+	 */
+	private byte[] captureValue() throws IOException {
+		capture = new ByteArrayOutputStream();
+		captureStart = position;
+		try {
+			skipValue();
+			capture.write(buffer, captureStart, position - captureStart);
+			return capture.toByteArray();
+		} finally {
+			captureStart = -1;
+			capture = null;
+		}
+	}
+
+	private int peekByte() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position];
+	}
+
+	private int readHex() throws IOException {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int digit = Character.digit(next(), 16);
+			if (digit < 0) {
+				throw malformed("a hex digit");
+			}
+			value = value << 4 | digit;
+		}
+		return value;
+	}
+
+	private void append(byte[] bytes, int offset, int length) {
+		if (scratchLength + length > scratch.length) {
+			scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, scratchLength + length));
+		}
+		System.arraycopy(bytes, offset, scratch, scratchLength, length);
+		scratchLength += length;
+	}
+
+	private void appendCodePoint(int codePoint) {
+		if (scratchLength + 4 > scratch.length) {
+			scratch = Arrays.copyOf(scratch, scratch.length * 2);
+		}
+		if (codePoint < 0x80) {
+			scratch[scratchLength++] = (byte) codePoint;
+		} else if (codePoint < 0x800) {
+			scratch[scratchLength++] = (byte) (0xC0 | codePoint >> 6);
+			scratch[scratchLength++] = (byte) (0x80 | codePoint & 0x3F);
+		} else if (codePoint < 0x10000) {
+			scratch[scratchLength++] = (byte) (0xE0 | codePoint >> 12);
+			scratch[scratchLength++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+			scratch[scratchLength++] = (byte) (0x80 | codePoint & 0x3F);
+		} else {
+			scratch[scratchLength++] = (byte) (0xF0 | codePoint >> 18);
+			scratch[scratchLength++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+			scratch[scratchLength++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+			scratch[scratchLength++] = (byte) (0x80 | codePoint & 0x3F);
+		}
+	}
+
+	private IOException malformed(String expected) {
+		return new IOException("The JSON document is malformed, expected " + expected + " at byte " + getBytesRead()
+				+ ".");
+	}
+
+}
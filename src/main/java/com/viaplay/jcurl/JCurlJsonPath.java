@@ -0,0 +1,170 @@
+package com.viaplay.jcurl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is a compiled JSON path expression for the JCurlJsonExtractor. Only the simple forms are supported: the
+ * root <code>$</code> followed by members <code>.name</code> or <code>['name']</code>, array elements
+ * <code>[0]</code> and the wildcards <code>.*</code> and <code>[*]</code>, e.g. <code>$.rows[*].id</code>. Filters,
+ * slices and recursive descent are not, since they would need more of the document than the path to the value.
+ * <p>
+ * Member names are kept as UTF-8 bytes, so they are compared with the bytes of the document without decoding them.
+ * Instances are immutable and may be shared between threads and extractors.
+ */
+public final class JCurlJsonPath {
+	static final int NAME = 0;
+	static final int INDEX = 1;
+	static final int ANY = 2;
+
+	private final String expression;
+	private final int[] kinds;
+	private final byte[][] names;
+	private final int[] indexes;
+	private final int definitePrefix;
+
+	private JCurlJsonPath(String expression, int[] kinds, byte[][] names, int[] indexes) {
+		this.expression = expression;
+		this.kinds = kinds;
+		this.names = names;
+		this.indexes = indexes;
+		int definite = 0;
+		while (definite < kinds.length && kinds[definite] != ANY) {
+			definite++;
+		}
+		this.definitePrefix = definite;
+	}
+
+	/**
+	 * This method compiles a path expression.
+	 *
+	 * @param expression
+	 *            The expression, e.g. "$.rows[*].id".
+	 * @return The compiled path.
+	 * @throws IllegalArgumentException
+	 *             If the expression is not one of the supported forms.
+	 */
+	public static JCurlJsonPath compile(String expression) {
+		if (expression == null || !expression.startsWith("$")) {
+			throw new IllegalArgumentException("The JSON path '" + expression + "' does not start with $.");
+		}
+		List<Integer> kinds = new ArrayList<Integer>();
+		List<byte[]> names = new ArrayList<byte[]>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		int i = 1;
+		while (i < expression.length()) {
+			char c = expression.charAt(i);
+			if (c == '.') {
+				int end = i + 1;
+				while (end < expression.length() && expression.charAt(end) != '.' && expression.charAt(end) != '[') {
+					end++;
+				}
+				String name = expression.substring(i + 1, end);
+				if (name.isEmpty()) {
+					throw new IllegalArgumentException("The JSON path '" + expression + "' has an empty member name at "
+							+ i + ".");
+				}
+				kinds.add(name.equals("*") ? ANY : NAME);
+				names.add(name.getBytes(StandardCharsets.UTF_8));
+				indexes.add(-1);
+				i = end;
+			} else if (c == '[') {
+				int end = expression.indexOf(']', i);
+				if (end < 0) {
+					throw new IllegalArgumentException("The JSON path '" + expression + "' has an unclosed [ at " + i
+							+ ".");
+				}
+				String selector = expression.substring(i + 1, end).trim();
+				if (selector.equals("*")) {
+					kinds.add(ANY);
+					names.add(null);
+					indexes.add(-1);
+				} else if (selector.length() >= 2 && (selector.charAt(0) == '\'' || selector.charAt(0) == '"')
+						&& selector.charAt(selector.length() - 1) == selector.charAt(0)) {
+					kinds.add(NAME);
+					names.add(selector.substring(1, selector.length() - 1).getBytes(StandardCharsets.UTF_8));
+					indexes.add(-1);
+				} else {
+					try {
+						int index = Integer.parseInt(selector);
+						if (index < 0) {
+							throw new NumberFormatException();
+						}
+						kinds.add(INDEX);
+						names.add(null);
+						indexes.add(index);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("The JSON path '" + expression + "' has an unsupported selector ["
+								+ selector + "].");
+					}
+				}
+				i = end + 1;
+			} else {
+				throw new IllegalArgumentException("The JSON path '" + expression + "' has an unexpected '" + c
+						+ "' at " + i + ".");
+			}
+		}
+		int[] kindArray = new int[kinds.size()];
+		int[] indexArray = new int[kinds.size()];
+		for (int s = 0; s < kindArray.length; s++) {
+			kindArray[s] = kinds.get(s);
+			indexArray[s] = indexes.get(s);
+		}
+		return new JCurlJsonPath(expression, kindArray, names.toArray(new byte[kindArray.length][]), indexArray);
+	}
+
+	/**
+	 * @return The number of steps after the root.
+	 */
+	int length() {
+		return kinds.length;
+	}
+
+	/**
+	 * @return The number of steps before the first wildcard. Once the value at the end of them has been read the path
+	 *         cannot match anything more, since a member name only appears once in an object.
+	 */
+	int getDefinitePrefix() {
+		return definitePrefix;
+	}
+
+	/**
+	 * @return true if step matches the member name in name[offset, offset + length).
+	 */
+	boolean matchesName(int step, byte[] name, int offset, int length) {
+		if (kinds[step] == ANY) {
+			return true;
+		}
+		byte[] expected = names[step];
+		return kinds[step] == NAME && expected.length == length
+				&& Arrays.equals(expected, 0, length, name, offset, offset + length);
+	}
+
+	/**
+	 * @return true if step matches the array element at index.
+	 */
+	boolean matchesIndex(int step, int index) {
+		return kinds[step] == ANY || (kinds[step] == INDEX && indexes[step] == index);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof JCurlJsonPath && expression.equals(((JCurlJsonPath) other).expression);
+	}
+
+	@Override
+	public int hashCode() {
+		return expression.hashCode();
+	}
+
+	/**
+	 * @return The expression the path was compiled from.
+	 */
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+}
@@ -0,0 +1,480 @@
+package com.viaplay.jcurl;
+
+import java.io.Closeable;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A load balancer spreads the requests to a replicated service over its endpoints from the client itself. The service
+ * gets a logical name that is used as the host of the request urls, and a JCurlClient with the load balancer sends
+ * each such request to one of the endpoints instead.
+ *
+ * <pre>
+ * JCurlLoadBalancer users = JCurlLoadBalancer.builder(&quot;users&quot;).endpoint(&quot;http://10.0.0.1:8080&quot;)
+ * 		.endpoint(&quot;http://10.0.0.2:8080/v2&quot;, 3).healthCheck(&quot;/health&quot;, 5000).build();
+ * JCurlClient client = JCurlClient.builder().loadBalancer(users).build();
+ * JCurlResponse response = client.get(&quot;http://users/lists?page=2&quot;);
+ * </pre>
+ *
+ * The <b>P2C_EWMA</b> strategy, the default, picks two endpoints at random in proportion to their weights and sends
+ * the request to the one with the lowest moving average of its response times multiplied by its outstanding requests.
+ * The <b>LEAST_OUTSTANDING</b> strategy picks the one of the two with the fewest outstanding requests. A weight of 0
+ * drains an endpoint, and weights may be changed while the balancer is in use to shift traffic gradually.
+ * <p>
+ * An endpoint that fails a number of requests in a row, with a connection failure, a time out or a 5xx response, is
+ * ejected for a while that grows with each ejection. When the time is up it gets requests again, and is ejected again
+ * at its next failure. An active health check reinstates an endpoint as soon as its health url answers with 2xx. If
+ * every endpoint is ejected the requests are spread over all of them rather than failed.
+ * </p>
+ */
+public final class JCurlLoadBalancer implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(JCurlLoadBalancer.class);
+	/* The weight of the latest response time in the moving average */
+	private static final double EWMA_ALPHA = 0.3;
+	private static final int MAX_EJECTION_FACTOR = 10;
+
+	/**
+	 * The strategy that chooses between the two endpoints that are picked for a request.
+	 */
+	public enum Strategy {
+		P2C_EWMA, LEAST_OUTSTANDING
+	}
+
+	private final String serviceName;
+	private final List<Endpoint> endpoints;
+	private final Strategy strategy;
+	private final int maxFailures;
+	private final long ejectMillis;
+	private final long decayNanos;
+	private final String healthPath;
+	private final ScheduledExecutorService healthChecker;
+	private final JCurlClient healthClient;
+
+	/**
+	 * One endpoint of the service and what the balancer knows about it.
+	 */
+	public static final class Endpoint {
+		private final String url;
+		private final URL base;
+		private volatile int weight;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final LongAdder requestCount = new LongAdder();
+		private final LongAdder failureCount = new LongAdder();
+		private double ewmaNanos = 0;
+		private long updatedNanos = 0;
+		private int consecutiveFailures = 0;
+		private int ejections = 0;
+		private long ejectedUntilNanos = 0;
+		private boolean ejected = false;
+
+		private Endpoint(String url, int weight) {
+			try {
+				this.base = URI.create(url.endsWith("/") ? url.substring(0, url.length() - 1) : url).toURL();
+			} catch (MalformedURLException | IllegalArgumentException e) {
+				throw new IllegalArgumentException("The endpoint '" + url + "' is not a valid url.", e);
+			}
+			if (base.getQuery() != null || base.getRef() != null) {
+				throw new IllegalArgumentException("The endpoint '" + url + "' may not have a query.");
+			}
+			this.url = base.toExternalForm();
+			this.weight = weight;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		/**
+		 * @return The number of requests that have been sent to the endpoint and not completed yet.
+		 */
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		public long getRequestCount() {
+			return requestCount.sum();
+		}
+
+		public long getFailureCount() {
+			return failureCount.sum();
+		}
+
+		/**
+		 * @return The moving average of the response times in milliseconds.
+		 */
+		public synchronized double getLatencyMillis() {
+			return ewmaNanos / 1000000.0;
+		}
+
+		/**
+		 * @return true if the endpoint is ejected and does not get requests while others are available.
+		 */
+		public synchronized boolean isEjected() {
+			return ejected && System.nanoTime() - ejectedUntilNanos < 0;
+		}
+
+		/**
+		 * This method rewrites a url of the service to this endpoint, the path of the url follows the path of the
+		 * endpoint. The deprecated URL constructor is used since it accepts anything the url of the service did,
+		 * e.g. the unencoded quotes of a CouchDB query, which URI rejects.
+		 */
+		@SuppressWarnings("deprecation")
+		URL resolve(URL serviceUrl) throws MalformedURLException {
+			return new URL(base.getProtocol(), base.getHost(), base.getPort(), base.getPath() + serviceUrl.getFile());
+		}
+
+		/**
+		 * This method returns the cost of sending a request to the endpoint, which is shared by its weight. The average
+		 * of an endpoint that has not answered for a while decays, so one slow response does not keep it out for good.
+		 */
+		private synchronized double cost(Strategy strategy, long decayNanos) {
+			int queued = outstanding.get();
+			int share = Math.max(weight, 1);
+			if (strategy == Strategy.LEAST_OUTSTANDING) {
+				return (double) queued / share;
+			}
+			double idle = Math.max(0, System.nanoTime() - updatedNanos);
+			return ewmaNanos * Math.exp(-idle / decayNanos) * (queued + 1) / share;
+		}
+
+		/**
+		 * This method records the outcome of a request.
+		 *
+		 * @return true if the endpoint was ejected by this failure.
+		 */
+		private synchronized boolean complete(long nanos, boolean failed, int maxFailures, long ejectMillis) {
+			if (failed) {
+				failureCount.increment();
+			}
+			/* A peak sensitive average, a slow response counts at once and a fast one gradually */
+			ewmaNanos = ewmaNanos == 0 || nanos > ewmaNanos ? nanos : ewmaNanos + (nanos - ewmaNanos) * EWMA_ALPHA;
+			updatedNanos = System.nanoTime();
+			if (!failed) {
+				consecutiveFailures = 0;
+				ejections = 0;
+				ejected = false;
+				return false;
+			}
+			if (++consecutiveFailures < maxFailures || isEjected()) {
+				return false;
+			}
+			ejections = Math.min(ejections + 1, MAX_EJECTION_FACTOR);
+			ejected = true;
+			ejectedUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ejectMillis * ejections);
+			return true;
+		}
+
+		private synchronized void reinstate() {
+			consecutiveFailures = 0;
+			ejected = false;
+		}
+
+		@Override
+		public String toString() {
+			return url + " (weight " + weight + ", " + outstanding.get() + " outstanding, "
+					+ String.format("%.1f", getLatencyMillis()) + " ms" + (isEjected() ? ", ejected)" : ")");
+		}
+	}
+
+	private JCurlLoadBalancer(Builder builder) {
+		this.serviceName = builder.serviceName;
+		this.endpoints = Collections.unmodifiableList(new ArrayList<Endpoint>(builder.endpoints));
+		this.strategy = builder.strategy;
+		this.maxFailures = builder.maxFailures;
+		this.ejectMillis = builder.ejectMillis;
+		this.decayNanos = TimeUnit.MILLISECONDS.toNanos(builder.decayMillis);
+		this.healthPath = builder.healthPath;
+		if (healthPath != null) {
+			healthClient = JCurlClient.builder().timeOutMillis(builder.healthTimeOutMillis).build();
+			healthChecker = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon()
+					.name("JCurlLoadBalancer-" + serviceName).factory());
+			healthChecker.scheduleWithFixedDelay(() -> checkHealth(), builder.healthIntervalMillis,
+					builder.healthIntervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			healthClient = null;
+			healthChecker = null;
+		}
+	}
+
+	/**
+	 * @param serviceName
+	 *            The logical name of the service, which is the host of the urls that are balanced.
+	 */
+	public static Builder builder(String serviceName) {
+		return new Builder(serviceName);
+	}
+
+	public String getServiceName() {
+		return serviceName;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * @return The endpoints with their weights and metrics.
+	 */
+	public List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * This method changes the weight of an endpoint, e.g. to shift traffic to a new version a step at a time.
+	 *
+	 * @param url
+	 *            The url of the endpoint as it was added.
+	 * @param weight
+	 *            The new weight, 0 drains the endpoint.
+	 * @throws IllegalArgumentException
+	 *             If the balancer has no such endpoint or the weight is negative.
+	 */
+	public void setWeight(String url, int weight) {
+		if (weight < 0) {
+			throw new IllegalArgumentException("A weight may not be negative.");
+		}
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.url.equals(url) || endpoint.url.equals(url + "/") || (endpoint.url + "/").equals(url)) {
+				endpoint.weight = weight;
+				return;
+			}
+		}
+		throw new IllegalArgumentException("The service " + serviceName + " has no endpoint '" + url + "'.");
+	}
+
+	/**
+	 * This method stops the active health checks.
+	 */
+	@Override
+	public void close() {
+		if (healthChecker != null) {
+			healthChecker.shutdownNow();
+			healthClient.close();
+		}
+	}
+
+	/**
+	 * This method chooses the endpoint of a request by picking two endpoints in proportion to their weights and taking
+	 * the cheaper one.
+	 */
+	Endpoint choose() {
+		List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints.size());
+		long totalWeight = 0;
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.weight > 0 && !endpoint.isEjected()) {
+				candidates.add(endpoint);
+				totalWeight += endpoint.weight;
+			}
+		}
+		if (candidates.isEmpty()) {
+			/* Every endpoint is ejected or drained, trying one beats failing every request */
+			for (Endpoint endpoint : endpoints) {
+				if (endpoint.weight > 0) {
+					candidates.add(endpoint);
+					totalWeight += endpoint.weight;
+				}
+			}
+			if (candidates.isEmpty()) {
+				candidates.addAll(endpoints);
+				totalWeight = 0;
+			}
+		}
+		if (candidates.size() == 1) {
+			return candidates.get(0);
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Endpoint first = pick(candidates, totalWeight, null, random);
+		Endpoint second = pick(candidates, totalWeight - first.weight, first, random);
+		return second.cost(strategy, decayNanos) < first.cost(strategy, decayNanos) ? second : first;
+	}
+
+	/**
+	 * This method sends a request to an endpoint.
+	 */
+	void started(Endpoint endpoint) {
+		endpoint.outstanding.incrementAndGet();
+		endpoint.requestCount.increment();
+	}
+
+	/**
+	 * This method records the response of a request to an endpoint.
+	 */
+	void completed(Endpoint endpoint, long nanos, int responseCode) {
+		endpoint.outstanding.decrementAndGet();
+		boolean failed = responseCode < 0 || responseCode == 408 || responseCode >= 500;
+		if (endpoint.complete(nanos, failed, maxFailures, ejectMillis)) {
+			log.warn("The endpoint {} of {} is ejected after {} failures in a row.", endpoint.url, serviceName,
+					maxFailures);
+		}
+	}
+
+	/**
+	 * This method checks the health url of every endpoint once. A healthy endpoint is reinstated, an unhealthy one is
+	 * counted as failed.
+	 */
+	void checkHealth() {
+		for (Endpoint endpoint : endpoints) {
+			long start = System.nanoTime();
+			int responseCode = healthClient.get(endpoint.url + healthPath).getResponseCode();
+			if (responseCode >= 200 && responseCode < 300) {
+				if (endpoint.isEjected()) {
+					log.info("The endpoint {} of {} is healthy again.", endpoint.url, serviceName);
+				}
+				endpoint.reinstate();
+			} else if (endpoint.complete(System.nanoTime() - start, true, maxFailures, ejectMillis)) {
+				log.warn("The endpoint {} of {} is ejected after failing its health check with {}.", endpoint.url,
+						serviceName, responseCode);
+			}
+		}
+	}
+
+	/* Helper methods below this line */
+
+	private static Endpoint pick(List<Endpoint> candidates, long totalWeight, Endpoint excluded,
+			ThreadLocalRandom random) {
+		if (totalWeight <= 0) {
+			Endpoint endpoint;
+			do {
+				endpoint = candidates.get(random.nextInt(candidates.size()));
+			} while (endpoint == excluded);
+			return endpoint;
+		}
+		long point = random.nextLong(totalWeight);
+		for (Endpoint endpoint : candidates) {
+			if (endpoint == excluded) {
+				continue;
+			}
+			point -= endpoint.weight;
+			if (point < 0) {
+				return endpoint;
+			}
+		}
+		return candidates.get(candidates.size() - 1);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " " + serviceName + " " + strategy + " " + endpoints;
+	}
+
+	/**
+	 * A builder of a load balancer, which needs at least one endpoint.
+	 */
+	public static final class Builder {
+		private final String serviceName;
+		private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		private Strategy strategy = Strategy.P2C_EWMA;
+		private int maxFailures = 5;
+		private long ejectMillis = 30000;
+		private long decayMillis = 10000;
+		private String healthPath = null;
+		private long healthIntervalMillis = 10000;
+		private int healthTimeOutMillis = 2000;
+
+		private Builder(String serviceName) {
+			if (serviceName == null || serviceName.isEmpty()) {
+				throw new IllegalArgumentException("A service needs a name.");
+			}
+			this.serviceName = serviceName.toLowerCase();
+		}
+
+		/**
+		 * This method adds an endpoint with the weight 1.
+		 *
+		 * @param url
+		 *            The base url of the endpoint, e.g. http://10.0.0.1:8080 or http://10.0.0.1:8080/v2.
+		 */
+		public Builder endpoint(String url) {
+			return endpoint(url, 1);
+		}
+
+		public Builder endpoint(String url, int weight) {
+			if (weight < 0) {
+				throw new IllegalArgumentException("A weight may not be negative.");
+			}
+			endpoints.add(new Endpoint(url, weight));
+			return this;
+		}
+
+		public Builder strategy(Strategy strategy) {
+			this.strategy = strategy;
+			return this;
+		}
+
+		/**
+		 * @param maxFailures
+		 *            The number of failures in a row that ejects an endpoint.
+		 * @param ejectMillis
+		 *            The time an endpoint is ejected the first time, which grows with each ejection in a row.
+		 */
+		public Builder ejection(int maxFailures, long ejectMillis) {
+			if (maxFailures < 1) {
+				throw new IllegalArgumentException("An endpoint is ejected after at least one failure.");
+			}
+			this.maxFailures = maxFailures;
+			this.ejectMillis = ejectMillis;
+			return this;
+		}
+
+		/**
+		 * @param decayMillis
+		 *            The time it takes the response time average of an endpoint without responses to decay to a third,
+		 *            which is how soon P2C_EWMA tries a slow endpoint again.
+		 */
+		public Builder decayMillis(long decayMillis) {
+			if (decayMillis <= 0) {
+				throw new IllegalArgumentException("The decay time must be positive.");
+			}
+			this.decayMillis = decayMillis;
+			return this;
+		}
+
+		/**
+		 * This method turns on active health checks of every endpoint.
+		 *
+		 * @param path
+		 *            The path of the health url relative to the endpoint url, e.g. /health.
+		 * @param intervalMillis
+		 *            The time between the checks.
+		 */
+		public Builder healthCheck(String path, long intervalMillis) {
+			this.healthPath = path.startsWith("/") ? path : "/" + path;
+			this.healthIntervalMillis = intervalMillis;
+			return this;
+		}
+
+		/**
+		 * @param healthTimeOutMillis
+		 *            The time out of a health check request.
+		 */
+		public Builder healthTimeOutMillis(int healthTimeOutMillis) {
+			this.healthTimeOutMillis = healthTimeOutMillis;
+			return this;
+		}
+
+		public JCurlLoadBalancer build() {
+			if (endpoints.isEmpty()) {
+				throw new IllegalArgumentException("The service " + serviceName + " has no endpoints.");
+			}
+			return new JCurlLoadBalancer(this);
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+package com.viaplay.jcurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A multipart body sends form fields and files as multipart/form-data, so a file is uploaded as its own bytes instead
+ * of base64 inside a JSON payload. The parts are streamed from their sources when the body is written, nothing but
+ * the pre-encoded part headers is held in memory.
+ *
+ * <pre>
+ * JCurlRequest request = new JCurlRequest(&quot;http://some.url/images&quot;);
+ * request.setBody(JCurlMultipartBody.builder().field(&quot;title&quot;, &quot;Poster&quot;)
+ * 		.file(&quot;image&quot;, &quot;poster.jpg&quot;, &quot;image/jpeg&quot;, Paths.get(&quot;poster.jpg&quot;)).build());
+ * JCurl.post(request);
+ * </pre>
+ *
+ * The Content-Length is the sum of the part headers and the sizes of the sources, which for a file is read from the
+ * file system. A body with an InputStream part of unknown length is sent chunked. A body may be sent any number of
+ * times unless it has an InputStream part, which can only be read once.
+ */
+public final class JCurlMultipartBody implements JCurlRequestBody {
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String boundary;
+	private final List<Part> parts;
+	private final byte[] closing;
+	private final long contentLength;
+
+	/**
+	 * One part with its pre-encoded headers and the source of its content.
+	 */
+	private static final class Part {
+		private final byte[] headers;
+		private final byte[] bytes;
+		private final Path path;
+		private final InputStream inputStream;
+		private final long length;
+		private boolean consumed = false;
+
+		private Part(byte[] headers, byte[] bytes, Path path, InputStream inputStream, long length) {
+			this.headers = headers;
+			this.bytes = bytes;
+			this.path = path;
+			this.inputStream = inputStream;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A builder collects the parts in the order they are sent.
+	 */
+	public static final class Builder {
+		private final String boundary;
+		private final List<Part> parts = new ArrayList<Part>();
+
+		private Builder(String boundary) {
+			this.boundary = boundary;
+		}
+
+		/**
+		 * This method adds a text field, which is sent in UTF-8.
+		 */
+		public Builder field(String name, String value) {
+			return add(name, null, null, value.getBytes(StandardCharsets.UTF_8), null, null, -1);
+		}
+
+		/**
+		 * This method adds a file part from a byte array.
+		 */
+		public Builder file(String name, String filename, String contentType, byte[] bytes) {
+			return add(name, filename, contentType, bytes, null, null, -1);
+		}
+
+		/**
+		 * This method adds a file part that is read from the file system when the body is written. The length of the
+		 * part is the size of the file when it is added.
+		 *
+		 * @throws IllegalArgumentException
+		 *             If the file cannot be read.
+		 */
+		public Builder file(String name, String filename, String contentType, Path path) {
+			long length;
+			try {
+				length = Files.size(path);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("The size of " + path + " cannot be read.", e);
+			}
+			return add(name, filename, contentType, null, path, null, length);
+		}
+
+		/**
+		 * This method adds a file part that is read from a stream when the body is written. The stream is closed when
+		 * it has been sent.
+		 *
+		 * @param length
+		 *            The number of bytes to send from the stream, or -1 to send it to its end and the body chunked.
+		 */
+		public Builder file(String name, String filename, String contentType, InputStream inputStream, long length) {
+			return add(name, filename, contentType, null, null, inputStream, length);
+		}
+
+		public JCurlMultipartBody build() {
+			return new JCurlMultipartBody(boundary, new ArrayList<Part>(parts));
+		}
+
+		private Builder add(String name, String filename, String contentType, byte[] bytes, Path path,
+				InputStream inputStream, long length) {
+			if (name == null) {
+				throw new IllegalArgumentException("A part needs a name.");
+			}
+			StringBuilder headers = new StringBuilder();
+			headers.append(parts.isEmpty() ? "--" : "\r\n--").append(boundary).append("\r\n");
+			headers.append("Content-Disposition: form-data; name=\"").append(quote(name)).append('"');
+			if (filename != null) {
+				headers.append("; filename=\"").append(quote(filename)).append('"');
+			}
+			headers.append("\r\n");
+			if (contentType != null) {
+				headers.append("Content-Type: ").append(contentType).append("\r\n");
+			}
+			headers.append("\r\n");
+			parts.add(new Part(headers.toString().getBytes(StandardCharsets.UTF_8), bytes, path, inputStream,
+					bytes != null ? bytes.length : length));
+			return this;
+		}
+	}
+
+	private JCurlMultipartBody(String boundary, List<Part> parts) {
+		this.boundary = boundary;
+		this.parts = parts;
+		this.closing = ((parts.isEmpty() ? "--" : "\r\n--") + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		long length = closing.length;
+		for (Part part : parts) {
+			if (part.length < 0) {
+				length = -1;
+				break;
+			}
+			length += part.headers.length + part.length;
+		}
+		this.contentLength = length;
+	}
+
+	/**
+	 * @return A builder with a random boundary.
+	 */
+	public static Builder builder() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return new Builder("JCurlBoundary" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+	}
+
+	/**
+	 * @param boundary
+	 *            The boundary between the parts, which must not occur in any of them.
+	 * @return A builder with the given boundary.
+	 */
+	public static Builder builder(String boundary) {
+		if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+			throw new IllegalArgumentException("A boundary is 1 to 70 characters long.");
+		}
+		return new Builder(boundary);
+	}
+
+	public String getBoundary() {
+		return boundary;
+	}
+
+	@Override
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	@Override
+	public String getContentType() {
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	@Override
+	public void writeTo(OutputStream outputStream, JCurlBufferPool bufferPool) throws IOException {
+		byte[] buffer = null;
+		try {
+			for (Part part : parts) {
+				outputStream.write(part.headers);
+				if (part.bytes != null) {
+					outputStream.write(part.bytes);
+					continue;
+				}
+				if (buffer == null) {
+					buffer = bufferPool.acquireBytes(BUFFER_SIZE);
+				}
+				if (part.path != null) {
+					writeFile(part, outputStream, buffer);
+				} else {
+					writeStream(part, outputStream, buffer);
+				}
+			}
+			outputStream.write(closing);
+		} finally {
+			if (buffer != null) {
+				bufferPool.release(buffer);
+			}
+		}
+	}
+
+	/* Helper methods below this line */
+
+	/**
+	 * This method reads a file with a FileChannel straight into the pooled array it is written from.
+	 */
+	private static void writeFile(Part part, OutputStream outputStream, byte[] buffer) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, BUFFER_SIZE);
+		long remaining = part.length;
+		try (FileChannel channel = FileChannel.open(part.path, StandardOpenOption.READ)) {
+			while (remaining > 0) {
+				byteBuffer.clear().limit((int) Math.min(BUFFER_SIZE, remaining));
+				int read = channel.read(byteBuffer);
+				if (read < 0) {
+					throw new IOException("The file " + part.path + " is " + remaining + " bytes shorter than when it "
+							+ "was added.");
+				}
+				outputStream.write(buffer, 0, read);
+				remaining -= read;
+			}
+		}
+	}
+
+	private static void writeStream(Part part, OutputStream outputStream, byte[] buffer) throws IOException {
+		synchronized (part) {
+			if (part.consumed) {
+				throw new IllegalStateException("The stream of a part can only be sent once.");
+			}
+			part.consumed = true;
+		}
+		long remaining = part.length < 0 ? Long.MAX_VALUE : part.length;
+		try (InputStream inputStream = part.inputStream) {
+			while (remaining > 0) {
+				int read = inputStream.read(buffer, 0, (int) Math.min(BUFFER_SIZE, remaining));
+				if (read < 0) {
+					if (part.length >= 0) {
+						throw new IOException("The stream ended " + remaining + " bytes before the length of its part.");
+					}
+					return;
+				}
+				outputStream.write(buffer, 0, read);
+				remaining -= read;
+			}
+		}
+	}
+
+	/**
+	 * This method escapes a name or filename for a quoted string the way browsers do.
+	 */
+	private static String quote(String value) {
+		return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+	}
+
+	@Override
+	public String toString() {
+		return getContentType() + " with " + parts.size() + " parts";
+	}
+
+}
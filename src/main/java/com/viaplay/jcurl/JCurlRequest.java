@@ -2,6 +2,7 @@ package com.viaplay.jcurl;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -24,10 +25,18 @@ public class JCurlRequest {
 	private String method = "GET";
 	private int timeOutMillis = 30000;
 	private Map<String, String> properties = null;
+	private Map<String, String> sharedProperties = null;
+	/* The headers of one call of a JCurlApi method, sent after the shared properties, a null value is not sent */
+	private String[] callHeaderNames = null;
+	private String[] callHeaderValues = null;
+	/* The Cookie header of the cookie manager while the properties are shared, sent after the headers of a call */
+	private String cookieHeader = null;
 	private String payload = null;
+	private JCurlRequestBody body = null;
 	private String charsetName = "UTF8";
 	private boolean exceptionsToBeThrown = false;
 	private JCurlCookieManager jCurlCookieManager = null;
+	private JCurlBodyHandler bodyHandler = null;
 
 	/**
 	 * This constructor instantiates the object with an URL and urlAsString
@@ -66,12 +75,39 @@ public class JCurlRequest {
 		setCookieManager(jCurlCookieManager);
 	}
 	
+	/**
+	 * This constructor is used by JCurlRequestTemplate. The request shares the url and the properties of the template
+	 * until the properties are changed, see getProperties().
+	 */
+	JCurlRequest(URL url, String urlAsString, Map<String, String> sharedProperties) {
+		this.url = url;
+		this.urlAsString = urlAsString;
+		this.sharedProperties = sharedProperties;
+	}
+
+	/**
+	 * This constructor is used by JCurlApi, which adds the headers of a call without a map of their own.
+	 */
+	JCurlRequest(URL url, String urlAsString, Map<String, String> sharedProperties, String[] callHeaderNames,
+			String[] callHeaderValues) {
+		this(url, urlAsString, sharedProperties);
+		this.callHeaderNames = callHeaderNames;
+		this.callHeaderValues = callHeaderValues;
+	}
+
 	public void setCookieManager(JCurlCookieManager jCurlCookieManager) {
 		if (jCurlCookieManager != null) {
 			this.jCurlCookieManager = jCurlCookieManager;
 		}
 	}
 	
+	/**
+	 * @return The cookie manager of this request or null if it has none.
+	 */
+	public JCurlCookieManager getCookieManager() {
+		return jCurlCookieManager;
+	}
+
 	/**
 	 * This method fetches appropriate cookies from the cookie manager and stores them as properties.
 	 */
@@ -93,11 +129,74 @@ public class JCurlRequest {
 	 */
 	public Map<String, String> getProperties() {
 		if (properties == null) {
-			properties = new HashMap<String, String>();
+			/* A request from a template copies the properties it shares with it the first time they are asked for */
+			properties = sharedProperties == null ? new HashMap<String, String>() : new HashMap<String, String>(
+					sharedProperties);
+			sharedProperties = null;
+			for (int i = 0; callHeaderNames != null && i < callHeaderNames.length; i++) {
+				if (callHeaderValues[i] != null) {
+					properties.put(callHeaderNames[i], callHeaderValues[i]);
+				}
+			}
+			callHeaderNames = null;
+			callHeaderValues = null;
+			if (cookieHeader != null) {
+				properties.put("Cookie", cookieHeader);
+				cookieHeader = null;
+			}
 		}
 		return properties;
 	}
 
+	/**
+	 * This method returns the properties to send without copying the properties shared with a template. The headers
+	 * of a call, see getCallHeaderNames(), are sent after them.
+	 */
+	Map<String, String> readProperties() {
+		if (properties != null) {
+			return properties;
+		}
+		return sharedProperties != null ? sharedProperties : Collections.<String, String> emptyMap();
+	}
+
+	/**
+	 * @return The names of the headers of a call that are not in readProperties(), or null. The array must not be
+	 *         modified.
+	 */
+	String[] getCallHeaderNames() {
+		return callHeaderNames;
+	}
+
+	/**
+	 * @return The values of the headers of a call in the order of getCallHeaderNames(), null for a header that is not
+	 *         sent.
+	 */
+	String[] getCallHeaderValues() {
+		return callHeaderValues;
+	}
+
+	/**
+	 * @return The Cookie header that is not in readProperties(), or null.
+	 */
+	String getCookieHeader() {
+		return cookieHeader;
+	}
+
+	/**
+	 * This method stores the Cookie header of the cookie manager without copying the properties shared with a
+	 * template.
+	 * 
+	 * @param cookies
+	 *            The header, or null if no cookie matches the request.
+	 */
+	void setCookieHeader(String cookies) {
+		if (properties == null) {
+			cookieHeader = cookies;
+		} else if (cookies != null) {
+			properties.put("Cookie", cookies);
+		}
+	}
+
 	/**
 	 * This method returns the URL if it is already set or constructs one from the urlAsString field.
 	 * 
@@ -200,6 +299,26 @@ public class JCurlRequest {
 		this.payload = payload;
 	}
 
+	/**
+	 * This method returns the body that is sent instead of the pay-load, if any.
+	 * 
+	 * @return The body or null if the pay-load is sent.
+	 */
+	public JCurlRequestBody getBody() {
+		return body;
+	}
+
+	/**
+	 * This method sets a body that writes itself to the connection instead of JCurl encoding the pay-load, e.g. a
+	 * body of a JCurlBodyTemplate. A body takes precedence over the pay-load.
+	 * 
+	 * @param body
+	 *            The body or null to send the pay-load.
+	 */
+	public void setBody(JCurlRequestBody body) {
+		this.body = body;
+	}
+
 	/**
 	 * This method returns the current char-set name for this request. Default if UTF-8. The char-set name is used to
 	 * convert the received pay-load.
@@ -243,4 +362,24 @@ public class JCurlRequest {
 		this.exceptionsToBeThrown = exceptionsToBeThrown;
 	}
 
+	/**
+	 * This getter method returns the handler that reads the body of the response, if any.
+	 * 
+	 * @return The body handler or null if the body is read into the response string.
+	 */
+	public JCurlBodyHandler getBodyHandler() {
+		return bodyHandler;
+	}
+
+	/**
+	 * This setter method sets a handler that reads the body of a successful response straight from the connection
+	 * instead of JCurl reading it into the response string, e.g. a JCurlJsonExtractor.
+	 * 
+	 * @param bodyHandler
+	 *            The body handler or null to read the body into the response string.
+	 */
+	public void setBodyHandler(JCurlBodyHandler bodyHandler) {
+		this.bodyHandler = bodyHandler;
+	}
+
 }
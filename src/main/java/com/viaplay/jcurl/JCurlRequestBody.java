@@ -0,0 +1,36 @@
+package com.viaplay.jcurl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request body writes the body of a request straight to the connection instead of JCurl encoding the payload
+ * string. It is set with JCurlRequest.setBody() and is meant for bodies that are sent often, are large or are produced
+ * as they are sent. A body with a known length is streamed with that exact Content-Length, one without is sent
+ * chunked.
+ */
+public interface JCurlRequestBody {
+
+	/**
+	 * @return The exact number of bytes writeTo() writes, or -1 if it is not known in advance.
+	 */
+	long getContentLength();
+
+	/**
+	 * @return The Content-Type of the body, or null to keep the Content-Type of the request properties.
+	 */
+	String getContentType();
+
+	/**
+	 * This method writes the body. It is called once per request that the body is sent with.
+	 *
+	 * @param outputStream
+	 *            The stream to the host, which JCurl flushes and closes afterwards.
+	 * @param bufferPool
+	 *            The pool to take any buffers from.
+	 * @throws IOException
+	 *             If the stream fails, in which case JCurl treats it like any other failure to send the request.
+	 */
+	void writeTo(OutputStream outputStream, JCurlBufferPool bufferPool) throws IOException;
+
+}
@@ -0,0 +1,387 @@
+package com.viaplay.jcurl;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A request template is an immutable description of a request that is sent many times, e.g. to one endpoint of a REST
+ * API, from which a JCurlRequest is created for each call. The work that does not change between the calls is done
+ * once when the template is built: the url is parsed and split around its <code>${name}</code> placeholders, the
+ * headers are collected in a map that all requests share and the Authorization header is encoded. Creating a request
+ * is then a concatenation of the url and a few field assignments.
+ *
+ * <pre>
+ * JCurlRequestTemplate template = JCurlRequestTemplate.builder(&quot;https://api.viaplay.se/users/${id}/lists?page=${page}&quot;)
+ * 		.header(&quot;Accept&quot;, &quot;application/json&quot;).bearerToken(token).build();
+ * JCurlResponse response = JCurl.execute(template.newRequest(&quot;id&quot;, userId, &quot;page&quot;, &quot;2&quot;));
+ * </pre>
+ *
+ * Placeholders may be used in the path and the query, not in the scheme or the host. A value is percent encoded as a
+ * path segment or a query value depending on where its placeholder is, so a value cannot change the structure of the
+ * url. A template may be shared by any number of threads, the requests it creates belong to the thread that created
+ * them.
+ */
+public final class JCurlRequestTemplate {
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	/* The ASCII characters that are kept as they are in a path segment and in a query value */
+	private static final boolean[] PATH_SAFE = safe("-._~!$&'()*+,;=:@");
+	private static final boolean[] QUERY_SAFE = safe("-._~!$'()*,;:@/?");
+
+	private final String url;
+	private final String method;
+	private final URL staticUrl;
+	/* The scheme, host and port of the url without the user info */
+	private final String origin;
+	private final String prefix;
+	private final String[] literals;
+	private final String[] variables;
+	private final boolean[] inQuery;
+	private final Map<String, String> properties;
+	private final int timeOutMillis;
+	private final String charsetName;
+	private final boolean exceptionsToBeThrown;
+	private final JCurlCookieManager cookieManager;
+
+	private JCurlRequestTemplate(Builder builder) {
+		this.url = builder.url;
+		this.method = builder.method;
+		this.timeOutMillis = builder.timeOutMillis;
+		this.charsetName = builder.charsetName;
+		this.exceptionsToBeThrown = builder.exceptionsToBeThrown;
+		this.cookieManager = builder.cookieManager;
+
+		int schemeEnd = url.indexOf("://");
+		int authorityEnd = schemeEnd < 0 ? -1 : indexOfAny(url, "/?#", schemeEnd + 3);
+		if (authorityEnd < 0) {
+			authorityEnd = url.length();
+		}
+		if (schemeEnd < 0 || url.substring(0, authorityEnd).contains("${")) {
+			throw new IllegalArgumentException("The url '" + url
+					+ "' must be absolute and may only have placeholders in the path and query.");
+		}
+		this.prefix = url.substring(0, authorityEnd);
+
+		List<String> literals = new ArrayList<String>();
+		List<String> variables = new ArrayList<String>();
+		List<Boolean> inQuery = new ArrayList<Boolean>();
+		int queryStart = url.indexOf('?', authorityEnd);
+		int position = authorityEnd;
+		int start;
+		StringBuilder sample = new StringBuilder(prefix);
+		while ((start = url.indexOf("${", position)) >= 0) {
+			int end = url.indexOf('}', start + 2);
+			if (end < 0) {
+				throw new IllegalArgumentException("The placeholder at " + start + " of '" + url + "' is not closed.");
+			}
+			literals.add(url.substring(position, start));
+			variables.add(url.substring(start + 2, end));
+			inQuery.add(queryStart >= 0 && start > queryStart);
+			sample.append(url, position, start).append('x');
+			position = end + 1;
+		}
+		literals.add(url.substring(position));
+		sample.append(url, position, url.length());
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.variables = variables.toArray(new String[variables.size()]);
+		this.inQuery = new boolean[inQuery.size()];
+		for (int i = 0; i < this.inQuery.length; i++) {
+			this.inQuery[i] = inQuery.get(i);
+		}
+
+		URL parsed;
+		try {
+			parsed = new URI(sample.toString()).toURL();
+		} catch (URISyntaxException | MalformedURLException | IllegalArgumentException e) {
+			throw new IllegalArgumentException("The url '" + url + "' is malformed.", e);
+		}
+		this.staticUrl = this.variables.length == 0 ? parsed : null;
+		this.origin = parsed.getProtocol() + "://" + parsed.getHost()
+				+ (parsed.getPort() >= 0 ? ":" + parsed.getPort() : "");
+
+		Map<String, String> properties = new HashMap<String, String>(builder.properties);
+		if (!properties.containsKey("Authorization") && parsed.getUserInfo() != null) {
+			/* Like JCurl would for every request */
+			properties.put("Authorization", "Basic " + new String(new Base64().encode(parsed.getUserInfo().getBytes())));
+		}
+		this.properties = Collections.unmodifiableMap(properties);
+	}
+
+	/**
+	 * This method starts building a template.
+	 *
+	 * @param url
+	 *            The absolute url, with <code>${name}</code> placeholders in the path and query if needed.
+	 */
+	public static Builder builder(String url) {
+		return new Builder(url);
+	}
+
+	/**
+	 * @return A builder with the settings of this template, to build a template that differs in some of them.
+	 */
+	public Builder toBuilder() {
+		Builder builder = new Builder(url);
+		builder.method = method;
+		builder.properties.clear();
+		builder.properties.putAll(properties);
+		builder.timeOutMillis = timeOutMillis;
+		builder.charsetName = charsetName;
+		builder.exceptionsToBeThrown = exceptionsToBeThrown;
+		builder.cookieManager = cookieManager;
+		return builder;
+	}
+
+	/**
+	 * This method creates a request from a template without placeholders.
+	 */
+	public JCurlRequest newRequest() {
+		return newRequest(Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * This method creates a request with the placeholders replaced by values given as names and values after each
+	 * other, e.g. newRequest("id", "42", "page", "2").
+	 */
+	public JCurlRequest newRequest(String... namesAndValues) {
+		if (namesAndValues.length % 2 != 0) {
+			throw new IllegalArgumentException("The names and values must come in pairs.");
+		}
+		Map<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			values.put(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return newRequest(values);
+	}
+
+	/**
+	 * This method creates a request with the placeholders replaced by the values of the map.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If a placeholder has no value.
+	 */
+	public JCurlRequest newRequest(Map<String, String> values) {
+		String[] ordered = new String[variables.length];
+		for (int i = 0; i < variables.length; i++) {
+			ordered[i] = values.get(variables[i]);
+		}
+		return render(ordered);
+	}
+
+	/**
+	 * This method creates a request with the placeholders replaced by values in the order of getVariables().
+	 *
+	 * @throws IllegalArgumentException
+	 *             If a placeholder has no value.
+	 */
+	JCurlRequest render(String[] values) {
+		return render(values, null, null);
+	}
+
+	/**
+	 * This method creates a request like render(String[]) that also sends the headers of one call, which are not
+	 * copied into a map of the request. A header with a null value is not sent.
+	 */
+	JCurlRequest render(String[] values, String[] headerNames, String[] headerValues) {
+		JCurlRequest request;
+		if (staticUrl != null) {
+			request = new JCurlRequest(staticUrl, url, properties, headerNames, headerValues);
+		} else {
+			StringBuilder file = new StringBuilder(url.length() - prefix.length() + 32);
+			for (int i = 0; i < variables.length; i++) {
+				file.append(literals[i]);
+				if (values[i] == null) {
+					throw new IllegalArgumentException("The placeholder ${" + variables[i] + "} of '" + url
+							+ "' has no value.");
+				}
+				encode(file, values[i], inQuery[i] ? QUERY_SAFE : PATH_SAFE);
+			}
+			file.append(literals[variables.length]);
+			try {
+				request = new JCurlRequest(new URI(origin + file).toURL(), prefix + file, properties, headerNames,
+						headerValues);
+			} catch (URISyntaxException | MalformedURLException e) {
+				/* The literals were accepted when the template was built and the values are encoded */
+				throw new IllegalStateException(e);
+			}
+		}
+		request.setMethod(method);
+		request.setTimeOutMillis(timeOutMillis);
+		request.setCharsetName(charsetName);
+		request.setExceptionsToBeThrown(exceptionsToBeThrown);
+		request.setCookieManager(cookieManager);
+		return request;
+	}
+
+	/**
+	 * @return The names of the placeholders in the order they appear in the url, which may repeat a name. The array
+	 *         must not be modified.
+	 */
+	String[] getVariables() {
+		return variables;
+	}
+
+	/**
+	 * @return The url with its placeholders.
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return The headers that every request gets, the encoded Authorization included.
+	 */
+	public Map<String, String> getProperties() {
+		return properties;
+	}
+
+	@Override
+	public String toString() {
+		return method + " " + url;
+	}
+
+	/* Helper methods below this line */
+
+	private static boolean[] safe(String characters) {
+		boolean[] safe = new boolean[128];
+		for (char c = '0'; c <= '9'; c++) {
+			safe[c] = true;
+		}
+		for (char c = 'A'; c <= 'Z'; c++) {
+			safe[c] = true;
+			safe[c + 32] = true;
+		}
+		for (char c : characters.toCharArray()) {
+			safe[c] = true;
+		}
+		return safe;
+	}
+
+	private static void encode(StringBuilder builder, String value, boolean[] safe) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 128 && safe[c]) {
+				builder.append(c);
+			} else {
+				int end = i + 1;
+				while (end < value.length() && (value.charAt(end) >= 128 || !safe[value.charAt(end)])) {
+					end++;
+				}
+				for (byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+					builder.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+				}
+				i = end - 1;
+			}
+		}
+	}
+
+	private static int indexOfAny(String string, String characters, int from) {
+		for (int i = from; i < string.length(); i++) {
+			if (characters.indexOf(string.charAt(i)) >= 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The builder of a JCurlRequestTemplate. The defaults are those of a new JCurlRequest.
+	 */
+	public static final class Builder {
+		private final String url;
+		private String method = JCurlRequest.GET;
+		private final Map<String, String> properties = new LinkedHashMap<String, String>();
+		private int timeOutMillis = 30000;
+		private String charsetName = "UTF8";
+		private boolean exceptionsToBeThrown = false;
+		private JCurlCookieManager cookieManager = null;
+
+		private Builder(String url) {
+			if (url == null) {
+				throw new IllegalArgumentException("The url of a request template may not be null.");
+			}
+			this.url = url;
+			properties.put("Content-Type", "application/json; charset=utf-8");
+		}
+
+		/**
+		 * @param method
+		 *            One of the methods of JCurlRequest, e.g. JCurlRequest.POST.
+		 */
+		public Builder method(String method) {
+			this.method = method;
+			return this;
+		}
+
+		/**
+		 * This method adds a header that every request gets, or removes it if the value is null.
+		 */
+		public Builder header(String name, String value) {
+			if (value == null) {
+				properties.remove(name);
+			} else {
+				properties.put(name, value);
+			}
+			return this;
+		}
+
+		/**
+		 * This method encodes a Basic Authorization header once for all requests.
+		 */
+		public Builder basicAuth(String user, String password) {
+			return header("Authorization",
+					"Basic " + new String(new Base64().encode((user + ":" + password).getBytes(StandardCharsets.UTF_8))));
+		}
+
+		public Builder bearerToken(String token) {
+			return header("Authorization", "Bearer " + token);
+		}
+
+		public Builder timeOutMillis(int timeOutMillis) {
+			this.timeOutMillis = timeOutMillis;
+			return this;
+		}
+
+		public Builder charsetName(String charsetName) {
+			this.charsetName = charsetName;
+			return this;
+		}
+
+		public Builder exceptionsToBeThrown(boolean exceptionsToBeThrown) {
+			this.exceptionsToBeThrown = exceptionsToBeThrown;
+			return this;
+		}
+
+		/**
+		 * @param cookieManager
+		 *            The cookie manager of all requests, which must be shared by the threads that use the template.
+		 */
+		public Builder cookieManager(JCurlCookieManager cookieManager) {
+			this.cookieManager = cookieManager;
+			return this;
+		}
+
+		/**
+		 * @throws IllegalArgumentException
+		 *             If the url is malformed or has placeholders outside the path and query.
+		 */
+		public JCurlRequestTemplate build() {
+			return new JCurlRequestTemplate(this);
+		}
+	}
+
+}
@@ -3,6 +3,7 @@ package com.viaplay.jcurl;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URLConnection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -20,7 +21,8 @@ public class JCurlResponse {
 	private StringBuffer responseString = null;
 	private int responseCode = -9999;
 	private String responseMessage = null;
-	private Map<String, List<String>> headerFields = null;
+	private JCurlHeaders headers = null;
+	private JCurlBody body = null;
 	private JCurlRequest requestObject = null;
 	private JCurlCookieManager jCurlCookieManager = null;
 
@@ -41,7 +43,7 @@ public class JCurlResponse {
 	 * @param urlConnection
 	 */
 	public void updateFromUrlConnection(URLConnection urlConnection) {
-		headerFields = urlConnection.getHeaderFields();
+		headers = JCurlHeaders.from(urlConnection);
 		if (jCurlCookieManager != null) {
 			jCurlCookieManager.updateCookies(this);
 		}
@@ -164,12 +166,69 @@ public class JCurlResponse {
 	}
 
 	/**
-	 * This method returns the headerFields map that is returned from the host.
+	 * This method returns the header fields received from the host in the form of HttpURLConnection.getHeaderFields().
+	 * The map is read only, its keys are looked up without regard to case and it is only built when this method is
+	 * called, the fields themselves are kept in a more compact form.
 	 * 
-	 * @return
+	 * @return The header fields or null if no connection has been made.
 	 */
 	public Map<String, List<String>> getHeaderFields() {
-		return headerFields;
+		return headers == null ? null : headers.asMap();
+	}
+
+	/**
+	 * This method returns the first value of a header field received from the host. The name is matched without regard
+	 * to case.
+	 * 
+	 * @param name
+	 *            The name of the header field, e.g. "Content-Type".
+	 * @return The value or null if the host did not send the field.
+	 */
+	public String getHeaderField(String name) {
+		return headers == null ? null : headers.get(name);
+	}
+
+	/**
+	 * This method returns all values of a header field that the host may send more than once, like Set-Cookie. The
+	 * name is matched without regard to case.
+	 * 
+	 * @param name
+	 *            The name of the header field.
+	 * @return The values in the order they were received or an empty list.
+	 */
+	public List<String> getHeaderFieldValues(String name) {
+		return headers == null ? Collections.<String> emptyList() : headers.getAll(name);
+	}
+
+	/**
+	 * This setter method is an injector method, mainly for tests and for responses that are not read from a
+	 * URLConnection.
+	 * 
+	 * @param headers
+	 *            The header fields.
+	 */
+	void setHeaders(JCurlHeaders headers) {
+		this.headers = headers;
+	}
+
+	/**
+	 * This method returns the body received from the host when the request had a body handler from
+	 * JCurlBody.spillAbove(). The caller should close it when done, which deletes a body that was spilled to disk.
+	 * 
+	 * @return The body or null if it was read into the response string.
+	 */
+	public JCurlBody getBody() {
+		return body;
+	}
+
+	/**
+	 * This setter method is an injector method used by the body handlers of JCurlBody.
+	 * 
+	 * @param body
+	 *            The body read from the host.
+	 */
+	void setBody(JCurlBody body) {
+		this.body = body;
 	}
 
 	/**
@@ -0,0 +1,408 @@
+package com.viaplay.jcurl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.viaplay.jcurl.exception.JCurlIOException;
+
+/**
+ * This cookie store keeps its cookies in a memory mapped file so that the JVMs on a host share one jar, e.g. one
+ * authenticated session against a partner API. A Set-Cookie that one process receives is sent by all of them with
+ * their next request, without any network service in between. Put the file on a memory file system like /dev/shm to
+ * keep it off the disk.
+ * <p>
+ * The file is a header followed by a fixed number of fixed size slots, each holding one cookie in the binary format of
+ * JCurlCookieSnapshot. It is guarded by a seqlock: a writer makes the sequence number in the header odd, changes the
+ * slots and makes it even again, and a reader copies the slots and retries if the sequence number was odd or changed
+ * meanwhile. Readers never lock and only decode the slots again when the sequence number has changed. Writers are
+ * serialized by a file lock, which the operating system releases if a process dies.
+ * <p>
+ * The store holds at most as many cookies as it has slots. A cookie that does not fit is dropped with a warning.
+ */
+public class JCurlSharedCookieStore implements JCurlCookieStore, Closeable {
+	private static final Logger log = LoggerFactory.getLogger(JCurlSharedCookieStore.class);
+
+	public static final int DEFAULT_SLOTS = 256;
+	public static final int DEFAULT_SLOT_SIZE = 512;
+
+	private static final int MAGIC = 0x4A43534D;
+	private static final int VERSION = 1;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int SLOTS_OFFSET = 8;
+	private static final int SLOT_SIZE_OFFSET = 12;
+	private static final int SEQUENCE_OFFSET = 16;
+	private static final int HEADER_SIZE = 64;
+	/* Each slot starts with its state and the length of the cookie */
+	private static final int SLOT_HEADER_SIZE = 8;
+	private static final int FREE = 0;
+	private static final int USED = 1;
+	private static final int SPINS_BEFORE_REPAIR = 100000;
+
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	/* File locks are held by the JVM, so the threads and stores of one JVM must also take turns */
+	private static final ConcurrentMap<String, Object> JVM_LOCKS = new ConcurrentHashMap<String, Object>();
+
+	private final File file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final Object jvmLock;
+	private final int slots;
+	private final int slotSize;
+	private volatile Snapshot snapshot = new Snapshot(-1, new JCurlCookie[0], new int[0]);
+
+	/**
+	 * The cookies decoded from the slots at one sequence number, and the slot of each.
+	 */
+	private static class Snapshot {
+		private final long sequence;
+		private final JCurlCookie[] cookies;
+		private final int[] slots;
+
+		private Snapshot(long sequence, JCurlCookie[] cookies, int[] slots) {
+			this.sequence = sequence;
+			this.cookies = cookies;
+			this.slots = slots;
+		}
+	}
+
+	/**
+	 * This constructor maps a file with the default number and size of slots.
+	 */
+	public JCurlSharedCookieStore(File file) {
+		this(file, DEFAULT_SLOTS, DEFAULT_SLOT_SIZE);
+	}
+
+	/**
+	 * This constructor maps a file and creates it if it does not exist. The number and size of the slots of an existing
+	 * file are used instead of the ones passed in.
+	 *
+	 * @param file
+	 *            The file that the processes share.
+	 * @param slots
+	 *            The maximum number of cookies.
+	 * @param slotSize
+	 *            The maximum size in bytes of an encoded cookie, a multiple of 8.
+	 */
+	public JCurlSharedCookieStore(File file, int slots, int slotSize) {
+		if (slotSize % 8 != 0 || slotSize <= SLOT_HEADER_SIZE) {
+			throw new IllegalArgumentException("The slot size must be a multiple of 8 larger than " + SLOT_HEADER_SIZE);
+		}
+		this.file = file;
+		try {
+			this.jvmLock = JVM_LOCKS.computeIfAbsent(file.getCanonicalPath(), path -> new Object());
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			synchronized (jvmLock) {
+				FileLock lock = channel.lock();
+				try {
+					MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+					if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+						header.putInt(VERSION_OFFSET, VERSION).putInt(SLOTS_OFFSET, slots)
+								.putInt(SLOT_SIZE_OFFSET, slotSize).putLong(SEQUENCE_OFFSET, 0);
+						channel.truncate(HEADER_SIZE);
+						channel.write(ByteBuffer.allocate(slots * slotSize), HEADER_SIZE);
+						header.putInt(MAGIC_OFFSET, MAGIC);
+						header.force();
+					} else if (header.getInt(VERSION_OFFSET) != VERSION) {
+						throw new IOException("Unsupported cookie store version " + header.getInt(VERSION_OFFSET)
+								+ " in " + file);
+					}
+					this.slots = header.getInt(SLOTS_OFFSET);
+					this.slotSize = header.getInt(SLOT_SIZE_OFFSET);
+				} finally {
+					lock.release();
+				}
+			}
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) this.slots
+					* this.slotSize);
+		} catch (IOException e) {
+			throw new JCurlIOException(e);
+		}
+	}
+
+	public Map<String, JCurlCookie> getCookieMap() {
+		Map<String, JCurlCookie> cookies = new LinkedHashMap<String, JCurlCookie>();
+		for (JCurlCookie cookie : read().cookies) {
+			cookies.put(JCurlCookieIndex.keyOf(cookie), cookie);
+		}
+		return Collections.unmodifiableMap(cookies);
+	}
+
+	public JCurlCookie get(JCurlCookie cookie) {
+		for (JCurlCookie stored : read().cookies) {
+			if (stored.getName().equals(cookie.getName()) && Objects.equals(stored.getDomain(), cookie.getDomain())
+					&& Objects.equals(stored.getPath(), cookie.getPath())) {
+				return stored;
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return read().cookies.length;
+	}
+
+	public JCurlCookie put(JCurlCookie cookie) {
+		byte[] encoded = encode(cookie);
+		if (encoded.length > slotSize - SLOT_HEADER_SIZE) {
+			log.warn("The cookie {} is larger than the {} bytes of a slot in {} and is dropped.", cookie.getName(),
+					slotSize - SLOT_HEADER_SIZE, file);
+			return null;
+		}
+		String key = JCurlCookieIndex.keyOf(cookie);
+		long now = System.currentTimeMillis();
+		return write(current -> {
+			int free = -1;
+			for (int i = 0; i < current.cookies.length; i++) {
+				if (JCurlCookieIndex.keyOf(current.cookies[i]).equals(key)) {
+					writeSlot(current.slots[i], encoded);
+					return current.cookies[i];
+				}
+				if (free < 0 && current.cookies[i].isExpired(now)) {
+					free = current.slots[i];
+				}
+			}
+			if (free < 0) {
+				free = firstFreeSlot(current);
+			}
+			if (free < 0) {
+				log.warn("All {} slots of {} are used, the cookie {} is dropped.", slots, file, cookie.getName());
+			} else {
+				writeSlot(free, encoded);
+			}
+			return null;
+		});
+	}
+
+	public JCurlCookie remove(JCurlCookie cookie) {
+		String key = JCurlCookieIndex.keyOf(cookie);
+		return write(current -> {
+			for (int i = 0; i < current.cookies.length; i++) {
+				if (JCurlCookieIndex.keyOf(current.cookies[i]).equals(key)) {
+					buffer.putInt(slotOffset(current.slots[i]), FREE);
+					return current.cookies[i];
+				}
+			}
+			return null;
+		});
+	}
+
+	public void clear() {
+		write(current -> {
+			for (int slot : current.slots) {
+				buffer.putInt(slotOffset(slot), FREE);
+			}
+			return null;
+		});
+	}
+
+	public String header(String host, String path, long now) {
+		List<JCurlCookie> matches = new ArrayList<JCurlCookie>();
+		String lowerCaseHost = host.toLowerCase();
+		for (JCurlCookie cookie : read().cookies) {
+			String domain = cookie.getDomain();
+			if (!cookie.isExpired(now)
+					&& (domain == null || lowerCaseHost.equals(domain) || lowerCaseHost.endsWith("." + domain))
+					&& (cookie.getPath() == null || path.startsWith(cookie.getPath()))) {
+				matches.add(cookie);
+			}
+		}
+		if (matches.isEmpty()) {
+			return "";
+		}
+		matches.sort((a, b) -> (b.getPath() == null ? 0 : b.getPath().length())
+				- (a.getPath() == null ? 0 : a.getPath().length()));
+		StringBuilder builder = new StringBuilder(matches.size() * 32);
+		for (JCurlCookie cookie : matches) {
+			if (builder.length() > 0) {
+				builder.append("; ");
+			}
+			builder.append(cookie.getName()).append('=').append(cookie.getValue());
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * This method closes the file. The mapping is released when the store is garbage collected.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * A change of the slots, made while the writer holds the locks and the sequence number is odd.
+	 */
+	private interface Change {
+		JCurlCookie apply(Snapshot current);
+	}
+
+	/**
+	 * This method runs a change as the only writer of the file.
+	 */
+	private JCurlCookie write(Change change) {
+		synchronized (jvmLock) {
+			try {
+				FileLock lock = channel.lock();
+				try {
+					long sequence = (long) LONG.getVolatile(buffer, SEQUENCE_OFFSET);
+					if ((sequence & 1) != 0) {
+						/* A writer died in the middle of a change, and since the lock is held it is ended here */
+						log.warn("Repairing {} after a writer died in the middle of a change.", file);
+						LONG.setRelease(buffer, SEQUENCE_OFFSET, ++sequence);
+					}
+					Snapshot current = read();
+					LONG.setVolatile(buffer, SEQUENCE_OFFSET, ++sequence);
+					VarHandle.storeStoreFence();
+					try {
+						return change.apply(current);
+					} finally {
+						LONG.setRelease(buffer, SEQUENCE_OFFSET, sequence + 1);
+					}
+				} finally {
+					lock.release();
+				}
+			} catch (IOException e) {
+				throw new JCurlIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * This method returns the cookies of the file. They are only copied and decoded again when another writer has
+	 * changed the file since the last call.
+	 */
+	private Snapshot read() {
+		Snapshot cached = snapshot;
+		byte[] table = new byte[0];
+		int spins = 0;
+		while (true) {
+			long before = (long) LONG.getAcquire(buffer, SEQUENCE_OFFSET);
+			if (before == cached.sequence) {
+				return cached;
+			}
+			if ((before & 1) != 0) {
+				if (++spins % SPINS_BEFORE_REPAIR == 0) {
+					repairIfAbandoned();
+				}
+				Thread.onSpinWait();
+				continue;
+			}
+			if (table.length == 0) {
+				table = new byte[slots * slotSize];
+			}
+			buffer.get(HEADER_SIZE, table);
+			VarHandle.acquireFence();
+			long after = (long) LONG.getVolatile(buffer, SEQUENCE_OFFSET);
+			if (before == after) {
+				cached = decode(before, table);
+				snapshot = cached;
+				return cached;
+			}
+		}
+	}
+
+	/**
+	 * This method ends a write that a process started but never finished because it died. The file lock is free in
+	 * that case, since the operating system released it.
+	 */
+	private void repairIfAbandoned() {
+		synchronized (jvmLock) {
+			try (FileLock lock = channel.tryLock()) {
+				long sequence = (long) LONG.getVolatile(buffer, SEQUENCE_OFFSET);
+				if (lock != null && (sequence & 1) != 0) {
+					log.warn("Repairing {} after a writer died in the middle of a change.", file);
+					LONG.setRelease(buffer, SEQUENCE_OFFSET, sequence + 1);
+				}
+			} catch (IOException e) {
+				throw new JCurlIOException(e);
+			}
+		}
+	}
+
+	private Snapshot decode(long sequence, byte[] table) {
+		List<JCurlCookie> cookies = new ArrayList<JCurlCookie>();
+		int[] usedSlots = new int[slots];
+		for (int slot = 0; slot < slots; slot++) {
+			int offset = slot * slotSize;
+			if (getInt(table, offset) == USED) {
+				try {
+					cookies.add(JCurlCookieSnapshot.readCookie(new DataInputStream(new ByteArrayInputStream(table,
+							offset + SLOT_HEADER_SIZE, getInt(table, offset + 4)))));
+					usedSlots[cookies.size() - 1] = slot;
+				} catch (IOException | RuntimeException e) {
+					log.warn("Skipping the unreadable slot {} of {}: {}", slot, file, e.getMessage());
+				}
+			}
+		}
+		int[] cookieSlots = new int[cookies.size()];
+		System.arraycopy(usedSlots, 0, cookieSlots, 0, cookieSlots.length);
+		return new Snapshot(sequence, cookies.toArray(new JCurlCookie[cookies.size()]), cookieSlots);
+	}
+
+	private int firstFreeSlot(Snapshot current) {
+		boolean[] used = new boolean[slots];
+		for (int slot : current.slots) {
+			used[slot] = true;
+		}
+		for (int slot = 0; slot < slots; slot++) {
+			if (!used[slot]) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private void writeSlot(int slot, byte[] encoded) {
+		int offset = slotOffset(slot);
+		buffer.putInt(offset + 4, encoded.length);
+		buffer.put(offset + SLOT_HEADER_SIZE, encoded);
+		buffer.putInt(offset, USED);
+	}
+
+	private int slotOffset(int slot) {
+		return HEADER_SIZE + slot * slotSize;
+	}
+
+	private static byte[] encode(JCurlCookie cookie) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try {
+			JCurlCookieSnapshot.writeCookie(new DataOutputStream(bytes), cookie);
+		} catch (IOException e) {
+			throw new JCurlIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/* The same byte order as MappedByteBuffer.getInt() */
+	private static int getInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8
+				| (bytes[offset + 3] & 0xFF);
+	}
+
+}
@@ -0,0 +1,189 @@
+package com.viaplay.jcurl.bench;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe latency histogram with a fixed relative precision in the spirit of HdrHistogram. Values are recorded
+ * in microseconds into log-linear buckets: values below 2048 are exact and larger values keep their three most
+ * significant decimal digits, so the error of any reported percentile is below 0.1%.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = 10;
+	private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+	private static final int SUB_BUCKET_COUNT = SUB_BUCKET_HALF_COUNT << 1;
+
+	/** The highest trackable value, one hour in microseconds. Larger values are clamped. */
+	public static final long HIGHEST_TRACKABLE_VALUE = 3600L * 1000L * 1000L;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong maxValue = new AtomicLong();
+	private final AtomicLong minValue = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong sum = new AtomicLong();
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(countsIndex(HIGHEST_TRACKABLE_VALUE) + 1);
+	}
+
+	/**
+	 * This method records one value.
+	 *
+	 * @param micros
+	 *            The latency in microseconds.
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, Math.min(micros, HIGHEST_TRACKABLE_VALUE));
+		counts.incrementAndGet(countsIndex(value));
+		totalCount.incrementAndGet();
+		sum.addAndGet(value);
+		long max;
+		while (value > (max = maxValue.get()) && !maxValue.compareAndSet(max, value)) {
+			// Retry until the max is updated or someone else has recorded a larger value.
+		}
+		long min;
+		while (value < (min = minValue.get()) && !minValue.compareAndSet(min, value)) {
+			// Retry until the min is updated or someone else has recorded a smaller value.
+		}
+	}
+
+	/**
+	 * This method adds all values of another histogram to this one.
+	 *
+	 * @param other
+	 *            The histogram to add.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < other.counts.length(); i++) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+		totalCount.addAndGet(other.getTotalCount());
+		sum.addAndGet(other.sum.get());
+		maxValue.accumulateAndGet(other.maxValue.get(), Math::max);
+		minValue.accumulateAndGet(other.minValue.get(), Math::min);
+	}
+
+	public long getTotalCount() {
+		return totalCount.get();
+	}
+
+	public long getMaxValue() {
+		return maxValue.get();
+	}
+
+	public long getMinValue() {
+		return getTotalCount() == 0 ? 0 : minValue.get();
+	}
+
+	public double getMean() {
+		long count = getTotalCount();
+		return count == 0 ? 0.0 : (double) sum.get() / count;
+	}
+
+	/**
+	 * @return The standard deviation computed from the bucket midpoints.
+	 */
+	public double getStdDeviation() {
+		long count = getTotalCount();
+		if (count == 0) {
+			return 0.0;
+		}
+		double mean = getMean();
+		double squares = 0.0;
+		for (int i = 0; i < counts.length(); i++) {
+			long bucketCount = counts.get(i);
+			if (bucketCount != 0) {
+				double deviation = medianEquivalentValue(i) - mean;
+				squares += deviation * deviation * bucketCount;
+			}
+		}
+		return Math.sqrt(squares / count);
+	}
+
+	/**
+	 * This method returns the value at the given percentile.
+	 *
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 * @return The highest value that percentile of the recorded values are equal to or lower than.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = getTotalCount();
+		if (count == 0) {
+			return 0;
+		}
+		long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= countAtPercentile) {
+				return Math.min(highestEquivalentValue(i), getMaxValue());
+			}
+		}
+		return getMaxValue();
+	}
+
+	/**
+	 * This method prints the distribution in the same layout as wrk does.
+	 *
+	 * @param out
+	 *            The stream to print to, e.g. System.out.
+	 */
+	public void printDistribution(PrintStream out) {
+		double[] percentiles = { 50, 75, 90, 99, 99.9, 99.99, 99.999, 100 };
+		out.println("  Latency Distribution");
+		for (double percentile : percentiles) {
+			out.format("  %8s%%  %10s%n", formatPercentile(percentile), formatMicros(getValueAtPercentile(percentile)));
+		}
+	}
+
+	/**
+	 * This helper method formats a value in microseconds with a fitting unit.
+	 */
+	public static String formatMicros(double micros) {
+		if (micros < 1000.0) {
+			return String.format("%.0fus", micros);
+		} else if (micros < 1000000.0) {
+			return String.format("%.2fms", micros / 1000.0);
+		}
+		return String.format("%.2fs", micros / 1000000.0);
+	}
+
+	private static String formatPercentile(double percentile) {
+		return percentile == Math.rint(percentile) ? String.format("%.0f", percentile) : Double.toString(percentile);
+	}
+
+	private static int countsIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+		return (exponent << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + (int) (value >>> exponent);
+	}
+
+	private static long lowestEquivalentValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int exponent = (index >>> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+		long subBucket = index - (exponent << SUB_BUCKET_HALF_COUNT_MAGNITUDE);
+		return subBucket << exponent;
+	}
+
+	private static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int exponent = (index >>> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+		return lowestEquivalentValue(index) + (1L << exponent) - 1;
+	}
+
+	private static double medianEquivalentValue(int index) {
+		return (lowestEquivalentValue(index) + highestEquivalentValue(index)) / 2.0;
+	}
+
+}
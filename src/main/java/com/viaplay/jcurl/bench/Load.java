@@ -0,0 +1,369 @@
+package com.viaplay.jcurl.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.viaplay.jcurl.JCurl;
+import com.viaplay.jcurl.JCurlCookieManager;
+import com.viaplay.jcurl.JCurlRequest;
+import com.viaplay.jcurl.JCurlResponse;
+
+/**
+ * Load is a wrk style load generator that drives its requests through JCurl, so the load has exactly the same client
+ * behavior as production code: the same cookie handling, time outs and headers. Each connection is simulated by a
+ * virtual thread of its own.
+ * <p>
+ * When a rate is given every connection follows a fixed schedule and the latency of each request is measured from the
+ * time it was supposed to be sent, not from the time it actually was sent. This corrects for coordinated omission the
+ * same way wrk2 does. The uncorrected service time is reported as well.
+ * <p>
+ * Run it with <code>java -cp jcurl.jar com.viaplay.jcurl.bench.Load -c 50 -d 30s -R 2000 http://host/path</code> or
+ * without arguments to see all options.
+ */
+public class Load {
+	private static final String USAGE = "Usage: Load <options> <url>\n"
+			+ "  Options:\n"
+			+ "    -c, --connections <N>  Number of concurrent virtual users (default 10)\n"
+			+ "    -d, --duration    <T>  Duration of the test, e.g. 500ms, 30s or 2m (default 10s)\n"
+			+ "    -n, --requests    <N>  Total number of requests, stops before the duration if reached\n"
+			+ "    -R, --rate        <N>  Total request rate per second, 0 means as fast as possible (default 0)\n"
+			+ "    -X, --method      <M>  HTTP method, one of HEAD, GET, PUT, POST and DELETE (default GET)\n"
+			+ "    -H, --header      <H>  Add a header to each request, e.g. \"Accept: text/plain\"\n"
+			+ "        --data        <D>  The payload of each request, @file reads it from a file\n"
+			+ "    -f, --file        <F>  Read requests from a file, one \"[METHOD] url\" per line\n"
+			+ "    -t, --timeout     <T>  Time out of each request (default 30s)\n"
+			+ "        --cookies          Keep the cookies of each virtual user between requests\n"
+			+ "        --latency          Print the latency distribution\n";
+
+	private final List<Target> targets = new ArrayList<Target>();
+	private final Map<String, String> headers = new LinkedHashMap<String, String>();
+	private int connections = 10;
+	private long durationMillis = 10000;
+	private long requestLimit = Long.MAX_VALUE;
+	private double rate = 0.0;
+	private String payload = null;
+	private int timeOutMillis = 30000;
+	private boolean cookies = false;
+	private boolean printLatency = false;
+
+	/**
+	 * One request as given on the command line or in the request file.
+	 */
+	private static class Target {
+		private final String method;
+		private final String url;
+
+		private Target(String method, String url) {
+			this.method = method.toUpperCase();
+			this.url = url;
+		}
+	}
+
+	/**
+	 * The result of a load run.
+	 */
+	public static class Report {
+		private final long requests;
+		private final long errors;
+		private final long elapsedNanos;
+		private final Map<Integer, Long> responseCodes;
+		private final LatencyHistogram latency;
+		private final LatencyHistogram serviceTime;
+
+		private Report(long requests, long errors, long elapsedNanos, Map<Integer, Long> responseCodes,
+				LatencyHistogram latency, LatencyHistogram serviceTime) {
+			this.requests = requests;
+			this.errors = errors;
+			this.elapsedNanos = elapsedNanos;
+			this.responseCodes = responseCodes;
+			this.latency = latency;
+			this.serviceTime = serviceTime;
+		}
+
+		public long getRequests() {
+			return requests;
+		}
+
+		/**
+		 * @return The number of requests that timed out or was answered with a response code of 400 or above.
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		public double getRequestsPerSecond() {
+			return elapsedNanos == 0 ? 0.0 : requests * 1e9 / elapsedNanos;
+		}
+
+		public Map<Integer, Long> getResponseCodes() {
+			return responseCodes;
+		}
+
+		/**
+		 * @return The latency corrected for coordinated omission if a rate was given, otherwise the service time.
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		/**
+		 * @return The time from sending each request to having read its response.
+		 */
+		public LatencyHistogram getServiceTime() {
+			return serviceTime;
+		}
+
+		public void print(PrintStream out, boolean printLatency) {
+			out.println("  Thread Stats   Avg      Stdev     Max");
+			out.format("    Latency   %8s %8s %8s%n", LatencyHistogram.formatMicros(latency.getMean()),
+					LatencyHistogram.formatMicros(latency.getStdDeviation()),
+					LatencyHistogram.formatMicros(latency.getMaxValue()));
+			if (printLatency) {
+				latency.printDistribution(out);
+				if (latency != serviceTime) {
+					out.println("  Uncorrected service time");
+					serviceTime.printDistribution(out);
+				}
+			}
+			out.format("  %d requests in %.2fs%n", requests, elapsedNanos / 1e9);
+			out.format("  Response codes: %s%n", responseCodes);
+			if (errors > 0) {
+				out.format("  Errors (4xx/5xx/failed): %d%n", errors);
+			}
+			out.format("Requests/sec: %10.2f%n", getRequestsPerSecond());
+		}
+	}
+
+	/**
+	 * This constructor parses the command line arguments.
+	 *
+	 * @param args
+	 *            The arguments as described in the usage text.
+	 * @throws IllegalArgumentException
+	 *             if the arguments are not valid.
+	 * @throws IOException
+	 *             if the data or request file could not be read.
+	 */
+	public Load(String... args) throws IOException {
+		String method = JCurlRequest.GET;
+		String url = null;
+		String file = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("-c".equals(arg) || "--connections".equals(arg)) {
+				connections = Integer.parseInt(value(args, ++i));
+			} else if ("-d".equals(arg) || "--duration".equals(arg)) {
+				durationMillis = parseMillis(value(args, ++i));
+			} else if ("-n".equals(arg) || "--requests".equals(arg)) {
+				requestLimit = Long.parseLong(value(args, ++i));
+			} else if ("-R".equals(arg) || "--rate".equals(arg)) {
+				rate = Double.parseDouble(value(args, ++i));
+			} else if ("-X".equals(arg) || "--method".equals(arg)) {
+				method = value(args, ++i).toUpperCase();
+			} else if ("-H".equals(arg) || "--header".equals(arg)) {
+				String header = value(args, ++i);
+				int colon = header.indexOf(':');
+				if (colon <= 0) {
+					throw new IllegalArgumentException("The header '" + header + "' is not in the form Name: value");
+				}
+				headers.put(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+			} else if ("--data".equals(arg)) {
+				String data = value(args, ++i);
+				payload = data.startsWith("@") ? new String(Files.readAllBytes(Paths.get(data.substring(1))),
+						StandardCharsets.UTF_8) : data;
+			} else if ("-f".equals(arg) || "--file".equals(arg)) {
+				file = value(args, ++i);
+			} else if ("-t".equals(arg) || "--timeout".equals(arg)) {
+				timeOutMillis = (int) parseMillis(value(args, ++i));
+			} else if ("--cookies".equals(arg)) {
+				cookies = true;
+			} else if ("--latency".equals(arg)) {
+				printLatency = true;
+			} else if (arg.startsWith("-")) {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			} else {
+				url = arg;
+			}
+		}
+		if (file != null) {
+			for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				int space = line.indexOf(' ');
+				targets.add(space < 0 ? new Target(method, line) : new Target(line.substring(0, space), line
+						.substring(space + 1).trim()));
+			}
+		} else if (url != null) {
+			targets.add(new Target(method, url));
+		}
+		if (targets.isEmpty()) {
+			throw new IllegalArgumentException("No url given.");
+		}
+		if (connections < 1) {
+			throw new IllegalArgumentException("The number of connections must be at least 1.");
+		}
+	}
+
+	/**
+	 * This method runs the load test and returns the result when the duration has passed or the number of requests
+	 * has been sent.
+	 *
+	 * @return The report of the run.
+	 */
+	public Report run() throws InterruptedException {
+		final LatencyHistogram serviceTime = new LatencyHistogram();
+		final LatencyHistogram latency = rate > 0 ? new LatencyHistogram() : serviceTime;
+		final ConcurrentHashMap<Integer, LongAdder> responseCodes = new ConcurrentHashMap<Integer, LongAdder>();
+		final LongAdder errors = new LongAdder();
+		final AtomicLong issued = new AtomicLong();
+		final long intervalNanos = rate > 0 ? (long) (connections * 1e9 / rate) : 0;
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+		ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+		for (int i = 0; i < connections; i++) {
+			final int user = i;
+			executor.execute(new Runnable() {
+				public void run() {
+					JCurlCookieManager cookieManager = cookies ? new JCurlCookieManager() : null;
+					/* Spread the schedules of the users evenly over the first interval */
+					long intended = start + intervalNanos * user / connections;
+					long sequence = user;
+					while (issued.getAndIncrement() < requestLimit) {
+						if (intervalNanos > 0) {
+							long wait;
+							while ((wait = intended - System.nanoTime()) > 0) {
+								LockSupport.parkNanos(wait);
+							}
+						}
+						long sent = System.nanoTime();
+						if (sent >= deadline) {
+							break;
+						}
+						Target target = targets.get((int) (sequence++ % targets.size()));
+						JCurlResponse response = send(target, cookieManager);
+						long done = System.nanoTime();
+
+						int responseCode = response.getResponseCode();
+						responseCodes.computeIfAbsent(responseCode, k -> new LongAdder()).increment();
+						if (responseCode >= 400 || responseCode < 0) {
+							errors.increment();
+						}
+						serviceTime.record((done - sent) / 1000L);
+						if (intervalNanos > 0) {
+							latency.record((done - intended) / 1000L);
+							intended += intervalNanos;
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(durationMillis + timeOutMillis + 1000L, TimeUnit.MILLISECONDS);
+		executor.shutdownNow();
+		long elapsed = System.nanoTime() - start;
+
+		Map<Integer, Long> codes = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, LongAdder> entry : responseCodes.entrySet()) {
+			codes.put(entry.getKey(), entry.getValue().sum());
+		}
+		return new Report(serviceTime.getTotalCount(), errors.sum(), elapsed, codes, latency, serviceTime);
+	}
+
+	/**
+	 * This method sends one request through JCurl.
+	 */
+	private JCurlResponse send(Target target, JCurlCookieManager cookieManager) {
+		JCurlRequest request = new JCurlRequest(target.url, cookieManager);
+		request.setTimeOutMillis(timeOutMillis);
+		request.getProperties().putAll(headers);
+		request.setPayload(payload);
+		return send(target.method, request, cookieManager);
+	}
+
+	/**
+	 * This helper method sends a request with the given method through the matching JCurl method.
+	 *
+	 * @param cookieManager
+	 *            The cookie manager of the virtual user or null.
+	 */
+	static JCurlResponse send(String method, JCurlRequest request, JCurlCookieManager cookieManager) {
+		if (JCurlRequest.HEAD.equals(method)) {
+			return cookieManager != null ? JCurl.head(request, cookieManager) : JCurl.head(request);
+		} else if (JCurlRequest.PUT.equals(method)) {
+			return cookieManager != null ? JCurl.put(request, cookieManager) : JCurl.put(request);
+		} else if (JCurlRequest.POST.equals(method)) {
+			return cookieManager != null ? JCurl.post(request, cookieManager) : JCurl.post(request);
+		} else if (JCurlRequest.DELETE.equals(method)) {
+			return cookieManager != null ? JCurl.delete(request, cookieManager) : JCurl.delete(request);
+		}
+		return cookieManager != null ? JCurl.get(request, cookieManager) : JCurl.get(request);
+	}
+
+	public boolean isLatencyToBePrinted() {
+		return printLatency;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Running %s test @ %s%n  %d connections%s", requestLimit == Long.MAX_VALUE ? (durationMillis
+				/ 1000.0 + "s") : requestLimit + " requests", targets.get(0).url, connections, rate > 0 ? String.format(
+				", rate %.0f req/s", rate) : "");
+	}
+
+	private static String value(String[] args, int i) {
+		if (i >= args.length) {
+			throw new IllegalArgumentException("The option " + args[i - 1] + " needs a value.");
+		}
+		return args[i];
+	}
+
+	/**
+	 * This helper method parses a duration like 500ms, 30s, 2m or 1h. A plain number is taken as seconds.
+	 */
+	static long parseMillis(String duration) {
+		String value = duration.trim().toLowerCase();
+		if (value.endsWith("ms")) {
+			return Long.parseLong(value.substring(0, value.length() - 2));
+		} else if (value.endsWith("s")) {
+			return (long) (Double.parseDouble(value.substring(0, value.length() - 1)) * 1000L);
+		} else if (value.endsWith("m")) {
+			return (long) (Double.parseDouble(value.substring(0, value.length() - 1)) * 60000L);
+		} else if (value.endsWith("h")) {
+			return (long) (Double.parseDouble(value.substring(0, value.length() - 1)) * 3600000L);
+		}
+		return (long) (Double.parseDouble(value) * 1000L);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Load load;
+		try {
+			load = new Load(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(1);
+			return;
+		}
+		System.out.println(load);
+		load.run().print(System.out, load.isLatencyToBePrinted());
+	}
+
+}
@@ -0,0 +1,264 @@
+package com.viaplay.jcurl.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.viaplay.jcurl.JCurlRequest;
+import com.viaplay.jcurl.JCurlResponse;
+
+/**
+ * A Scenario is the flow that each virtual user of a Simulation runs, e.g. login, browse and play. It is a chain of
+ * requests where the url, payload and headers may refer to session variables as <code>${name}</code>. Values are
+ * extracted from the responses into those variables and the pause between two steps is given as a think time.
+ * <p>
+ * The builder methods that configure a step, like header(), extract() and thinkTime(), apply to the step added last:
+ *
+ * <pre>
+ * Scenario scenario = new Scenario(&quot;viewer&quot;)
+ * 		.post(&quot;login&quot;, &quot;${baseUrl}/login&quot;, &quot;{\&quot;user\&quot;:\&quot;user${userId}\&quot;}&quot;)
+ * 		.extract(&quot;token&quot;, Scenario.Extractor.jsonValue(&quot;token&quot;)).thinkTime(500, 2000)
+ * 		.get(&quot;browse&quot;, &quot;${baseUrl}/rows&quot;).header(&quot;Authorization&quot;, &quot;Bearer ${token}&quot;)
+ * 		.extract(&quot;id&quot;, Scenario.Extractor.jsonValue(&quot;id&quot;)).thinkTime(1000, 5000)
+ * 		.get(&quot;play&quot;, &quot;${baseUrl}/play/${id}&quot;).expect(200);
+ * </pre>
+ *
+ * A Scenario is immutable once the Simulation has started and is shared by all virtual users.
+ */
+public class Scenario {
+	private final String name;
+	private final List<Step> steps = new ArrayList<Step>();
+
+	/**
+	 * An extractor picks a value out of a response. Returning null marks the step as failed.
+	 */
+	public interface Extractor {
+
+		String extract(JCurlResponse response);
+
+		/**
+		 * @return An extractor that returns the first group of the regular expression, or the whole match if it has
+		 *         no groups, found in the response body.
+		 */
+		static Extractor regex(String regex) {
+			final Pattern pattern = Pattern.compile(regex);
+			return response -> {
+				Matcher matcher = pattern.matcher(response.getResponseString());
+				if (!matcher.find()) {
+					return null;
+				}
+				return matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+			};
+		}
+
+		/**
+		 * @return An extractor that returns the first value of the named response header.
+		 */
+		static Extractor header(final String headerName) {
+			return response -> response.getHeaderField(headerName);
+		}
+
+		/**
+		 * @return An extractor that returns the value of the first JSON member with the given name, whether it is a
+		 *         string, a number or a literal.
+		 */
+		static Extractor jsonValue(String memberName) {
+			final Pattern pattern = Pattern.compile("\"" + Pattern.quote(memberName)
+					+ "\"\\s*:\\s*(?:\"((?:[^\"\\\\]|\\\\.)*)\"|([^,}\\]\\s]+))");
+			return response -> {
+				Matcher matcher = pattern.matcher(response.getResponseString());
+				if (!matcher.find()) {
+					return null;
+				}
+				return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+			};
+		}
+	}
+
+	/**
+	 * One request in the scenario.
+	 */
+	static class Step {
+		final String name;
+		final String method;
+		final Template url;
+		final Template payload;
+		final Map<String, Template> headers = new LinkedHashMap<String, Template>();
+		final Map<String, Extractor> extractors = new LinkedHashMap<String, Extractor>();
+		int[] expectedResponseCodes = null;
+		int timeOutMillis = 30000;
+		long minThinkTimeMillis = 0;
+		long maxThinkTimeMillis = 0;
+
+		Step(String name, String method, String url, String payload) {
+			this.name = name;
+			this.method = method;
+			this.url = Template.compile(url);
+			this.payload = Template.compile(payload);
+		}
+
+		/**
+		 * @return true if the response code is one of the expected ones, or below 400 if none is given.
+		 */
+		boolean isExpected(int responseCode) {
+			if (expectedResponseCodes == null) {
+				return responseCode > 0 && responseCode < 400;
+			}
+			for (int expected : expectedResponseCodes) {
+				if (expected == responseCode) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * This method renders the request of this step for one session.
+		 */
+		JCurlRequest createRequest(Map<String, String> variables) {
+			JCurlRequest request = new JCurlRequest(url.render(variables));
+			request.setTimeOutMillis(timeOutMillis);
+			if (payload != null) {
+				request.setPayload(payload.render(variables));
+			}
+			for (Map.Entry<String, Template> header : headers.entrySet()) {
+				request.getProperties().put(header.getKey(), header.getValue().render(variables));
+			}
+			return request;
+		}
+	}
+
+	public Scenario(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Scenario head(String stepName, String url) {
+		return step(stepName, JCurlRequest.HEAD, url, null);
+	}
+
+	public Scenario get(String stepName, String url) {
+		return step(stepName, JCurlRequest.GET, url, null);
+	}
+
+	public Scenario put(String stepName, String url, String payload) {
+		return step(stepName, JCurlRequest.PUT, url, payload);
+	}
+
+	public Scenario post(String stepName, String url, String payload) {
+		return step(stepName, JCurlRequest.POST, url, payload);
+	}
+
+	public Scenario delete(String stepName, String url) {
+		return step(stepName, JCurlRequest.DELETE, url, null);
+	}
+
+	/**
+	 * This method adds a step to the scenario.
+	 *
+	 * @param stepName
+	 *            The name the statistics of the step are reported under. Must be unique in the scenario.
+	 * @param method
+	 *            One of the HTTP methods defined in JCurlRequest.
+	 * @param url
+	 *            The url template.
+	 * @param payload
+	 *            The payload template or null.
+	 */
+	public Scenario step(String stepName, String method, String url, String payload) {
+		for (Step step : steps) {
+			if (step.name.equals(stepName)) {
+				throw new IllegalArgumentException("The step name '" + stepName + "' is already used.");
+			}
+		}
+		steps.add(new Step(stepName, method, url, payload));
+		return this;
+	}
+
+	/**
+	 * This method adds a request header to the last step.
+	 */
+	public Scenario header(String headerName, String valueTemplate) {
+		last().headers.put(headerName, Template.compile(valueTemplate));
+		return this;
+	}
+
+	/**
+	 * This method stores a value from the response of the last step in a session variable.
+	 */
+	public Scenario extract(String variable, Extractor extractor) {
+		last().extractors.put(variable, extractor);
+		return this;
+	}
+
+	/**
+	 * This method stores the first group of a regular expression matched against the response body of the last step
+	 * in a session variable.
+	 */
+	public Scenario extract(String variable, String regex) {
+		return extract(variable, Extractor.regex(regex));
+	}
+
+	/**
+	 * This method sets which response codes the last step is successful for. If not set every response code below 400
+	 * is.
+	 */
+	public Scenario expect(int... responseCodes) {
+		last().expectedResponseCodes = responseCodes.clone();
+		return this;
+	}
+
+	public Scenario timeOut(int timeOutMillis) {
+		last().timeOutMillis = timeOutMillis;
+		return this;
+	}
+
+	/**
+	 * This method sets a fixed pause after the last step.
+	 */
+	public Scenario thinkTime(long millis) {
+		return thinkTime(millis, millis);
+	}
+
+	/**
+	 * This method sets a pause after the last step, uniformly distributed between min and max.
+	 */
+	public Scenario thinkTime(long minMillis, long maxMillis) {
+		if (minMillis < 0 || maxMillis < minMillis) {
+			throw new IllegalArgumentException("Invalid think time " + minMillis + " - " + maxMillis);
+		}
+		Step step = last();
+		step.minThinkTimeMillis = minMillis;
+		step.maxThinkTimeMillis = maxMillis;
+		return this;
+	}
+
+	List<Step> getSteps() {
+		return Collections.unmodifiableList(steps);
+	}
+
+	private Step last() {
+		if (steps.isEmpty()) {
+			throw new IllegalStateException("Add a step before configuring it.");
+		}
+		return steps.get(steps.size() - 1);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(name).append(':');
+		for (Step step : steps) {
+			builder.append(' ').append(step.name).append('[').append(step.method).append(' ').append(step.url)
+					.append(']');
+		}
+		return builder.toString();
+	}
+
+}
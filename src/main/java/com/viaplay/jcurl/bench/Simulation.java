@@ -0,0 +1,315 @@
+package com.viaplay.jcurl.bench;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.viaplay.jcurl.JCurlCompactCookieStore;
+import com.viaplay.jcurl.JCurlCookieManager;
+import com.viaplay.jcurl.JCurlRequest;
+import com.viaplay.jcurl.JCurlResponse;
+
+/**
+ * A Simulation runs a Scenario for a large number of virtual users, e.g. 100k logged in viewers. Each user runs on a
+ * virtual thread of its own and has its own session: the variables extracted from the responses and a JCurlCookieManager
+ * of its own. The users are started according to a ramp up profile and loop the scenario until the duration has passed
+ * or they have done their iterations.
+ * <p>
+ * A user that waits for a response or thinks between two steps is a parked virtual thread holding nothing more than
+ * its session, which keeps the memory per idle user at a few KB.
+ * <p>
+ * The latency and the outcome of every request are aggregated per step of the scenario.
+ */
+public class Simulation {
+	/** The name of the session variable that holds the index of each user, starting at 0. */
+	public static final String USER_ID = "userId";
+
+	private final Scenario scenario;
+	private final Map<String, String> variables = new HashMap<String, String>();
+	private int users = 1;
+	private RampUp rampUp = RampUp.immediate();
+	private long durationMillis = Long.MAX_VALUE;
+	private long iterations = Long.MAX_VALUE;
+
+	/**
+	 * A ramp up profile decides when each user is started.
+	 */
+	public interface RampUp {
+
+		/**
+		 * @param user
+		 *            The index of the user, from 0 to users - 1.
+		 * @param users
+		 *            The total number of users.
+		 * @return The delay in milliseconds from the start of the simulation until the user is started.
+		 */
+		long startDelayMillis(int user, int users);
+
+		/**
+		 * @return A profile that starts all users at once.
+		 */
+		static RampUp immediate() {
+			return (user, users) -> 0L;
+		}
+
+		/**
+		 * @return A profile that starts the users evenly spread over the given time.
+		 */
+		static RampUp linear(final long millis) {
+			return (user, users) -> users <= 1 ? 0L : millis * user / (users - 1);
+		}
+
+		/**
+		 * @return A profile that starts usersPerStep users at a time with stepMillis between the steps.
+		 */
+		static RampUp stepped(final int usersPerStep, final long stepMillis) {
+			return (user, users) -> (user / usersPerStep) * stepMillis;
+		}
+	}
+
+	/**
+	 * The aggregated statistics of one step of the scenario.
+	 */
+	public static class StepStats {
+		private final String name;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LongAdder successful = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+
+		private StepStats(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		public long getSuccessful() {
+			return successful.sum();
+		}
+
+		/**
+		 * @return The number of requests with an unexpected response code or a value that could not be extracted.
+		 */
+		public long getFailed() {
+			return failed.sum();
+		}
+	}
+
+	/**
+	 * The result of a simulation.
+	 */
+	public static class Report {
+		private final Map<String, StepStats> steps;
+		private final long usersStarted;
+		private final long iterationsCompleted;
+		private final long elapsedNanos;
+
+		private Report(Map<String, StepStats> steps, long usersStarted, long iterationsCompleted, long elapsedNanos) {
+			this.steps = Collections.unmodifiableMap(steps);
+			this.usersStarted = usersStarted;
+			this.iterationsCompleted = iterationsCompleted;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public StepStats getStep(String stepName) {
+			return steps.get(stepName);
+		}
+
+		public Map<String, StepStats> getSteps() {
+			return steps;
+		}
+
+		public long getUsersStarted() {
+			return usersStarted;
+		}
+
+		/**
+		 * @return The number of times a user has run all steps of the scenario successfully.
+		 */
+		public long getIterationsCompleted() {
+			return iterationsCompleted;
+		}
+
+		public void print(PrintStream out) {
+			out.format("  %d users completed %d iterations in %.2fs%n", usersStarted, iterationsCompleted,
+					elapsedNanos / 1e9);
+			out.format("  %-16s %10s %8s %10s %10s %10s %10s%n", "Step", "OK", "Failed", "Mean", "50%", "99%", "Max");
+			for (StepStats step : steps.values()) {
+				LatencyHistogram latency = step.getLatency();
+				out.format("  %-16s %10d %8d %10s %10s %10s %10s%n", step.getName(), step.getSuccessful(),
+						step.getFailed(), LatencyHistogram.formatMicros(latency.getMean()),
+						LatencyHistogram.formatMicros(latency.getValueAtPercentile(50)),
+						LatencyHistogram.formatMicros(latency.getValueAtPercentile(99)),
+						LatencyHistogram.formatMicros(latency.getMaxValue()));
+			}
+		}
+	}
+
+	public Simulation(Scenario scenario) {
+		if (scenario.getSteps().isEmpty()) {
+			throw new IllegalArgumentException("The scenario " + scenario.getName() + " has no steps.");
+		}
+		this.scenario = scenario;
+	}
+
+	public Simulation setUsers(int users) {
+		this.users = users;
+		return this;
+	}
+
+	public Simulation setRampUp(RampUp rampUp) {
+		this.rampUp = rampUp;
+		return this;
+	}
+
+	/**
+	 * This setter sets for how long the users loop the scenario. The users that are in the middle of a request when
+	 * the time has passed finish it before they stop.
+	 */
+	public Simulation setDurationMillis(long durationMillis) {
+		this.durationMillis = durationMillis;
+		return this;
+	}
+
+	/**
+	 * This setter sets how many times each user runs the scenario.
+	 */
+	public Simulation setIterations(long iterations) {
+		this.iterations = iterations;
+		return this;
+	}
+
+	/**
+	 * This method sets a variable that all users start their session with, e.g. baseUrl.
+	 */
+	public Simulation setVariable(String name, String value) {
+		variables.put(name, value);
+		return this;
+	}
+
+	/**
+	 * This method runs the simulation and returns when all users are done.
+	 *
+	 * @return The report of the simulation.
+	 */
+	public Report run() throws InterruptedException {
+		if (durationMillis == Long.MAX_VALUE && iterations == Long.MAX_VALUE) {
+			throw new IllegalStateException("Set a duration or a number of iterations.");
+		}
+		final List<Scenario.Step> steps = scenario.getSteps();
+		final StepStats[] stats = new StepStats[steps.size()];
+		final Map<String, StepStats> statsByName = new LinkedHashMap<String, StepStats>();
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = new StepStats(steps.get(i).name);
+			statsByName.put(stats[i].getName(), stats[i]);
+		}
+		final LongAdder usersStarted = new LongAdder();
+		final LongAdder iterationsCompleted = new LongAdder();
+		final long start = System.nanoTime();
+		final long deadline = durationMillis == Long.MAX_VALUE ? Long.MAX_VALUE : start
+				+ TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+		ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+		for (int i = 0; i < users; i++) {
+			final int user = i;
+			executor.execute(() -> {
+				try {
+					long startDelay = rampUp.startDelayMillis(user, users);
+					if (startDelay > 0) {
+						Thread.sleep(startDelay);
+					}
+					if (System.nanoTime() >= deadline) {
+						return;
+					}
+					usersStarted.increment();
+					runUser(user, steps, stats, iterationsCompleted, deadline);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		return new Report(statsByName, usersStarted.sum(), iterationsCompleted.sum(), System.nanoTime() - start);
+	}
+
+	/**
+	 * This method is the life of one virtual user.
+	 */
+	private void runUser(int user, List<Scenario.Step> steps, StepStats[] stats, LongAdder iterationsCompleted,
+			long deadline) throws InterruptedException {
+		Map<String, String> session = new HashMap<String, String>(variables);
+		session.put(USER_ID, Integer.toString(user));
+		/* A compact store keeps the memory of each user small also with hundreds of thousands of users */
+		JCurlCookieManager cookieManager = new JCurlCookieManager(new JCurlCompactCookieStore());
+
+		for (long iteration = 0; iteration < iterations; iteration++) {
+			boolean completed = true;
+			for (int i = 0; i < steps.size() && completed; i++) {
+				if (System.nanoTime() >= deadline) {
+					return;
+				}
+				Scenario.Step step = steps.get(i);
+				JCurlRequest request = step.createRequest(session);
+				long sent = System.nanoTime();
+				JCurlResponse response = Load.send(step.method, request, cookieManager);
+				stats[i].latency.record((System.nanoTime() - sent) / 1000L);
+
+				completed = step.isExpected(response.getResponseCode()) && extract(step, response, session);
+				(completed ? stats[i].successful : stats[i].failed).increment();
+				think(step);
+			}
+			if (completed) {
+				iterationsCompleted.increment();
+			}
+		}
+	}
+
+	/**
+	 * This helper method runs the extractors of a step and stores the values in the session.
+	 *
+	 * @return false if any of the values was not found.
+	 */
+	private static boolean extract(Scenario.Step step, JCurlResponse response, Map<String, String> session) {
+		for (Map.Entry<String, Scenario.Extractor> extractor : step.extractors.entrySet()) {
+			String value = extractor.getValue().extract(response);
+			if (value == null) {
+				return false;
+			}
+			session.put(extractor.getKey(), value);
+		}
+		return true;
+	}
+
+	private static void think(Scenario.Step step) throws InterruptedException {
+		if (step.maxThinkTimeMillis > 0) {
+			long thinkTime = step.minThinkTimeMillis == step.maxThinkTimeMillis ? step.minThinkTimeMillis
+					: ThreadLocalRandom.current().nextLong(step.minThinkTimeMillis, step.maxThinkTimeMillis + 1);
+			Thread.sleep(thinkTime);
+		}
+	}
+
+	@Override
+	public String toString() {
+		List<String> names = new ArrayList<String>();
+		for (Scenario.Step step : scenario.getSteps()) {
+			names.add(step.name);
+		}
+		return String.format("Simulating %d users running %s %s", users, scenario.getName(), names);
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.viaplay.jcurl.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A string with <code>${name}</code> placeholders that is split once into literal parts and variable names, so
+ * rendering it for each request is a plain concatenation without any parsing or regular expressions.
+ */
+final class Template {
+	private final String source;
+	private final String[] literals;
+	private final String[] variables;
+
+	private Template(String source, String[] literals, String[] variables) {
+		this.source = source;
+		this.literals = literals;
+		this.variables = variables;
+	}
+
+	/**
+	 * This method splits the template string into its parts.
+	 *
+	 * @param source
+	 *            The template, may be null.
+	 * @return The compiled template or null if the source was null.
+	 */
+	static Template compile(String source) {
+		if (source == null) {
+			return null;
+		}
+		List<String> literals = new ArrayList<String>();
+		List<String> variables = new ArrayList<String>();
+		int position = 0;
+		int start;
+		while ((start = source.indexOf("${", position)) >= 0) {
+			int end = source.indexOf('}', start + 2);
+			if (end < 0) {
+				break;
+			}
+			literals.add(source.substring(position, start));
+			variables.add(source.substring(start + 2, end));
+			position = end + 1;
+		}
+		literals.add(source.substring(position));
+		return new Template(source, literals.toArray(new String[literals.size()]),
+				variables.toArray(new String[variables.size()]));
+	}
+
+	/**
+	 * This method replaces the placeholders with the values of the variables. Unknown variables are rendered as empty
+	 * strings.
+	 *
+	 * @param values
+	 *            The variables of the session.
+	 * @return The rendered string.
+	 */
+	String render(Map<String, String> values) {
+		if (variables.length == 0) {
+			return source;
+		}
+		StringBuilder builder = new StringBuilder(source.length() + 32);
+		for (int i = 0; i < variables.length; i++) {
+			builder.append(literals[i]);
+			String value = values.get(variables[i]);
+			if (value != null) {
+				builder.append(value);
+			}
+		}
+		return builder.append(literals[variables.length]).toString();
+	}
+
+	@Override
+	public String toString() {
+		return source;
+	}
+
+}
@@ -0,0 +1,24 @@
+/**
+ * 
+ */
+package com.viaplay.jcurl.exception;
+
+/**
+ * This exception class tells that a request was rejected by the concurrency limiter of the client without being sent.
+ */
+public class JCurlRejectedException extends RuntimeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4417203862935372019L;
+
+	public JCurlRejectedException() {
+		super();
+	}
+	
+	public JCurlRejectedException(String message) {
+		super(message);
+	}
+	
+}
@@ -0,0 +1,645 @@
+package com.viaplay.jcurl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is a small HTTP/1.1 server intended for load tests and benchmarks. Unlike the MicroHTTPServer it serves every
+ * connection on a virtual thread of its own and keeps connections alive between requests, so a local client can drive
+ * it at tens of thousands of requests per second without touching the network.
+ * <p>
+ * Every request is answered with a generated payload. The server wide defaults are set with the setters below and may
+ * be overridden per request with these query parameters:
+ * <ul>
+ * <li><b>size</b> the number of payload bytes to return.</li>
+ * <li><b>chunked</b> set to true to use Transfer-Encoding: chunked instead of Content-Length.</li>
+ * <li><b>delay</b> a fixed latency in milliseconds that replaces the latency distribution.</li>
+ * <li><b>status</b> the response code to return.</li>
+ * </ul>
+ * With ranges turned on the server announces Accept-Ranges and an ETag and answers a Range request of one byte range
+ * with 206 Partial Content, unless an If-Range does not match the ETag. The payload is the same at every offset, so the
+ * ranges of a download fit together.
+ * The latency distribution and the error rate are applied to each request that does not override them, which makes it
+ * possible to simulate a slow or failing backend. With a capacity the latency is the time a request holds one of a
+ * fixed number of workers, so requests above the capacity queue like they do on an overloaded backend.
+ */
+public class BenchmarkHTTPServer implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(BenchmarkHTTPServer.class);
+	private static final String version = "1.0";
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final int MAX_LINE_LENGTH = 8192;
+
+	private int port = 0;
+	private volatile int payloadSize = 128;
+	private volatile boolean chunked = false;
+	private volatile int chunkSize = 8192;
+	private volatile double errorRate = 0.0;
+	private volatile Latency latency = Latency.none();
+	private volatile Semaphore capacity = null;
+	private volatile boolean ranges = false;
+	private volatile String etag = "\"1\"";
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile long failAfter = 0;
+
+	private volatile boolean serverStillUp = false;
+	private volatile byte[] payload = new byte[0];
+	private ServerSocket serverSocket = null;
+	private ExecutorService executor = null;
+
+	private final LongAdder connections = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+
+	/**
+	 * A latency distribution that decides how long the server waits before it writes each response.
+	 */
+	public interface Latency {
+
+		/**
+		 * @return The next delay in microseconds.
+		 */
+		long nextMicros(ThreadLocalRandom random);
+
+		static Latency none() {
+			return fixed(0);
+		}
+
+		static Latency fixed(final long millis) {
+			return random -> millis * 1000L;
+		}
+
+		static Latency uniform(final long minMillis, final long maxMillis) {
+			return random -> random.nextLong(minMillis * 1000L, maxMillis * 1000L + 1);
+		}
+
+		static Latency exponential(final double meanMillis) {
+			return random -> (long) (-Math.log(1.0 - random.nextDouble()) * meanMillis * 1000.0);
+		}
+
+		/**
+		 * A bimodal distribution where a fraction of the requests hit a slow path, which is what a backend with cache
+		 * misses or garbage collection pauses looks like.
+		 */
+		static Latency bimodal(final long fastMillis, final long slowMillis, final double slowFraction) {
+			return random -> (random.nextDouble() < slowFraction ? slowMillis : fastMillis) * 1000L;
+		}
+	}
+
+	/**
+	 * This constructor makes the server listen at an ephemeral port. Use getPort() to find out which one.
+	 */
+	public BenchmarkHTTPServer() {
+	}
+
+	/**
+	 * Use this constructor in need of a fixed port.
+	 *
+	 * @param port
+	 */
+	public BenchmarkHTTPServer(int port) {
+		this.port = port;
+	}
+
+	public BenchmarkHTTPServer setPayloadSize(int payloadSize) {
+		this.payloadSize = payloadSize;
+		return this;
+	}
+
+	public BenchmarkHTTPServer setChunked(boolean chunked) {
+		this.chunked = chunked;
+		return this;
+	}
+
+	/**
+	 * @param chunkSize
+	 *            The largest number of payload bytes in a chunk of a chunked response, at least 1.
+	 */
+	public BenchmarkHTTPServer setChunkSize(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("The chunk size must be at least 1, not " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * @param errorRate
+	 *            The fraction, between 0 and 1, of the requests that should be answered with 500 Internal Server Error.
+	 */
+	public BenchmarkHTTPServer setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	public BenchmarkHTTPServer setLatency(Latency latency) {
+		this.latency = latency;
+		return this;
+	}
+
+	/**
+	 * @param workers
+	 *            The number of requests that are served at once, the others wait for a worker. 0 serves every request
+	 *            at once.
+	 */
+	public BenchmarkHTTPServer setCapacity(int workers) {
+		this.capacity = workers > 0 ? new Semaphore(workers, true) : null;
+		return this;
+	}
+
+	public BenchmarkHTTPServer setRanges(boolean ranges) {
+		this.ranges = ranges;
+		return this;
+	}
+
+	/**
+	 * @param etag
+	 *            The quoted ETag of the payload, change it to make the payload look modified.
+	 */
+	public BenchmarkHTTPServer setETag(String etag) {
+		this.etag = etag;
+		return this;
+	}
+
+	/**
+	 * This method makes the server cut the body of the next responses after a number of bytes and close the
+	 * connection, like a connection that breaks during a download.
+	 *
+	 * @param count
+	 *            The number of responses to cut.
+	 * @param afterBytes
+	 *            The number of body bytes to send before the connection is closed.
+	 */
+	public BenchmarkHTTPServer setFailures(int count, long afterBytes) {
+		this.failAfter = afterBytes;
+		this.failures.set(count);
+		return this;
+	}
+
+	public int getPort() {
+		return serverSocket != null ? serverSocket.getLocalPort() : port;
+	}
+
+	/**
+	 * @return The base url of this server, i.e. http://127.0.0.1:port
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + getPort();
+	}
+
+	public long getConnectionCount() {
+		return connections.sum();
+	}
+
+	public long getRequestCount() {
+		return requests.sum();
+	}
+
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	/**
+	 * @return The number of payload bytes that have been sent.
+	 */
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	/**
+	 * This method binds the server socket and starts accepting connections. The server is ready to use when this
+	 * method returns.
+	 */
+	public BenchmarkHTTPServer startServer() {
+		try {
+			serverSocket = new ServerSocket();
+			serverSocket.setReuseAddress(true);
+			serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to bind port " + port, e);
+		}
+		executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("BenchmarkHTTPServer-", 0).factory());
+		serverStillUp = true;
+		Thread.ofPlatform().daemon().name("BenchmarkHTTPServer-acceptor").start(this::acceptLoop);
+		log.info("The {} is active and monitors port {}.", getClass().getSimpleName(), getPort());
+		return this;
+	}
+
+	/**
+	 * This method closes the server socket and all open connections.
+	 */
+	public void stopServer() {
+		serverStillUp = false;
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (IOException e) {
+			log.warn("Closing the server socket failed: {}", e.getMessage());
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+			try {
+				executor.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		log.info("The server is closed after {} requests on {} connections.", getRequestCount(), getConnectionCount());
+	}
+
+	@Override
+	public void close() {
+		stopServer();
+	}
+
+	private void acceptLoop() {
+		while (serverStillUp) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				connections.increment();
+				executor.execute(() -> serve(socket));
+			} catch (IOException e) {
+				if (serverStillUp) {
+					log.warn("Accept failed: {}", e.getMessage());
+				}
+			} catch (RuntimeException e) {
+				// The executor is shut down while a connection was accepted.
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Here is where the action takes part. Requests are read and answered on the same connection until the client
+	 * closes it or asks for it to be closed.
+	 */
+	private void serve(Socket socket) {
+		try (Socket s = socket;
+				InputStream in = new BufferedInputStream(s.getInputStream(), 8192);
+				OutputStream out = new BufferedOutputStream(s.getOutputStream(), 16384)) {
+			byte[] lineBuffer = new byte[MAX_LINE_LENGTH];
+			while (serverStillUp) {
+				String requestLine = readLine(in, lineBuffer);
+				if (requestLine == null) {
+					return;
+				}
+				if (requestLine.isEmpty()) {
+					continue;
+				}
+				if (!handleRequest(requestLine, in, out, lineBuffer)) {
+					return;
+				}
+			}
+		} catch (SocketException e) {
+			// The client went away, that is fine.
+		} catch (IOException e) {
+			log.debug("Connection failed: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * This method reads the headers and body of one request and writes the response.
+	 *
+	 * @return true if the connection is to be kept alive.
+	 */
+	private boolean handleRequest(String requestLine, InputStream in, OutputStream out, byte[] lineBuffer)
+			throws IOException {
+		String[] requestArr = requestLine.split(" ");
+		if (requestArr.length < 3) {
+			writeResponse(out, 400, 0, 0, 0, false, false, false);
+			return false;
+		}
+		String method = requestArr[0];
+		String target = requestArr[1];
+		boolean keepAlive = !"HTTP/1.0".equals(requestArr[2]);
+		long contentLength = 0;
+		boolean chunkedRequest = false;
+		String range = null;
+		String ifRange = null;
+
+		String row;
+		while ((row = readLine(in, lineBuffer)) != null && !row.isEmpty()) {
+			int colon = row.indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			String name = row.substring(0, colon).trim();
+			String value = row.substring(colon + 1).trim();
+			if ("Content-Length".equalsIgnoreCase(name)) {
+				contentLength = Long.parseLong(value);
+			} else if ("Range".equalsIgnoreCase(name)) {
+				range = value;
+			} else if ("If-Range".equalsIgnoreCase(name)) {
+				ifRange = value;
+			} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+				chunkedRequest = value.toLowerCase().contains("chunked");
+			} else if ("Connection".equalsIgnoreCase(name)) {
+				if ("close".equalsIgnoreCase(value)) {
+					keepAlive = false;
+				} else if ("keep-alive".equalsIgnoreCase(value)) {
+					keepAlive = true;
+				}
+			}
+		}
+		if (row == null) {
+			return false;
+		}
+		if (chunkedRequest) {
+			skipChunkedBody(in, lineBuffer);
+		} else {
+			skipFully(in, contentLength);
+		}
+		requests.increment();
+
+		int size = payloadSize;
+		boolean useChunked = chunked;
+		long delayMicros = -1;
+		int status = -1;
+		int query = target.indexOf('?');
+		if (query >= 0) {
+			for (String parameter : target.substring(query + 1).split("&")) {
+				int eq = parameter.indexOf('=');
+				if (eq < 0) {
+					continue;
+				}
+				String key = parameter.substring(0, eq);
+				String value = parameter.substring(eq + 1);
+				if ("size".equals(key)) {
+					size = Integer.parseInt(value);
+				} else if ("chunked".equals(key)) {
+					useChunked = Boolean.parseBoolean(value);
+				} else if ("delay".equals(key)) {
+					delayMicros = Long.parseLong(value) * 1000L;
+				} else if ("status".equals(key)) {
+					status = Integer.parseInt(value);
+				}
+			}
+		}
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (delayMicros < 0) {
+			delayMicros = latency.nextMicros(random);
+		}
+		if (status < 0) {
+			status = errorRate > 0.0 && random.nextDouble() < errorRate ? 500 : 200;
+		}
+		if (status >= 500) {
+			errors.increment();
+		}
+		Semaphore workers = capacity;
+		if (delayMicros > 0 || workers != null) {
+			try {
+				if (workers != null) {
+					workers.acquire();
+				}
+				try {
+					Thread.sleep(delayMicros / 1000L, (int) (delayMicros % 1000L) * 1000);
+				} finally {
+					if (workers != null) {
+						workers.release();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		long offset = 0;
+		int length = size;
+		if (status == 200 && ranges && range != null && range.startsWith("bytes=") && range.indexOf(',') < 0
+				&& (ifRange == null || ifRange.equals(etag))) {
+			int dash = range.indexOf('-');
+			String first = range.substring(6, dash).trim();
+			String last = range.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				offset = Math.max(0, size - Long.parseLong(last));
+			} else {
+				offset = Long.parseLong(first);
+			}
+			long end = first.isEmpty() || last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+			if (offset >= size || end < offset) {
+				writeResponse(out, 416, 0, 0, size, false, false, keepAlive);
+				return keepAlive;
+			}
+			status = 206;
+			length = (int) (end - offset + 1);
+		}
+		writeResponse(out, status, offset, length, size, useChunked, "HEAD".equals(method), keepAlive);
+		return keepAlive;
+	}
+
+	/**
+	 * This method writes the status line, headers and the generated payload.
+	 */
+	private void writeResponse(OutputStream out, int status, long offset, int size, int total, boolean useChunked,
+			boolean headOnly, boolean keepAlive) throws IOException {
+		StringBuilder header = new StringBuilder(160);
+		header.append("HTTP/1.1 ").append(status).append(' ').append(reasonPhrase(status)).append("\r\n");
+		header.append("Server: ").append(getClass().getSimpleName()).append('/').append(version).append("\r\n");
+		header.append("Content-Type: application/octet-stream\r\n");
+		if (ranges) {
+			header.append("Accept-Ranges: bytes\r\nETag: ").append(etag).append("\r\n");
+			if (status == 206) {
+				header.append("Content-Range: bytes ").append(offset).append('-').append(offset + size - 1).append('/')
+						.append(total).append("\r\n");
+			} else if (status == 416) {
+				header.append("Content-Range: bytes */").append(total).append("\r\n");
+			}
+		}
+		if (useChunked) {
+			header.append("Transfer-Encoding: chunked\r\n");
+		} else {
+			header.append("Content-Length: ").append(size).append("\r\n");
+		}
+		if (!keepAlive) {
+			header.append("Connection: close\r\n");
+		}
+		header.append("\r\n");
+		out.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+		if (!headOnly) {
+			byte[] body = payload((int) offset + size);
+			if (size > 0 && failures.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+				int length = (int) Math.min(failAfter, size);
+				out.write(body, (int) offset, length);
+				out.flush();
+				bytesSent.add(length);
+				throw new SocketException("The response is cut after " + length + " bytes.");
+			}
+			bytesSent.add(size);
+			if (useChunked) {
+				int chunk = chunkSize;
+				for (int position = 0; position < size; position += chunk) {
+					int length = Math.min(chunk, size - position);
+					out.write(Integer.toHexString(length).getBytes(StandardCharsets.ISO_8859_1));
+					out.write(CRLF);
+					out.write(body, (int) offset + position, length);
+					out.write(CRLF);
+				}
+				out.write('0');
+				out.write(CRLF);
+				out.write(CRLF);
+			} else {
+				out.write(body, (int) offset, size);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * This method returns a shared payload buffer that is at least size bytes long. The payload is printable so that
+	 * it can be read as text by JCurl.
+	 */
+	private byte[] payload(int size) {
+		byte[] current = payload;
+		if (current.length < size) {
+			synchronized (this) {
+				current = payload;
+				if (current.length < size) {
+					current = new byte[Math.max(size, current.length * 2)];
+					for (int i = 0; i < current.length; i++) {
+						current[i] = (byte) ((i % 64 == 63) ? '\n' : 'a' + (i % 26));
+					}
+					payload = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	private static String reasonPhrase(int status) {
+		switch (status) {
+		case 200:
+			return "OK";
+		case 201:
+			return "Created";
+		case 204:
+			return "No Content";
+		case 206:
+			return "Partial Content";
+		case 304:
+			return "Not Modified";
+		case 400:
+			return "Bad Request";
+		case 404:
+			return "Not Found";
+		case 416:
+			return "Range Not Satisfiable";
+		case 429:
+			return "Too Many Requests";
+		case 500:
+			return "Internal Server Error";
+		case 503:
+			return "Service Unavailable";
+		default:
+			return "Status";
+		}
+	}
+
+	/**
+	 * This method reads one CRLF terminated line as ISO-8859-1 without the line terminator.
+	 *
+	 * @return The line or null at end of stream.
+	 */
+	private static String readLine(InputStream in, byte[] buffer) throws IOException {
+		int length = 0;
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				if (length > 0 && buffer[length - 1] == '\r') {
+					length--;
+				}
+				return new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+			}
+			if (length == buffer.length) {
+				throw new IOException("Line too long.");
+			}
+			buffer[length++] = (byte) b;
+		}
+		return length == 0 ? null : new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+	}
+
+	private static void skipFully(InputStream in, long length) throws IOException {
+		while (length > 0) {
+			long skipped = in.skip(length);
+			if (skipped <= 0) {
+				if (in.read() == -1) {
+					throw new IOException("Unexpected end of request body.");
+				}
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	private static void skipChunkedBody(InputStream in, byte[] lineBuffer) throws IOException {
+		while (true) {
+			String sizeLine = readLine(in, lineBuffer);
+			if (sizeLine == null) {
+				throw new IOException("Unexpected end of chunked request body.");
+			}
+			int semicolon = sizeLine.indexOf(';');
+			long length = Long.parseLong((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+			if (length == 0) {
+				String trailer;
+				while ((trailer = readLine(in, lineBuffer)) != null && !trailer.isEmpty()) {
+					// Trailers are ignored.
+				}
+				return;
+			}
+			skipFully(in, length);
+			readLine(in, lineBuffer);
+		}
+	}
+
+	/**
+	 * This main function can be used to run the server standalone, e.g. as a target for the load generator.
+	 *
+	 * @param args
+	 *            Optional port, payload size, error rate and mean latency in milliseconds.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 1990;
+		BenchmarkHTTPServer server = new BenchmarkHTTPServer(port);
+		if (args.length > 1) {
+			server.setPayloadSize(Integer.parseInt(args[1]));
+		}
+		if (args.length > 2) {
+			server.setErrorRate(Double.parseDouble(args[2]));
+		}
+		if (args.length > 3) {
+			server.setLatency(Latency.exponential(Double.parseDouble(args[3])));
+		}
+		server.startServer();
+		log.info("Serving {} byte payloads at {}", server.payloadSize, server.getUrl());
+		Thread.currentThread().join();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[port=%s, payloadSize=%s, chunked=%s, errorRate=%s, requests=%s]",
+				getClass().getSimpleName(), getPort(), payloadSize, chunked, errorRate, getRequestCount());
+	}
+}
@@ -0,0 +1,139 @@
+package com.viaplay.jcurl;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.Arrays;
+
+/**
+ * This benchmark measures the bytes that reading and writing a body allocates, with the readers and writers JCurl used
+ * before the JCurlBufferPool and with the pooled buffers it uses now, a formatted payload against a body template,
+ * and the bytes a whole request against the BenchmarkHTTPServer allocates. The allocations are counted by the JVM per
+ * thread, so the numbers do not depend on the garbage collector. The response string itself is not counted for reading, it is the same for both.
+ */
+public class JCurlAllocationBenchmark {
+	private static final int[] SIZES = { 1024, 16 * 1024, 256 * 1024 };
+	private static final int ROUNDS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		for (int size : SIZES) {
+			final byte[] body = body(size);
+			final String payload = new String(body, "UTF8");
+			final StringBuffer result = new StringBuffer(size * 2);
+			long before = measure(() -> {
+				result.setLength(0);
+				readLegacy(result, new ByteArrayInputStream(body), "UTF8");
+			});
+			long after = measure(() -> {
+				result.setLength(0);
+				JCurlClient.readInputStream(result, new ByteArrayInputStream(body), "UTF8", JCurlBufferPool.getInstance());
+			});
+			System.out.printf("read  %,8d bytes: %,9d bytes allocated before, %,7d after%n", size, before, after);
+			before = measure(() -> writeLegacy(payload, "UTF8"));
+			final URLConnection urlConnection = sink();
+			after = measure(() -> JCurlClient.writePayload(urlConnection, payload, "UTF8", JCurlBufferPool.getInstance()));
+			System.out.printf("write %,8d bytes: %,9d bytes allocated before, %,7d after%n", size, before, after);
+		}
+		final URLConnection urlConnection = sink();
+		final JCurlBodyTemplate template = JCurlBodyTemplate.compile("{\"time\":\"${time}\", \"no\":${no:long}}");
+		final String time = "12:34:56-789";
+		long before = measure(() -> JCurlClient.writePayload(urlConnection,
+				String.format("{\"time\":\"%s\", \"no\":%s}", time, 4711), "UTF8", JCurlBufferPool.getInstance()));
+		long after = measure(() -> template.newBody().set("time", time).set("no", 4711)
+				.writeTo(OutputStream.nullOutputStream(), JCurlBufferPool.getInstance()));
+		System.out.printf("CouchDB document: %,d bytes allocated with String.format, %,d with a body template%n",
+				before, after);
+		BenchmarkHTTPServer server = new BenchmarkHTTPServer().setPayloadSize(16 * 1024);
+		server.startServer();
+		try {
+			final String url = server.getUrl() + "/";
+			System.out.printf("JCurl.get of 16 KB: %,d bytes allocated per request%n", measure(() -> JCurl.get(url)));
+			System.out.printf("JCurl.post of 16 KB: %,d bytes allocated per request%n",
+					measure(() -> JCurl.post(url, new String(body(16 * 1024), "UTF8"))));
+		} finally {
+			server.stopServer();
+		}
+		System.out.printf("The pool allocated %d buffers and reused %d%n", JCurlBufferPool.getInstance()
+				.getAllocatedCount(), JCurlBufferPool.getInstance().getReusedCount());
+	}
+
+	private interface Task {
+		void run() throws Exception;
+	}
+
+	/**
+	 * @return The bytes allocated by one run of the task, after warming it up.
+	 */
+	private static long measure(Task task) throws Exception {
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().threadId();
+		for (int i = 0; i < ROUNDS; i++) {
+			task.run();
+		}
+		long before = threadMXBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < ROUNDS; i++) {
+			task.run();
+		}
+		return (threadMXBean.getThreadAllocatedBytes(threadId) - before) / ROUNDS;
+	}
+
+	private static byte[] body(int size) {
+		byte[] body = new byte[size];
+		Arrays.fill(body, (byte) 'x');
+		for (int i = 99; i < size; i += 100) {
+			body[i] = '\n';
+		}
+		return body;
+	}
+
+	/**
+	 * The read path of JCurl before the JCurlBufferPool.
+	 */
+	private static void readLegacy(StringBuffer result, InputStream inputStream, String charsetName) throws Exception {
+		InputStreamReader streamReader = new InputStreamReader(inputStream, charsetName);
+		BufferedReader bufferedReader = new BufferedReader(streamReader);
+		String row;
+		while ((row = bufferedReader.readLine()) != null) {
+			result.append(row);
+			result.append("\n");
+		}
+		bufferedReader.close();
+		streamReader.close();
+	}
+
+	/**
+	 * The write path of JCurl before the JCurlBufferPool, the payload was encoded once for the Content-Length and once
+	 * by the writer.
+	 */
+	private static void writeLegacy(String payload, String charsetName) throws Exception {
+		Integer.toString(payload.getBytes(charsetName).length);
+		OutputStreamWriter outputStreamWriter = new OutputStreamWriter(OutputStream.nullOutputStream(), charsetName);
+		outputStreamWriter.write(payload);
+		outputStreamWriter.flush();
+		outputStreamWriter.close();
+	}
+
+	/**
+	 * @return A connection that writes to nowhere.
+	 */
+	private static URLConnection sink() throws Exception {
+		return new URLConnection(URI.create("http://localhost/").toURL()) {
+			@Override
+			public void connect() {
+			}
+
+			@Override
+			public OutputStream getOutputStream() {
+				return OutputStream.nullOutputStream();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.viaplay.jcurl;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * This JMH benchmark compares the cost of preparing a request, up to the URL that the connection is opened with, by
+ * hand the way our code builds requests, through a JCurlRequestTemplate and through an interface implemented by
+ * JCurlApi. Nothing is sent, the network would hide the difference.
+ * <p>
+ * Run it with the main method or <code>java -cp target/test-classes:... org.openjdk.jmh.Main JCurlApi</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JCurlApiBenchmark {
+	private static final String BASE_URL = "https://api.viaplay.se";
+	private static final String TOKEN = "dGhpcyBpcyBhIHNlc3Npb24gdG9rZW4=";
+
+	@JCurlApi.Headers({ "Accept: application/json", "Authorization: Bearer " + TOKEN })
+	interface Users {
+		@JCurlApi.Request("/users/${id}/lists?page=${page}")
+		JCurlRequest lists(@JCurlApi.Param("id") String id, @JCurlApi.Param("page") int page);
+	}
+
+	private final Users users = JCurlApi.create(Users.class, BASE_URL);
+	private final JCurlRequestTemplate template = JCurlRequestTemplate
+			.builder(BASE_URL + "/users/${id}/lists?page=${page}").header("Accept", "application/json")
+			.bearerToken(TOKEN).build();
+	private final String id = "user 42";
+	private int page = 0;
+
+	@Benchmark
+	public URL handBuilt() throws MalformedURLException {
+		JCurlRequest request = new JCurlRequest(BASE_URL + "/users/" + URLEncoder.encode(id, StandardCharsets.UTF_8)
+				+ "/lists?page=" + (page++ & 15));
+		request.getProperties().put("Accept", "application/json");
+		request.getProperties().put("Authorization", "Bearer " + TOKEN);
+		request.setMethod(JCurlRequest.GET);
+		return request.getURL();
+	}
+
+	@Benchmark
+	public URL template() throws MalformedURLException {
+		return template.newRequest("id", id, "page", Integer.toString(page++ & 15)).getURL();
+	}
+
+	@Benchmark
+	public URL api() throws MalformedURLException {
+		return users.lists(id, page++ & 15).getURL();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(JCurlApiBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
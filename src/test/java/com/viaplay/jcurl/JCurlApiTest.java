@@ -0,0 +1,108 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+
+import org.junit.Test;
+
+/**
+ * This class tests the interfaces that JCurlApi implements from their annotations.
+ */
+public class JCurlApiTest {
+
+	@JCurlApi.Headers("Accept: application/json")
+	interface Items {
+		@JCurlApi.Request("/items/${id}?size=${size}")
+		JCurlRequest prepare(@JCurlApi.Param("size") int size, @JCurlApi.Param("id") String id,
+				@JCurlApi.Header("X-Trace") String trace);
+
+		@JCurlApi.Request(method = JCurlRequest.POST, value = "/items/${id}")
+		@JCurlApi.Headers("Content-Type: text/plain")
+		JCurlRequest prepareCreate(@JCurlApi.Param("id") String id, @JCurlApi.Body String body);
+
+		@JCurlApi.Request("/items/${id}?size=${size}")
+		String get(@JCurlApi.Param("id") String id, @JCurlApi.Param("size") int size);
+
+		@JCurlApi.Request("/?status=${status}")
+		int status(@JCurlApi.Param("status") int status);
+
+		default String getOne(String id) {
+			return get(id, 1);
+		}
+	}
+
+	interface Unannotated {
+		String get(String id);
+	}
+
+	interface Unbound {
+		@JCurlApi.Request("/items/${id}")
+		String get(@JCurlApi.Param("name") String name);
+	}
+
+	/**
+	 * This test verifies that the arguments end up in the url, the headers and the payload of the request.
+	 */
+	@Test
+	public void testPlans() throws MalformedURLException {
+		Items items = JCurlApi.create(Items.class, "http://localhost:1962/");
+		JCurlRequest request = items.prepare(10, "a/b", "t-1");
+		/* The headers of a call are kept apart from the headers that all calls share until the request is changed */
+		assertSame(request.readProperties(), items.prepare(11, "c", "t-2").readProperties());
+		assertNull(request.readProperties().get("X-Trace"));
+		assertArrayEquals(new String[] { "t-1" }, request.getCallHeaderValues());
+		/* So are the cookies of the request */
+		JCurlCookieManager cookieManager = new JCurlCookieManager();
+		cookieManager.addCookie(new JCurlCookie("localhost", "session", "s-1", "/", null, false, false));
+		request.setCookieManager(cookieManager);
+		request.updateCookies();
+		assertSame(request.readProperties(), items.prepare(11, "c", "t-2").readProperties());
+		assertEquals("session=s-1", request.getCookieHeader());
+		assertEquals("session=s-1", request.getProperties().get("Cookie"));
+		assertEquals("http://localhost:1962/items/a%2Fb?size=10", request.getUrlAsString());
+		assertEquals(JCurlRequest.GET, request.getMethod());
+		assertEquals("application/json", request.getProperties().get("Accept"));
+		assertEquals("t-1", request.getProperties().get("X-Trace"));
+		assertNull(items.prepare(10, "a", null).getProperties().get("X-Trace"));
+
+		request = items.prepareCreate("7", "seven");
+		assertEquals("http://localhost:1962/items/7", request.getURL().toExternalForm());
+		assertEquals(JCurlRequest.POST, request.getMethod());
+		assertEquals("text/plain", request.getProperties().get("Content-Type"));
+		assertEquals("seven", request.getPayload());
+
+		assertEquals(items, items);
+		assertEquals("Items@http://localhost:1962/", items.toString());
+
+		for (Class<?> type : new Class<?>[] { Unannotated.class, Unbound.class, String.class }) {
+			try {
+				JCurlApi.create(type, "http://localhost:1962");
+				fail(type.getSimpleName() + " cannot be implemented.");
+			} catch (IllegalArgumentException e) {
+				/* Expected */
+			}
+		}
+	}
+
+	/**
+	 * This test verifies that an implementation sends its requests through the client it was created with.
+	 */
+	@Test
+	public void testCalls() {
+		BenchmarkHTTPServer server = new BenchmarkHTTPServer().setPayloadSize(10).startServer();
+		JCurlClient client = JCurlClient.builder().build();
+		try {
+			Items items = JCurlApi.create(Items.class, server.getUrl(), client);
+			/* JCurl terminates the last line of the body */
+			assertEquals(26 + 1, items.get("x", 26).length());
+			assertEquals(1 + 1, items.getOne("y").length());
+			assertEquals(503, items.status(503));
+			assertEquals(3, client.getRequestCount());
+		} finally {
+			client.close();
+			server.stopServer();
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * This class tests that a JCurlBodyTemplate renders its bodies with the exact length and sends them as is.
+ */
+public class JCurlBodyTemplateTest {
+
+	/**
+	 * This test verifies the escaping and the typed slots, and that the Content-Length is the rendered length.
+	 */
+	@Test
+	public void testRender() throws IOException {
+		JCurlBodyTemplate template = JCurlBodyTemplate
+				.compile("{\"name\":\"${name}\", \"no\":${no:long}, \"ok\":${ok:boolean}, \"again\":\"${name}\"}");
+		String[] names = { "plain", "quote \" and \\ back", "tab\tnew\nline\u0001", "Räksmörgås € 😀",
+				"lone \ud83d surrogate", "" };
+		long[] numbers = { 0, 7, -42, Long.MAX_VALUE, Long.MIN_VALUE, 1000000 };
+		String[] expected = { "plain", "quote \\\" and \\\\ back", "tab\\tnew\\nline\\u0001",
+				"Räksmörgås € 😀", "lone ? surrogate", "" };
+		for (int i = 0; i < names.length; i++) {
+			JCurlBodyTemplate.Body body = template.newBody().set("name", names[i]).set("no", numbers[i])
+					.set("ok", i % 2 == 0);
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			body.writeTo(outputStream, JCurlBufferPool.getInstance());
+			String rendered = new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+			assertEquals("{\"name\":\"" + expected[i] + "\", \"no\":" + numbers[i] + ", \"ok\":" + (i % 2 == 0)
+					+ ", \"again\":\"" + expected[i] + "\"}", rendered);
+			assertEquals(outputStream.size(), body.getContentLength());
+		}
+
+		/* A body larger than the render buffer is written in parts */
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			large.append("å\"");
+		}
+		JCurlBodyTemplate.Body body = template.newBody().set("name", large.toString()).set("no", 1).set("ok", true);
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		body.writeTo(outputStream, JCurlBufferPool.getInstance());
+		assertEquals(outputStream.size(), body.getContentLength());
+		assertEquals(2 * 100000 * 4 + "{\"name\":\"\", \"no\":1, \"ok\":true, \"again\":\"\"}".length(),
+				outputStream.size());
+
+		try {
+			template.newBody().set("name", "x").getContentLength();
+			fail("The slots no and ok have no values.");
+		} catch (IllegalStateException e) {
+			/* Expected */
+		}
+		try {
+			template.newBody().set("ok", "true");
+			fail("The slot ok takes a boolean.");
+		} catch (IllegalArgumentException e) {
+			/* Expected */
+		}
+		try {
+			JCurlBodyTemplate.compile("{\"a\":${a:double}}");
+			fail("There is no double slot.");
+		} catch (IllegalArgumentException e) {
+			/* Expected */
+		}
+	}
+
+	/**
+	 * This test verifies that JCurl sends a body with its own Content-Type and exact Content-Length.
+	 */
+	@Test
+	public void testSend() throws Exception {
+		final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final StringBuilder received = new StringBuilder();
+		Thread server = new Thread(() -> {
+			try (Socket socket = serverSocket.accept()) {
+				InputStream inputStream = socket.getInputStream();
+				int contentLength = 0;
+				String line;
+				while (!(line = readLine(inputStream)).isEmpty()) {
+					if (line.toLowerCase().startsWith("content-length:")) {
+						contentLength = Integer.parseInt(line.substring(15).trim());
+					}
+					received.append(line.startsWith("PUT") || line.toLowerCase().startsWith("content-") ? line + "\n"
+							: "");
+				}
+				received.append(new String(inputStream.readNBytes(contentLength), StandardCharsets.UTF_8));
+				socket.getOutputStream().write(
+						"HTTP/1.1 201 Created\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+								.getBytes(StandardCharsets.US_ASCII));
+			} catch (IOException e) {
+				received.append(e);
+			}
+		});
+		server.start();
+		try {
+			JCurlBodyTemplate template = JCurlBodyTemplate.compile("name=${name}", "text/plain; charset=utf-8");
+			JCurlRequest request = new JCurlRequest("http://127.0.0.1:" + serverSocket.getLocalPort() + "/");
+			request.setBody(template.newBody().set("name", "å"));
+			JCurlResponse response = JCurl.put(request);
+			assertEquals(201, response.getResponseCode());
+			server.join();
+			assertEquals("PUT / HTTP/1.1\nContent-Type: text/plain; charset=utf-8\nContent-Length: 7\nname=å",
+					received.toString());
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	/* Helper methods below this line */
+
+	private static String readLine(InputStream inputStream) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = inputStream.read()) >= 0 && c != '\n') {
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+}
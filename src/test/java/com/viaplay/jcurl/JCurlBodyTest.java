@@ -0,0 +1,138 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests that a JCurlBody reads the same whether it is kept on the heap or spilled to a mapped file.
+ */
+public class JCurlBodyTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * This test verifies a body below the threshold, which stays on the heap.
+	 */
+	@Test
+	public void testHeapBody() throws Exception {
+		byte[] bytes = "{\"räksmörgås\": true}".getBytes(StandardCharsets.UTF_8);
+		JCurlBody body = JCurlBody.read(new ByteArrayInputStream(bytes), 1000, folder.getRoot(), -1);
+		assertFalse(body.isSpilled());
+		assertNull(body.getFile());
+		assertEquals(bytes.length, body.size());
+		assertEquals("{\"räksmörgås\": true}", body.toString(StandardCharsets.UTF_8));
+		assertEquals('{', body.get(0));
+		assertEquals(ByteBuffer.wrap(bytes, 2, 5), body.slice(2, 5));
+		body.close();
+		try {
+			body.get(0);
+			fail("A closed body must not be read.");
+		} catch (IllegalStateException e) {
+			/* Expected */
+		}
+	}
+
+	/**
+	 * This test verifies a body above the threshold in segments of 4 KB, with reads and slices that cross segments, and
+	 * that closing it deletes the file.
+	 */
+	@Test
+	public void testSpilledBody() throws Exception {
+		byte[] bytes = new byte[100000];
+		new Random(1).nextBytes(bytes);
+		JCurlBody body = JCurlBody.read(new ByteArrayInputStream(bytes), 10000, folder.getRoot(), -1, 12);
+		assertTrue(body.isSpilled());
+		assertTrue(body.getFile().exists());
+		assertEquals(folder.getRoot(), body.getFile().getParentFile());
+		assertEquals(bytes.length, body.size());
+		assertArrayEquals(bytes, body.toByteArray());
+		assertEquals(bytes[99999], body.get(99999));
+
+		byte[] part = new byte[10000];
+		assertEquals(10000, body.read(4000, part, 0, part.length));
+		assertEquals(ByteBuffer.wrap(bytes, 4000, 10000), ByteBuffer.wrap(part));
+		assertEquals(ByteBuffer.wrap(bytes, 4090, 20), body.slice(4090, 20));
+		assertEquals(ByteBuffer.wrap(bytes, 8192, 4096), body.slice(8192, 4096));
+		assertEquals(50, body.read(99950, part, 0, part.length));
+		assertEquals(-1, body.read(100000, part, 0, part.length));
+
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		try (InputStream inputStream = body.openStream()) {
+			inputStream.transferTo(copy);
+		}
+		assertArrayEquals(bytes, copy.toByteArray());
+
+		File file = body.getFile();
+		body.close();
+		body.close();
+		assertFalse(file.exists());
+	}
+
+	/**
+	 * This test verifies that a slice that shares the mapped memory can still be read after its body has been dropped
+	 * and collected, which deletes the file but must leave the unmapping to the garbage collector.
+	 */
+	@Test
+	public void testSliceOutlivesCollectedBody() throws Exception {
+		byte[] bytes = new byte[10000];
+		new Random(2).nextBytes(bytes);
+		JCurlBody body = JCurlBody.read(new ByteArrayInputStream(bytes), 1024, folder.getRoot(), -1, 12);
+		File file = body.getFile();
+		ByteBuffer slice = body.slice(0, 4096);
+		WeakReference<JCurlBody> reference = new WeakReference<>(body);
+		body = null;
+		for (int i = 0; i < 100 && (reference.get() != null || file.exists()); i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(reference.get());
+		assertFalse(file.exists());
+		assertEquals(ByteBuffer.wrap(bytes, 0, 4096), slice);
+	}
+
+	/**
+	 * This test verifies that a body whose length is known to exceed the threshold is spilled from the start and that
+	 * JCurl hands the body to getBody() through the handler.
+	 */
+	@Test
+	public void testSpillAboveUsingBenchmarkHttpServer() throws Exception {
+		JCurlBody known = JCurlBody.read(new ByteArrayInputStream(new byte[5000]), 1000, folder.getRoot(), 5000);
+		assertTrue(known.isSpilled());
+		assertEquals(5000, known.size());
+		known.close();
+
+		BenchmarkHTTPServer server = new BenchmarkHTTPServer().setPayloadSize(100000);
+		server.startServer();
+		try {
+			for (String url : new String[] { server.getUrl() + "/", server.getUrl() + "/?chunked=true" }) {
+				JCurlRequest request = new JCurlRequest(url);
+				request.setBodyHandler(JCurlBody.spillAbove(10000, folder.getRoot()));
+				JCurlResponse response = JCurl.get(request);
+				assertEquals(200, response.getResponseCode());
+				assertEquals("", response.toString());
+				try (JCurlBody body = response.getBody()) {
+					assertTrue(body.isSpilled());
+					assertEquals(100000, body.size());
+					assertEquals(JCurl.get(url).toString(), body.toString(StandardCharsets.UTF_8) + "\n");
+				}
+			}
+			assertEquals(0, folder.getRoot().list().length);
+		} finally {
+			server.stopServer();
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * This class tests the JCurlBufferPool and the pooled reading of bodies in JCurl.
+ */
+public class JCurlBufferPoolTest {
+
+	/**
+	 * This test verifies that sizes are rounded up to their class, that released buffers are reused and that sizes
+	 * beyond the largest class are not pooled.
+	 */
+	@Test
+	public void testSizeClasses() {
+		JCurlBufferPool pool = new JCurlBufferPool(1);
+		assertEquals(1024, pool.acquireBytes(1).length);
+		assertEquals(2048, pool.acquireChars(1025).length);
+		assertEquals(8192, pool.acquireDirect(8192).capacity());
+		byte[] bytes = pool.acquireBytes(5000);
+		pool.release(bytes);
+		assertSame(bytes, pool.acquireBytes(8000));
+		assertEquals(1, pool.getReusedCount());
+
+		ByteBuffer direct = pool.acquireDirect(100);
+		direct.put((byte) 1);
+		pool.release(direct);
+		ByteBuffer again = pool.acquireDirect(1000);
+		assertSame(direct, again);
+		assertEquals(0, again.position());
+
+		byte[] huge = pool.acquireBytes(JCurlBufferPool.MAX_SIZE + 1);
+		assertEquals(JCurlBufferPool.MAX_SIZE + 1, huge.length);
+		pool.release(huge);
+		assertNotSame(huge, pool.acquireBytes(JCurlBufferPool.MAX_SIZE + 1));
+		assertEquals(7, pool.getAllocatedCount());
+	}
+
+	/**
+	 * This test verifies that leak detection reports buffers that were not released and fails on double releases.
+	 */
+	@Test
+	public void testLeakDetection() {
+		JCurlBufferPool pool = new JCurlBufferPool(2);
+		pool.setLeakDetection(true);
+		byte[] released = pool.acquireBytes(100);
+		char[] leaked = pool.acquireChars(100);
+		pool.release(released);
+		assertEquals(1, pool.getLeaks().size());
+		assertEquals("testLeakDetection", pool.getLeaks().get(0).getStackTrace()[2].getMethodName());
+		try {
+			pool.release(released);
+			fail("A double release must be detected.");
+		} catch (IllegalStateException e) {
+			/* Expected */
+		}
+		pool.release(leaked);
+		assertTrue(pool.getLeaks().isEmpty());
+	}
+
+	/**
+	 * This test verifies that the pooled reader ends lines like BufferedReader.readLine() did, also when a line break
+	 * or a character is split between two reads.
+	 */
+	@Test
+	public void testReadInputStream() throws Exception {
+		assertEquals("", read("", 8192));
+		assertEquals("a\n", read("a", 8192));
+		assertEquals("a\n", read("a\n", 8192));
+		assertEquals("a\nb\nc\n\nd\n", read("a\r\nb\rc\n\nd", 8192));
+		assertEquals("a\nb\nc\n\nd\n", read("a\r\nb\rc\n\nd", 1));
+		assertEquals("räksmörgås 😀\n", read("räksmörgås 😀", 1));
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			large.append("line ").append(i).append("\r\n");
+		}
+		assertEquals(large.toString().replace("\r\n", "\n"), read(large.toString(), 3000));
+	}
+
+	/**
+	 * This test verifies that requests with and without payload, and error responses, return all their buffers.
+	 */
+	@Test
+	public void testNoLeaksUsingBenchmarkHttpServer() {
+		JCurlBufferPool pool = JCurlBufferPool.getInstance();
+		boolean leakDetection = pool.isLeakDetection();
+		pool.setLeakDetection(true);
+		BenchmarkHTTPServer server = new BenchmarkHTTPServer().setPayloadSize(50000);
+		server.startServer();
+		try {
+			assertEquals(50001, JCurl.get(server.getUrl() + "/").toString().length());
+			assertEquals(200, JCurl.post(server.getUrl() + "/", "{\"räksmörgås\": 1}").getResponseCode());
+			assertEquals(503, JCurl.get(server.getUrl() + "/?status=503").getResponseCode());
+			assertTrue(pool.getLeaks().toString(), pool.getLeaks().isEmpty());
+		} finally {
+			server.stopServer();
+			pool.setLeakDetection(leakDetection);
+		}
+	}
+
+	/* Helper methods below this line */
+
+	private String read(String text, final int chunkSize) throws Exception {
+		final InputStream bytes = new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+		InputStream chunks = new InputStream() {
+			@Override
+			public int read() throws java.io.IOException {
+				return bytes.read();
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws java.io.IOException {
+				return bytes.read(buffer, offset, Math.min(length, chunkSize));
+			}
+		};
+		StringBuffer result = new StringBuffer();
+		JCurlClient.readInputStream(result, chunks, "UTF8", JCurlBufferPool.getInstance());
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * This class tests that a JCurlClient applies its own settings, keeps its own metrics and can be closed.
+ */
+public class JCurlClientTest {
+
+	/**
+	 * This test verifies that the requests a client creates get its defaults and that it counts its requests.
+	 */
+	@Test
+	public void testSettingsAndMetrics() {
+		JCurlCookieManager cookieManager = new JCurlCookieManager();
+		JCurlClient client = JCurlClient.builder().timeOutMillis(1234).charsetName("ISO-8859-1")
+				.cookieManager(cookieManager).header("Accept", "text/plain").build();
+		JCurlRequest request = client.newRequest("http://localhost:1962/");
+		assertEquals(1234, request.getTimeOutMillis());
+		assertEquals("ISO-8859-1", request.getCharsetName());
+		assertSame(cookieManager, request.getCookieManager());
+
+		BenchmarkHTTPServer server = new BenchmarkHTTPServer().setPayloadSize(10).startServer();
+		try {
+			assertEquals(200, client.get(server.getUrl() + "/").getResponseCode());
+			assertEquals(500, client.get(server.getUrl() + "/?status=500").getResponseCode());
+			assertEquals(2, client.getRequestCount());
+			assertEquals(1, client.getErrorCount());
+			assertEquals(0, client.getInFlightCount());
+			assertEquals(0, JCurlClient.builder().build().getRequestCount());
+		} finally {
+			server.stopServer();
+		}
+	}
+
+	/**
+	 * This test verifies that a closed client refuses requests and that the default client cannot be closed.
+	 */
+	@Test
+	public void testClose() {
+		JCurlClient client = JCurlClient.builder().build();
+		client.close();
+		assertTrue(client.isClosed());
+		try {
+			client.get("http://localhost:1962/");
+			fail("The client is closed.");
+		} catch (IllegalStateException e) {
+			/* Expected */
+		}
+		try {
+			JCurlClient.getDefault().close();
+			fail("The default client is shared.");
+		} catch (UnsupportedOperationException e) {
+			/* Expected */
+		}
+		assertFalse(JCurlClient.getDefault().isClosed());
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.viaplay.jcurl.exception.JCurlRejectedException;
+
+/**
+ * This class tests that a JCurlConcurrencyLimiter keeps the requests to an origin under a limit that follows the
+ * health of the origin.
+ */
+public class JCurlConcurrencyLimiterTest {
+
+	/**
+	 * This test verifies that the AIMD limit rejects requests above it, grows with successful responses and is cut by
+	 * drops.
+	 */
+	@Test
+	public void testAimd() throws Exception {
+		JCurlConcurrencyLimiter limiter = JCurlConcurrencyLimiter.builder()
+				.algorithm(JCurlConcurrencyLimiter.Algorithm.AIMD).initialLimit(4).build();
+		URL url = URI.create("http://127.0.0.1:1234/some/path").toURL();
+		String origin = "http://127.0.0.1:1234";
+		List<JCurlConcurrencyLimiter.Permit> permits = new ArrayList<JCurlConcurrencyLimiter.Permit>();
+		for (int i = 0; i < 4; i++) {
+			permits.add(limiter.acquire(url));
+		}
+		assertEquals(4, limiter.getInFlight(origin));
+		assertNull("The fifth request is above the limit", limiter.acquire(url));
+		assertEquals(1, limiter.getRejectedCount());
+		for (int round = 0; round < 2; round++) {
+			for (JCurlConcurrencyLimiter.Permit permit : permits) {
+				permit.release(200);
+			}
+			permits.clear();
+			for (int i = 0; i < 4; i++) {
+				permits.add(limiter.acquire(url));
+			}
+		}
+		for (JCurlConcurrencyLimiter.Permit permit : permits) {
+			permit.release(200);
+		}
+		assertEquals("Responses at the limit add about one per round", 5, limiter.getLimit(origin));
+		for (int i = 0; i < 10; i++) {
+			limiter.acquire(url).release(503);
+		}
+		assertEquals(1, limiter.getLimit(origin));
+		assertEquals(10, limiter.getDropCount());
+		assertEquals(0, limiter.getInFlight(origin));
+
+		/* A client answers a rejected request with 503 without sending it */
+		try (BenchmarkHTTPServer server = new BenchmarkHTTPServer().startServer()) {
+			JCurlClient client = JCurlClient.builder().concurrencyLimiter(JCurlConcurrencyLimiter.builder()
+					.initialLimit(1).maxLimit(1).build()).build();
+			JCurlConcurrencyLimiter.Permit held = client.getConcurrencyLimiter().acquire(
+					URI.create(server.getUrl()).toURL());
+			assertEquals(503, client.get(server.getUrl() + "/").getResponseCode());
+			JCurlRequest request = client.newRequest(server.getUrl() + "/");
+			request.setExceptionsToBeThrown(true);
+			try {
+				client.get(request);
+				fail("The origin is at its limit.");
+			} catch (JCurlRejectedException e) {
+				/* Expected */
+			}
+			assertEquals(0, server.getRequestCount());
+			held.release(200);
+			assertEquals(200, client.get(server.getUrl() + "/").getResponseCode());
+			client.close();
+		}
+	}
+
+	/**
+	 * This test verifies against the benchmark server that the gradient limit shrinks when the capacity of the origin
+	 * drops and requests start to queue there, and that it recovers when the capacity is back.
+	 */
+	@Test
+	public void testGradientRecovery() throws Exception {
+		try (BenchmarkHTTPServer server = new BenchmarkHTTPServer().setLatency(BenchmarkHTTPServer.Latency.fixed(10))
+				.setCapacity(40).startServer()) {
+			JCurlConcurrencyLimiter limiter = JCurlConcurrencyLimiter.builder().initialLimit(10).maxLimit(200)
+					.smoothing(0.5).queueSize(1000).maxWaitMillis(10000).build();
+			final JCurlClient client = JCurlClient.builder().concurrencyLimiter(limiter).build();
+			final String url = server.getUrl() + "/";
+			String origin = server.getUrl();
+			final AtomicBoolean running = new AtomicBoolean(true);
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < 100; i++) {
+				threads.add(Thread.ofVirtual().start(() -> {
+					while (running.get()) {
+						client.get(url);
+					}
+				}));
+			}
+			try {
+				Thread.sleep(1500);
+				int healthy = limiter.getLimit(origin);
+				server.setCapacity(2);
+				int degraded = healthy;
+				for (int i = 0; i < 75; i++) {
+					Thread.sleep(20);
+					degraded = Math.min(degraded, limiter.getLimit(origin));
+				}
+				server.setCapacity(40);
+				Thread.sleep(1500);
+				int recovered = limiter.getLimit(origin);
+				assertTrue("The limit grows on a healthy origin", healthy > 10);
+				assertTrue("The limit shrinks when the origin slows down", degraded < healthy / 2);
+				assertTrue("The limit recovers", recovered > degraded * 2);
+			} finally {
+				running.set(false);
+				for (Thread thread : threads) {
+					thread.join();
+				}
+			}
+			client.close();
+		}
+	}
+
+}
@@ -0,0 +1,354 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * This class tests how the JCurlCookieManager stores cookies and picks the ones that are sent with each request.
+ */
+public class JCurlCookieManagerTest {
+
+	/**
+	 * This test verifies that cookies are matched on whole domain labels and on the path prefix.
+	 */
+	@Test
+	public void testDomainAndPathMatching() {
+		JCurlCookieManager cookieManager = new JCurlCookieManager();
+		cookieManager.addCookie(new JCurlCookie(null, "Global", "1"));
+		cookieManager.addCookie(new JCurlCookie("viaplay.se", "Domain", "2", "/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie(".viaplay.se", "Dotted", "3", "/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("www.viaplay.se", "Host", "4", "/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("viaplay.se", "Player", "5", "/player/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("notviaplay.se", "Other", "6", "/", null, false, false));
+
+		assertEquals("Domain=2; Dotted=3; Host=4; Global=1", cookieHeader(cookieManager, "http://www.viaplay.se/"));
+		assertEquals("Domain=2; Dotted=3; Global=1", cookieHeader(cookieManager, "http://VIAPLAY.se"));
+		assertEquals("Player=5; Domain=2; Dotted=3; Global=1",
+				cookieHeader(cookieManager, "http://viaplay.se/player/123"));
+		assertEquals("Global=1", cookieHeader(cookieManager, "http://viaplay.no/player/123"));
+		assertEquals("Other=6; Global=1", cookieHeader(cookieManager, "http://notviaplay.se/"));
+	}
+
+	/**
+	 * This test verifies that a cookie with the same domain, path and name replaces the old one and that the rendered
+	 * header is not reused after the jar has changed or a cookie has expired.
+	 */
+	@Test
+	public void testReplaceRemoveAndExpire() {
+		JCurlCookieManager cookieManager = new JCurlCookieManager();
+		cookieManager.addCookie(new JCurlCookie("localhost", "Session", "a", "/", null, false, false));
+		assertEquals("Session=a", cookieHeader(cookieManager, "http://localhost/"));
+
+		cookieManager.addCookie(new JCurlCookie("localhost", "Session", "b", "/", null, false, false));
+		assertEquals(1, cookieManager.getCookieMap().size());
+		assertEquals("Session=b", cookieHeader(cookieManager, "http://localhost/"));
+
+		JCurlCookie shortLived = new JCurlCookie("localhost", "Short", "c", "/", new Date(
+				System.currentTimeMillis() + 300), false, false);
+		cookieManager.addCookie(shortLived);
+		assertEquals("Session=b; Short=c", cookieHeader(cookieManager, "http://localhost/"));
+		sleep(400);
+		assertEquals("Session=b", cookieHeader(cookieManager, "http://localhost/"));
+
+		assertTrue(cookieManager.removeCookie(new JCurlCookie("localhost", "Session", null, "/", null, false, false)));
+		assertNull(cookieHeader(cookieManager, "http://localhost/"));
+
+		cookieManager.addCookie(new JCurlCookie("localhost", "Session", "d", "/", null, false, false));
+		cookieManager.reset();
+		assertNull(cookieHeader(cookieManager, "http://localhost/"));
+	}
+
+	/**
+	 * This test verifies that a large jar still only yields the cookies of the requested host.
+	 */
+	@Test
+	public void testLargeJar() {
+		JCurlCookieManager cookieManager = new JCurlCookieManager();
+		for (int i = 0; i < 10000; i++) {
+			cookieManager.addCookie(new JCurlCookie("host" + i + ".viaplay.se", "Cookie" + i, "v" + i, "/", null,
+					false, false));
+		}
+		assertEquals(10000, cookieManager.getCookieMap().size());
+		assertEquals("Cookie4711=v4711", cookieHeader(cookieManager, "http://host4711.viaplay.se/index.html"));
+		assertNull(cookieHeader(cookieManager, "http://host10000.viaplay.se/index.html"));
+	}
+
+	/**
+	 * This test verifies that the least recently used cookie is evicted when a domain or the jar is full, and that
+	 * expired cookies are swept from the jar without being looked up.
+	 */
+	@Test
+	public void testBoundedJar() {
+		JCurlCookieManager cookieManager = new JCurlCookieManager();
+		cookieManager.setMaxCookiesPerDomain(2);
+		cookieManager.addCookie(new JCurlCookie("localhost", "A", "1", "/a", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("localhost", "B", "2", "/b", null, false, false));
+		assertEquals("A=1", cookieHeader(cookieManager, "http://localhost/a"));
+		cookieManager.addCookie(new JCurlCookie("localhost", "C", "3", "/c", null, false, false));
+		assertEquals(2, cookieManager.getCookieCount());
+		assertEquals(1, cookieManager.getEvictedCount());
+		assertEquals("A=1", cookieHeader(cookieManager, "http://localhost/a"));
+		assertNull(cookieHeader(cookieManager, "http://localhost/b"));
+
+		cookieManager.reset();
+		cookieManager.setMaxCookiesPerDomain(Integer.MAX_VALUE);
+		cookieManager.setMaxCookies(3);
+		for (int i = 1; i <= 3; i++) {
+			cookieManager.addCookie(new JCurlCookie("host" + i, "Cookie", "" + i, "/", null, false, false));
+		}
+		assertEquals("Cookie=1", cookieHeader(cookieManager, "http://host1/"));
+		cookieManager.addCookie(new JCurlCookie("host4", "Cookie", "4", "/", null, false, false));
+		assertEquals(3, cookieManager.getCookieCount());
+		assertEquals("Cookie=1", cookieHeader(cookieManager, "http://host1/"));
+		assertNull(cookieHeader(cookieManager, "http://host2/"));
+		cookieManager.setMaxCookies(1);
+		assertEquals(1, cookieManager.getCookieCount());
+		assertEquals(3, cookieManager.getEvictedCount());
+
+		cookieManager.reset();
+		cookieManager.setMaxCookies(Integer.MAX_VALUE);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 100; i++) {
+			cookieManager.addCookie(new JCurlCookie("localhost", "Short" + i, "v", "/", new Date(now + 50), false,
+					false));
+		}
+		cookieManager.addCookie(new JCurlCookie("localhost", "Replaced", "v", "/", new Date(now + 50), false, false));
+		cookieManager.addCookie(new JCurlCookie("localhost", "Replaced", "v", "/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("localhost", "Long", "v", "/", new Date(now + 3600000), false, false));
+		assertEquals(102, cookieManager.getCookieCount());
+		for (int i = 0; i < 50 && cookieManager.getCookieCount() > 2; i++) {
+			sleep(50);
+			cookieHeader(cookieManager, "http://other/");
+		}
+		assertEquals(2, cookieManager.getCookieCount());
+		assertEquals(100, cookieManager.getExpiredCount());
+		assertEquals("Replaced=v; Long=v", cookieHeader(cookieManager, "http://localhost/"));
+
+		/* A cookie that expired before 1970 can be replaced */
+		cookieManager.addCookie(new JCurlCookie("localhost", "Old", "v", "/", new Date(-86400000L), false, false));
+		cookieManager.addCookie(new JCurlCookie("localhost", "Old", "v", "/", null, false, false));
+		assertEquals("Replaced=v; Long=v; Old=v", cookieHeader(cookieManager, "http://localhost/"));
+	}
+
+	/**
+	 * This test verifies that the compact store matches, replaces, removes and expires cookies like the default store.
+	 */
+	@Test
+	public void testCompactStore() {
+		JCurlCookieManager cookieManager = new JCurlCookieManager(new JCurlCompactCookieStore());
+		cookieManager.addCookie(new JCurlCookie(null, "Global", "1"));
+		cookieManager.addCookie(new JCurlCookie("viaplay.se", "Domain", "2", "/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("www.viaplay.se", "Host", "4", "/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("viaplay.se", "Player", "5", "/player/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("notviaplay.se", "Other", "6", "/", null, false, false));
+		assertEquals("Domain=2; Host=4; Global=1", cookieHeader(cookieManager, "http://www.viaplay.se/"));
+		assertEquals("Player=5; Domain=2; Global=1", cookieHeader(cookieManager, "http://viaplay.se/player/123"));
+		assertEquals("Other=6; Global=1", cookieHeader(cookieManager, "http://notviaplay.se/"));
+
+		JCurlCookie session = JCurlCookieParser.parse("Domain=\u00e5\u00e4\u00f6; Domain=viaplay.se; Path=/; HttpOnly; SameSite=Lax",
+				System.currentTimeMillis());
+		assertEquals("2", cookieManager.getCookieMap().get(JCurlCookieIndex.keyOf(session)).getValue());
+		cookieManager.addCookie(session);
+		assertEquals(5, cookieManager.getCookieCount());
+		JCurlCookie stored = cookieManager.getCookieMap().get(JCurlCookieIndex.keyOf(session));
+		assertEquals("\u00e5\u00e4\u00f6", stored.getValue());
+		assertTrue(stored.getHttp());
+		assertEquals("Lax", stored.getSameSite());
+		assertEquals("\u00e5\u00e4\u00f6", cookieManager.getCookie(session).getValue());
+		assertNull(cookieManager.getCookie(new JCurlCookie("viaplay.se", "Domain", null, "/unknown/", null, false,
+				false)));
+		assertEquals("Player=5; Domain=\u00e5\u00e4\u00f6; Global=1",
+				cookieHeader(cookieManager, "http://viaplay.se/player/"));
+
+		assertTrue(cookieManager.removeCookie(new JCurlCookie("viaplay.se", "Player", null, "/player/", null, false,
+				false)));
+		assertFalse(cookieManager.removeCookie(new JCurlCookie("unknown.se", "Player", null, "/player/", null, false,
+				false)));
+		cookieManager.addCookie(new JCurlCookie("viaplay.se", "Short", "7", "/", new Date(
+				System.currentTimeMillis() + 100), false, false));
+		assertEquals("Domain=\u00e5\u00e4\u00f6; Short=7; Global=1", cookieHeader(cookieManager, "http://viaplay.se/"));
+		sleep(150);
+		assertEquals("Domain=\u00e5\u00e4\u00f6; Global=1", cookieHeader(cookieManager, "http://viaplay.se/"));
+		cookieManager.reset();
+		assertEquals(0, cookieManager.getCookieCount());
+		try {
+			cookieManager.setMaxCookies(10);
+			fail("Expecting UnsupportedOperationException to be thrown.");
+		} catch (UnsupportedOperationException e) {
+			assertContains("JCurlCompactCookieStore", e.getMessage());
+		}
+	}
+
+	/**
+	 * This test verifies that the Set-Cookie parser keeps values with '=', reads all attributes and lets Max-Age take
+	 * precedence over Expires.
+	 */
+	@Test
+	public void testSetCookieParser() {
+		long now = System.currentTimeMillis();
+		JCurlCookie cookie = JCurlCookieParser.parse(
+				" token = dGVzdA==; Expires=Wed, 21 Oct 2015 07:28:00 GMT; Max-Age=60; domain=.Viaplay.se; "
+						+ "path=/api; secure; HttpOnly; SameSite=Strict", now);
+		assertEquals("token", cookie.getName());
+		assertEquals("dGVzdA==", cookie.getValue());
+		assertEquals(now + 60000, cookie.getExpiryDate().getTime());
+		assertEquals("viaplay.se", cookie.getDomain());
+		assertEquals("/api", cookie.getPath());
+		assertTrue(cookie.getSecure());
+		assertTrue(cookie.getHttp());
+		assertEquals("Strict", cookie.getSameSite());
+
+		cookie = JCurlCookieParser.parse("gone=; Max-Age=0; Path=relative; Max-Age=invalid", now);
+		assertEquals("", cookie.getValue());
+		assertTrue(cookie.isExpired(now));
+		assertNull(cookie.getPath());
+
+		assertNull(JCurlCookieParser.parse("no-equals-sign; Path=/", now));
+		assertNull(JCurlCookieParser.parse("=nameless", now));
+	}
+
+	/**
+	 * This test verifies the date formats that RFC 6265 accepts and that dates are parsed correctly by several threads
+	 * at once.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCookieDates() throws Exception {
+		final long expected = 784111777000L;
+		assertEquals(expected, JCurlCookie.parseDate("Sun, 06 Nov 1994 08:49:37 GMT").getTime());
+		assertEquals(expected, JCurlCookie.parseDate("Sunday, 06-Nov-94 08:49:37 GMT").getTime());
+		assertEquals(expected, JCurlCookie.parseDate("Sun Nov  6 08:49:37 1994").getTime());
+		assertEquals(expected, JCurlCookie.parseDate("Mon, 06 Nov 1994 08:49:37 GMT").getTime());
+		assertEquals(expected, JCurlCookie.parseDate("6 november 1994 8:49:37").getTime());
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", JCurlCookie.formatDate(new Date(expected)));
+		try {
+			JCurlCookie.parseDate("Sun, 31 Feb 1994 08:49:37 GMT");
+			fail("Expecting ParseException to be thrown.");
+		} catch (java.text.ParseException e) {
+			assertContains("31 Feb", e.getMessage());
+		}
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final long time = expected + t * 86400000L;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < 2000; i++) {
+							assertEquals(time, JCurlCookie.parseDate(JCurlCookie.formatDate(new Date(time))).getTime());
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+
+	/**
+	 * This test lets several threads add, replace, remove and read cookies and look up instances at the same time. No
+	 * exception may be thrown, every thread must get the same instance for the same id and every cookie that is not
+	 * removed must be sent afterwards.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final int threads = 8;
+		final int iterations = 1000;
+		final JCurlCookieManager cookieManager = new JCurlCookieManager();
+		final JCurlCookieManager[] instances = new JCurlCookieManager[threads];
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						barrier.await();
+						instances[thread] = JCurlCookieManager.getInstance("testConcurrentAccess");
+						String domain = "host" + thread + ".viaplay.se";
+						for (int i = 0; i < iterations; i++) {
+							cookieManager.addCookie(new JCurlCookie(domain, "Cookie" + i, "v" + i, "/", null, false,
+									false));
+							cookieManager.addCookie(new JCurlCookie("viaplay.se", "Shared", "t" + thread, "/", null,
+									false, false));
+							if (i % 2 == 1) {
+								cookieManager.removeCookie(new JCurlCookie(domain, "Cookie" + (i - 1), null, "/",
+										null, false, false));
+							}
+							assertNotNull(cookieHeader(cookieManager, "http://" + domain + "/"));
+							if (i % 100 == 0) {
+								for (JCurlCookie cookie : cookieManager.getCookieMap().values()) {
+									assertNotNull(cookie.getName());
+								}
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		barrier.await();
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		for (int t = 0; t < threads; t++) {
+			assertSame(instances[0], instances[t]);
+		}
+		assertEquals(threads * iterations / 2 + 1, cookieManager.getCookieMap().size());
+		for (int t = 0; t < threads; t++) {
+			String header = cookieHeader(cookieManager, "http://host" + t + ".viaplay.se/");
+			assertEquals(iterations / 2 + 1, header.split("; ").length);
+			assertTrue(header.contains("Cookie" + (iterations - 1) + "="));
+			assertFalse(header.contains("Cookie" + (iterations - 2) + "="));
+		}
+
+		cookieManager.reset();
+		assertEquals(0, cookieManager.getCookieMap().size());
+	}
+
+	/* Helper methods below this line */
+
+	private String cookieHeader(JCurlCookieManager cookieManager, String url) {
+		JCurlRequest request = new JCurlRequest(url);
+		cookieManager.updateCookies(request);
+		return request.getProperties().get("Cookie");
+	}
+
+	private void assertContains(String expected, String was) {
+		assertTrue("The expected " + expected + " string is not part of " + was, was.indexOf(expected) != -1);
+	}
+
+	private void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
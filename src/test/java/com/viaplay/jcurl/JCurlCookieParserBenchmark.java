@@ -0,0 +1,110 @@
+package com.viaplay.jcurl;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * This JMH benchmark compares the single pass JCurlCookieParser with the split based parser that the
+ * JCurlCookieManager used before. The legacy parser is kept here as it was, apart from synchronizing on its
+ * SimpleDateFormat so that the benchmark can run it from several threads without corrupting the dates.
+ * <p>
+ * Run it with the main method or <code>java -cp target/test-classes:... org.openjdk.jmh.Main JCurlCookieParser</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JCurlCookieParserBenchmark {
+	private static final SimpleDateFormat LEGACY_DATE_FORMAT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+			Locale.ENGLISH);
+
+	static {
+		LEGACY_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+	}
+
+	@Param({ "SimpleCookie=SimpleCookieValue",
+			"NotExpiredCookie=NotExpiredCookieValue; Expires=Wed, 21 Oct 2026 07:28:00 GMT; Path=/; Domain=viaplay.se; Secure",
+			"session=dGhpcyBpcyBhIHNlc3Npb24gdG9rZW4=; Path=/; Max-Age=3600; Expires=Wed, 21 Oct 2026 07:28:00 GMT; Secure; HttpOnly; SameSite=Lax" })
+	public String setCookie;
+
+	@Benchmark
+	public JCurlCookie singlePass() {
+		return JCurlCookieParser.parse(setCookie, System.currentTimeMillis());
+	}
+
+	@Benchmark
+	public JCurlCookie legacySplit() {
+		return legacyCreateCookie(setCookie);
+	}
+
+	/**
+	 * This is the createCookie method of the JCurlCookieManager before the single pass parser.
+	 */
+	private static JCurlCookie legacyCreateCookie(String cookieString) {
+		String[] cookieValueArray = cookieString.split(";");
+		String name = null;
+		String value = null;
+		String domain = null;
+		String cookieName = "";
+		String cookieValue = "";
+		Date expires = null;
+		String path = null;
+		boolean http = false;
+		boolean secure = false;
+		for (int i = 0; i < cookieValueArray.length; i++) {
+			String nameValueString = cookieValueArray[i];
+			String[] nameValue = nameValueString.split("=");
+			name = nameValue[0].trim();
+			value = nameValue.length > 1 ? nameValue[1].trim() : null;
+			if (i == 0) {
+				cookieName = name;
+				cookieValue = value;
+			} else {
+				if ("Domain".equalsIgnoreCase(name)) {
+					domain = "".equals(value) ? null : value;
+				}
+				if ("Path".equalsIgnoreCase(name)) {
+					path = "".equals(value) ? null : value;
+				}
+				if ("Expires".equalsIgnoreCase(name)) {
+					try {
+						synchronized (LEGACY_DATE_FORMAT) {
+							expires = LEGACY_DATE_FORMAT.parse(value);
+						}
+					} catch (ParseException e) {
+						expires = null;
+					}
+				}
+				if ("Secure".equalsIgnoreCase(name)) {
+					secure = true;
+				}
+			}
+		}
+		return new JCurlCookie(domain, cookieName, cookieValue, path, expires, http, secure);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(JCurlCookieParserBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class tests that the cookies of a JCurlCookieManager survive a save and load, and a restart with a journal.
+ */
+public class JCurlCookieSnapshotTest {
+	Logger log = LoggerFactory.getLogger(JCurlCookieSnapshotTest.class);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * This test saves a jar in both formats and verifies that the cookies and their attributes are loaded back, except
+	 * the ones that have expired.
+	 */
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		JCurlCookieManager cookieManager = new JCurlCookieManager();
+		JCurlCookie session = JCurlCookieParser.parse(
+				"session=dGVzdA==; Domain=.viaplay.se; Path=/api; Secure; HttpOnly; SameSite=Lax; Max-Age=3600",
+				System.currentTimeMillis());
+		cookieManager.addCookie(session);
+		cookieManager.addCookie(new JCurlCookie("localhost", "Plain", "1", "/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("localhost", "Expiring", "2", "/", new Date(
+				System.currentTimeMillis() + 50), false, false));
+
+		File binary = folder.newFile("cookies.bin");
+		File netscape = folder.newFile("cookies.txt");
+		assertEquals(3, JCurlCookieSnapshot.save(cookieManager, binary, JCurlCookieSnapshot.Format.BINARY));
+		assertEquals(3, JCurlCookieSnapshot.save(cookieManager, netscape, JCurlCookieSnapshot.Format.NETSCAPE));
+		/* A malformed line does not keep the other cookies of a cookies.txt from being loaded */
+		Files.write(netscape.toPath(), "localhost\tFALSE\t/\tFALSE\tnever\tBroken\t3\n".getBytes(
+				StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		Thread.sleep(100);
+
+		for (File file : new File[] { binary, netscape }) {
+			JCurlCookieManager restored = new JCurlCookieManager();
+			assertEquals(2, JCurlCookieSnapshot.load(restored, file));
+			JCurlCookie cookie = restored.getCookieMap().get(JCurlCookieIndex.keyOf(session));
+			assertEquals("dGVzdA==", cookie.getValue());
+			assertEquals("viaplay.se", cookie.getDomain());
+			assertEquals("/api", cookie.getPath());
+			assertTrue(cookie.getSecure());
+			assertTrue(cookie.getHttp());
+			assertTrue(cookie.isDomainAttributeSpecified());
+			/* The Netscape format only has seconds */
+			assertEquals(session.getExpiryDate().getTime() / 1000, cookie.getExpiryDate().getTime() / 1000);
+			assertEquals("Plain=1", cookieHeader(restored, "http://localhost/"));
+		}
+	}
+
+	/**
+	 * This test journals changes, restarts from the snapshot and journal and verifies that a record that was only partly
+	 * written is discarded.
+	 */
+	@Test
+	public void testJournalReplay() throws Exception {
+		File file = new File(folder.getRoot(), "cookies.bin");
+		JCurlCookieManager cookieManager = new JCurlCookieManager();
+		JCurlCookieJournal journal = JCurlCookieJournal.open(cookieManager, file);
+		cookieManager.addCookie(new JCurlCookie("localhost", "A", "1", "/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("localhost", "B", "2", "/", null, false, false));
+		journal.compact();
+		assertEquals(0, journal.getRecordCount());
+		cookieManager.addCookie(new JCurlCookie("localhost", "A", "3", "/", null, false, false));
+		cookieManager.removeCookie(new JCurlCookie("localhost", "B", null, "/", null, false, false));
+		cookieManager.addCookie(new JCurlCookie("localhost", "C", "4", "/", null, false, false));
+		assertEquals(3, journal.getRecordCount());
+		journal.close();
+
+		File journalFile = new File(file.getPath() + ".journal");
+		try (RandomAccessFile torn = new RandomAccessFile(journalFile, "rw")) {
+			torn.setLength(torn.length() - 3);
+		}
+
+		JCurlCookieManager restarted = new JCurlCookieManager();
+		journal = JCurlCookieJournal.open(restarted, file);
+		assertEquals(2, journal.getRecordCount());
+		assertEquals("A=3", cookieHeader(restarted, "http://localhost/"));
+		restarted.reset();
+		restarted.addCookie(new JCurlCookie("localhost", "D", "5", "/", null, false, false));
+		journal.close();
+
+		restarted = new JCurlCookieManager();
+		JCurlCookieJournal.open(restarted, file).close();
+		assertEquals("D=5", cookieHeader(restarted, "http://localhost/"));
+	}
+
+	/**
+	 * This test verifies that a jar with 100000 cookies is restored quickly.
+	 */
+	@Test
+	public void testLargeRestore() throws Exception {
+		JCurlCookieManager cookieManager = new JCurlCookieManager();
+		List<JCurlCookie> cookies = new ArrayList<JCurlCookie>();
+		Date expires = new Date(System.currentTimeMillis() + 3600000);
+		for (int i = 0; i < 100000; i++) {
+			cookies.add(new JCurlCookie("user" + (i % 1000) + ".viaplay.se", "Cookie" + i, "value" + i, "/", expires,
+					false, true));
+		}
+		cookieManager.addCookies(cookies);
+		File file = folder.newFile("large.bin");
+		JCurlCookieSnapshot.save(cookieManager, file, JCurlCookieSnapshot.Format.BINARY);
+
+		long start = System.nanoTime();
+		JCurlCookieManager restored = new JCurlCookieManager();
+		assertEquals(100000, JCurlCookieSnapshot.load(restored, file));
+		long millis = (System.nanoTime() - start) / 1000000;
+		log.info("Restored 100000 cookies from {} bytes in {} ms", file.length(), millis);
+		assertEquals(100000, restored.getCookieCount());
+		assertTrue(cookieHeader(restored, "http://user42.viaplay.se/").contains("Cookie99042=value99042"));
+		assertTrue("Restoring took " + millis + " ms", millis < 5000);
+	}
+
+	/* Helper methods below this line */
+
+	private String cookieHeader(JCurlCookieManager cookieManager, String url) {
+		JCurlRequest request = new JCurlRequest(url);
+		cookieManager.updateCookies(request);
+		return request.getProperties().get("Cookie");
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.viaplay.jcurl;
+
+import java.util.Date;
+import java.util.function.Supplier;
+
+/**
+ * This benchmark measures the heap that a cookie manager per session costs with the default store and with the
+ * JCurlCompactCookieStore, at 1k, 100k and 1M sessions. Each session holds five cookies like the ones of a logged in
+ * user. Run it with a large heap, e.g. <code>-Xmx4g</code>, the default store is skipped at the sizes it would not fit.
+ */
+public class JCurlCookieStoreMemoryBenchmark {
+	private static final int[] SESSIONS = { 1000, 100000, 1000000 };
+
+	public static void main(String[] args) {
+		long defaultBytesPerSession = 0;
+		for (int sessions : SESSIONS) {
+			long maxHeap = Runtime.getRuntime().maxMemory();
+			if (defaultBytesPerSession == 0 || defaultBytesPerSession * sessions < maxHeap / 2) {
+				defaultBytesPerSession = measure("JCurlCookieIndex", sessions, () -> new JCurlCookieManager());
+			} else {
+				System.out.printf("%-24s %,10d sessions: skipped, it needs about %,d MB%n", "JCurlCookieIndex",
+						sessions, defaultBytesPerSession * sessions >> 20);
+			}
+			measure("JCurlCompactCookieStore", sessions, () -> new JCurlCookieManager(new JCurlCompactCookieStore()));
+		}
+		System.out.printf("The compact stores share a dictionary of %d strings%n",
+				JCurlCompactCookieStore.getDictionarySize());
+	}
+
+	private static long measure(String name, int sessions, Supplier<JCurlCookieManager> factory) {
+		long before = usedHeap();
+		JCurlCookieManager[] managers = new JCurlCookieManager[sessions];
+		Date expires = new Date(System.currentTimeMillis() + 86400000L);
+		for (int i = 0; i < sessions; i++) {
+			JCurlCookieManager cookieManager = factory.get();
+			cookieManager.addCookie(new JCurlCookie("www.viaplay.se", "JSESSIONID", String.format("%032x", i
+					* 0x9E3779B97F4A7C15L), "/", null, true, true));
+			cookieManager.addCookie(new JCurlCookie("www.viaplay.se", "csrf", "c" + Long.toString(i * 31L, 36)
+					+ "Zk8pQ2wL9xYv3RbT7nM4sJ6hF1dGqWe", "/", null, false, true));
+			cookieManager.addCookie(new JCurlCookie("viaplay.se", "lang", "sv", "/", expires, false, false));
+			cookieManager.addCookie(new JCurlCookie("viaplay.se", "consent", "1", "/", expires, false, false));
+			cookieManager.addCookie(new JCurlCookie("viaplay.se", "ab", i % 2 == 0 ? "A" : "B", "/player/", expires,
+					false, false));
+			managers[i] = cookieManager;
+		}
+		long bytesPerSession = (usedHeap() - before) / sessions;
+		System.out.printf("%-24s %,10d sessions: %,6d bytes per session%n", name, sessions, bytesPerSession);
+		if (!cookieHeader(managers[sessions - 1]).contains("JSESSIONID=")) {
+			throw new IllegalStateException("The last session lost its cookies.");
+		}
+		return bytesPerSession;
+	}
+
+	private static String cookieHeader(JCurlCookieManager cookieManager) {
+		JCurlRequest request = new JCurlRequest("http://www.viaplay.se/");
+		cookieManager.updateCookies(request);
+		return request.getProperties().get("Cookie");
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+
+}
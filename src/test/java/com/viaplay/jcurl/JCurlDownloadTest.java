@@ -0,0 +1,174 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.viaplay.jcurl.exception.JCurlIOException;
+
+/**
+ * This class tests that a JCurlDownload assembles a resource from concurrent range requests, retries broken segments
+ * and does not mix versions of a resource.
+ */
+public class JCurlDownloadTest {
+	private static final int SIZE = 1000000;
+
+	private BenchmarkHTTPServer server;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new BenchmarkHTTPServer().setPayloadSize(SIZE).setRanges(true).startServer();
+		file = File.createTempFile("JCurlDownloadTest", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+		file.delete();
+	}
+
+	/**
+	 * This test verifies that the segments are written at their offsets and that a broken segment is retried from
+	 * where it stopped.
+	 */
+	@Test
+	public void testSegments() throws IOException {
+		JCurlDownload download = new JCurlDownload(server.getUrl() + "/", file).setSegments(4)
+				.setMinSegmentSize(100000).run();
+		assertEquals(4, download.getSegmentCount());
+		assertEquals(SIZE, download.getContentLength());
+		assertEquals("\"1\"", download.getETag());
+		assertPayload();
+
+		server.setFailures(2, 50000);
+		long sent = server.getBytesSent();
+		download = new JCurlDownload(server.getUrl() + "/", file).setSegments(4).setMinSegmentSize(100000).run();
+		assertEquals(2, download.getRetryCount());
+		assertEquals(SIZE, download.getBytesReceived());
+		assertEquals("Only the missing parts are fetched again", SIZE, server.getBytesSent() - sent);
+		assertPayload();
+	}
+
+	/**
+	 * This test verifies that a download fails and deletes its file when the resource changes, and that a host without
+	 * ranges is read with one request.
+	 */
+	@Test
+	public void testChangedAndUnranged() throws IOException {
+		/* The ETag changes once the HEAD request has been answered */
+		final AtomicInteger calls = new AtomicInteger();
+		server.setLatency(random -> {
+			if (calls.incrementAndGet() == 2) {
+				server.setETag("\"2\"");
+			}
+			return 0;
+		});
+		try {
+			new JCurlDownload(server.getUrl() + "/", file).setSegments(4).setMinSegmentSize(100000).run();
+			fail("The ETag changed during the download.");
+		} catch (JCurlIOException e) {
+			assertFalse(file.exists());
+		}
+
+		server.setRanges(false);
+		JCurlDownload download = new JCurlDownload(server.getUrl() + "/", file).setSegments(4).run();
+		assertEquals(1, download.getSegmentCount());
+		assertPayload();
+	}
+
+	/**
+	 * This test verifies that a resumable download that fails keeps its progress, that the next run only fetches the
+	 * missing bytes and that a changed resource is fetched again from the start.
+	 */
+	@Test
+	public void testResume() throws IOException {
+		File progressFile = new File(file.getPath() + JCurlDownload.PROGRESS_SUFFIX);
+		try {
+			for (String etag : new String[] { "\"1\"", "\"2\"" }) {
+				server.setFailures(4, 100000);
+				try {
+					new JCurlDownload(server.getUrl() + "/", file).setSegments(4).setMinSegmentSize(100000)
+							.setRetries(0).setResumable(true).run();
+					fail("Every segment breaks and none may be retried.");
+				} catch (JCurlIOException e) {
+					assertTrue(file.exists());
+					assertTrue(progressFile.exists());
+				}
+
+				server.setFailures(0, 0).setETag(etag);
+				long sent = server.getBytesSent();
+				JCurlDownload download = new JCurlDownload(server.getUrl() + "/", file).setSegments(4)
+						.setResumable(true).run();
+				if (etag.equals("\"1\"")) {
+					assertTrue(download.getResumedBytes() >= 100000);
+				} else {
+					assertEquals("A changed resource starts over", 0, download.getResumedBytes());
+				}
+				assertEquals(SIZE - download.getResumedBytes(), server.getBytesSent() - sent);
+				assertFalse(progressFile.exists());
+				assertPayload();
+			}
+		} finally {
+			progressFile.delete();
+		}
+	}
+
+	/**
+	 * This test verifies that a download resumes when an earlier run completed some of its segments, which are not
+	 * requested again.
+	 */
+	@Test
+	public void testResumeCompletedSegment() throws IOException {
+		File progressFile = new File(file.getPath() + JCurlDownload.PROGRESS_SUFFIX);
+		try {
+			new JCurlDownload(server.getUrl() + "/", file).run();
+			Properties progress = new Properties();
+			progress.setProperty("url", server.getUrl() + "/");
+			progress.setProperty("length", Integer.toString(SIZE));
+			progress.setProperty("validator", "\"1\"");
+			progress.setProperty("segments", "4");
+			progress.setProperty("segment.0", "0,249999,250000");
+			progress.setProperty("segment.1", "250000,499999,100000");
+			progress.setProperty("segment.2", "500000,749999,0");
+			progress.setProperty("segment.3", "750000,999999,250000");
+			try (OutputStream outputStream = new FileOutputStream(progressFile)) {
+				progress.store(outputStream, null);
+			}
+
+			long sent = server.getBytesSent();
+			JCurlDownload download = new JCurlDownload(server.getUrl() + "/", file).setSegments(4)
+					.setResumable(true).run();
+			assertEquals(600000, download.getResumedBytes());
+			assertEquals(SIZE, download.getBytesReceived());
+			assertEquals(SIZE - 600000, server.getBytesSent() - sent);
+			assertFalse(progressFile.exists());
+			assertPayload();
+		} finally {
+			progressFile.delete();
+		}
+	}
+
+	/* Helper methods below this line */
+
+	private void assertPayload() throws IOException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		assertEquals(SIZE, bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] != (byte) ((i % 64 == 63) ? '\n' : 'a' + (i % 26))) {
+				fail("The byte at " + i + " is wrong.");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests that a JCurlEventStream delivers events as they arrive, holds back a fast host and resumes where it
+ * stopped when it reconnects.
+ */
+public class JCurlEventStreamTest {
+	private ServerSocket serverSocket;
+	private final List<String> requests = new ArrayList<String>();
+
+	@Before
+	public void setUp() throws IOException {
+		serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		serverSocket.close();
+	}
+
+	/**
+	 * This test verifies the parsing of Server-Sent Events, the reconnect with Last-Event-ID after the host ends the
+	 * response and after the connection has been idle too long.
+	 */
+	@Test
+	public void testServerSentEvents() throws Exception {
+		serve(new String[] {
+				": welcome\n\nid: 1\ndata: one\n\nid: 2\nevent: update\ndata: two\ndata: lines\n\nretry: 10\n\n",
+				"", "data: three\n\n" }, "text/event-stream");
+		final List<String> received = new ArrayList<String>();
+		final JCurlEventStream stream = new JCurlEventStream(url()).setIdleTimeoutMillis(300).setReconnectMillis(10);
+		stream.run(event -> {
+			received.add(event.toString());
+			if (received.size() == 3) {
+				stream.close();
+			}
+		});
+		assertEquals("[message 1 one, update 2 two\nlines, message 2 three]", received.toString());
+		assertEquals(3, stream.getConnectCount());
+		assertEquals(1, stream.getHeartbeatCount());
+		assertNull(header(0, "Last-Event-ID"));
+		assertEquals("2", header(1, "Last-Event-ID"));
+		assertEquals("2", header(2, "Last-Event-ID"));
+	}
+
+	/**
+	 * This test verifies that the id of an event that the host cut off before it ended is not sent as Last-Event-ID,
+	 * so the host sends the event again.
+	 */
+	@Test
+	public void testEventCutOff() throws Exception {
+		serve(new String[] { "id: 1\ndata: one\n\nid: 2\ndata: tw", "id: 2\ndata: two\n\n" }, "text/event-stream");
+		final List<String> received = new ArrayList<String>();
+		final JCurlEventStream stream = new JCurlEventStream(url()).setIdleTimeoutMillis(300).setReconnectMillis(10);
+		stream.run(event -> {
+			received.add(event.toString());
+			if (received.size() == 2) {
+				stream.close();
+			}
+		});
+		assertEquals("[message 1 one, message 2 two]", received.toString());
+		assertEquals("1", header(1, "Last-Event-ID"));
+	}
+
+	/**
+	 * This test verifies that a slow handler stops the reading of a line stream and that the stream resumes with the
+	 * since parameter in place of the one of the url.
+	 */
+	@Test
+	public void testLinesAndBackpressure() throws Exception {
+		StringBuilder lines = new StringBuilder();
+		for (int i = 1; i <= 1000; i++) {
+			lines.append("{\"seq\":").append(i).append("}\n").append(i % 100 == 0 ? "\n" : "");
+		}
+		serve(new String[] { lines.toString(), "{\"seq\":1001}\n" }, "application/x-ndjson");
+		final List<String> received = new ArrayList<String>();
+		final JCurlEventStream stream = new JCurlEventStream(url() + "?feed=continuous&since=now").setQueueSize(4)
+				.setReconnectMillis(10).setResumeParameter("since",
+						line -> line.substring(line.indexOf(':') + 1, line.indexOf('}')));
+		final long[] readAhead = new long[1];
+		stream.run(event -> {
+			if (received.isEmpty()) {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				readAhead[0] = stream.getEventCount();
+			}
+			received.add(event.getData());
+			if (received.size() == 1001) {
+				stream.close();
+			}
+		});
+		assertTrue("At most the queue and the event in the handler are read", readAhead[0] <= 5);
+		assertEquals("{\"seq\":1001}", received.get(1000));
+		assertEquals(10, stream.getHeartbeatCount());
+		assertTrue(requests.get(0).startsWith("GET /?feed=continuous&since=now "));
+		assertTrue(requests.get(1).startsWith("GET /?feed=continuous&since=1000 "));
+	}
+
+	/* Helper methods below this line */
+
+	private String url() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+	}
+
+	/**
+	 * This method answers one connection per body, an empty body is a response that never sends anything and the
+	 * last body is followed by silence.
+	 */
+	private void serve(final String[] bodies, final String contentType) {
+		Thread server = new Thread(() -> {
+			List<Socket> sockets = new ArrayList<Socket>();
+			try {
+				for (int i = 0; i < bodies.length; i++) {
+					Socket socket = serverSocket.accept();
+					sockets.add(socket);
+					InputStream inputStream = socket.getInputStream();
+					StringBuilder request = new StringBuilder();
+					String line;
+					while (!(line = readLine(inputStream)).isEmpty()) {
+						request.append(line).append('\n');
+					}
+					synchronized (requests) {
+						requests.add(request.toString());
+					}
+					OutputStream outputStream = socket.getOutputStream();
+					outputStream.write(("HTTP/1.1 200 OK\r\nContent-Type: " + contentType + "\r\nConnection: close\r\n"
+							+ "\r\n" + bodies[i]).getBytes(StandardCharsets.UTF_8));
+					outputStream.flush();
+					if (i < bodies.length - 1 && !bodies[i].isEmpty()) {
+						socket.close();
+					}
+				}
+				/* Keeps the last connections open until the test is done */
+				serverSocket.accept();
+			} catch (IOException e) {
+				/* The server socket is closed */
+			} finally {
+				for (Socket socket : sockets) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						/* Ignored */
+					}
+				}
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+	}
+
+	private String header(int request, String name) {
+		synchronized (requests) {
+			for (String line : requests.get(request).split("\n")) {
+				if (line.toLowerCase().startsWith(name.toLowerCase() + ":")) {
+					return line.substring(name.length() + 1).trim();
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String readLine(InputStream inputStream) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = inputStream.read()) >= 0 && c != '\n') {
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * This class tests that JCurlFlow publishes a response body by demand and sends a published request body.
+ */
+public class JCurlFlowTest {
+
+	/**
+	 * This test verifies that the body is only read as far as the subscriber has asked, and that a cancelled
+	 * subscription gets no more signals.
+	 */
+	@Test
+	public void testResponsePublisher() throws Exception {
+		try (BenchmarkHTTPServer server = new BenchmarkHTTPServer().setPayloadSize(1000000).startServer()) {
+			JCurlFlow.ResponsePublisher publisher = JCurlFlow.publisher(JCurlClient.getDefault(),
+					new JCurlRequest(server.getUrl() + "/"));
+			Recorder recorder = new Recorder();
+			publisher.subscribe(recorder);
+			recorder.subscription.get().request(2);
+			assertEquals(200, publisher.getResponse().get(10, TimeUnit.SECONDS).getResponseCode());
+			Thread.sleep(200);
+			assertEquals(2, recorder.items.get());
+			recorder.subscription.get().request(Long.MAX_VALUE);
+			assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+			assertNull(recorder.error.get());
+			assertEquals(1000000, recorder.bytes.get());
+
+			publisher = JCurlFlow.publisher(JCurlClient.getDefault(), new JCurlRequest(server.getUrl() + "/"));
+			recorder = new Recorder();
+			publisher.subscribe(recorder);
+			recorder.subscription.get().request(1);
+			publisher.getResponse().get(10, TimeUnit.SECONDS);
+			recorder.subscription.get().cancel();
+			recorder.subscription.get().request(10);
+			assertFalse("A cancelled subscription is not completed", recorder.done.await(200, TimeUnit.MILLISECONDS));
+			assertTrue(recorder.items.get() <= 1);
+
+			publisher = JCurlFlow.publisher(JCurlClient.getDefault(), new JCurlRequest(server.getUrl()
+					+ "/?status=503"));
+			recorder = new Recorder();
+			publisher.subscribe(recorder);
+			recorder.subscription.get().request(1);
+			assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+			assertNotNull(recorder.error.get());
+			assertEquals(503, publisher.getResponse().get().getResponseCode());
+		}
+	}
+
+	/**
+	 * This test verifies that a published request body is sent chunked when its length is unknown.
+	 */
+	@Test
+	public void testRequestBody() throws Exception {
+		final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final StringBuilder received = new StringBuilder();
+		Thread server = new Thread(() -> {
+			try (Socket socket = serverSocket.accept()) {
+				InputStream inputStream = socket.getInputStream();
+				String line;
+				while (!(line = readLine(inputStream)).isEmpty()) {
+					received.append(line.toLowerCase().startsWith("transfer-encoding") ? line + "\n" : "");
+				}
+				int size;
+				while ((size = Integer.parseInt(readLine(inputStream), 16)) > 0) {
+					received.append(new String(inputStream.readNBytes(size), StandardCharsets.UTF_8));
+					readLine(inputStream);
+				}
+				socket.getOutputStream().write("HTTP/1.1 204 No Content\r\nConnection: close\r\n\r\n"
+						.getBytes(StandardCharsets.US_ASCII));
+			} catch (IOException e) {
+				received.append(e);
+			}
+		});
+		server.start();
+		final SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<ByteBuffer>();
+		Thread producer = new Thread(() -> {
+			while (publisher.getNumberOfSubscribers() == 0) {
+				Thread.onSpinWait();
+			}
+			publisher.submit(ByteBuffer.wrap("one ".getBytes(StandardCharsets.UTF_8)));
+			ByteBuffer direct = ByteBuffer.allocateDirect(3);
+			direct.put("two".getBytes(StandardCharsets.UTF_8)).flip();
+			publisher.submit(direct);
+			publisher.close();
+		});
+		producer.start();
+		try {
+			JCurlRequest request = new JCurlRequest("http://127.0.0.1:" + serverSocket.getLocalPort() + "/");
+			request.setBody(JCurlFlow.body(publisher, -1, "text/plain"));
+			assertEquals(204, JCurl.put(request).getResponseCode());
+			server.join();
+			assertEquals("Transfer-Encoding: chunked\none two", received.toString());
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	/* Helper methods below this line */
+
+	private static String readLine(InputStream inputStream) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = inputStream.read()) >= 0 && c != '\n') {
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * A subscriber that records what it is signalled.
+	 */
+	private static final class Recorder implements Flow.Subscriber<ByteBuffer> {
+		private final AtomicReference<Flow.Subscription> subscription = new AtomicReference<Flow.Subscription>();
+		private final AtomicInteger items = new AtomicInteger();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription.set(subscription);
+		}
+
+		@Override
+		public void onNext(ByteBuffer item) {
+			items.incrementAndGet();
+			bytes.addAndGet(item.remaining());
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error.set(throwable);
+			done.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			done.countDown();
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.viaplay.jcurl.exception.JCurlIOException;
+
+/**
+ * This class tests the streaming JSON path extraction of the JCurlJsonExtractor.
+ */
+public class JCurlJsonExtractorTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String DOCUMENT = "\uFEFF{\"total\": 3, \"offset\":0,"
+			+ " \"name\": \"R\\u00e4ksm\\u00f6rg\\u00e5s \\ud83d\\ude00 \\\"q\\\"\","
+			+ " \"meta\": {\"count\": 2, \"tags\": [\"a\", \"b\"], \"odd key\": null},"
+			+ " \"rows\": [ {\"id\": 17, \"skip\": {\"id\": -1, \"s\": \"}]\"}, \"ok\": true},"
+			+ " {\"id\": \"x-18\", \"ok\": false}, {\"other\": [1, 2, 3]}, {\"id\": 1.5e3} ],"
+			+ " \"empty\": {}, \"none\": []}";
+
+	/**
+	 * This test verifies the supported path forms and how matched values are returned.
+	 */
+	@Test
+	public void testPaths() {
+		JCurlJsonExtractor extractor = new JCurlJsonExtractor("$.total", "$.name", "$.meta", "$.meta.count",
+				"$.meta.tags[1]", "$['meta']['odd key']", "$.rows[*].id", "$.rows[0].ok", "$.rows[*].*", "$.missing",
+				"$.none[*]", "$.empty");
+		extractor.extract(DOCUMENT.getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(3, extractor.getLong("$.total", 0));
+		assertEquals("Räksmörgås 😀 \"q\"", extractor.getString("$.name"));
+		assertEquals("{\"count\": 2, \"tags\": [\"a\", \"b\"], \"odd key\": null}", extractor.getString("$.meta"));
+		assertEquals(2, extractor.getLong("$.meta.count", 0));
+		assertEquals("b", extractor.getString("$.meta.tags[1]"));
+		assertEquals(Collections.singletonList(null), extractor.getStrings("$['meta']['odd key']"));
+		assertEquals(Arrays.asList("17", "x-18", "1.5e3"), extractor.getStrings("$.rows[*].id"));
+		assertEquals("true", extractor.getString("$.rows[0].ok"));
+		assertEquals(7, extractor.getStrings("$.rows[*].*").size());
+		assertEquals("{\"id\": -1, \"s\": \"}]\"}", extractor.getStrings("$.rows[*].*").get(1));
+		assertNull(extractor.getString("$.missing"));
+		assertEquals(-1, extractor.getLong("$.missing", -1));
+		assertTrue(extractor.getStrings("$.none[*]").isEmpty());
+		assertEquals("{}", extractor.getString("$.empty"));
+		try {
+			extractor.getLongs("$.rows[*].id");
+			fail("x-18 is not a long.");
+		} catch (NumberFormatException e) {
+			/* Expected */
+		}
+		try {
+			extractor.getString("$.unknown");
+			fail("The path was not given to the extractor.");
+		} catch (IllegalArgumentException e) {
+			/* Expected */
+		}
+	}
+
+	/**
+	 * This test verifies that reading stops once all paths are done and that a stream that hands out one byte at a
+	 * time gives the same values as an array.
+	 */
+	@Test
+	public void testEarlyTermination() throws IOException {
+		StringBuilder json = new StringBuilder("{\"total\": 100000, \"rows\": [");
+		for (int i = 0; i < 100000; i++) {
+			json.append(i == 0 ? "" : ",").append("{\"id\": ").append(i).append(", \"title\": \"Row number ")
+					.append(i).append("\"}");
+		}
+		json.append("], \"next\": \"/rows?offset=100000\"}");
+		byte[] document = json.toString().getBytes(StandardCharsets.UTF_8);
+
+		JCurlJsonExtractor first = new JCurlJsonExtractor("$.total", "$.rows[2].title");
+		CountingInputStream stream = new CountingInputStream(document, 8192);
+		first.extract(stream);
+		assertEquals(100000, first.getLong("$.total", 0));
+		assertEquals("Row number 2", first.getString("$.rows[2].title"));
+		assertTrue(first.getBytesRead() < 200);
+		assertEquals(8192, stream.read);
+
+		JCurlJsonExtractor all = new JCurlJsonExtractor("$.rows[*].id", "$.next");
+		all.extract(new CountingInputStream(document, 1));
+		assertEquals(100000, all.getLongs("$.rows[*].id").length);
+		assertEquals(99999, all.getLongs("$.rows[*].id")[99999]);
+		assertEquals("/rows?offset=100000", all.getString("$.next"));
+		/* Both paths are done at the last value, before the closing brace */
+		assertEquals(document.length - 1, all.getBytesRead());
+
+		/* Once the rows have ended nothing more can match them */
+		JCurlJsonExtractor rows = new JCurlJsonExtractor("$.rows[*].id");
+		rows.extract(document);
+		assertEquals(document.length - "], \"next\": \"/rows?offset=100000\"}".length() + 1, rows.getBytesRead());
+	}
+
+	/**
+	 * This test verifies that malformed documents and paths are reported.
+	 */
+	@Test
+	public void testMalformed() {
+		for (String document : new String[] { "", "{\"a\" 1}", "{\"a\": \"open", "{\"a\": [1 2]}", "{a: 1}" }) {
+			try {
+				new JCurlJsonExtractor("$.a[*]").extract(document.getBytes(StandardCharsets.UTF_8));
+				fail("The document '" + document + "' is malformed.");
+			} catch (JCurlIOException e) {
+				assertTrue(e.getCause().getMessage().startsWith("The JSON document is malformed"));
+			}
+		}
+		for (String path : new String[] { "rows", "$.", "$.rows[", "$.rows[-1]", "$.rows[?(@.id)]", "$..id" }) {
+			try {
+				JCurlJsonPath.compile(path);
+				fail("The path '" + path + "' is not supported.");
+			} catch (IllegalArgumentException e) {
+				/* Expected */
+			}
+		}
+	}
+
+	/**
+	 * This test verifies that JCurl hands the body to the extractor instead of reading it into the response string.
+	 */
+	@Test
+	public void testBodyHandler() throws IOException {
+		File file = folder.newFile("rows.json");
+		Files.write(file.toPath(), DOCUMENT.getBytes(StandardCharsets.UTF_8));
+		JCurlJsonExtractor extractor = new JCurlJsonExtractor("$.rows[*].id");
+		JCurlRequest request = new JCurlRequest(file.toURI().toString());
+		request.setBodyHandler(extractor);
+		JCurlResponse response = JCurl.get(request);
+		assertEquals(200, response.getResponseCode());
+		assertEquals("", response.toString());
+		assertEquals(Arrays.asList("17", "x-18", "1.5e3"), extractor.getStrings("$.rows[*].id"));
+	}
+
+	/* Helper classes below this line */
+
+	/**
+	 * A stream that hands out at most chunkSize bytes per read and counts them.
+	 */
+	private static class CountingInputStream extends InputStream {
+		private final ByteArrayInputStream inputStream;
+		private final int chunkSize;
+		private int read = 0;
+
+		CountingInputStream(byte[] bytes, int chunkSize) {
+			this.inputStream = new ByteArrayInputStream(bytes);
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public int read() {
+			int b = inputStream.read();
+			read += b < 0 ? 0 : 1;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			int count = inputStream.read(bytes, offset, Math.min(length, chunkSize));
+			read += count < 0 ? 0 : count;
+			return count;
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * This class tests that a JCurlLoadBalancer spreads the requests to a service over its endpoints and stops sending
+ * them to an endpoint that fails.
+ */
+public class JCurlLoadBalancerTest {
+
+	/**
+	 * This test verifies that the power of two choices sends most requests to the faster endpoint, that the path of an
+	 * endpoint is kept and that weights shift the traffic.
+	 */
+	@Test
+	public void testBalancing() throws Exception {
+		try (BenchmarkHTTPServer fast = new BenchmarkHTTPServer().setLatency(BenchmarkHTTPServer.Latency.fixed(1))
+				.startServer();
+				BenchmarkHTTPServer slow = new BenchmarkHTTPServer().setLatency(BenchmarkHTTPServer.Latency.fixed(30))
+						.startServer()) {
+			JCurlLoadBalancer service = JCurlLoadBalancer.builder("Service").endpoint(fast.getUrl())
+					.endpoint(slow.getUrl() + "/v2/").decayMillis(500).build();
+			JCurlClient client = JCurlClient.builder().loadBalancer(service).build();
+			/* Connect to both so the first response times are not those of the connections */
+			client.get(fast.getUrl() + "/");
+			client.get(slow.getUrl() + "/");
+			for (int i = 0; i < 100; i++) {
+				JCurlResponse response = client.get("http://service/some/path?page=" + i);
+				assertEquals(200, response.getResponseCode());
+			}
+			/* A query that URI rejects, but URL accepts, still goes to an endpoint */
+			assertEquals(200, client.get("http://service/_design/x/_view/y?key=\"abc\"").getResponseCode());
+			assertEquals(103, fast.getRequestCount() + slow.getRequestCount());
+			assertTrue("The faster endpoint gets most requests: " + service, fast.getRequestCount() > 80);
+			assertTrue(slow.getRequestCount() > 0);
+			assertSame(service, client.getLoadBalancer("SERVICE"));
+			assertEquals(0, service.getEndpoints().get(0).getOutstanding());
+
+			/* Least outstanding with weights 1:3 spreads concurrent requests after the weights */
+			final JCurlLoadBalancer weighted = JCurlLoadBalancer.builder("weighted")
+					.strategy(JCurlLoadBalancer.Strategy.LEAST_OUTSTANDING).endpoint(fast.getUrl(), 1)
+					.endpoint(slow.getUrl(), 3).build();
+			slow.setLatency(BenchmarkHTTPServer.Latency.fixed(1));
+			long fastBefore = fast.getRequestCount();
+			long slowBefore = slow.getRequestCount();
+			final JCurlClient weightedClient = JCurlClient.builder().loadBalancer(weighted).build();
+			runConcurrently(weightedClient, "http://weighted/", 8, 50);
+			double share = (slow.getRequestCount() - slowBefore) / 400.0;
+			assertTrue("The endpoint with weight 3 gets about 3/4: " + share, share > 0.6 && share < 0.9);
+
+			weighted.setWeight(slow.getUrl(), 0);
+			slowBefore = slow.getRequestCount();
+			runConcurrently(weightedClient, "http://weighted/", 4, 10);
+			assertEquals("A drained endpoint gets no requests", slowBefore, slow.getRequestCount());
+			assertEquals(fastBefore + 400 - Math.round(share * 400) + 40, fast.getRequestCount());
+			try {
+				weighted.setWeight("http://127.0.0.1:1", 1);
+				fail("There is no such endpoint.");
+			} catch (IllegalArgumentException e) {
+				/* Expected */
+			}
+			client.close();
+			weightedClient.close();
+		}
+	}
+
+	/**
+	 * This test verifies that an endpoint is ejected after failures in a row and that a health check reinstates it.
+	 */
+	@Test
+	public void testEjection() throws Exception {
+		try (BenchmarkHTTPServer healthy = new BenchmarkHTTPServer().startServer();
+				BenchmarkHTTPServer failing = new BenchmarkHTTPServer().setErrorRate(1.0).startServer()) {
+			JCurlLoadBalancer service = JCurlLoadBalancer.builder("service")
+					.strategy(JCurlLoadBalancer.Strategy.LEAST_OUTSTANDING).endpoint(healthy.getUrl())
+					.endpoint(failing.getUrl()).ejection(3, 60000).healthCheck("/health", 3600000).build();
+			JCurlClient client = JCurlClient.builder().loadBalancer(service).build();
+			JCurlLoadBalancer.Endpoint ejected = service.getEndpoints().get(1);
+			int failures = 0;
+			for (int i = 0; i < 100; i++) {
+				failures += client.get("http://service/").getResponseCode() == 500 ? 1 : 0;
+			}
+			assertEquals("The failing endpoint is ejected after 3 failures in a row", 3, failures);
+			assertTrue(ejected.isEjected());
+			assertEquals(3, ejected.getFailureCount());
+
+			service.checkHealth();
+			assertTrue("A failed health check keeps the endpoint ejected", ejected.isEjected());
+			failing.setErrorRate(0.0);
+			service.checkHealth();
+			assertFalse("A passed health check reinstates the endpoint", ejected.isEjected());
+			long before = failing.getRequestCount();
+			for (int i = 0; i < 100; i++) {
+				assertEquals(200, client.get("http://service/").getResponseCode());
+			}
+			assertTrue(failing.getRequestCount() > before);
+
+			/* When every endpoint is ejected the requests are still sent */
+			healthy.setErrorRate(1.0);
+			failing.setErrorRate(1.0);
+			for (int i = 0; i < 20; i++) {
+				client.get("http://service/");
+			}
+			assertTrue(service.getEndpoints().get(0).isEjected() && ejected.isEjected());
+			healthy.setErrorRate(0.0);
+			int code = 0;
+			for (int i = 0; i < 20 && code != 200; i++) {
+				code = client.get("http://service/").getResponseCode();
+			}
+			assertEquals(200, code);
+			client.close();
+			service.close();
+		}
+	}
+
+	/* Helper methods below this line */
+
+	private static void runConcurrently(final JCurlClient client, final String url, int threads, final int requests)
+			throws InterruptedException {
+		List<Thread> started = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			started.add(Thread.ofVirtual().start(() -> {
+				for (int j = 0; j < requests; j++) {
+					assertEquals(200, client.get(url).getResponseCode());
+				}
+			}));
+		}
+		for (Thread thread : started) {
+			thread.join();
+		}
+	}
+
+}
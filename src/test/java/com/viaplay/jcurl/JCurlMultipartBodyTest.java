@@ -0,0 +1,63 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+/**
+ * This class tests that a JCurlMultipartBody writes its parts as multipart/form-data with the computed length.
+ */
+public class JCurlMultipartBodyTest {
+
+	/**
+	 * This test verifies the encoding of every kind of part and that the Content-Length is the written length.
+	 */
+	@Test
+	public void testParts() throws IOException {
+		Path path = Files.createTempFile("JCurlMultipartBodyTest", ".txt");
+		try {
+			byte[] large = new byte[200000];
+			for (int i = 0; i < large.length; i++) {
+				large[i] = (byte) ('a' + i % 26);
+			}
+			Files.write(path, large);
+			JCurlMultipartBody body = JCurlMultipartBody.builder("b").field("title", "Räka \"1\"")
+					.file("image", "a.bin", "application/octet-stream", new byte[] { 1, 2 })
+					.file("manifest", "m.txt", "text/plain", path)
+					.file("stream", "s.txt", null, new ByteArrayInputStream("xyz".getBytes()), 3).build();
+			assertEquals("multipart/form-data; boundary=b", body.getContentType());
+
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			body.writeTo(outputStream, JCurlBufferPool.getInstance());
+			assertEquals(outputStream.size(), body.getContentLength());
+			String written = new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+			String expected = "--b\r\nContent-Disposition: form-data; name=\"title\"\r\n\r\nRäka \"1\""
+					+ "\r\n--b\r\nContent-Disposition: form-data; name=\"image\"; filename=\"a.bin\"\r\n"
+					+ "Content-Type: application/octet-stream\r\n\r\n\u0001\u0002"
+					+ "\r\n--b\r\nContent-Disposition: form-data; name=\"manifest\"; filename=\"m.txt\"\r\n"
+					+ "Content-Type: text/plain\r\n\r\n" + new String(large, StandardCharsets.US_ASCII)
+					+ "\r\n--b\r\nContent-Disposition: form-data; name=\"stream\"; filename=\"s.txt\"\r\n\r\nxyz"
+					+ "\r\n--b--\r\n";
+			assertEquals(expected, written);
+
+			try {
+				body.writeTo(new ByteArrayOutputStream(), JCurlBufferPool.getInstance());
+				fail("The stream part has been sent.");
+			} catch (IllegalStateException e) {
+				/* Expected */
+			}
+			assertEquals(-1, JCurlMultipartBody.builder()
+					.file("stream", "s.txt", null, new ByteArrayInputStream(large), -1).build().getContentLength());
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * This class tests how the JCurlResponse keeps the header fields received from the host.
+ */
+public class JCurlResponseTest {
+
+	/**
+	 * This test verifies that the header fields are looked up without regard to case, that a field sent more than once
+	 * keeps all values in order and that the Map view looks like the one of HttpURLConnection.
+	 */
+	@Test
+	public void testHeaderFields() throws Exception {
+		JCurlResponse response = new JCurlResponse();
+		assertNull(response.getHeaderFields());
+		assertNull(response.getHeaderField("Content-Type"));
+		assertTrue(response.getHeaderFieldValues("Set-Cookie").isEmpty());
+
+		response.updateFromUrlConnection(connection(null, "HTTP/1.1 200 OK", "content-type", "application/json",
+				"Set-Cookie", "a=1", "X-Custom", "first", "set-cookie", "b=2", "x-custom", "second", "ETag", "\"v1\""));
+		assertEquals(200, response.getResponseCode());
+		assertEquals("application/json", response.getHeaderField("Content-Type"));
+		assertEquals("application/json", response.getHeaderField("CONTENT-TYPE"));
+		assertEquals("\"v1\"", response.getHeaderField("etag"));
+		assertNull(response.getHeaderField("Content-Length"));
+		assertEquals(Arrays.asList("a=1", "b=2"), response.getHeaderFieldValues("SET-COOKIE"));
+		assertEquals(Arrays.asList("first", "second"), response.getHeaderFieldValues("X-Custom"));
+
+		Map<String, List<String>> headerFields = response.getHeaderFields();
+		assertSame(headerFields, response.getHeaderFields());
+		assertEquals(5, headerFields.size());
+		assertEquals(Collections.singletonList("HTTP/1.1 200 OK"), headerFields.get(null));
+		assertEquals(Arrays.asList("a=1", "b=2"), headerFields.get("Set-Cookie"));
+		assertTrue(headerFields.containsKey("x-custom"));
+		assertFalse(headerFields.containsKey("Location"));
+		assertEquals(Arrays.asList(null, "content-type", "Set-Cookie", "X-Custom", "ETag"),
+				Arrays.asList(headerFields.keySet().toArray()));
+		try {
+			headerFields.put("Location", Collections.singletonList("/"));
+			fail("The header fields must be read only.");
+		} catch (UnsupportedOperationException e) {
+			/* Expected */
+		}
+	}
+
+	/**
+	 * This test verifies that the cookie manager picks up Set-Cookie fields whatever the case of their name.
+	 */
+	@Test
+	public void testSetCookieInAnyCase() throws Exception {
+		JCurlCookieManager cookieManager = new JCurlCookieManager();
+		JCurlResponse response = new JCurlResponse(cookieManager);
+		response.updateFromUrlConnection(connection(null, "HTTP/2 200", "set-cookie", "lower=1; Path=/",
+				"SET-COOKIE", "upper=2; Path=/", "Set-Cookie", "mixed=3; Path=/"));
+		assertEquals(3, cookieManager.getCookieCount());
+	}
+
+	/**
+	 * This test verifies that many fields with distinct names are all found, i.e. that the hash table grows with them.
+	 */
+	@Test
+	public void testManyHeaderFields() {
+		String[] fields = new String[200 * 2];
+		for (int i = 0; i < 200; i++) {
+			fields[i * 2] = "X-Field-" + i;
+			fields[i * 2 + 1] = Integer.toString(i);
+		}
+		JCurlHeaders headers = new JCurlHeaders(fields, 200);
+		for (int i = 0; i < 200; i++) {
+			assertEquals(Integer.toString(i), headers.get("x-field-" + i));
+		}
+		assertEquals(200, headers.asMap().size());
+		assertNull(headers.get("X-Field-200"));
+	}
+
+	/* Helper methods below this line */
+
+	/**
+	 * @return A connection that returns the names and values passed in as its header fields.
+	 */
+	private URLConnection connection(final String... fields) throws Exception {
+		return new URLConnection(URI.create("file:/").toURL()) {
+			@Override
+			public void connect() {
+			}
+
+			@Override
+			public String getHeaderFieldKey(int n) {
+				return n * 2 < fields.length ? fields[n * 2] : null;
+			}
+
+			@Override
+			public String getHeaderField(int n) {
+				return n * 2 < fields.length ? fields[n * 2 + 1] : null;
+			}
+		};
+	}
+
+}
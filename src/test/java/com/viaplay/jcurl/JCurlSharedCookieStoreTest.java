@@ -0,0 +1,149 @@
+package com.viaplay.jcurl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class tests the JCurlSharedCookieStore. Two stores that map the same file behave like two processes, since they
+ * share nothing but the file.
+ */
+public class JCurlSharedCookieStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * This test verifies that a cookie added through one store is sent by a manager using another store of the same
+	 * file, and that the file keeps the cookies when it is opened again.
+	 */
+	@Test
+	public void testSharedBetweenStores() throws Exception {
+		File file = new File(folder.getRoot(), "cookies.shm");
+		JCurlSharedCookieStore first = new JCurlSharedCookieStore(file, 2, 256);
+		JCurlSharedCookieStore second = new JCurlSharedCookieStore(file);
+		JCurlCookieManager writer = new JCurlCookieManager(first);
+		JCurlCookieManager reader = new JCurlCookieManager(second);
+
+		writer.addCookie(new JCurlCookie("partner.com", "Session", "a", "/", null, true, true));
+		assertEquals("Session=a", cookieHeader(reader, "https://api.partner.com/v1"));
+		writer.addCookie(new JCurlCookie("partner.com", "Session", "b", "/", null, true, true));
+		writer.addCookie(new JCurlCookie("partner.com", "Api", "c", "/v1", null, true, true));
+		assertEquals("Api=c; Session=b", cookieHeader(reader, "https://api.partner.com/v1"));
+
+		/* The file was created with two slots, the third cookie does not fit */
+		reader.addCookie(new JCurlCookie("partner.com", "Third", "d", "/", null, true, true));
+		assertEquals(2, writer.getCookieCount());
+		assertTrue(reader.removeCookie(new JCurlCookie("partner.com", "Api", null, "/v1", null, false, false)));
+		assertEquals("Session=b", cookieHeader(writer, "https://api.partner.com/v1"));
+		first.close();
+		second.close();
+
+		JCurlSharedCookieStore reopened = new JCurlSharedCookieStore(file);
+		assertEquals("b", reopened.getCookieMap().values().iterator().next().getValue());
+		reopened.clear();
+		assertEquals(0, reopened.size());
+		reopened.close();
+	}
+
+	/**
+	 * This test lets one store replace a cookie while other threads read it through another store. A reader must never
+	 * see a value that is half written.
+	 */
+	@Test
+	public void testConsistentReads() throws Exception {
+		File file = new File(folder.getRoot(), "consistent.shm");
+		final JCurlSharedCookieStore writer = new JCurlSharedCookieStore(file);
+		final JCurlSharedCookieStore reader = new JCurlSharedCookieStore(file);
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] readers = new Thread[3];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (!done.get()) {
+							String header = reader.header("partner.com", "/", System.currentTimeMillis());
+							if (!header.isEmpty()) {
+								char[] value = header.substring("Token=".length()).toCharArray();
+								assertEquals(300, value.length);
+								char[] expected = new char[300];
+								Arrays.fill(expected, value[0]);
+								assertArrayEquals(expected, value);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			readers[t].start();
+		}
+		char[] value = new char[300];
+		for (int i = 0; i < 2000; i++) {
+			Arrays.fill(value, (char) ('a' + i % 26));
+			writer.put(new JCurlCookie("partner.com", "Token", new String(value), "/", null, false, false));
+		}
+		done.set(true);
+		for (Thread thread : readers) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		writer.close();
+		reader.close();
+	}
+
+	/**
+	 * This test leaves the sequence number odd, like a process that died in the middle of a change, and verifies that
+	 * the readers and the writers repair the file instead of waiting forever or failing.
+	 */
+	@Test
+	public void testAbandonedWrite() throws Exception {
+		File file = new File(folder.getRoot(), "abandoned.shm");
+		JCurlSharedCookieStore store = new JCurlSharedCookieStore(file);
+		store.put(new JCurlCookie("partner.com", "Session", "a", "/", null, false, false));
+		abandonWrite(file);
+		JCurlSharedCookieStore restarted = new JCurlSharedCookieStore(file);
+		assertEquals("Session=a", restarted.header("partner.com", "/", System.currentTimeMillis()));
+
+		abandonWrite(file);
+		JCurlSharedCookieStore writer = new JCurlSharedCookieStore(file);
+		writer.put(new JCurlCookie("partner.com", "Theme", "dark", "/", null, false, false));
+		assertEquals(2, writer.size());
+		assertEquals("Session=a; Theme=dark", store.header("partner.com", "/", System.currentTimeMillis()));
+		store.close();
+		restarted.close();
+		writer.close();
+	}
+
+	/* Helper methods below this line */
+
+	private void abandonWrite(File file) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			MappedByteBuffer header = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 64);
+			header.order(ByteOrder.nativeOrder());
+			header.putLong(16, header.getLong(16) + 1);
+		}
+	}
+
+	private String cookieHeader(JCurlCookieManager cookieManager, String url) {
+		JCurlRequest request = new JCurlRequest(url);
+		cookieManager.updateCookies(request);
+		return request.getProperties().get("Cookie");
+	}
+
+}
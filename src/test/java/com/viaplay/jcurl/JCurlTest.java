@@ -12,6 +12,9 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.viaplay.jcurl.bench.Load;
+import com.viaplay.jcurl.bench.Scenario;
+import com.viaplay.jcurl.bench.Simulation;
 import com.viaplay.jcurl.exception.JCurlFileNotFoundException;
 import com.viaplay.jcurl.exception.JCurlIOException;
 import com.viaplay.jcurl.exception.JCurlSocketTimeoutException;
@@ -360,6 +363,128 @@ public class JCurlTest {
 	}
 
 
+	/**
+	 * This test verifies that fixed length and chunked bodies from the BenchmarkHTTPServer are read the same way.
+	 */
+	@Test
+	public void testFixedAndChunkedBodiesUsingBenchmarkHttpServer() {
+		BenchmarkHTTPServer server = new BenchmarkHTTPServer().setPayloadSize(100000).setChunkSize(1000);
+		server.startServer();
+		try {
+			JCurlResponse fixed = JCurl.get(server.getUrl() + "/");
+			assertHTTP(fixed, 200);
+			JCurlResponse chunked = JCurl.get(server.getUrl() + "/?chunked=true");
+			assertHTTP(chunked, 200);
+			assertEquals(fixed.toString(), chunked.toString());
+			/* JCurl reads the body line by line and terminates the last line as well */
+			assertEquals(100001, fixed.toString().length());
+			assertEquals("chunked", chunked.getHeaderFields().get("Transfer-Encoding").get(0));
+		} finally {
+			server.stopServer();
+		}
+	}
+
+	/**
+	 * This test verifies that the BenchmarkHTTPServer answers several requests on one connection and injects errors.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testKeepAliveAndErrorRateUsingBenchmarkHttpServer() throws IOException {
+		BenchmarkHTTPServer server = new BenchmarkHTTPServer().setPayloadSize(10);
+		server.startServer();
+		try {
+			java.net.Socket socket = new java.net.Socket("127.0.0.1", server.getPort());
+			try {
+				socket.getOutputStream().write(
+						"GET /a HTTP/1.1\r\nHost: x\r\n\r\nGET /b?status=404 HTTP/1.1\r\nHost: x\r\n\r\n".getBytes());
+				byte[] buffer = new byte[4096];
+				StringBuilder received = new StringBuilder();
+				while (received.indexOf("404 Not Found") < 0 || !received.toString().endsWith("abcdefghij")) {
+					int read = socket.getInputStream().read(buffer);
+					if (read < 0) {
+						break;
+					}
+					received.append(new String(buffer, 0, read));
+				}
+				assertContains("HTTP/1.1 200 OK", received);
+				assertContains("HTTP/1.1 404 Not Found", received);
+			} finally {
+				socket.close();
+			}
+			assertEquals(1, server.getConnectionCount());
+			assertEquals(2, server.getRequestCount());
+
+			server.setErrorRate(1.0);
+			assertHTTP(JCurl.get(server.getUrl() + "/"), 500);
+			assertEquals(1, server.getErrorCount());
+		} finally {
+			server.stopServer();
+		}
+	}
+
+	/**
+	 * This test runs the Load generator against the BenchmarkHTTPServer, once as fast as possible and once at a fixed
+	 * rate where the latency is corrected for coordinated omission.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLoadUsingBenchmarkHttpServer() throws Exception {
+		BenchmarkHTTPServer server = new BenchmarkHTTPServer().setErrorRate(0.1);
+		server.startServer();
+		try {
+			Load.Report report = new Load("-c", "4", "-n", "200", "-H", "Accept: text/plain", server.getUrl() + "/")
+					.run();
+			assertEquals(200, report.getRequests());
+			assertEquals(200, server.getRequestCount());
+			assertEquals(server.getErrorCount(), report.getErrors());
+			assertSame(report.getLatency(), report.getServiceTime());
+
+			report = new Load("-c", "2", "-d", "500ms", "-R", "100", server.getUrl() + "/?delay=1").run();
+			assertTrue(report.getRequests() > 20 && report.getRequests() <= 52);
+			assertNotSame(report.getLatency(), report.getServiceTime());
+			assertTrue(report.getServiceTime().getValueAtPercentile(50) >= 1000);
+		} finally {
+			server.stopServer();
+		}
+	}
+
+	/**
+	 * This test simulates virtual users that log in, browse and play against the BenchmarkHTTPServer. The browse step
+	 * extracts the payload size from a header and the play step uses it in its url.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSimulationUsingBenchmarkHttpServer() throws Exception {
+		BenchmarkHTTPServer server = new BenchmarkHTTPServer().setPayloadSize(26);
+		server.startServer();
+		try {
+			Scenario scenario = new Scenario("viewer")
+					.post("login", "${baseUrl}/login?size=${userId}", "{\"user\":\"user${userId}\"}")
+					.extract("token", "^(a[a-z]*)").thinkTime(0, 5)
+					.get("browse", "${baseUrl}/rows").header("Authorization", "Bearer ${token}")
+					.extract("size", Scenario.Extractor.header("content-length"))
+					.get("play", "${baseUrl}/play?status=201&size=${size}").expect(201);
+			Simulation.Report report = new Simulation(scenario).setUsers(20)
+					.setRampUp(Simulation.RampUp.linear(100)).setIterations(3)
+					.setVariable("baseUrl", server.getUrl()).run();
+
+			assertEquals(20, report.getUsersStarted());
+			/* User 0 gets an empty login response thus the token cannot be extracted */
+			assertEquals(3, report.getStep("login").getFailed());
+			assertEquals(57, report.getStep("login").getSuccessful());
+			assertEquals(57, report.getStep("browse").getSuccessful());
+			assertEquals(57, report.getStep("play").getSuccessful());
+			assertEquals(57, report.getIterationsCompleted());
+			assertEquals(60 + 57 + 57, server.getRequestCount());
+			assertEquals(57, report.getStep("play").getLatency().getTotalCount());
+		} finally {
+			server.stopServer();
+		}
+	}
+
 	/* Helper methods below this line */
 
 	private void assertHTTP(JCurlResponse response, int responseCode) {